@@ -7,10 +7,17 @@ import ij.ImageStack;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import spim.Threads;
+import mpicbg.imglib.container.Container;
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
 import mpicbg.imglib.cursor.Cursor;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.ImageFactory;
@@ -54,6 +61,9 @@ public class BayesMVDeconvolution implements Deconvolver
 	final LRInput views;
 	ArrayList<LRFFT> data;
 	String name;
+
+	// the threads used for all per-pixel computations of the whole deconvolution
+	ExecutorService taskExecutor;
 	
 	public BayesMVDeconvolution( final LRInput views, final PSFTYPE iterationType, final int numIterations, final double lambda, double osemspeedup, final int osemspeedupindex, final String name )
 	{
@@ -99,59 +109,69 @@ public class BayesMVDeconvolution implements Deconvolver
 		
 		//this.stack = new ImageStack( this.psi.getDimension( 0 ), this.psi.getDimension( 1 ) );
 		
+		this.taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+
 		// run the deconvolution
-		while ( i < numIterations )
+		try
 		{
-			runIteration();
-			
-			if ( debug && (i-1) % debugInterval == 0 )
+			while ( i < numIterations )
 			{
-				psi.getDisplay().setMinMax( 0, 1 );
-				final ImagePlus tmp = ImageJFunctions.copyToImagePlus( psi );
+				runIteration();
 				
-				if ( this.stack == null )
+				if ( debug && (i-1) % debugInterval == 0 )
 				{
-					this.stack = tmp.getImageStack();
-					for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
-						this.stack.setSliceLabel( "Iteration 1", i + 1 );
+					psi.getDisplay().setMinMax( 0, 1 );
+					final ImagePlus tmp = ImageJFunctions.copyToImagePlus( psi );
 					
-					tmp.setTitle( "debug view" );
-					this.ci = new CompositeImage( tmp, CompositeImage.COMPOSITE );
-					this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 1 );
-					this.ci.show();
-				}
-				else if ( stack.getSize() == this.psi.getDimension( 2 ) )
-				{
-					IJ.log( "Stack size = " + this.stack.getSize() );
-					final ImageStack t = tmp.getImageStack();
-					for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
-						this.stack.addSlice( "Iteration 2", t.getProcessor( i + 1 ) );
-					IJ.log( "Stack size = " + this.stack.getSize() );
-					this.ci.hide();
-					IJ.log( "Stack size = " + this.stack.getSize() );
-					
-					this.ci = new CompositeImage( new ImagePlus( "debug view", this.stack ), CompositeImage.COMPOSITE );
-					this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 2 );
-					this.ci.show();
-				}
-				else
-				{
-					final ImageStack t = tmp.getImageStack();
-					for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
-						this.stack.addSlice( "Iteration " + i, t.getProcessor( i + 1 ) );
+					if ( this.stack == null )
+					{
+						this.stack = tmp.getImageStack();
+						for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
+							this.stack.setSliceLabel( "Iteration 1", i + 1 );
+						
+						tmp.setTitle( "debug view" );
+						this.ci = new CompositeImage( tmp, CompositeImage.COMPOSITE );
+						this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 1 );
+						this.ci.show();
+					}
+					else if ( stack.getSize() == this.psi.getDimension( 2 ) )
+					{
+						IJ.log( "Stack size = " + this.stack.getSize() );
+						final ImageStack t = tmp.getImageStack();
+						for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
+							this.stack.addSlice( "Iteration 2", t.getProcessor( i + 1 ) );
+						IJ.log( "Stack size = " + this.stack.getSize() );
+						this.ci.hide();
+						IJ.log( "Stack size = " + this.stack.getSize() );
+						
+						this.ci = new CompositeImage( new ImagePlus( "debug view", this.stack ), CompositeImage.COMPOSITE );
+						this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 2 );
+						this.ci.show();
+					}
+					else
+					{
+						final ImageStack t = tmp.getImageStack();
+						for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
+							this.stack.addSlice( "Iteration " + i, t.getProcessor( i + 1 ) );
 
-					this.ci.setStack( this.stack, 1, this.psi.getDimension( 2 ), stack.getSize() / this.psi.getDimension( 2 ) );	
+						this.ci.setStack( this.stack, 1, this.psi.getDimension( 2 ), stack.getSize() / this.psi.getDimension( 2 ) );	
+					}
+					/*
+					Image<FloatType> psiCopy = psi.clone();
+					//ViewDataBeads.normalizeImage( psiCopy );
+					psiCopy.setName( "Iteration " + i + " l=" + lambda );
+					psiCopy.getDisplay().setMinMax( 0, 1 );
+					ImageJFunctions.copyToImagePlus( psiCopy ).show();
+					psiCopy.close();
+					psiCopy = null;*/
 				}
-				/*
-				Image<FloatType> psiCopy = psi.clone();
-				//ViewDataBeads.normalizeImage( psiCopy );
-				psiCopy.setName( "Iteration " + i + " l=" + lambda );
-				psiCopy.getDisplay().setMinMax( 0, 1 );
-				ImageJFunctions.copyToImagePlus( psiCopy ).show();
-				psiCopy.close();
-				psiCopy = null;*/
 			}
 		}
+		finally
+		{
+			taskExecutor.shutdown();
+			taskExecutor = null;
+		}
 		
 		IJ.log( "DONE (" + new Date(System.currentTimeMillis()) + ")." );
 	}
@@ -234,121 +254,146 @@ public class BayesMVDeconvolution implements Deconvolver
 	
 	public void runIteration() 
 	{
-		runIteration( psi, data, lambda, minValue, collectStatistics, i++ );
+		if ( taskExecutor != null )
+		{
+			runIteration( psi, data, lambda, minValue, collectStatistics, i++, taskExecutor );
+		}
+		else
+		{
+			// called from outside after the deconvolution finished
+			final ExecutorService executor = Executors.newFixedThreadPool( Threads.numThreads() );
+
+			try
+			{
+				runIteration( psi, data, lambda, minValue, collectStatistics, i++, executor );
+			}
+			finally
+			{
+				executor.shutdown();
+			}
+		}
 	}
 
 	final private static void runIteration( final Image< FloatType> psi, final ArrayList< LRFFT > data, 
-			final double lambda, final float minValue, final boolean collectStatistic, final int iteration )
+			final double lambda, final float minValue, final boolean collectStatistic, final int iteration, final ExecutorService taskExecutor )
 	{
 		IJ.log( "iteration: " + iteration + " (" + new Date(System.currentTimeMillis()) + ")" );
 		
 		final int numViews = data.size();
 		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( psi.getNumPixels(), Threads.numThreads() );
-		final int numThreads = threadChunks.size();
-		
+		final int numChunks = threadChunks.size();
+
+		// if all images are backed by float arrays we work on them directly
+		final float[] psiArray = getArray( psi );
+		boolean useArrays = psiArray != null;
+
+		for ( final LRFFT view : data )
+			useArrays &= getArray( view.getImage() ) != null && getArray( view.getWeight() ) != null;
+
+		// the result from the previous iteration (only for the statistics)
 		final Image< FloatType > lastIteration;
-		
-		if ( collectStatistic )
+		final float[] lastIterationArray;
+
+		if ( collectStatistic && useArrays )
+		{
+			lastIteration = null;
+			lastIterationArray = psiArray.clone();
+		}
+		else if ( collectStatistic )
+		{
 			lastIteration = psi.clone();
+			lastIterationArray = null;
+		}
 		else
+		{
 			lastIteration = null;
+			lastIterationArray = null;
+		}
+
+		final double[][] sumMax = new double[ numChunks ][ 2 ];
 
 		//int view = iteration % numViews;
 		for ( int view = 0; view < numViews; ++view )
 		{
 			final LRFFT processingData = data.get( view );
-						
+
+			// the statistics are computed in the same pass as the update of the last view
+			final boolean lastView = collectStatistic && view == numViews - 1;
+
 			long time = System.currentTimeMillis();
 			
 			// convolve psi (current guess of the image) with the PSF of the current view
 			final Image<FloatType> psiBlurred = processingData.convolve1( psi );
 			
-			//System.out.println( view + " 1: " + fftConvolution.getProcessingTime() + " ms." );
 			System.out.println( view + " a: " + (time - System.currentTimeMillis()) + " ms." );
 			
-			// size = 666, 363, 537
-			
 			// compute quotient img/psiBlurred
-			final AtomicInteger ai = new AtomicInteger(0);					
-	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ithread] = new Thread(new Runnable()
-	            {
-	                public void run()
-	                {
-	                	// Thread ID
-	                	final int myNumber = ai.getAndIncrement();
-	        
-	                	// get chunk of pixels to process
-	                	final Chunk myChunk = threadChunks.get( myNumber );
-	                	
-	            		computeQuotient( myChunk.getStartPosition(), myChunk.getLoopSize(), psiBlurred, processingData );                		
-	                }
-	            });
-	        
-	        SimpleMultiThreading.startAndJoin( threads );
-
-			//System.out.println( view + " b: " + (time - System.currentTimeMillis()) + " ms." );
-
-	        time = System.currentTimeMillis();
-	        
+			final float[] psiBlurredArray = useArrays ? getArray( psiBlurred ) : null;
+			final float[] imgArray = useArrays ? getArray( processingData.getImage() ) : null;
+			final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+			for ( final Chunk chunk : threadChunks )
+			{
+				tasks.add( new Callable< Void >()
+				{
+					@Override
+					public Void call()
+					{
+						if ( psiBlurredArray != null )
+							computeQuotient( (int)chunk.getStartPosition(), (int)chunk.getLoopSize(), psiBlurredArray, imgArray );
+						else
+							computeQuotient( chunk.getStartPosition(), chunk.getLoopSize(), psiBlurred, processingData );
+
+						return null;
+					}
+				});
+			}
+
+			invokeAll( taskExecutor, tasks );
+
+			time = System.currentTimeMillis();
+			
 			// blur the residuals image with the kernel
-	        final Image< FloatType > integral = processingData.convolve2( psiBlurred );
+			final Image< FloatType > integral = processingData.convolve2( psiBlurred );
 
-			//System.out.println( view + " 2: " + invFFConvolution.getProcessingTime() + " ms." );
 			System.out.println( view + " b: " + (time - System.currentTimeMillis()) + " ms." );
 
-			ai.set( 0 );
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ithread] = new Thread(new Runnable()
-	            {
-	                public void run()
-	                {
-	                	// Thread ID
-	                	final int myNumber = ai.getAndIncrement();
-	        
-	                	// get chunk of pixels to process
-	                	final Chunk myChunk = threadChunks.get( myNumber );
-	                	
-	            		computeFinalValues( myChunk.getStartPosition(), myChunk.getLoopSize(), psi, integral, processingData.getWeight(), lambda );                		
-	                }
-	            });
-	        
-	        SimpleMultiThreading.startAndJoin( threads );
-
-			// the result from the previous iteration
-			//System.out.println( view + " d: " + (time - System.currentTimeMillis()) + " ms." );
+			// compute the new psi, the regularization and the statistics in one pass
+			final float[] integralArray = useArrays ? getArray( integral ) : null;
+			final float[] weightArray = useArrays ? getArray( processingData.getWeight() ) : null;
+
+			tasks.clear();
+
+			for ( int c = 0; c < numChunks; ++c )
+			{
+				final Chunk chunk = threadChunks.get( c );
+				final double[] mySumMax = lastView ? sumMax[ c ] : null;
+
+				tasks.add( new Callable< Void >()
+				{
+					@Override
+					public Void call()
+					{
+						if ( integralArray != null )
+							computeFinalValues( (int)chunk.getStartPosition(), (int)chunk.getLoopSize(), psiArray, integralArray, weightArray, lambda, lastIterationArray, mySumMax );
+						else
+							computeFinalValues( chunk.getStartPosition(), chunk.getLoopSize(), psi, integral, processingData.getWeight(), lambda, lastView ? lastIteration : null, mySumMax );
+
+						return null;
+					}
+				});
+			}
+
+			invokeAll( taskExecutor, tasks );
 		}
 		
 		if ( collectStatistic )
 		{
-			final AtomicInteger ai = new AtomicInteger(0);					
-	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-	        
-	        final double[][] sumMax = new double[ numThreads ][ 2 ];
-	        
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ithread] = new Thread(new Runnable()
-	            {
-	                public void run()
-	                {
-	                	// Thread ID
-	                	final int myNumber = ai.getAndIncrement();
-	        
-	                	// get chunk of pixels to process
-	                	final Chunk myChunk = threadChunks.get( myNumber );
-	                	
-	                	collectStatistics( myChunk.getStartPosition(), myChunk.getLoopSize(), psi, lastIteration, sumMax[ myNumber ] );
-	                }
-	            });
-	        
-	        SimpleMultiThreading.startAndJoin( threads );
-			
 	        // accumulate the results from the individual threads
 			double sumChange = 0;
 			double maxChange = -1;
 			
-			for ( int i = 0; i < numThreads; ++i )
+			for ( int i = 0; i < numChunks; ++i )
 			{
 				sumChange += sumMax[ i ][ 0 ];
 				maxChange = Math.max( maxChange, sumMax[ i ][ 1 ] );
@@ -356,36 +401,119 @@ public class BayesMVDeconvolution implements Deconvolver
 			
 			IJ.log("iteration: " + iteration + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange );
 		}
-		
-		//System.out.println( "final: " + (time - System.currentTimeMillis()) + " ms." );
 	}
-	
-	private static final void collectStatistics( final long start, final long loopSize, final Image< FloatType > psi, final Image< FloatType > lastIteration, final double[] sumMax )
+
+	private static void invokeAll( final ExecutorService taskExecutor, final List< Callable< Void > > tasks )
 	{
-		double sumChange = 0;
-		double maxChange = -1;
-		
-		final Cursor< FloatType > cursorPsi = psi.createCursor();
-		final Cursor< FloatType > cursorLast = lastIteration.createCursor();
-		
-		cursorPsi.fwd( start );
-		cursorLast.fwd( start );
-		
-		for ( long l = 0; l < loopSize; ++l )
+		try
 		{
-			final float last = cursorLast.next().get();
-			final float next = cursorPsi.next().get();
-			
-			final float change = Math.abs( next - last );				
-				
-			sumChange += change;
-			maxChange = Math.max( maxChange, change );
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< Void > f : taskExecutor.invokeAll( tasks ) )
+				f.get();
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute deconvolution iteration: " + e );
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * @return - the float array of an image that is backed by one, otherwise null
+	 */
+	@SuppressWarnings( "rawtypes" )
+	protected static float[] getArray( final Image< FloatType > image )
+	{
+		final Container container = image.getContainer();
+
+		if ( container instanceof Array && ((Array)container).update( null ) instanceof FloatArray )
+			return ((FloatArray)((Array)container).update( null )).getCurrentStorageArray();
+		else
+			return null;
+	}
+
+	private static final void computeQuotient( final int start, final int loopSize, final float[] psiBlurred, final float[] img )
+	{
+		for ( int i = start; i < start + loopSize; ++i )
+			psiBlurred[ i ] = img[ i ] / psiBlurred[ i ];
+	}
+
+	/**
+	 * Computes the new psi, and the statistics if lastIteration is not null
+	 */
+	private static final void computeFinalValues( final int start, final int loopSize, final float[] psi, final float[] integral, final float[] weight, final double lambda,
+			final float[] lastIteration, final double[] sumMax )
+	{
+		if ( sumMax != null )
+		{
+			double sumChange = 0;
+			double maxChange = -1;
+
+			for ( int i = start; i < start + loopSize; ++i )
+			{
+				final float nextPsiValue = computeNextPsiValue( psi[ i ], integral[ i ], weight[ i ], lambda );
+				psi[ i ] = nextPsiValue;
+
+				final float change = Math.abs( nextPsiValue - lastIteration[ i ] );
+				sumChange += change;
+				maxChange = Math.max( maxChange, change );
+			}
+
+			sumMax[ 0 ] = sumChange;
+			sumMax[ 1 ] = maxChange;
+		}
+		else
+		{
+			for ( int i = start; i < start + loopSize; ++i )
+				psi[ i ] = computeNextPsiValue( psi[ i ], integral[ i ], weight[ i ], lambda );
+		}
+	}
+
+	/**
+	 * Computes the new value of one pixel of psi, including the Tikhonov regularization
+	 * 
+	 * @param lastPsiValue - the current value
+	 * @param integral - the value of the convolved quotient
+	 * @param weight - the weight of the view at this pixel
+	 * @param lambda - the Tikhonov parameter (0 means no regularization)
+	 * @return - the new value
+	 */
+	public static final float computeNextPsiValue( final float lastPsiValue, final float integral, final float weight, final double lambda )
+	{
+		float value = lastPsiValue * integral;
+
+		if ( value > 0 )
+		{
+			//
+			// perform Tikhonov regularization if desired
+			//		
+			if ( lambda > 0 )
+				value = ( (float)( (Math.sqrt( 1.0 + 2.0*lambda*value ) - 1.0) / lambda ) );
+		}
+		else
+		{
+			value = minValue;
 		}
+		//
+		// get the final value and some statistics
+		//
+		float nextPsiValue;
+		
+		if ( Double.isNaN( value ) )
+			nextPsiValue = (float)minValue;
+		else
+			nextPsiValue = (float)Math.max( minValue, value );
+		
+		// compute the difference between old and new
+		float change = nextPsiValue - lastPsiValue;				
 		
-		sumMax[ 0 ] = sumChange;
-		sumMax[ 1 ] = maxChange;
+		// apply the apropriate amount
+		change *= weight;
+
+		return lastPsiValue + change;
 	}
-	
+
 	private static final void computeQuotient( final long start, final long loopSize, final Image< FloatType > psiBlurred, final LRFFT processingData )
 	{
 		final Cursor<FloatType> cursorImg = processingData.getImage().createCursor();
@@ -410,15 +538,23 @@ public class BayesMVDeconvolution implements Deconvolver
 		
 	}
 	
-	private static final void computeFinalValues( final long start, final long loopSize, final Image< FloatType > psi, final Image<FloatType> integral, final Image<FloatType> weight, final double lambda )
+	private static final void computeFinalValues( final long start, final long loopSize, final Image< FloatType > psi, final Image<FloatType> integral, final Image<FloatType> weight, final double lambda,
+			final Image< FloatType > lastIteration, final double[] sumMax )
 	{
 		final Cursor< FloatType > cursorPsi = psi.createCursor();
 		final Cursor< FloatType > cursorIntegral = integral.createCursor();
 		final Cursor< FloatType > cursorWeight = weight.createCursor();
+		final Cursor< FloatType > cursorLast = lastIteration == null ? null : lastIteration.createCursor();
 		
 		cursorPsi.fwd( start );
 		cursorIntegral.fwd( start );
 		cursorWeight.fwd( start );
+
+		if ( cursorLast != null )
+			cursorLast.fwd( start );
+
+		double sumChange = 0;
+		double maxChange = -1;
 		
 		for ( long l = 0; l < loopSize; ++l )
 		{
@@ -426,41 +562,25 @@ public class BayesMVDeconvolution implements Deconvolver
 			cursorIntegral.fwd();
 			cursorWeight.fwd();
 			
-			final float lastPsiValue = cursorPsi.getType().get();
-			
-			float value = lastPsiValue * cursorIntegral.getType().get();
+			final float nextPsiValue = computeNextPsiValue( cursorPsi.getType().get(), cursorIntegral.getType().get(), cursorWeight.getType().get(), lambda );
 
-			if ( value > 0 )
-			{
-				//
-				// perform Tikhonov regularization if desired
-				//		
-				if ( lambda > 0 )
-					value = ( (float)( (Math.sqrt( 1.0 + 2.0*lambda*value ) - 1.0) / lambda ) );
-			}
-			else
+			// store the new value
+			cursorPsi.getType().set( nextPsiValue );
+
+			if ( cursorLast != null )
 			{
-				value = minValue;
+				cursorLast.fwd();
+
+				final float change = Math.abs( nextPsiValue - cursorLast.getType().get() );
+				sumChange += change;
+				maxChange = Math.max( maxChange, change );
 			}
-			//
-			// get the final value and some statistics
-			//
-			float nextPsiValue;
-			
-			if ( Double.isNaN( value ) )
-				nextPsiValue = (float)minValue;
-			else
-				nextPsiValue = (float)Math.max( minValue, value );
-			
-			// compute the difference between old and new
-			float change = nextPsiValue - lastPsiValue;				
-			
-			// apply the apropriate amount
-			change *= cursorWeight.getType().get();
-			nextPsiValue = lastPsiValue + change;
+		}
 
-			// store the new value
-			cursorPsi.getType().set( (float)nextPsiValue );
-		}		
+		if ( sumMax != null )
+		{
+			sumMax[ 0 ] = sumChange;
+			sumMax[ 1 ] = maxChange;
+		}
 	}
 }
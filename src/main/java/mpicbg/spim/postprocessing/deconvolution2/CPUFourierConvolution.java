@@ -0,0 +1,169 @@
+package mpicbg.spim.postprocessing.deconvolution2;
+
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
+import mpicbg.imglib.image.Image;
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFT;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Convolves images of one fixed size with one kernel on the CPU, replaces the ImgLib1 FourierConvolution
+ * in {@link LRFFT}. The FFT of the kernel is computed once when the engine is created and shared by all
+ * threads, every thread keeps its own buffer for the FFT of the image, so nothing is re-planned or
+ * re-allocated between blocks and iterations.
+ *
+ * Thread-safe, convolve() can be called concurrently.
+ */
+public class CPUFourierConvolution
+{
+	final int n;
+	final long[] imgSize, paddedSize, fftSize;
+	final Img< ComplexFloatType > kernelFFT;
+
+	final ThreadLocal< Img< ComplexFloatType > > fftImg = new ThreadLocal< Img< ComplexFloatType > >()
+	{
+		@Override
+		protected Img< ComplexFloatType > initialValue() { return createFFTImg(); }
+	};
+
+	/**
+	 * @param imgSize - the size of all images that will be convolved
+	 * @param kernel - the kernel
+	 */
+	public CPUFourierConvolution( final int[] imgSize, final RandomAccessibleInterval< FloatType > kernel )
+	{
+		this.n = imgSize.length;
+		this.imgSize = new long[ n ];
+		this.paddedSize = new long[ n ];
+		this.fftSize = new long[ n ];
+
+		// the image has to be extended by the kernel size so that no periodic artifacts are introduced
+		final long[] extendedSize = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			this.imgSize[ d ] = imgSize[ d ];
+			extendedSize[ d ] = imgSize[ d ] + kernel.dimension( d ) - 1;
+		}
+
+		FFTMethods.dimensionsRealToComplexFast( new FinalDimensions( extendedSize ), paddedSize, fftSize );
+
+		this.kernelFFT = computeKernelFFT( kernel );
+	}
+
+	/**
+	 * @param imgSize - the size of all images that will be convolved
+	 * @param kernel - the kernel (ImgLib1)
+	 */
+	public CPUFourierConvolution( final int[] imgSize, final Image< mpicbg.imglib.type.numeric.real.FloatType > kernel )
+	{
+		this( imgSize, LRFFT.wrap( kernel ) );
+	}
+
+	/**
+	 * The kernel is zero-padded to the size of the FFT with its center at (0,0,0)
+	 */
+	protected Img< ComplexFloatType > computeKernelFFT( final RandomAccessibleInterval< FloatType > kernel )
+	{
+		final Interval kernelConvolutionInterval = FFTMethods.paddingIntervalCentered( kernel, new FinalDimensions( paddedSize ) );
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = kernel.min( d ) + kernel.dimension( d ) / 2;
+			max[ d ] = min[ d ] + kernelConvolutionInterval.dimension( d ) - 1;
+		}
+
+		final RandomAccessibleInterval< FloatType > kernelInput = Views.interval(
+				Views.extendPeriodic( Views.interval( Views.extendValue( kernel, new FloatType() ), kernelConvolutionInterval ) ),
+				new FinalInterval( min, max ) );
+
+		return FFT.realToComplex( kernelInput, new ArrayImgFactory< ComplexFloatType >() );
+	}
+
+	/**
+	 * Convolves the image, input and output can be the same image
+	 *
+	 * @param img - the input, must have the size given in the constructor
+	 * @param output - the result, same size
+	 */
+	public void convolve( final RandomAccessibleInterval< FloatType > img, final RandomAccessibleInterval< FloatType > output )
+	{
+		convolve( img, output, fftImg.get() );
+	}
+
+	/**
+	 * Convolves the image using a buffer for the FFT of the image that is provided by the caller, so that
+	 * several convolutions with the same FFT size can share it (not concurrently)
+	 *
+	 * @param img - the input, must have the size given in the constructor
+	 * @param output - the result, same size
+	 * @param fft - the buffer, see {@link #createFFTImg()}
+	 */
+	public void convolve( final RandomAccessibleInterval< FloatType > img, final RandomAccessibleInterval< FloatType > output, final Img< ComplexFloatType > fft )
+	{
+
+		// the outofbounds is mirrored as in the ImgLib1 FourierConvolution
+		final Interval imgConvolutionInterval = FFTMethods.paddingIntervalCentered( img, new FinalDimensions( paddedSize ) );
+		FFT.realToComplex( Views.interval( Views.extendMirrorSingle( img ), imgConvolutionInterval ), fft );
+
+		// multiply in place
+		final Cursor< ComplexFloatType > c = fft.cursor();
+		final Cursor< ComplexFloatType > k = kernelFFT.cursor();
+
+		while ( c.hasNext() )
+			c.next().mul( k.next() );
+
+		FFT.complexToRealUnpad( fft, output );
+	}
+
+	/**
+	 * Convolves an ImgLib1 image that is backed by a float array in place, without copying
+	 *
+	 * @param block - the image, must have the size given in the constructor
+	 */
+	@SuppressWarnings( "rawtypes" )
+	public void convolveInPlace( final Image< mpicbg.imglib.type.numeric.real.FloatType > block )
+	{
+		final float[] data = ((FloatArray)((Array)block.getContainer()).update( null )).getCurrentStorageArray();
+		final Img< FloatType > img = ArrayImgs.floats( data, imgSize );
+
+		convolve( img, img );
+	}
+
+	/**
+	 * Convolves an ImgLib1 image of any container into a new image
+	 *
+	 * @param image - the image, must have the size given in the constructor
+	 * @return - the convolved image
+	 */
+	public Image< mpicbg.imglib.type.numeric.real.FloatType > convolve( final Image< mpicbg.imglib.type.numeric.real.FloatType > image )
+	{
+		final Image< mpicbg.imglib.type.numeric.real.FloatType > result = image.createNewImage();
+
+		convolve( LRFFT.wrap( image ), LRFFT.wrap( result ) );
+
+		return result;
+	}
+
+	/**
+	 * @return - a new buffer for the FFT of an image
+	 */
+	public Img< ComplexFloatType > createFFTImg() { return new ArrayImgFactory< ComplexFloatType >().create( fftSize, new ComplexFloatType() ); }
+
+	public long[] getImgSize() { return imgSize.clone(); }
+	public long[] getFFTSize() { return fftSize.clone(); }
+}
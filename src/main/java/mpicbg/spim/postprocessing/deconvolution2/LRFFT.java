@@ -36,7 +36,7 @@ public class LRFFT
 	
 	private Image<FloatType> image, weight, kernel1, kernel2;
 	Image<FloatType> viewContribution = null;
-	FourierConvolution<FloatType, FloatType> fftConvolution1, fftConvolution2;
+	CPUFourierConvolution fftConvolution1, fftConvolution2;
 	protected int numViews = 0;
 	
 	PSFTYPE iterationType;
@@ -204,10 +204,45 @@ public class LRFFT
 			numViews = 1;
 		}
 		
+		final ArrayList< Image< FloatType > > kernels = new ArrayList< Image< FloatType > >();
+
+		for ( final LRFFT view : views )
+			kernels.add( view.kernel1 );
+
+		this.kernel2 = computeKernel2( this.kernel1, kernels, iterationType, numViews );
+
+		if ( useCPU )
+		{
+			// the kernel FFTs are computed only once here and reused for all blocks and iterations
+			final int[] size = useBlocks ? blockSize : image.getDimensions();
+
+			this.fftConvolution1 = new CPUFourierConvolution( size, this.kernel1 );
+			this.fftConvolution2 = new CPUFourierConvolution( size, this.kernel2 );
+		}
+		else
+		{
+			this.fftConvolution1 = null;
+			this.fftConvolution2 = null;			
+		}
+	}
+	
+	/**
+	 * Computes the kernel that is used to convolve the quotient, depending on the type of iteration
+	 * 
+	 * @param kernel1 - the kernel of this view (normalized)
+	 * @param kernels - the kernels of all views (including kernel1)
+	 * @param iterationType - the type of iteration
+	 * @param numViews - the number of views
+	 * @return - kernel2
+	 */
+	public static Image< FloatType > computeKernel2( final Image< FloatType > kernel1, final ArrayList< Image< FloatType > > kernels, final PSFTYPE iterationType, final int numViews )
+	{
+		final Image< FloatType > kernel2;
+
 		if ( numViews == 1 || iterationType == PSFTYPE.INDEPENDENT )
 		{
 			// compute the inverted kernel (switch dimensions)
-			this.kernel2 = computeInvertedKernel( this.kernel1 );
+			kernel2 = computeInvertedKernel( kernel1 );
 		}
 		else if ( iterationType == PSFTYPE.EFFICIENT_BAYESIAN )
 		{
@@ -217,22 +252,22 @@ public class LRFFT
 			// P_v^compound = P_v^{*} prod{w \in W_v} P_v^{*} \ast P_w \ast P_w^{*}
 			
 			// we first get P_v^{*} -> {*} refers to the inverted coordinates
-			final Image< FloatType > tmp = computeInvertedKernel( this.kernel1.clone() );
+			final Image< FloatType > tmp = computeInvertedKernel( kernel1.clone() );
 
 			// now for each view: w \in W_v
-			for ( final LRFFT view : views )
+			for ( final Image< FloatType > otherKernel1 : kernels )
 			{
-				if ( view != this )
+				if ( otherKernel1 != kernel1 )
 				{
 					// convolve first P_v^{*} with P_w
-					final FourierConvolution<FloatType, FloatType> conv1 = new FourierConvolution<FloatType, FloatType>( computeInvertedKernel( this.kernel1 ), view.kernel1 );
+					final FourierConvolution<FloatType, FloatType> conv1 = new FourierConvolution<FloatType, FloatType>( computeInvertedKernel( kernel1 ), otherKernel1 );
 					conv1.setNumThreads();
 					conv1.setKeepImgFFT( false );
 					conv1.setImageOutOfBoundsStrategy( new OutOfBoundsStrategyValueFactory<FloatType>() );
 					conv1.process();
 		
 					// and now convolve the result with P_w^{*}
-					final FourierConvolution<FloatType, FloatType> conv2 = new FourierConvolution<FloatType, FloatType>( conv1.getResult(), computeInvertedKernel( view.kernel1 ) );
+					final FourierConvolution<FloatType, FloatType> conv2 = new FourierConvolution<FloatType, FloatType>( conv1.getResult(), computeInvertedKernel( otherKernel1 ) );
 					conv2.setNumThreads();
 					conv2.setKeepImgFFT( false );
 					conv2.setImageOutOfBoundsStrategy( new OutOfBoundsStrategyValueFactory<FloatType>() );
@@ -252,7 +287,7 @@ public class LRFFT
 			AdjustInput.normImage( tmp );
 						
 			// set it as kernel2 of the deconvolution
-			this.kernel2 = ( tmp );			
+			kernel2 = ( tmp );			
 		}
 		else if ( iterationType == PSFTYPE.OPTIMIZATION_I )
 		{
@@ -262,14 +297,14 @@ public class LRFFT
 			// P_v^compound = P_v^{*} prod{w \in W_v} P_v^{*} \ast P_w
 			
 			// we first get P_v^{*} -> {*} refers to the inverted coordinates
-			final Image< FloatType > tmp = ( this.kernel1.clone() );
+			final Image< FloatType > tmp = ( kernel1.clone() );
 			
 			// now for each view: w \in W_v
-			for ( final LRFFT view : views )
+			for ( final Image< FloatType > otherKernel1 : kernels )
 			{
-				if ( view != this )
+				if ( otherKernel1 != kernel1 )
 				{
-					final FourierConvolution<FloatType, FloatType> conv = new FourierConvolution<FloatType, FloatType>( this.kernel1, computeInvertedKernel( view.kernel1 ) );
+					final FourierConvolution<FloatType, FloatType> conv = new FourierConvolution<FloatType, FloatType>( kernel1, computeInvertedKernel( otherKernel1 ) );
 					conv.setNumThreads();
 					conv.setKeepImgFFT( false );
 					conv.setImageOutOfBoundsStrategy( new OutOfBoundsStrategyValueFactory<FloatType>() );
@@ -289,54 +324,23 @@ public class LRFFT
 			AdjustInput.normImage( tmp );
 						
 			// compute the inverted kernel
-			this.kernel2 = computeInvertedKernel( tmp );
+			kernel2 = computeInvertedKernel( tmp );
 		}
 		else //if ( iterationType == PSFTYPE.OPTIMIZATION_II )
 		{			
 			// compute the squared kernel and its inverse
-			final Image< FloatType > exponentialKernel = computeExponentialKernel( this.kernel1, numViews );
+			final Image< FloatType > exponentialKernel = computeExponentialKernel( kernel1, numViews );
 			
 			// norm the squared kernel
 			AdjustInput.normImage( exponentialKernel );
 			
 			// compute the inverted squared kernel
-			this.kernel2 = computeInvertedKernel( exponentialKernel );	
-		}
-		
-		if ( useCPU )
-		{
-			if ( useBlocks )
-			{
-				final Image< FloatType > block = factory.createImage( blockSize );
-				
-				this.fftConvolution1 = new FourierConvolution<FloatType, FloatType>( block, this.kernel1 );				
-				this.fftConvolution1.setNumThreads();
-				//this.fftConvolution1.setExtendImageByKernelSize( false );
-				this.fftConvolution1.setKeepImgFFT( false );
-				
-				this.fftConvolution2 = new FourierConvolution<FloatType, FloatType>( block, this.kernel2 );	
-				this.fftConvolution2.setNumThreads();
-				//this.fftConvolution2.setExtendImageByKernelSize( false );
-				this.fftConvolution2.setKeepImgFFT( false );
-			}
-			else
-			{
-				this.fftConvolution1 = new FourierConvolution<FloatType, FloatType>( this.image, this.kernel1 );	
-				this.fftConvolution1.setNumThreads();
-				this.fftConvolution1.setKeepImgFFT( false );
-				
-				this.fftConvolution2 = new FourierConvolution<FloatType, FloatType>( this.image, this.kernel2 );	
-				this.fftConvolution2.setNumThreads();
-				this.fftConvolution2.setKeepImgFFT( false );
-			}
-		}
-		else
-		{
-			this.fftConvolution1 = null;
-			this.fftConvolution2 = null;			
+			kernel2 = computeInvertedKernel( exponentialKernel );	
 		}
+
+		return kernel2;
 	}
-	
+
 	public static Image<FloatType> computeExponentialKernel( final Image<FloatType> kernel, final int numViews )
 	{
 		final Image<FloatType> exponentialKernel = kernel.clone();
@@ -438,12 +442,10 @@ public class LRFFT
 				//IJ.log( "Using CPU only to compute as one block ... " );
 
 				long time = System.currentTimeMillis();
-				final FourierConvolution<FloatType, FloatType> fftConv = fftConvolution1;
-				fftConv.replaceImage( image );
-				fftConv.process();
+				final Image< FloatType > result = fftConvolution1.convolve( image );
 				System.out.println(" block " + iteration + ": compute " + (System.currentTimeMillis() - time) );
 				
-				return fftConv.getResult();				
+				return result;				
 			}
 		}
 		else if ( useCUDA && !useCPU && numDevices == 1 )
@@ -554,10 +556,7 @@ public class LRFFT
 			}
 			else
 			{
-				final FourierConvolution<FloatType, FloatType> fftConv = fftConvolution2;
-				fftConv.replaceImage( image );
-				fftConv.process();			
-				return fftConv.getResult();				
+				return fftConvolution2.convolve( image );				
 			}			
 		}
 		else if ( useCUDA && !useCPU && numDevices == 1 )
@@ -620,17 +619,9 @@ public class LRFFT
 		if ( this.viewContribution != null )
 			viewClone.viewContribution = this.viewContribution.clone();
 		
-		if ( this.fftConvolution1 != null )
-		{
-			viewClone.fftConvolution1 = new FourierConvolution<FloatType, FloatType>( fftConvolution1.getImage(), fftConvolution1.getKernel() );
-			viewClone.fftConvolution1.process();
-		}
-
-		if ( this.fftConvolution2 != null )
-		{
-			viewClone.fftConvolution2 = new FourierConvolution<FloatType, FloatType>( fftConvolution2.getImage(), fftConvolution2.getKernel() );
-			viewClone.fftConvolution2.process();
-		}
+		// the convolutions only hold the kernel FFTs, they can be shared
+		viewClone.fftConvolution1 = fftConvolution1;
+		viewClone.fftConvolution2 = fftConvolution2;
 
 		return viewClone;
 	}	
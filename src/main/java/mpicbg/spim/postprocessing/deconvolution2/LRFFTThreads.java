@@ -2,7 +2,6 @@ package mpicbg.spim.postprocessing.deconvolution2;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
-import mpicbg.imglib.algorithm.fft.FourierConvolution;
 import mpicbg.imglib.container.array.Array;
 import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
 import mpicbg.imglib.image.Image;
@@ -11,30 +10,28 @@ import mpicbg.imglib.type.numeric.real.FloatType;
 
 public class LRFFTThreads 
 {
-	final protected static void convolve1BlockCPU( final Block blockStruct, final int i, final Image<FloatType> image, final Image<FloatType> result, final Image<FloatType> block, final FourierConvolution<FloatType, FloatType> fftConvolution1 )
+	final protected static void convolve1BlockCPU( final Block blockStruct, final int i, final Image<FloatType> image, final Image<FloatType> result, final Image<FloatType> block, final CPUFourierConvolution fftConvolution1 )
 	{
 		long time = System.currentTimeMillis();
 		blockStruct.copyBlock( image, block );
 		System.out.println( " block " + i + "(CPU): copy " + (System.currentTimeMillis() - time) );
 
 		time = System.currentTimeMillis();				
-		fftConvolution1.replaceImage( block );
-		fftConvolution1.process();
+		fftConvolution1.convolveInPlace( block );
 		System.out.println( " block " + i + "(CPU): compute " + (System.currentTimeMillis() - time) );
 		
 		time = System.currentTimeMillis();				
-		blockStruct.pasteBlock( result, fftConvolution1.getResult() );					
+		blockStruct.pasteBlock( result, block );					
 		System.out.println( " block " + i + "(CPU): paste " + (System.currentTimeMillis() - time) );		
 	}
 	
-	final protected static void convolve2BlockCPU( final Block blockStruct, final Image<FloatType> image, final Image<FloatType> result, final Image<FloatType> block, final FourierConvolution<FloatType, FloatType> fftConvolution2 )
+	final protected static void convolve2BlockCPU( final Block blockStruct, final Image<FloatType> image, final Image<FloatType> result, final Image<FloatType> block, final CPUFourierConvolution fftConvolution2 )
 	{
 		blockStruct.copyBlock( image, block );
 
-		fftConvolution2.replaceImage( block );
-		fftConvolution2.process();
+		fftConvolution2.convolveInPlace( block );
 		
-		blockStruct.pasteBlock( result, fftConvolution2.getResult() );
+		blockStruct.pasteBlock( result, block );
 	}
 	
 	final protected static void convolve1BlockCUDA( final Block blockStruct, final int i, final int deviceId, final Image<FloatType> image, final Image<FloatType> result, final Image<FloatType> block, 
@@ -68,7 +65,7 @@ public class LRFFTThreads
 	}
 	
 	final protected static Thread getCPUThread1( final AtomicInteger ai, final Block[] blocks, final int[] blockSize, final ImageFactory< FloatType > factory,
-			final Image<FloatType> image, final Image<FloatType> result, final FourierConvolution<FloatType, FloatType> fftConvolution1 )
+			final Image<FloatType> image, final Image<FloatType> result, final CPUFourierConvolution fftConvolution1 )
 	{
 		final Thread cpuThread1 = new Thread(new Runnable()
 		{
@@ -91,7 +88,7 @@ public class LRFFTThreads
 	}
 
 	final protected static Thread getCPUThread2( final AtomicInteger ai, final Block[] blocks, final int[] blockSize, final ImageFactory< FloatType > factory,
-			final Image<FloatType> image, final Image<FloatType> result, final FourierConvolution<FloatType, FloatType> fftConvolution2 )
+			final Image<FloatType> image, final Image<FloatType> result, final CPUFourierConvolution fftConvolution2 )
 	{
 		final Thread cpuThread2 = new Thread(new Runnable()
 		{
@@ -27,6 +27,11 @@ import spim.Threads;
 public class DOM 
 {
 	final public static void computeDifferencOfMean3d( final Image< LongType> integralImg, final Image< FloatType > domImg, final int sx1, final int sy1, final int sz1, final int sx2, final int sy2, final int sz2, final float min, final float max  )
+	{
+		computeDifferencOfMean3d( integralImg, domImg, sx1, sy1, sz1, sx2, sy2, sz2, min, max, Threads.numThreads() );
+	}
+
+	final public static void computeDifferencOfMean3d( final Image< LongType> integralImg, final Image< FloatType > domImg, final int sx1, final int sy1, final int sz1, final int sx2, final int sy2, final int sz2, final float min, final float max, final int numThreads )
 	{
 		final float diff = max - min;
 		
@@ -53,9 +58,8 @@ public class DOM
 		final int d = domImg.getDimension( 2 ) - ( Math.max( sz1, sz2 ) / 2 ) * 2;
 
 		final AtomicInteger ai = new AtomicInteger(0);
-        final Thread[] threads = SimpleMultiThreading.newThreads( Threads.numThreads() );
-		final int numThreads = threads.length;
-        
+        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+
         for (int ithread = 0; ithread < threads.length; ++ithread)
             threads[ithread] = new Thread(new Runnable()
             {
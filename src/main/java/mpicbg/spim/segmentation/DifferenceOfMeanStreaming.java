@@ -0,0 +1,446 @@
+package mpicbg.spim.segmentation;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.basictypecontainer.FloatAccess;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.segmentation.PeakFinder3d.Peaks;
+import spim.Threads;
+
+/**
+ * Computes the same Difference-of-Mean as {@link DOM#computeDifferencOfMean3d(Image, Image, int, int, int, int, int, int, float, float)}
+ * without an integral image of the whole volume. The volume is split into slabs of z-planes, each slab is
+ * streamed plane by plane: the sums of both boxes in z are updated incrementally (add the new plane, subtract
+ * the old one) directly from the float array, the sums in y are updated row by row in the same way and the sums
+ * in x are computed with prefix sums of the current row. All sums are kept as long, as in the integral image.
+ *
+ * Each slab keeps about 3 * hzMax + 12 planes in memory (the z-sums, the DoM planes that are still needed and the
+ * planes at its borders that are written at the end), so there are fewer slabs than threads if the boxes are
+ * large compared to the depth of the image (see {@link #minSlabThickness}) or if they would not fit into
+ * {@link #memoryBudget}.
+ *
+ * The peaks (3x3x3 extrema, see {@link PeakFinder3d}) are found in the same pass. The DoM image can be the
+ * input image itself (in-place), planes that are still needed as input by a neighboring slab are only written
+ * once all slabs are done.
+ */
+public class DifferenceOfMeanStreaming
+{
+	/**
+	 * each slab is at least this many times thicker than the planes (2 * hzMax) it reads beyond its borders
+	 */
+	public static int minSlabThickness = 4;
+
+	/**
+	 * the memory (in bytes) all slabs together may use, a quarter of the maximal heap by default
+	 */
+	public static long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+	/**
+	 * @param img - the input, must be 3d and stored in an array of floats (see {@link #isCompatible(Image)})
+	 * @return - true if the image can be processed by this class
+	 */
+	public static boolean isCompatible( final Image< FloatType > img )
+	{
+		return PeakFinder3d.isCompatible( img );
+	}
+
+	/**
+	 * @param img - the input image
+	 * @param domImg - the output image, can be the same as img; has to be zero outside of the area that is computed
+	 * @param sx1 - size of the small box in x (odd)
+	 * @param sy1
+	 * @param sz1
+	 * @param sx2 - size of the large box in x (odd)
+	 * @param sy2
+	 * @param sz2
+	 * @param min - min intensity
+	 * @param max - max intensity
+	 * @param minPeakValue - the minimal absolute DoM value of a peak
+	 * @return - the peaks of the DoM image
+	 */
+	public static Peaks compute(
+			final Image< FloatType > img, final Image< FloatType > domImg,
+			final int sx1, final int sy1, final int sz1,
+			final int sx2, final int sy2, final int sz2,
+			final float min, final float max, final float minPeakValue )
+	{
+		return compute( img, domImg, sx1, sy1, sz1, sx2, sy2, sz2, min, max, minPeakValue, Threads.numThreads() );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public static Peaks compute(
+			final Image< FloatType > img, final Image< FloatType > domImg,
+			final int sx1, final int sy1, final int sz1,
+			final int sx2, final int sy2, final int sz2,
+			final float min, final float max, final float minPeakValue,
+			final int numThreads )
+	{
+		final float[] in = ((FloatArray)((Array< FloatType, FloatAccess >)img.getContainer()).update( null )).getCurrentStorageArray();
+		final float[] out = ((FloatArray)((Array< FloatType, FloatAccess >)domImg.getContainer()).update( null )).getCurrentStorageArray();
+
+		return compute( in, out, img.getDimension( 0 ), img.getDimension( 1 ), img.getDimension( 2 ), sx1, sy1, sz1, sx2, sy2, sz2, min, max, minPeakValue, numThreads );
+	}
+
+	public static Peaks compute(
+			final float[] in, final float[] out,
+			final int w, final int h, final int d,
+			final int sx1, final int sy1, final int sz1,
+			final int sx2, final int sy2, final int sz2,
+			final float min, final float max, final float minPeakValue,
+			final int numThreads )
+	{
+		final Box box = new Box( w, h, d, sx1, sy1, sz1, sx2, sy2, sz2, max - min );
+
+		final int numSlabs = numSlabs( box, numThreads );
+		final ArrayList< Callable< SlabResult > > tasks = new ArrayList< Callable< SlabResult > >();
+
+		for ( int s = 0; s < numSlabs; ++s )
+		{
+			final int zFrom = (int)( (long)d * s / numSlabs );
+			final int zTo = (int)( (long)d * ( s + 1 ) / numSlabs );
+
+			tasks.add( new Callable< SlabResult >()
+			{
+				@Override
+				public SlabResult call() throws Exception
+				{
+					return processSlab( in, out, box, zFrom, zTo, minPeakValue );
+				}
+			});
+		}
+
+		final Peaks peaks = new Peaks();
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( numSlabs );
+
+		try
+		{
+			final List< Future< SlabResult > > futures = taskExecutor.invokeAll( tasks );
+
+			// all input is read, now the planes at the borders of the slabs can be written
+			for ( final Future< SlabResult > future : futures )
+			{
+				final SlabResult result = future.get();
+
+				for ( int i = 0; i < result.deferredZ.size(); ++i )
+					System.arraycopy( result.deferredPlanes.get( i ), 0, out, result.deferredZ.get( i ) * w * h, w * h );
+
+				peaks.addAll( result.peaks );
+			}
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Failed to compute Difference-of-Mean: " + e );
+			e.printStackTrace();
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * @return - the number of slabs, at most numThreads, each at least {@link #minSlabThickness} times thicker than
+	 * 2 * hzMax and all of them together within {@link #memoryBudget}
+	 */
+	protected static int numSlabs( final Box b, final int numThreads )
+	{
+		int numSlabs = Math.max( 1, Math.min( b.d, numThreads ) );
+
+		if ( b.hzMax > 0 )
+			numSlabs = Math.max( 1, Math.min( numSlabs, b.d / ( minSlabThickness * 2 * b.hzMax ) ) );
+
+		final long maxSlabs = memoryBudget / bytesPerSlab( b );
+
+		if ( numSlabs > 1 && maxSlabs < numSlabs )
+		{
+			numSlabs = (int)Math.max( 1, maxSlabs );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Difference-of-Mean limited to " + numSlabs + " slab(s) by the memory budget of " + ( memoryBudget / ( 1024 * 1024 ) ) + " MB." );
+		}
+
+		return numSlabs;
+	}
+
+	/**
+	 * @return - the approximate memory (in bytes) one slab needs: two planes of long z-sums, the ring of DoM planes,
+	 * the window of the peak detection, the planes at both borders of the slab that are written at the end and the rows
+	 * of the sums in y
+	 */
+	protected static long bytesPerSlab( final Box b )
+	{
+		final long numFloatPlanes = ( b.hzMax + 3 ) + 3 + 2 * ( b.hzMax + 1 );
+
+		return (long)b.planeSize * ( 2 * 8 + numFloatPlanes * 4 ) + ( 3L * b.w + 1 ) * 8;
+	}
+
+	protected static class SlabResult
+	{
+		final Peaks peaks = new Peaks();
+		final ArrayList< Integer > deferredZ = new ArrayList< Integer >();
+		final ArrayList< float[] > deferredPlanes = new ArrayList< float[] >();
+	}
+
+	/**
+	 * The geometry of both boxes
+	 */
+	protected static class Box
+	{
+		final int w, h, d, planeSize;
+		final int hx1, hy1, hz1, hx2, hy2, hz2;
+		final int hxMax, hyMax, hzMax;
+		final float d1, d2;
+
+		public Box( final int w, final int h, final int d, final int sx1, final int sy1, final int sz1, final int sx2, final int sy2, final int sz2, final float diff )
+		{
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.planeSize = w * h;
+
+			this.hx1 = sx1 / 2; this.hy1 = sy1 / 2; this.hz1 = sz1 / 2;
+			this.hx2 = sx2 / 2; this.hy2 = sy2 / 2; this.hz2 = sz2 / 2;
+
+			this.hxMax = Math.max( hx1, hx2 );
+			this.hyMax = Math.max( hy1, hy2 );
+			this.hzMax = Math.max( hz1, hz2 );
+
+			this.d1 = (float)sx1 * sy1 * sz1 * diff;
+			this.d2 = (float)sx2 * sy2 * sz2 * diff;
+		}
+
+		/**
+		 * @return - true if the DoM is computed for this plane (both boxes inside the image)
+		 */
+		public boolean isInside( final int z ) { return z >= hzMax && z < d - hzMax; }
+	}
+
+	protected static SlabResult processSlab( final float[] in, final float[] out, final Box b, final int zFrom, final int zTo, final float minPeakValue )
+	{
+		final int w = b.w, h = b.h, d = b.d, planeSize = b.planeSize;
+		final SlabResult result = new SlabResult();
+
+		// sums in z of both boxes for every (x,y)
+		final long[] sumZ1 = new long[ planeSize ];
+		final long[] sumZ2 = new long[ planeSize ];
+
+		// sums in y of both z-sums for the current row, and the prefix sums along it
+		final long[] sumY1 = new long[ w ];
+		final long[] sumY2 = new long[ w ];
+		final long[] prefix = new long[ w + 1 ];
+
+		// the last DoM planes, the input of a plane is needed until hzMax + 1 planes later
+		final int ringSize = b.hzMax + 3;
+		final float[][] ring = new float[ ringSize ][];
+		final int[] ringZ = new int[ ringSize ];
+
+		for ( int i = 0; i < ringSize; ++i )
+			ringZ[ i ] = Integer.MIN_VALUE;
+
+		// three consecutive DoM planes for the peak detection
+		final float[] window = new float[ planeSize * 3 ];
+		final int[] offsets = PeakFinder3d.neighborOffsets( w, h );
+		final Peaks planePeaks = new Peaks();
+
+		// the planes of this slab that a neighboring slab still reads
+		final int deferLow = zFrom + b.hzMax + 1;
+		final int deferHigh = zTo - b.hzMax - 1;
+
+		// one more DoM plane on each side for the peak detection
+		final int zStart = Math.max( 0, zFrom - 1 );
+		final int zEnd = Math.min( d, zTo + 1 );
+
+		boolean sumsValid = false;
+
+		for ( int z = zStart; z < zEnd; ++z )
+		{
+			final int r = z % ringSize;
+
+			if ( ring[ r ] == null )
+				ring[ r ] = new float[ planeSize ];
+
+			final float[] dom = ring[ r ];
+
+			// the plane that is replaced in the ring has to be written before
+			if ( ringZ[ r ] != Integer.MIN_VALUE )
+				finish( ring[ r ], ringZ[ r ], zFrom, zTo, deferLow, deferHigh, out, planeSize, result );
+
+			ringZ[ r ] = z;
+
+			for ( int i = 0; i < planeSize; ++i )
+				dom[ i ] = 0;
+
+			if ( b.isInside( z ) )
+			{
+				if ( !sumsValid )
+				{
+					sumZ( in, sumZ1, z - b.hz1, z + b.hz1, planeSize );
+					sumZ( in, sumZ2, z - b.hz2, z + b.hz2, planeSize );
+					sumsValid = true;
+				}
+				else
+				{
+					updateZ( in, sumZ1, z + b.hz1, z - b.hz1 - 1, planeSize );
+					updateZ( in, sumZ2, z + b.hz2, z - b.hz2 - 1, planeSize );
+				}
+
+				computePlane( sumZ1, sumZ2, sumY1, sumY2, prefix, dom, b );
+			}
+
+			// the peaks of the previous plane
+			final int zp = z - 1;
+
+			if ( zp >= zFrom && zp < zTo && zp >= 1 && zp < d - 1 )
+				findPeaks( ring, ringZ, ringSize, zp, window, offsets, minPeakValue, planePeaks, result.peaks, w, h );
+		}
+
+		// write what is left in the ring
+		for ( int i = 0; i < ringSize; ++i )
+			if ( ringZ[ i ] != Integer.MIN_VALUE )
+				finish( ring[ i ], ringZ[ i ], zFrom, zTo, deferLow, deferHigh, out, planeSize, result );
+
+		return result;
+	}
+
+	/**
+	 * Writes a DoM plane if it belongs to this slab, or keeps it until all slabs are done if a neighboring slab still reads it
+	 */
+	protected static void finish(
+			final float[] dom, final int z, final int zFrom, final int zTo, final int deferLow, final int deferHigh,
+			final float[] out, final int planeSize, final SlabResult result )
+	{
+		if ( z < zFrom || z >= zTo )
+			return;
+
+		if ( z < deferLow || z >= deferHigh )
+		{
+			result.deferredZ.add( z );
+			result.deferredPlanes.add( dom.clone() );
+		}
+		else
+		{
+			System.arraycopy( dom, 0, out, z * planeSize, planeSize );
+		}
+	}
+
+	protected static void sumZ( final float[] in, final long[] sum, final int zMin, final int zMax, final int planeSize )
+	{
+		for ( int i = 0; i < planeSize; ++i )
+			sum[ i ] = 0;
+
+		for ( int z = zMin; z <= zMax; ++z )
+		{
+			final int o = z * planeSize;
+
+			for ( int i = 0; i < planeSize; ++i )
+				sum[ i ] += (int)in[ o + i ];
+		}
+	}
+
+	protected static void updateZ( final float[] in, final long[] sum, final int zAdd, final int zRemove, final int planeSize )
+	{
+		final int oa = zAdd * planeSize;
+		final int or = zRemove * planeSize;
+
+		for ( int i = 0; i < planeSize; ++i )
+			sum[ i ] += (int)in[ oa + i ] - (int)in[ or + i ];
+	}
+
+	/**
+	 * Computes the box sums in y and x of both z-sums and the DoM, row by row
+	 */
+	protected static void computePlane(
+			final long[] sumZ1, final long[] sumZ2,
+			final long[] sumY1, final long[] sumY2,
+			final long[] prefix, final float[] dom, final Box b )
+	{
+		final int w = b.w, h = b.h;
+
+		for ( int y = b.hyMax; y < h - b.hyMax; ++y )
+		{
+			// box sums in y
+			if ( y == b.hyMax )
+			{
+				sumY( sumZ1, sumY1, y - b.hy1, y + b.hy1, w );
+				sumY( sumZ2, sumY2, y - b.hy2, y + b.hy2, w );
+			}
+			else
+			{
+				updateY( sumZ1, sumY1, y + b.hy1, y - b.hy1 - 1, w );
+				updateY( sumZ2, sumY2, y + b.hy2, y - b.hy2 - 1, w );
+			}
+
+			// box sums in x and the DoM
+			final int o = y * w;
+
+			prefixSum( sumY1, prefix, w );
+			for ( int x = b.hxMax; x < w - b.hxMax; ++x )
+				dom[ o + x ] = -(float)( prefix[ x + b.hx1 + 1 ] - prefix[ x - b.hx1 ] ) / b.d1;
+
+			prefixSum( sumY2, prefix, w );
+			for ( int x = b.hxMax; x < w - b.hxMax; ++x )
+				dom[ o + x ] += (float)( prefix[ x + b.hx2 + 1 ] - prefix[ x - b.hx2 ] ) / b.d2;
+		}
+	}
+
+	protected static void sumY( final long[] sumZ, final long[] sumY, final int yMin, final int yMax, final int w )
+	{
+		for ( int x = 0; x < w; ++x )
+			sumY[ x ] = 0;
+
+		for ( int y = yMin; y <= yMax; ++y )
+		{
+			final int o = y * w;
+
+			for ( int x = 0; x < w; ++x )
+				sumY[ x ] += sumZ[ o + x ];
+		}
+	}
+
+	protected static void updateY( final long[] sumZ, final long[] sumY, final int yAdd, final int yRemove, final int w )
+	{
+		final int oa = yAdd * w;
+		final int or = yRemove * w;
+
+		for ( int x = 0; x < w; ++x )
+			sumY[ x ] += sumZ[ oa + x ] - sumZ[ or + x ];
+	}
+
+	protected static void prefixSum( final long[] row, final long[] prefix, final int w )
+	{
+		prefix[ 0 ] = 0;
+
+		for ( int x = 0; x < w; ++x )
+			prefix[ x + 1 ] = prefix[ x ] + row[ x ];
+	}
+
+	protected static void findPeaks(
+			final float[][] ring, final int[] ringZ, final int ringSize, final int z,
+			final float[] window, final int[] offsets, final float minPeakValue,
+			final Peaks planePeaks, final Peaks peaks, final int w, final int h )
+	{
+		final int planeSize = w * h;
+
+		for ( int i = 0; i < 3; ++i )
+		{
+			final int r = ( z - 1 + i ) % ringSize;
+			System.arraycopy( ring[ r ], 0, window, i * planeSize, planeSize );
+		}
+
+		planePeaks.size = 0;
+		PeakFinder3d.findPeaks( window, w, h, 1, 2, offsets, minPeakValue, planePeaks );
+
+		for ( int i = 0; i < planePeaks.size(); ++i )
+			peaks.add( planePeaks.getX( i ), planePeaks.getY( i ), z, planePeaks.getIntensity( i ), planePeaks.isMax( i ) );
+	}
+}
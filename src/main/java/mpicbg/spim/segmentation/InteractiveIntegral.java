@@ -358,6 +358,15 @@ public class InteractiveIntegral implements PlugIn
 	}
 	
 	public static ArrayList<SimplePeak> findPeaks( final Image<FloatType> laPlace, final float minValue )
+	{
+		// 3d arrays are scanned in disjoint slabs directly on the float array
+		if ( PeakFinder3d.isCompatible( laPlace ) )
+			return PeakFinder3d.findPeaks( laPlace, minValue ).toSimplePeaks();
+
+		return findPeaksCursor( laPlace, minValue );
+	}
+
+	public static ArrayList<SimplePeak> findPeaksCursor( final Image<FloatType> laPlace, final float minValue )
 	{
 	    final AtomicInteger ai = new AtomicInteger( 0 );
 	    final Thread[] threads = SimpleMultiThreading.newThreads( Threads.numThreads() );
@@ -0,0 +1,305 @@
+package mpicbg.spim.segmentation;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.basictypecontainer.FloatAccess;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.spim.io.IOFunctions;
+import spim.Threads;
+
+/**
+ * Finds the local minima and maxima (3x3x3 neighborhood) of a 3d image that is stored in an
+ * ImgLib1 {@link Array} of floats, as used for the DoG and DoM detections.
+ *
+ * The volume is split into disjoint slabs of z-planes, every slab is scanned once by one task directly
+ * on the float array using precomputed offsets of the 26 neighbors. The six direct neighbors are compared
+ * first as they reject most candidates. The peaks are collected in primitive arrays ({@link Peaks}),
+ * {@link SimplePeak}s are only created if requested.
+ *
+ * The result is the same as the cursor-based {@link InteractiveIntegral#findPeaks(Image, float)}, but
+ * ordered by z, y, x.
+ */
+public class PeakFinder3d
+{
+	/**
+	 * A growable list of peaks stored in primitive arrays
+	 */
+	public static class Peaks
+	{
+		int size = 0;
+		int[] location;
+		float[] intensity;
+		boolean[] isMax;
+
+		public Peaks() { this( 1024 ); }
+
+		public Peaks( final int capacity )
+		{
+			final int c = Math.max( 16, capacity );
+
+			this.location = new int[ c * 3 ];
+			this.intensity = new float[ c ];
+			this.isMax = new boolean[ c ];
+		}
+
+		public void add( final int x, final int y, final int z, final float intensity, final boolean isMax )
+		{
+			if ( size == this.intensity.length )
+				grow( size * 2 );
+
+			final int i = size * 3;
+
+			this.location[ i ] = x;
+			this.location[ i + 1 ] = y;
+			this.location[ i + 2 ] = z;
+			this.intensity[ size ] = intensity;
+			this.isMax[ size ] = isMax;
+
+			++size;
+		}
+
+		public void addAll( final Peaks peaks )
+		{
+			if ( size + peaks.size > intensity.length )
+				grow( size + peaks.size );
+
+			System.arraycopy( peaks.location, 0, location, size * 3, peaks.size * 3 );
+			System.arraycopy( peaks.intensity, 0, intensity, size, peaks.size );
+			System.arraycopy( peaks.isMax, 0, isMax, size, peaks.size );
+
+			size += peaks.size;
+		}
+
+		protected void grow( final int capacity )
+		{
+			final int[] location = new int[ capacity * 3 ];
+			final float[] intensity = new float[ capacity ];
+			final boolean[] isMax = new boolean[ capacity ];
+
+			System.arraycopy( this.location, 0, location, 0, size * 3 );
+			System.arraycopy( this.intensity, 0, intensity, 0, size );
+			System.arraycopy( this.isMax, 0, isMax, 0, size );
+
+			this.location = location;
+			this.intensity = intensity;
+			this.isMax = isMax;
+		}
+
+		public int size() { return size; }
+		public int getX( final int i ) { return location[ i * 3 ]; }
+		public int getY( final int i ) { return location[ i * 3 + 1 ]; }
+		public int getZ( final int i ) { return location[ i * 3 + 2 ]; }
+		public float getIntensity( final int i ) { return intensity[ i ]; }
+		public boolean isMax( final int i ) { return isMax[ i ]; }
+		public boolean isMin( final int i ) { return !isMax[ i ]; }
+
+		/**
+		 * @return - the peaks as {@link SimplePeak}s
+		 */
+		public ArrayList< SimplePeak > toSimplePeaks()
+		{
+			final ArrayList< SimplePeak > peaks = new ArrayList< SimplePeak >( size );
+			final int[] l = new int[ 3 ];
+
+			for ( int i = 0; i < size; ++i )
+			{
+				l[ 0 ] = getX( i );
+				l[ 1 ] = getY( i );
+				l[ 2 ] = getZ( i );
+
+				peaks.add( new SimplePeak( l, intensity[ i ], !isMax[ i ], isMax[ i ] ) );
+			}
+
+			return peaks;
+		}
+	}
+
+	/**
+	 * @param img - the image
+	 * @return - true if the image can be processed by this class (3d, array of floats)
+	 */
+	public static boolean isCompatible( final Image< FloatType > img )
+	{
+		return img.getNumDimensions() == 3 && img.getContainer() instanceof Array;
+	}
+
+	/**
+	 * Finds all minima and maxima in the image, using one task per slab of z-planes
+	 *
+	 * @param img - the image, see {@link #isCompatible(Image)}
+	 * @param minValue - the minimal absolute value of a peak
+	 * @return - the peaks
+	 */
+	public static Peaks findPeaks( final Image< FloatType > img, final float minValue )
+	{
+		return findPeaks( img, minValue, Threads.numThreads() );
+	}
+
+	/**
+	 * Finds all minima and maxima in the image
+	 *
+	 * @param img - the image, see {@link #isCompatible(Image)}
+	 * @param minValue - the minimal absolute value of a peak
+	 * @param numThreads - how many threads to use
+	 * @return - the peaks
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static Peaks findPeaks( final Image< FloatType > img, final float minValue, final int numThreads )
+	{
+		final float[] data = ((FloatArray)((Array< FloatType, FloatAccess >)img.getContainer()).update( null )).getCurrentStorageArray();
+
+		return findPeaks( data, img.getDimension( 0 ), img.getDimension( 1 ), img.getDimension( 2 ), minValue, numThreads );
+	}
+
+	/**
+	 * Finds all minima and maxima in a 3d image stored as flat float array (x fastest)
+	 *
+	 * @param data - the image
+	 * @param w - width
+	 * @param h - height
+	 * @param d - depth
+	 * @param minValue - the minimal absolute value of a peak
+	 * @param numThreads - how many threads to use
+	 * @return - the peaks
+	 */
+	public static Peaks findPeaks( final float[] data, final int w, final int h, final int d, final float minValue, final int numThreads )
+	{
+		final Peaks peaks = new Peaks();
+
+		// the outermost pixels cannot be peaks
+		if ( w < 3 || h < 3 || d < 3 )
+			return peaks;
+
+		final int[] offsets = neighborOffsets( w, h );
+
+		// a few more slabs than threads so that the load is balanced if the peaks are not evenly distributed
+		final int numPlanes = d - 2;
+		final int numSlabs = Math.min( numPlanes, Math.max( 1, numThreads ) * 4 );
+
+		final ArrayList< Callable< Peaks > > tasks = new ArrayList< Callable< Peaks > >();
+
+		for ( int s = 0; s < numSlabs; ++s )
+		{
+			final int zFrom = 1 + (int)( (long)numPlanes * s / numSlabs );
+			final int zTo = 1 + (int)( (long)numPlanes * ( s + 1 ) / numSlabs );
+
+			tasks.add( new Callable< Peaks >()
+			{
+				@Override
+				public Peaks call() throws Exception
+				{
+					final Peaks slabPeaks = new Peaks();
+					findPeaks( data, w, h, zFrom, zTo, offsets, minValue, slabPeaks );
+					return slabPeaks;
+				}
+			});
+		}
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, numSlabs ) ) );
+
+		try
+		{
+			// the slabs are appended in order, so the result does not depend on the scheduling
+			for ( final Future< Peaks > future : taskExecutor.invokeAll( tasks ) )
+				peaks.addAll( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Failed to find peaks: " + e );
+			e.printStackTrace();
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * Scans the planes [zFrom, zTo) of the image
+	 */
+	protected static void findPeaks(
+			final float[] data, final int w, final int h, final int zFrom, final int zTo,
+			final int[] offsets, final float minValue, final Peaks peaks )
+	{
+		final int numNeighbors = offsets.length;
+
+		for ( int z = zFrom; z < zTo; ++z )
+			for ( int y = 1; y < h - 1; ++y )
+			{
+				int i = 1 + w * ( y + z * h );
+
+X:				for ( int x = 1; x < w - 1; ++x, ++i )
+				{
+					final float center = data[ i ];
+
+					// it can never be a desired peak as it is too low
+					if ( Math.abs( center ) < minValue )
+						continue;
+
+					// the first neighbor decides which kind of peak it can still be
+					final float v0 = data[ i + offsets[ 0 ] ];
+
+					boolean isMin = v0 >= center;
+					boolean isMax = v0 <= center;
+
+					if ( isMin && !isMax )
+					{
+						for ( int k = 1; k < numNeighbors; ++k )
+							if ( data[ i + offsets[ k ] ] < center )
+								continue X;
+					}
+					else if ( isMax && !isMin )
+					{
+						for ( int k = 1; k < numNeighbors; ++k )
+							if ( data[ i + offsets[ k ] ] > center )
+								continue X;
+					}
+					else
+					{
+						for ( int k = 1; k < numNeighbors && ( isMin || isMax ); ++k )
+						{
+							final float value = data[ i + offsets[ k ] ];
+
+							isMin &= value >= center;
+							isMax &= value <= center;
+						}
+
+						if ( !isMin && !isMax )
+							continue;
+					}
+
+					// this mixup is intended, a minimum in the 2nd derivation is a maxima in image space and vice versa
+					peaks.add( x, y, z, Math.abs( center ), isMin );
+				}
+			}
+	}
+
+	/**
+	 * @return - the offsets of the 26 neighbors in a flat array, the six direct neighbors first, then the
+	 * twelve that share an edge, then the eight corners
+	 */
+	public static int[] neighborOffsets( final int w, final int h )
+	{
+		final int[] offsets = new int[ 26 ];
+		int i = 0;
+
+		for ( int n = 1; n <= 3; ++n )
+			for ( int z = -1; z <= 1; ++z )
+				for ( int y = -1; y <= 1; ++y )
+					for ( int x = -1; x <= 1; ++x )
+						if ( Math.abs( x ) + Math.abs( y ) + Math.abs( z ) == n )
+							offsets[ i++ ] = x + w * ( y + z * h );
+
+		return offsets;
+	}
+}
@@ -26,6 +26,7 @@ import spim.process.fusion.deconvolution.EfficientBayesianBased;
 import spim.process.fusion.export.AppendSpimData2;
 import spim.process.fusion.export.DisplayImage;
 import spim.process.fusion.export.ExportSpimData2HDF5;
+import spim.process.fusion.export.ExportSpimData2HDF5Streaming;
 import spim.process.fusion.export.ExportSpimData2TIFF;
 import spim.process.fusion.export.ImgExport;
 import spim.process.fusion.export.Save3dTIFF;
@@ -62,6 +63,7 @@ public class Image_Fusion implements PlugIn
 		staticImgExportAlgorithms.add( new ExportSpimData2TIFF() );
 		staticImgExportAlgorithms.add( new ExportSpimData2HDF5() );
 		staticImgExportAlgorithms.add( new AppendSpimData2() );
+		staticImgExportAlgorithms.add( new ExportSpimData2HDF5Streaming() );
 	}
 
 	@Override
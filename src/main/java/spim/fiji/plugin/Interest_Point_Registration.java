@@ -83,6 +83,9 @@ public class Interest_Point_Registration implements PlugIn
 	public static boolean[] defaultFixedTiles = null;
 	public static int defaultReferenceTile = 0;
 	public static boolean defaultShowStatistics = true;
+	public static boolean defaultOnlyOverlapping = false;
+	public static double defaultOverlapMargin = 50;
+	public static boolean defaultSparseSolver = false;
 
 	public final static String warningLabel = " (WARNING: Only available for "; 
 	
@@ -284,6 +287,14 @@ public class Interest_Point_Registration implements PlugIn
 			gd2.addSlider( "Range for all-to-all timepoint matching", 2, 10, defaultRange );
 		}
 
+		if ( registrationType == RegistrationType.ALL_TO_ALL || registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
+		{
+			gd2.addCheckbox( "Compare_only_overlapping_views", defaultOnlyOverlapping );
+			gd2.addNumericField( "Overlap_margin (px)", defaultOverlapMargin, 1 );
+			gd2.addMessage( "Note: Views whose bounding boxes do not overlap under the current registration (allowing a gap of\n" +
+					"the margin) are not compared. Use this for mosaics of many tiles that only overlap with their neighbors.\n ", GUIHelper.smallStatusFont );
+		}
+
 		// for all registrations that include multiple timepointss
 		if ( registrationType != RegistrationType.TIMEPOINTS_INDIVIDUALLY )
 		{
@@ -299,6 +310,10 @@ public class Interest_Point_Registration implements PlugIn
 			gd2.addChoice( "Map_back_tiles", mapBackChoice, mapBackChoice[ defaultMapBack ] );
 		}
 
+		gd2.addCheckbox( "Solve_global_optimization_for_all_tiles_at_once", defaultSparseSolver );
+		gd2.addMessage( "Note: Solves one sparse least-squares problem for all tiles (translation, rigid or affine models) instead of\n" +
+				"the iterative optimization, which is much faster for thousands of tiles (e.g. long timeseries).\n ", GUIHelper.smallStatusFont );
+
 		gd2.addMessage( "" );
 		gd2.addMessage( "Algorithm parameters [" + ipr.getDescription() + "]", new Font( Font.SANS_SERIF, Font.BOLD, 12 ) );
 		gd2.addMessage( "" );
@@ -340,6 +355,17 @@ public class Interest_Point_Registration implements PlugIn
 		if ( registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
 			range = defaultRange = (int)Math.round( gd2.getNextNumber() );
 
+		double overlapMargin = Double.NaN;
+
+		if ( registrationType == RegistrationType.ALL_TO_ALL || registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
+		{
+			final boolean onlyOverlapping = defaultOnlyOverlapping = gd2.getNextBoolean();
+			final double margin = defaultOverlapMargin = gd2.getNextNumber();
+
+			if ( onlyOverlapping )
+				overlapMargin = margin;
+		}
+
 		final boolean considerTimepointsAsUnit;
 		if ( registrationType != RegistrationType.TIMEPOINTS_INDIVIDUALLY )
 			considerTimepointsAsUnit = defaultConsiderTimepointAsUnit = gd2.getNextBoolean();
@@ -358,6 +384,8 @@ public class Interest_Point_Registration implements PlugIn
 			fixTiles = mapBack = -1;
 		}
 
+		final boolean sparseSolver = defaultSparseSolver = gd2.getNextBoolean();
+
 		if ( !ipr.parseDialog( gd2, registrationType ) )
 			return false;
 
@@ -381,6 +409,13 @@ public class Interest_Point_Registration implements PlugIn
 		else
 			type = null;
 
+		if ( type != null )
+		{
+			// only compare overlapping views, must be set before the pairs are assembled
+			type.setOverlapMargin( overlapMargin );
+			type.setSparseSolver( sparseSolver );
+		}
+
 		// set the fixed tiles and the potential mapping back to some tile
 		if ( !setFixedTilesAndReference( fixTiles, mapBack, type ) )
 			return false;
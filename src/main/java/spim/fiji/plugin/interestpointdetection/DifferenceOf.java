@@ -2,29 +2,45 @@ package spim.fiji.plugin.interestpointdetection;
 
 import ij.gui.GenericDialog;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.MultiResolutionImgLoader;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
+import spim.Threads;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.interestpointdetection.DetectionCache;
 import spim.process.interestpointdetection.Downsample;
 
 public abstract class DifferenceOf extends InterestPointDetection
@@ -54,6 +70,26 @@ public abstract class DifferenceOf extends InterestPointDetection
 
 	public static double defaultMinIntensity = 0.0;
 	public static double defaultMaxIntensity = 65535.0;
+
+	/**
+	 * how many views are detected at the same time at most (if they fit into the memory budget)
+	 */
+	public static int defaultMaxConcurrentViews = 4;
+
+	/**
+	 * the fraction of the maximal heap size that the loaded views and their detections may use together
+	 */
+	public static double defaultMemoryFraction = 0.5;
+
+	/**
+	 * if the detections are cached on disk (in the interestpoints directory), so that they can be re-used if only the threshold changes
+	 */
+	public static boolean defaultCacheDetections = false;
+
+	/**
+	 * the detections for the cache are computed with a lower threshold (threshold * factor), so that a lower threshold can also be re-used
+	 */
+	public static double defaultCacheThresholdFactor = 0.5;
 	
 	protected double imageSigmaX, imageSigmaY, imageSigmaZ;
 	protected double additionalSigmaX, additionalSigmaY, additionalSigmaZ;
@@ -63,6 +99,15 @@ public abstract class DifferenceOf extends InterestPointDetection
 	// downsampleXY == -1 : a bit more then z-resolution
 	protected int localization, downsampleXY, downsampleZ;
 
+	protected int maxConcurrentViews = defaultMaxConcurrentViews;
+	protected double memoryFraction = defaultMemoryFraction;
+
+	// the threads per view while several views are detected at the same time, 0 means all threads
+	protected int numThreads = 0;
+
+	protected DetectionCache cache = null;
+	protected double cacheThresholdFactor = defaultCacheThresholdFactor;
+
 	final ArrayList< Channel > channelsToProcess;
 
 	public DifferenceOf( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
@@ -75,6 +120,336 @@ public abstract class DifferenceOf extends InterestPointDetection
 			this.channelsToProcess = null;
 	}
 
+	/**
+	 * Detects the interest points in one view
+	 *
+	 * @param vd - the view
+	 * @param input - the (downsampled) image as returned by openAndDownsample, not yet presmoothed
+	 * @param threshold - the threshold to use
+	 * @return - the interest points in coordinates of the (downsampled) image
+	 */
+	protected abstract ArrayList< InterestPoint > computeInterestPoints( final ViewDescription vd, final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input, final double threshold );
+
+	/**
+	 * @param channel - the channel
+	 * @return - the threshold selected for this channel
+	 */
+	protected abstract double getThreshold( final Channel channel );
+
+	/**
+	 * @param channel - the channel
+	 * @return - all parameters of the specific detection for this channel except the threshold, identifies cached detections
+	 */
+	protected abstract String getParameters( final Channel channel );
+
+	/**
+	 * @return - an estimate how many bytes per pixel of the (downsampled) input the detection needs, including the input
+	 */
+	protected abstract double bytesPerPixel();
+
+	/**
+	 * @return - a short name used in the log
+	 */
+	protected abstract String getShortName();
+
+	/**
+	 * @return - true if the views should be opened lazily (see openAndDownsample)
+	 */
+	protected boolean openLazily() { return false; }
+
+	/**
+	 * @return - how many views may be detected at the same time
+	 */
+	protected int maxConcurrentViews() { return Math.max( 1, maxConcurrentViews ); }
+
+	/**
+	 * @return - how many threads the detection of one view may use
+	 */
+	protected int getNumThreads() { return numThreads > 0 ? numThreads : Threads.numThreads(); }
+
+	/**
+	 * @param vd - the view
+	 * @return - how many bytes the detection of this view needs, estimated from the size of the view
+	 * and the downsampling without opening it, or -1 if the size is not known
+	 */
+	protected long estimateMemory( final ViewDescription vd )
+	{
+		if ( !vd.getViewSetup().hasSize() )
+			return -1;
+
+		final Dimensions size = vd.getViewSetup().getSize();
+		final long[] dim = new long[ size.numDimensions() ];
+		size.dimensions( dim );
+
+		final int downsampleXY = getDownsampleXY( vd );
+
+		dim[ 0 ] = Math.max( 1, dim[ 0 ] / downsampleXY );
+		dim[ 1 ] = Math.max( 1, dim[ 1 ] / downsampleXY );
+		dim[ 2 ] = Math.max( 1, dim[ 2 ] / downsampleZ );
+
+		return estimateMemory( dim );
+	}
+
+	/**
+	 * @param dim - the dimensions of the (downsampled) view
+	 * @return - how many bytes the detection of this view needs
+	 */
+	protected long estimateMemory( final long[] dim )
+	{
+		long numPixels = 1;
+
+		for ( final long l : dim )
+			numPixels *= l;
+
+		return (long)( numPixels * bytesPerPixel() );
+	}
+
+	/**
+	 * Detects the interest points of all views of a timepoint as a pipeline: one I/O thread opens and downsamples
+	 * the next views while up to maxConcurrentViews views are detected at the same time, sharing the threads. A view
+	 * is only opened once its estimated memory fits into the budget (memoryFraction of the maximal heap size), so the
+	 * I/O thread waits if the detections cannot keep up. Views with cached detections are not opened at all.
+	 */
+	@Override
+	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	{
+		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
+
+		final ArrayList< ViewDescription > views = new ArrayList< ViewDescription >();
+
+		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
+			if ( vd.isPresent() )
+				views.add( vd );
+
+		if ( views.size() == 0 )
+			return interestPoints;
+
+		// the budget in MB
+		final int budget = (int)Math.max( 1, Runtime.getRuntime().maxMemory() * memoryFraction / ( 1024 * 1024 ) );
+		final Semaphore memory = new Semaphore( budget );
+
+		final int numConcurrent = Math.min( views.size(), maxConcurrentViews() );
+
+		// the views that are detected at the same time share the threads
+		numThreads = Math.max( 1, Threads.numThreads() / numConcurrent );
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Detecting " + views.size() + " views, up to " + numConcurrent +
+				" at the same time with " + numThreads + " threads each (memory budget " + budget + " MB)." );
+
+		final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+		final ExecutorService computeExecutor = Executors.newFixedThreadPool( numConcurrent );
+
+		final ArrayList< Future< Future< ArrayList< InterestPoint > > > > loads = new ArrayList< Future< Future< ArrayList< InterestPoint > > > >();
+
+		try
+		{
+			// the I/O thread opens the views in order and hands them over to the detection
+			for ( final ViewDescription vd : views )
+			{
+				loads.add( ioExecutor.submit( new Callable< Future< ArrayList< InterestPoint > > >()
+				{
+					@Override
+					public Future< ArrayList< InterestPoint > > call() throws Exception
+					{
+						final double threshold = getThreshold( vd.getViewSetup().getChannel() );
+
+						// the cache is checked on metadata only, a hit does not need to open the image
+						final String parameters, imageKey;
+
+						if ( cache != null )
+						{
+							parameters = getCacheParameters( vd );
+							imageKey = DetectionCache.imageKey( spimData.getSequenceDescription().getImgLoader(), vd );
+
+							if ( imageKey == null )
+							{
+								IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): The image files of tp=" + vd.getTimePointId() +
+										", setup=" + vd.getViewSetupId() + " are not known, its detections are not cached." );
+							}
+							else
+							{
+								final DetectionCache.Entry entry = cache.load( vd, parameters, imageKey );
+
+								if ( entry != null && entry.covers( threshold ) )
+								{
+									IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Re-using " + entry.getPoints().size() + " cached detections (threshold=" +
+											entry.getThreshold() + ") of tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() );
+
+									return completed( DetectionCache.filter( entry.getPoints(), threshold, isThresholdInclusive() ) );
+								}
+							}
+						}
+						else
+						{
+							parameters = imageKey = null;
+						}
+
+						// the memory is reserved before the view is loaded, a view that is larger than the budget
+						// (or whose size is not known) is detected alone
+						final long bytes = estimateMemory( vd );
+						final int permits = bytes < 0 ? budget : (int)Math.min( budget, Math.max( 1, bytes / ( 1024 * 1024 ) ) );
+						memory.acquire( permits );
+
+						final long time1 = System.currentTimeMillis();
+
+						final AffineTransform3D correctCoordinates = new AffineTransform3D();
+						final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input;
+
+						try
+						{
+							input = openAndDownsample( spimData, vd, correctCoordinates, openLazily() );
+						}
+						catch ( final RuntimeException e )
+						{
+							memory.release( permits );
+							throw e;
+						}
+
+
+						synchronized ( benchmark )
+						{
+							benchmark.openFiles += System.currentTimeMillis() - time1;
+						}
+
+						return computeExecutor.submit( new Callable< ArrayList< InterestPoint > >()
+						{
+							@Override
+							public ArrayList< InterestPoint > call() throws Exception
+							{
+								try
+								{
+									final long time2 = System.currentTimeMillis();
+
+									final ArrayList< InterestPoint > ips = detect( vd, input, correctCoordinates, threshold, parameters, imageKey );
+
+									synchronized ( benchmark )
+									{
+										benchmark.computation += System.currentTimeMillis() - time2;
+									}
+
+									return ips;
+								}
+								finally
+								{
+									memory.release( permits );
+								}
+							}
+						});
+					}
+				}));
+			}
+
+			for ( int i = 0; i < views.size(); ++i )
+			{
+				final ViewDescription vd = views.get( i );
+
+				// make sure not everything crashes if one file is missing
+				try
+				{
+					interestPoints.put( vd, loads.get( i ).get().get() );
+				}
+				catch ( final Exception e )
+				{
+					IOFunctions.println( "An error occured (" + getShortName() + "): " + e );
+					IOFunctions.println( "Failed to segment angleId: " +
+							vd.getViewSetup().getAngle().getId() + " channelId: " +
+							vd.getViewSetup().getChannel().getId() + " illumId: " +
+							vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
+					e.printStackTrace();
+				}
+			}
+		}
+		finally
+		{
+			ioExecutor.shutdownNow();
+			computeExecutor.shutdown();
+			numThreads = 0;
+		}
+
+		return interestPoints;
+	}
+
+	/**
+	 * Detects the interest points in one view; if the view is cached (imageKey != null), the detections are computed
+	 * with a lower threshold, written to the cache and then filtered for the threshold
+	 *
+	 * @param vd - the view
+	 * @param input - the (downsampled) image
+	 * @param correctCoordinates - the transformation from the downsampled image to the full resolution
+	 * @param threshold - the threshold
+	 * @param parameters - the parameters of the cache entry (see getCacheParameters)
+	 * @param imageKey - the key of the image in the cache or null if the view is not cached
+	 * @return - the interest points in full resolution coordinates
+	 */
+	protected ArrayList< InterestPoint > detect(
+			final ViewDescription vd,
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final AffineTransform3D correctCoordinates,
+			final double threshold,
+			final String parameters,
+			final String imageKey )
+	{
+		if ( cache == null || imageKey == null )
+		{
+			final ArrayList< InterestPoint > ips = computeInterestPoints( vd, input, threshold );
+			correctForDownsampling( ips, correctCoordinates );
+			return ips;
+		}
+
+		final double cacheThreshold = threshold * Math.min( 1.0, cacheThresholdFactor );
+		final ArrayList< InterestPoint > ips = computeInterestPoints( vd, input, cacheThreshold );
+
+		if ( ips.size() > 0 )
+			correctForDownsampling( ips, correctCoordinates );
+
+		cache.save( vd, parameters, new DetectionCache.Entry( imageKey, cacheThreshold, ips ) );
+
+		return DetectionCache.filter( ips, threshold, isThresholdInclusive() );
+	}
+
+	/**
+	 * @return - true if a value equal to the threshold is a detection (without localization the value of the peak is
+	 * only compared to the threshold with >=)
+	 */
+	protected boolean isThresholdInclusive() { return localization == 0; }
+
+	protected static < V > Future< V > completed( final V value )
+	{
+		final FutureTask< V > task = new FutureTask< V >( new Callable< V >()
+		{
+			@Override
+			public V call() { return value; }
+		});
+
+		task.run();
+
+		return task;
+	}
+
+	/**
+	 * @param vd - the view
+	 * @return - all parameters of the detection for this view except the threshold
+	 */
+	protected String getCacheParameters( final ViewDescription vd )
+	{
+		final int downsampleXY = getDownsampleXY( vd );
+		final Channel channel = vd.getViewSetup().getChannel();
+
+		return getShortName() + ", localization=" + localization + ", downsampleXY=" + downsampleXY + ", downsampleZ=" + downsampleZ +
+				", imageSigma=[" + imageSigmaX + ", " + imageSigmaY + ", " + imageSigmaZ + "]" +
+				", additionalSigma=[" + additionalSigmaX + ", " + additionalSigmaY + ", " + additionalSigmaZ + "]" +
+				", minIntensity=" + minIntensity + ", maxIntensity=" + maxIntensity + ", " + getParameters( channel );
+	}
+
+	/**
+	 * @param vd - the view
+	 * @return - the downsampling in XY that openAndDownsample will choose, without opening the image
+	 */
+	protected int getDownsampleXY( final ViewDescription vd )
+	{
+		return this.downsampleXY < 1 ? downsampleFactor( this.downsampleXY, downsampleZ, vd.getViewSetup().getVoxelSize() ) : this.downsampleXY;
+	}
+
 	protected abstract void addAddtionalParameters( final GenericDialog gd );
 	protected abstract boolean queryAdditionalParameters( final GenericDialog gd );
 	
@@ -136,6 +511,8 @@ public abstract class DifferenceOf extends InterestPointDetection
 					"Only adjust the initial sigma's if this is not the case.", GUIHelper.mediumstatusfont );
 		}
 
+		gd.addCheckbox( "Cache_detections (re-use them if only the threshold changes)", defaultCacheDetections );
+
 		addAddtionalParameters( gd );
 
 		gd.showDialog();
@@ -238,6 +615,11 @@ public abstract class DifferenceOf extends InterestPointDetection
 			imageSigmaX = imageSigmaY = imageSigmaZ = 0.5;
 		}
 
+		if ( defaultCacheDetections = gd.getNextBoolean() )
+			setCacheDirectory( new File( new File( spimData.getBasePath(), "interestpoints" ), "cache" ) );
+		else
+			setCacheDirectory( null );
+
 		if ( !queryAdditionalParameters( gd ) )
 			return false;
 		else
@@ -251,7 +633,7 @@ public abstract class DifferenceOf extends InterestPointDetection
 			IOFunctions.println( "presmoothing image with sigma=[" + additionalSigmaX + "," + additionalSigmaY + "," + additionalSigmaZ + "]" );
 			try
 			{
-				Gauss3.gauss( new double[]{ additionalSigmaX, additionalSigmaY, additionalSigmaZ }, Views.extendMirrorSingle( img ), img );
+				Gauss3.gauss( new double[]{ additionalSigmaX, additionalSigmaY, additionalSigmaZ }, Views.extendMirrorSingle( img ), img, getNumThreads() );
 			}
 			catch (IncompatibleTypeException e)
 			{
@@ -352,6 +734,24 @@ public abstract class DifferenceOf extends InterestPointDetection
 			final SpimData2 spimData,
 			final ViewDescription vd,
 			final AffineTransform3D t )
+	{
+		return openAndDownsample( spimData, vd, t, false );
+	}
+
+	/**
+	 * @param spimData
+	 * @param vd
+	 * @param t - will be set to the transformation from the downsampled image to the full resolution
+	 * @param lazy - if true, a multiresolution ImgLoader is also used at full resolution and the image is
+	 * returned as a view on its cached cells that is converted to float on access, so that it is loaded
+	 * block by block instead of as one monolithic image
+	 * @return
+	 */
+	protected RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > openAndDownsample(
+			final SpimData2 spimData,
+			final ViewDescription vd,
+			final AffineTransform3D t,
+			final boolean lazy )
 	{
 		IOFunctions.println(
 				"(" + new Date(System.currentTimeMillis()) + "): "
@@ -377,10 +777,10 @@ public abstract class DifferenceOf extends InterestPointDetection
 		RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = null;
 
 		ImgLoader< ? > imgLoader = spimData.getSequenceDescription().getImgLoader();
-		if ( Hdf5ImageLoader.class.isInstance( imgLoader ) )
+		if ( Hdf5ImageLoader.class.isInstance( imgLoader ) && !lazy )
 			imgLoader = ( ( Hdf5ImageLoader ) imgLoader ).getMonolithicImageLoader();
 		
-		if ( ( dsx > 1 || dsy > 1 || dsz > 1 ) && MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+		if ( ( dsx > 1 || dsy > 1 || dsz > 1 || lazy ) && MultiResolutionImgLoader.class.isInstance( imgLoader ) )
 		{
 			MultiResolutionImgLoader< ? > mrImgLoader = ( MultiResolutionImgLoader< ? > ) imgLoader;
 
@@ -415,30 +815,62 @@ public abstract class DifferenceOf extends InterestPointDetection
 					"Using precomputed Multiresolution Images [" + fx + "x" + fy + "x" + fz + "], " +
 					"Remaining downsampling [" + dsx + "x" + dsy + "x" + dsz + "]" );
 
-			input = mrImgLoader.getFloatImage( vd, bestLevel, false );
+			if ( lazy )
+				input = openCells( mrImgLoader, vd, bestLevel );
+			else
+				input = mrImgLoader.getFloatImage( vd, bestLevel, false );
 		}
 		else
 		{
+			if ( lazy )
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() )  + "): The ImgLoader does not support lazy loading, opening the entire image." );
+
 			input = imgLoader.getFloatImage( vd, false );
 			t.identity();
 		}
 
-		final ImgFactory< net.imglib2.type.numeric.real.FloatType > f = ((Img<net.imglib2.type.numeric.real.FloatType>)input).factory();
+		// the view on the cells is not an Img, only the downsampled image is allocated
+		final ImgFactory< net.imglib2.type.numeric.real.FloatType > f;
+
+		if ( Img.class.isInstance( input ) )
+			f = ((Img<net.imglib2.type.numeric.real.FloatType>)input).factory();
+		else
+			f = new CellImgFactory< net.imglib2.type.numeric.real.FloatType >( 256 );
 
 		t.set( downsampleXY, 0, 0 );
 		t.set( downsampleXY, 1, 1 );
 		t.set( downsampleZ, 2, 2 );
 
-		for ( ;dsx > 1; dsx /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ true, false, false } );
+		// all remaining downsampling in one pass, without intermediate images
+		if ( dsx > 1 || dsy > 1 || dsz > 1 )
+			input = Downsample.downsample( input, f, new int[]{ dsx, dsy, dsz } );
 
-		for ( ;dsy > 1; dsy /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ false, true, false } );
+		return input;
+	}
+
+	/**
+	 * @param mrImgLoader
+	 * @param view
+	 * @param level - the mipmap level
+	 * @return - the cached cells of the level, converted to float on access (nothing is copied)
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	protected static RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > openCells(
+			final MultiResolutionImgLoader< ? > mrImgLoader,
+			final ViewId view,
+			final int level )
+	{
+		return toFloat( (RandomAccessibleInterval)mrImgLoader.getImage( view, level ) );
+	}
 
-		for ( ;dsz > 1; dsz /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ false, false, true } );
+	@SuppressWarnings( "unchecked" )
+	protected static < T extends RealType< T > > RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > toFloat( final RandomAccessibleInterval< T > img )
+	{
+		if ( net.imglib2.type.numeric.real.FloatType.class.isInstance( Util.getTypeFromInterval( img ) ) )
+			return (RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType >)img;
 
-		return input;
+		return new ConvertedRandomAccessibleInterval< T, net.imglib2.type.numeric.real.FloatType >(
+				img, new RealFloatConverter< T >(), new net.imglib2.type.numeric.real.FloatType() );
 	}
 
 	private static final boolean contains( final int i, final int[] values )
@@ -505,6 +937,29 @@ public abstract class DifferenceOf extends InterestPointDetection
 		this.downsampleZ = downsampleZ;
 	}
 
+	public void setMaxConcurrentViews( int maxConcurrentViews )
+	{
+		this.maxConcurrentViews = maxConcurrentViews;
+	}
+
+	public void setMemoryFraction( double memoryFraction )
+	{
+		this.memoryFraction = memoryFraction;
+	}
+
+	/**
+	 * @param directory - the directory of the detection cache, null disables the cache
+	 */
+	public void setCacheDirectory( final File directory )
+	{
+		this.cache = directory == null ? null : new DetectionCache( directory );
+	}
+
+	public void setCacheThresholdFactor( double cacheThresholdFactor )
+	{
+		this.cacheThresholdFactor = cacheThresholdFactor;
+	}
+
 	public ArrayList< Channel > getChannelsToProcess()
 	{
 		return channelsToProcess;
@@ -4,14 +4,12 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.imglib.wrapper.ImgLib2;
 import mpicbg.spim.data.sequence.Channel;
-import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
@@ -28,6 +26,7 @@ import spim.process.cuda.CUDASeparableConvolution;
 import spim.process.cuda.CUDATools;
 import spim.process.cuda.NativeLibraryTools;
 import spim.process.interestpointdetection.ProcessDOG;
+import spim.process.interestpointdetection.ProcessDOGBlockwise;
 
 public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogAppender
 {
@@ -43,6 +42,7 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 
 	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU approximate (Nvidia CUDA via JNA)", "GPU accurate (Nvidia CUDA via JNA)" };
 	public static int defaultComputationChoiceIndex = 0;
+	public static boolean defaultBlockwise = false;
 
 	double[] sigma;
 	double[] threshold;
@@ -51,6 +51,9 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 
 	double percentGPUMem = defaultUseGPUMem;
 
+	// detect block by block (CPU only), for views that do not fit into memory
+	boolean blockwise = false;
+
 	/**
 	 * 0 ... n == CUDA device i
 	 */
@@ -74,78 +77,116 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 
 
 	@Override
-	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	protected ArrayList< InterestPoint > computeInterestPoints( final ViewDescription vd, final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input, final double threshold )
 	{
-		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
-		
-		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
+		final Channel c = vd.getViewSetup().getChannel();
+
+		if ( openLazily() )
 		{
-			// make sure not everything crashes if one file is missing
-			try
-			{
-				//
-				// open the corresponding image (if present at this timepoint)
-				//
-				long time1 = System.currentTimeMillis();
+			return ProcessDOGBlockwise.compute(
+					input,
+					new double[]{ additionalSigmaX, additionalSigmaY, additionalSigmaZ },
+					(float)sigma[ c.getId() ],
+					(float)threshold,
+					localization,
+					Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
+					findMin[ c.getId() ],
+					findMax[ c.getId() ],
+					minIntensity,
+					maxIntensity,
+					ProcessDOGBlockwise.defaultBlockSize,
+					getNumThreads() );
+		}
 
-				if ( !vd.isPresent() )
-					continue;
+		preSmooth( input );
+
+		final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
+
+		//
+		// compute Difference-of-Gaussian
+		//
+		final ArrayList< InterestPoint > ips =
+			ProcessDOG.compute(
+				cuda,
+				deviceList,
+				accurateCUDA,
+				percentGPUMem,
+				img,
+				(Img<net.imglib2.type.numeric.real.FloatType>)input,
+				(float)sigma[ c.getId() ],
+				(float)threshold,
+				localization,
+				Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
+				Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
+				Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
+				findMin[ c.getId() ],
+				findMax[ c.getId() ],
+				minIntensity,
+				maxIntensity,
+				getNumThreads() );
+
+		img.close();
+
+		return ips;
+	}
 
-				final Channel c = vd.getViewSetup().getChannel();
+	@Override
+	protected boolean openLazily() { return blockwise && deviceList == null; }
 
-				final AffineTransform3D correctCoordinates = new AffineTransform3D();
-				final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = openAndDownsample( spimData, vd, correctCoordinates );
+	/**
+	 * the GPU memory is not part of the budget, so only one view at a time is sent to the GPU
+	 */
+	@Override
+	protected int maxConcurrentViews() { return deviceList == null ? super.maxConcurrentViews() : 1; }
 
-				long time2 = System.currentTimeMillis();
+	/**
+	 * input, two gaussian convolutions (the first one is reused for the DoG)
+	 */
+	@Override
+	protected double bytesPerPixel() { return 12; }
 
-				benchmark.openFiles += time2 - time1;
+	@Override
+	protected long estimateMemory( final long[] dim )
+	{
+		if ( !openLazily() )
+			return super.estimateMemory( dim );
 
-				preSmooth( input );
+		// the input (the cached cells or the downsampled image, at most float) and the blocks that are processed
+		// at the same time, including a halo of about the block size
+		long numPixels = 1;
 
-				final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
+		for ( final long l : dim )
+			numPixels *= l;
 
-				//
-				// compute Difference-of-Mean
-				//
-				final ArrayList< InterestPoint > ips = 
-					ProcessDOG.compute(
-						cuda,
-						deviceList,
-						accurateCUDA,
-						percentGPUMem,
-						img,
-						(Img<net.imglib2.type.numeric.real.FloatType>)input,
-						(float)sigma[ c.getId() ],
-						(float)threshold[ c.getId() ],
-						localization,
-						Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
-						findMin[ c.getId() ],
-						findMax[ c.getId() ],
-						minIntensity,
-						maxIntensity );
+		long blockPixels = 1;
 
-				img.close();
+		for ( final int b : ProcessDOGBlockwise.defaultBlockSize )
+			blockPixels *= 2 * b;
 
-				correctForDownsampling( ips, correctCoordinates );
+		return numPixels * 4 + (long)( blockPixels * bytesPerPixel() * getNumThreads() );
+	}
 
-				interestPoints.put( vd, ips );
+	@Override
+	protected String getShortName() { return "DOG"; }
 
-				benchmark.computation += System.currentTimeMillis() - time2;
-			}
-			catch ( Exception  e )
-			{
-				IOFunctions.println( "An error occured (DOG): " + e ); 
-				IOFunctions.println( "Failed to segment angleId: " + 
-						vd.getViewSetup().getAngle().getId() + " channelId: " +
-						vd.getViewSetup().getChannel().getId() + " illumId: " +
-						vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
-				e.printStackTrace();
-			}
-		}
+	@Override
+	protected double getThreshold( final Channel channel ) { return threshold[ channel.getId() ]; }
+
+	@Override
+	protected String getParameters( final Channel channel )
+	{
+		final int c = channel.getId();
+
+		final String computeOn;
+
+		if ( deviceList == null )
+			computeOn = blockwise ? "CPU blockwise" : "CPU";
+		else
+			computeOn = accurateCUDA ? "GPU accurate" : "GPU approximate";
 
-		return interestPoints;
+		return "sigma=" + sigma[ c ] + ", findMin=" + findMin[ c ] + ", findMax=" + findMax[ c ] + ", computeOn=" + computeOn;
 	}
 
 	@Override
@@ -322,13 +363,14 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	protected void addAddtionalParameters( final GenericDialog gd )
 	{
 		gd.addChoice( "Compute_on", computationOnChoice, computationOnChoice[ defaultComputationChoiceIndex ] );
-		
+		gd.addCheckbox( "Process_blockwise (CPU only, for views larger than the memory)", defaultBlockwise );
 	}
 
 	@Override
 	protected boolean queryAdditionalParameters( final GenericDialog gd )
 	{
 		final int computationTypeIndex = defaultComputationChoiceIndex = gd.getNextChoiceIndex();
+		blockwise = defaultBlockwise = gd.getNextBoolean();
 
 		if ( computationTypeIndex == 1 )
 			accurateCUDA = false;
@@ -423,4 +465,9 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	{
 		this.cuda = cuda;
 	}
+
+	public void setBlockwise( boolean blockwise )
+	{
+		this.blockwise = blockwise;
+	}
 }
@@ -34,6 +34,9 @@ public abstract class InterestPointRegistration
 
 	List< List< PairwiseMatch > > statistics;
 
+	// the threads each pairwise matching may use while the pairs of a subset are matched in parallel
+	int numThreadsPerPair = 0;
+
 	/**
 	 * Instantiate the interest point registration. It is performed for a spimdata object on a
 	 * subset of angles, channels, illuminations and timepoints. Each channel is linked to a
@@ -114,6 +117,11 @@ public abstract class InterestPointRegistration
 	public List< ChannelProcess > getChannelsToProcess() { return channelsToProcess; }
 	public List< List< PairwiseMatch > > getStatistics() { return statistics; }
 
+	/**
+	 * @return - the number of threads a pairwise matching may use, the pairs themselves already run in parallel
+	 */
+	protected int getNumThreadsPerPair() { return numThreadsPerPair > 0 ? numThreadsPerPair : Threads.numThreads(); }
+
 	/**
 	 * Registers all timepoints. No matter which matching is done it is always the same principle.
 	 * 
@@ -144,6 +152,9 @@ public abstract class InterestPointRegistration
 
 			final List< PairwiseMatch > pairs = subset.getViewPairs();
 
+			// all pairs share the threads, so RANSAC & co do not start another pool per pair
+			numThreadsPerPair = Math.max( 1, Threads.numThreads() / Math.max( 1, pairs.size() ) );
+
 			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
 			final ArrayList< Callable< PairwiseMatch > > tasks = new ArrayList< Callable< PairwiseMatch > >(); // your tasks
 
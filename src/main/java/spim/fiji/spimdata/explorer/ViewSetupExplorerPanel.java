@@ -456,16 +456,13 @@ public class ViewSetupExplorerPanel< AS extends AbstractSpimData< ? >, X extends
 					for ( final String label : vipl.getHashMap().keySet() )
 					{
 						final InterestPointList ipl = vipl.getInterestPointList( label );
-	
-						if ( ipl.getInterestPoints() == null )
-							ipl.loadInterestPoints();
-						
-						ipl.saveInterestPoints();
-	
-						if ( ipl.getCorrespondingInterestPoints() == null )
-							ipl.loadCorrespondingInterestPoints();
-	
-						ipl.saveCorrespondingInterestPoints();
+
+						// only lists that were modified are written, the others are not loaded at all
+						if ( ipl.isInterestPointsDirty() )
+							ipl.saveInterestPoints();
+
+						if ( ipl.isCorrespondingInterestPointsDirty() )
+							ipl.saveCorrespondingInterestPoints();
 					}
 				}
 			}
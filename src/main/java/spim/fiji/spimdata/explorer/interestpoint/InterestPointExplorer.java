@@ -80,18 +80,21 @@ public class InterestPointExplorer< AS extends SpimData2, X extends XmlIoAbstrac
 		{
 			IOFunctions.println( "Deleting correspondences and interestpoints in timepointid=" + list.getB().getTimePointId() + ", viewid=" + list.getB().getViewSetupId() );
 
-			final File ip = new File( list.getA().getBaseDir(), list.getA().getFile().toString() + list.getA().getInterestPointsExt() );
-			final File corr = new File( list.getA().getBaseDir(), list.getA().getFile().toString() + list.getA().getCorrespondencesExt() );
-
-			if ( ip.delete() )
-				IOFunctions.println( "Deleted: " + ip.getAbsolutePath() );
-			else
-				IOFunctions.println( "FAILED to delete: " + ip.getAbsolutePath() );
-
-			if ( corr.delete() )
-				IOFunctions.println( "Deleted: " + corr.getAbsolutePath() );
-			else
-				IOFunctions.println( "FAILED to delete: " + corr.getAbsolutePath() );
+			final InterestPointList ipl = list.getA();
+
+			// the list might exist in both formats
+			for ( final String ext : new String[]{ ipl.getInterestPointsTextExt(), ipl.getCorrespondencesTextExt(), ipl.getInterestPointsBinaryExt(), ipl.getCorrespondencesBinaryExt() } )
+			{
+				final File file = ipl.getFile( ext );
+
+				if ( !file.exists() )
+					continue;
+
+				if ( file.delete() )
+					IOFunctions.println( "Deleted: " + file.getAbsolutePath() );
+				else
+					IOFunctions.println( "FAILED to delete: " + file.getAbsolutePath() );
+			}
 		}
 
 		//panel.save.clear();
@@ -192,7 +192,9 @@ public class InterestPointExplorerPanel extends JPanel
 
 			IOFunctions.println( "Removing label '' for timepoint_id " + vd.getTimePointId() + " viewsetup_id " + vd.getViewSetupId() + " -- Parsing through all correspondences to remove any links to this interest point list." );
 
-			final List< CorrespondingInterestPoints > correspondencesList = getCorrespondingInterestPoints( vip, vd, label );
+			// a copy, the lists loaded from disk are read-only
+			final List< CorrespondingInterestPoints > correspondencesList =
+					new ArrayList< CorrespondingInterestPoints >( getCorrespondingInterestPoints( vip, vd, label ) );
 
 			// sort by timepointid, setupid, and detectionid 
 			Collections.sort( correspondencesList );
@@ -225,8 +227,11 @@ public class InterestPointExplorerPanel extends JPanel
 					IOFunctions.println( "Removing correspondences in timepointid=" + viewIdCorr.getTimePointId() + ", viewid=" + viewIdCorr.getViewSetupId() );
 					lastViewIdCorr = viewIdCorr;
 					//lastLabelCorr = labelCorr;
-					cList = getCorrespondingInterestPoints( vip, viewIdCorr, labelCorr );
+					cList = new ArrayList< CorrespondingInterestPoints >( getCorrespondingInterestPoints( vip, viewIdCorr, labelCorr ) );
 					size = cList.size();
+
+					// the changed copy replaces the list, it is written by the next save
+					vip.getViewInterestPointLists( viewIdCorr ).getInterestPointList( labelCorr ).setCorrespondingInterestPoints( cList );
 				}
 
 				// find the counterpart in the list that corresponds with pair.getDetectionId() and vd
@@ -59,7 +59,7 @@ public abstract class StackImgLoader extends AbstractImgLoader
 		return img;
 	}
 
-	protected File getFile( final ViewId view )
+	public File getFile( final ViewId view )
 	{
 		final TimePoint tp = sequenceDescription.getTimePoints().getTimePoints().get( view.getTimePointId() );
 		final BasicViewSetup  vs = sequenceDescription.getViewSetups().get( view.getViewSetupId() );
@@ -4,7 +4,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.ViewId;
@@ -13,23 +17,62 @@ import mpicbg.spim.io.TextFileAccess;
 
 /**
  * A list of interest points for a certain label, can save and load from textfile as specified in the XML
+ *
+ * The interest points and correspondences are loaded on first access. Lists that were loaded from disk are kept
+ * in a cache of the most recently used lists (at most maxCachedPoints points and correspondences in total), all
+ * others are only softly referenced and loaded again if the memory was needed. Lists that were set are kept
+ * until they are saved, lists that were not set since they were loaded or saved are not written again.
+ *
+ * Lists loaded from disk are handed out read-only, since changes to them would neither be saved nor survive
+ * the eviction from the cache. To modify them, set a changed copy.
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
  */
 public class InterestPointList
 {
+	/**
+	 * if new lists are saved in the binary format (see {@link InterestPointsBinary}) instead of text files; off by default
+	 * since older versions cannot read it, the format of each list is stored in the XML
+	 */
+	public static boolean defaultSaveBinary = false;
+
+	/**
+	 * approximate size of one {@link InterestPoint} (object, id and two double[ 3 ]) or {@link CorrespondingInterestPoints} in memory
+	 */
+	public static final long bytesPerCachedPoint = 128;
+
+	/**
+	 * how many interest points and correspondences of loaded lists are kept in memory at least, by default what fits
+	 * into 5% of the maximal heap size (e.g. 2.6 million for 8 GB), anything beyond is only kept while memory is available
+	 */
+	public static long maxCachedPoints = Runtime.getRuntime().maxMemory() / 20 / bytesPerCachedPoint;
+
+	// the lists loaded from disk in the order of their last access
+	private static final LinkedHashMap< Object, CachedList > recentlyUsed = new LinkedHashMap< Object, CachedList >( 16, 0.75f, true );
+	private static long numCachedPoints = 0;
+
 	File baseDir, file;
+	String parameters;
+	boolean saveBinary = defaultSaveBinary;
+
+	// lists that were set (or failed to load) are referenced until they are saved, lists loaded from disk only softly
 	List< InterestPoint > interestPoints;
 	List< CorrespondingInterestPoints > correspondingInterestPoints;
-	String parameters;
+	SoftReference< List< InterestPoint > > loadedInterestPoints;
+	SoftReference< List< CorrespondingInterestPoints > > loadedCorrespondingInterestPoints;
+	boolean interestPointsDirty, correspondingInterestPointsDirty;
+
+	// the keys of this list in the cache
+	final Object interestPointsKey = new Object();
+	final Object correspondencesKey = new Object();
 	
 	/**
 	 * Instantiates a new {@link InterestPointList}
 	 * 
 	 * @param baseDir - the path where the xml is
-	 * @param file - relative path to the file to load/save the list from, an extension is added automatically (.ip.txt &amp;&amp; .corr.txt)
-	 * for interestpoints and correspondences
+	 * @param file - relative path to the file to load/save the list from, an extension is added automatically (.ip.txt &amp;&amp; .corr.txt,
+	 * or .ip.bin &amp;&amp; .corr.bin) for interestpoints and correspondences
 	 */
 	public InterestPointList( final File baseDir, final File file )
 	{
@@ -41,30 +84,205 @@ public class InterestPointList
 	}
 
 	/**
-	 * @return - the list of interest points, tries to load it from disk if not available
+	 * @return - the list of interest points, tries to load it from disk if not available (read-only if it was
+	 * loaded, see {@link #setInterestPoints(List)} to change it)
 	 */
-	public List< InterestPoint > getInterestPoints() { return this.interestPoints; }
+	public synchronized List< InterestPoint > getInterestPoints()
+	{
+		if ( this.interestPoints != null )
+			return this.interestPoints;
+
+		List< InterestPoint > list = loadedInterestPoints == null ? null : loadedInterestPoints.get();
+
+		if ( list == null )
+		{
+			// nothing saved yet
+			if ( !getFile( getInterestPointsBinaryExt() ).exists() && !getFile( getInterestPointsTextExt() ).exists() )
+				return null;
+
+			if ( !loadInterestPoints() )
+				return this.interestPoints;
+
+			list = loadedInterestPoints.get();
+		}
+
+		touch( interestPointsKey, list );
+
+		return Collections.unmodifiableList( list );
+	}
 
 	/**
-	 * @return - the list of corresponding interest points, tries to load it from disk if not available
+	 * @return - the list of corresponding interest points, tries to load it from disk if not available (read-only
+	 * if it was loaded, see {@link #setCorrespondingInterestPoints(List)} to change it)
 	 */
-	public List< CorrespondingInterestPoints > getCorrespondingInterestPoints() { return this.correspondingInterestPoints; }
+	public synchronized List< CorrespondingInterestPoints > getCorrespondingInterestPoints()
+	{
+		if ( this.correspondingInterestPoints != null )
+			return this.correspondingInterestPoints;
+
+		List< CorrespondingInterestPoints > list = loadedCorrespondingInterestPoints == null ? null : loadedCorrespondingInterestPoints.get();
+
+		if ( list == null )
+		{
+			// no registration computed yet
+			if ( !getFile( getCorrespondencesBinaryExt() ).exists() && !getFile( getCorrespondencesTextExt() ).exists() )
+				return null;
+
+			if ( !loadCorrespondingInterestPoints() )
+				return this.correspondingInterestPoints;
+
+			list = loadedCorrespondingInterestPoints.get();
+		}
+
+		touch( correspondencesKey, list );
+
+		return Collections.unmodifiableList( list );
+	}
 
 	public File getBaseDir() { return baseDir; }
 	public File getFile() { return file; }
 	public String getParameters() { return parameters; }
 	public void setParameters( final String parameters ) { this.parameters = parameters; }
-	public void setInterestPoints( final List< InterestPoint > list ) { this.interestPoints = list; }
-	public void setCorrespondingInterestPoints( final List< CorrespondingInterestPoints > list ) { this.correspondingInterestPoints = list; }
+
+	/**
+	 * @param list - the new interest points, they will be written by the next save; null unloads the interest points
+	 */
+	public synchronized void setInterestPoints( final List< InterestPoint > list )
+	{
+		this.interestPoints = list;
+		this.loadedInterestPoints = null;
+		this.interestPointsDirty = list != null;
+
+		forget( interestPointsKey );
+	}
+
+	/**
+	 * @param list - the new correspondences, they will be written by the next save; null unloads the correspondences
+	 */
+	public synchronized void setCorrespondingInterestPoints( final List< CorrespondingInterestPoints > list )
+	{
+		this.correspondingInterestPoints = list;
+		this.loadedCorrespondingInterestPoints = null;
+		this.correspondingInterestPointsDirty = list != null;
+
+		forget( correspondencesKey );
+	}
+
+	/**
+	 * @return - true if the interest points were set and not saved yet
+	 */
+	public boolean isInterestPointsDirty() { return interestPointsDirty; }
+
+	/**
+	 * @return - true if the correspondences were set and not saved yet
+	 */
+	public boolean isCorrespondingInterestPointsDirty() { return correspondingInterestPointsDirty; }
+
+	/**
+	 * Marks the interest points and correspondences as modified, so that the next save writes them again
+	 */
+	public synchronized void setDirty()
+	{
+		interestPointsDirty = correspondingInterestPointsDirty = true;
+	}
 	
 	public void setFile( final File file ) { this.file = file; }
 	public void setBaseDir( final File baseDir ) { this.baseDir = baseDir; }
 	
-	public String getInterestPointsExt() { return ".ip.txt"; }
-	public String getCorrespondencesExt() { return ".corr.txt"; }
-	
+	/**
+	 * @return - true if the list is stored in the binary format (as recorded in the XML)
+	 */
+	public boolean isSaveBinary() { return saveBinary; }
+	public void setSaveBinary( final boolean saveBinary ) { this.saveBinary = saveBinary; }
+
+	/**
+	 * @return - the extension of the interest point file that is saved
+	 */
+	public String getInterestPointsExt() { return saveBinary ? getInterestPointsBinaryExt() : getInterestPointsTextExt(); }
+
+	/**
+	 * @return - the extension of the correspondence file that is saved
+	 */
+	public String getCorrespondencesExt() { return saveBinary ? getCorrespondencesBinaryExt() : getCorrespondencesTextExt(); }
+
+	public String getInterestPointsTextExt() { return ".ip.txt"; }
+	public String getCorrespondencesTextExt() { return ".corr.txt"; }
+	public String getInterestPointsBinaryExt() { return ".ip.bin"; }
+	public String getCorrespondencesBinaryExt() { return ".corr.bin"; }
+
+	/**
+	 * @param ext - the extension
+	 * @return - the file of this list with the given extension
+	 */
+	public File getFile( final String ext ) { return new File( getBaseDir(), getFile().toString() + ext ); }
+
+	/**
+	 * The file in the format of this list (as recorded in the XML) is loaded, the other format only if it does not exist
+	 * (e.g. if the XML was not saved after the list was converted)
+	 *
+	 * @return - true if the binary file should be loaded
+	 */
+	protected boolean loadBinary( final File binary, final File text )
+	{
+		if ( saveBinary )
+			return binary.exists() || !text.exists();
+		else
+			return binary.exists() && !text.exists();
+	}
+
+	/**
+	 * Deletes the file of a list in the other format after it was saved, so that only one format exists
+	 *
+	 * @param ext - the extension of the other format
+	 */
+	protected void deleteOtherFormat( final String ext )
+	{
+		final File other = getFile( ext );
+
+		if ( other.exists() && !other.delete() )
+			IOFunctions.println( "InterestPointList: Could not delete '" + other + "'." );
+	}
+
+	/**
+	 * Converts the interest points and correspondences of this list into the other format and deletes the old files,
+	 * the XML has to be saved afterwards since it records the format
+	 *
+	 * @param toBinary - convert into the binary format, otherwise into text files
+	 * @return - true if successful
+	 */
+	public boolean convert( final boolean toBinary )
+	{
+		// keep them referenced until they are written
+		final List< InterestPoint > points = getInterestPoints();
+		final List< CorrespondingInterestPoints > correspondences = getCorrespondingInterestPoints();
+
+		if ( points == null )
+			return false;
+
+		// the correspondences do not exist until a registration was computed
+		final boolean hasCorrespondences = correspondences != null;
+
+		this.saveBinary = toBinary;
+
+		// nothing changed, but it has to be written in the other format
+		this.interestPointsDirty = true;
+		boolean success = saveInterestPoints();
+
+		if ( hasCorrespondences )
+		{
+			this.correspondingInterestPointsDirty = true;
+			success &= saveCorrespondingInterestPoints();
+		}
+
+		return success;
+	}
+
 	public boolean saveInterestPoints()
 	{
+		// not modified since it was loaded or saved
+		if ( !interestPointsDirty && getFile( getInterestPointsExt() ).exists() )
+			return true;
+
 		final List< InterestPoint > list = getInterestPoints();
 		
 		if ( list == null )
@@ -80,6 +298,14 @@ public class InterestPointList
 				dir.mkdirs();
 			}
 			
+			if ( saveBinary )
+			{
+				InterestPointsBinary.saveInterestPoints( getFile( getInterestPointsExt() ), list );
+				savedInterestPoints( list );
+				deleteOtherFormat( getInterestPointsTextExt() );
+				return true;
+			}
+
 			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
 			
 			// header
@@ -90,6 +316,9 @@ public class InterestPointList
 				out.println( p.getId() + "\t" + p.getL()[0] + "\t" + p.getL()[1] + "\t" + p.getL()[2] );
 						
 			out.close();
+
+			savedInterestPoints( list );
+			deleteOtherFormat( getInterestPointsBinaryExt() );
 			
 			return true;
 		}
@@ -103,6 +332,10 @@ public class InterestPointList
 
 	public boolean saveCorrespondingInterestPoints()
 	{
+		// not modified since it was loaded or saved
+		if ( !correspondingInterestPointsDirty && getFile( getCorrespondencesExt() ).exists() )
+			return true;
+
 		final List< CorrespondingInterestPoints > list = getCorrespondingInterestPoints();
 		
 		if ( list == null )
@@ -118,6 +351,14 @@ public class InterestPointList
 				dir.mkdirs();
 			}
 			
+			if ( saveBinary )
+			{
+				InterestPointsBinary.saveCorrespondingInterestPoints( getFile( getCorrespondencesExt() ), list );
+				savedCorrespondingInterestPoints( list );
+				deleteOtherFormat( getCorrespondencesTextExt() );
+				return true;
+			}
+
 			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );
 			
 			// header
@@ -128,6 +369,9 @@ public class InterestPointList
 				out.println( p.getDetectionId() + "\t" + p.getCorrespondingViewId().getTimePointId() + "\t" + p.getCorrespondingViewId().getViewSetupId() + "\t" + p.getCorrespodingLabel() + "\t" + p.getCorrespondingDetectionId() );
 						
 			out.close();
+
+			savedCorrespondingInterestPoints( list );
+			deleteOtherFormat( getCorrespondencesBinaryExt() );
 			
 			return true;
 		}
@@ -139,33 +383,47 @@ public class InterestPointList
 		}				
 	}
 
-	public boolean loadCorrespondingInterestPoints()
+	public synchronized boolean loadCorrespondingInterestPoints()
 	{
+		ArrayList< CorrespondingInterestPoints > list = new ArrayList< CorrespondingInterestPoints >();
+
 		try 
 		{
-			this.correspondingInterestPoints = new ArrayList< CorrespondingInterestPoints >();
-
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );			
+			final File binary = getFile( getCorrespondencesBinaryExt() );
 
-			// the header
-			do {} while ( !in.readLine().startsWith( "id" ) );
-			
-			while ( in.ready() )
+			if ( loadBinary( binary, getFile( getCorrespondencesTextExt() ) ) )
 			{
-				final String p[] = in.readLine().split( "\t" );
-				
-				final CorrespondingInterestPoints cip = new CorrespondingInterestPoints(
-						Integer.parseInt( p[ 0 ].trim() ),
-						new ViewId(
-							Integer.parseInt( p[ 1 ].trim() ), // timepointId 
-							Integer.parseInt( p[ 2 ].trim() ) ), // viewSetupId
-						p[ 3 ], // correspondingLabel,
-						Integer.parseInt( p[ 4 ].trim() ) ); //correspondingDetectionId
+				list = InterestPointsBinary.loadCorrespondingInterestPoints( binary );
+			}
+			else
+			{
+				final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesTextExt() ) );			
+
+				// the header
+				do {} while ( !in.readLine().startsWith( "id" ) );
 				
-				this.correspondingInterestPoints.add( cip );
+				while ( in.ready() )
+				{
+					final String p[] = in.readLine().split( "\t" );
+					
+					final CorrespondingInterestPoints cip = new CorrespondingInterestPoints(
+							Integer.parseInt( p[ 0 ].trim() ),
+							new ViewId(
+								Integer.parseInt( p[ 1 ].trim() ), // timepointId 
+								Integer.parseInt( p[ 2 ].trim() ) ), // viewSetupId
+							p[ 3 ], // correspondingLabel,
+							Integer.parseInt( p[ 4 ].trim() ) ); //correspondingDetectionId
+					
+					list.add( cip );
+				}
+
+				in.close();
 			}
 
-			in.close();
+			this.correspondingInterestPoints = null;
+			this.loadedCorrespondingInterestPoints = new SoftReference< List< CorrespondingInterestPoints > >( list );
+			this.correspondingInterestPointsDirty = false;
+			touch( correspondencesKey, list );
 
 			return true;
 		}
@@ -173,44 +431,166 @@ public class InterestPointList
 		{
 			// it is normal that this file does not exist until a registration was computed
 			System.out.println( "InterestPointList.loadCorrespondingInterestPoints(): " + e );
+
+			// keep what could be read
+			setFailed( list, false );
+
 			return false;
 		}
 	}
 
-	public boolean loadInterestPoints()
+	public synchronized boolean loadInterestPoints()
 	{
+		ArrayList< InterestPoint > list = new ArrayList< InterestPoint >();
+
 		try
 		{
-			this.interestPoints = new ArrayList< InterestPoint >();
+			final File binary = getFile( getInterestPointsBinaryExt() );
+
+			if ( loadBinary( binary, getFile( getInterestPointsTextExt() ) ) )
+			{
+				list = InterestPointsBinary.loadInterestPoints( binary );
+			}
+			else
+			{
+				final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getInterestPointsTextExt() ) );
 
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
+				// the header
+				do {} while ( !in.readLine().startsWith( "id" ) );
 
-			// the header
-			do {} while ( !in.readLine().startsWith( "id" ) );
+				while ( in.ready() )
+				{
+					final String p[] = in.readLine().split( "\t" );
+					
+					final InterestPoint point = new InterestPoint( 
+							Integer.parseInt( p[ 0 ].trim() ),
+							new double[]{ 
+								Double.parseDouble( p[ 1 ].trim() ),
+								Double.parseDouble( p[ 2 ].trim() ),
+								Double.parseDouble( p[ 3 ].trim() ) } );
+					
+					list.add( point );
+				}
 
-			while ( in.ready() )
-			{
-				final String p[] = in.readLine().split( "\t" );
-				
-				final InterestPoint point = new InterestPoint( 
-						Integer.parseInt( p[ 0 ].trim() ),
-						new double[]{ 
-							Double.parseDouble( p[ 1 ].trim() ),
-							Double.parseDouble( p[ 2 ].trim() ),
-							Double.parseDouble( p[ 3 ].trim() ) } );
-				
-				this.interestPoints.add( point );
+				in.close();
 			}
 
-			in.close();
-			
+			this.interestPoints = null;
+			this.loadedInterestPoints = new SoftReference< List< InterestPoint > >( list );
+			this.interestPointsDirty = false;
+			touch( interestPointsKey, list );
+
 			return true;
 		} 
 		catch ( final IOException e )
 		{
 			IOFunctions.println( "InterestPointList.loadInterestPoints(): " + e );
 			e.printStackTrace();
+
+			// keep what could be read
+			setFailed( list, true );
+
 			return false;
 		}
 	}
+
+	@SuppressWarnings( "unchecked" )
+	protected void setFailed( final List< ? > list, final boolean isInterestPoints )
+	{
+		if ( isInterestPoints )
+		{
+			this.interestPoints = (List< InterestPoint >)list;
+			this.loadedInterestPoints = null;
+			this.interestPointsDirty = false;
+			forget( interestPointsKey );
+		}
+		else
+		{
+			this.correspondingInterestPoints = (List< CorrespondingInterestPoints >)list;
+			this.loadedCorrespondingInterestPoints = null;
+			this.correspondingInterestPointsDirty = false;
+			forget( correspondencesKey );
+		}
+	}
+
+	/**
+	 * The list is on disk now, it does not need to be referenced anymore
+	 */
+	protected synchronized void savedInterestPoints( final List< InterestPoint > list )
+	{
+		if ( this.interestPoints == list )
+		{
+			this.interestPoints = null;
+			this.loadedInterestPoints = new SoftReference< List< InterestPoint > >( list );
+			touch( interestPointsKey, list );
+		}
+
+		this.interestPointsDirty = false;
+	}
+
+	/**
+	 * The list is on disk now, it does not need to be referenced anymore
+	 */
+	protected synchronized void savedCorrespondingInterestPoints( final List< CorrespondingInterestPoints > list )
+	{
+		if ( this.correspondingInterestPoints == list )
+		{
+			this.correspondingInterestPoints = null;
+			this.loadedCorrespondingInterestPoints = new SoftReference< List< CorrespondingInterestPoints > >( list );
+			touch( correspondencesKey, list );
+		}
+
+		this.correspondingInterestPointsDirty = false;
+	}
+
+	/**
+	 * A list in the cache and its size when it was added
+	 */
+	private static class CachedList
+	{
+		final List< ? > list;
+		final int size;
+
+		public CachedList( final List< ? > list )
+		{
+			this.list = list;
+			this.size = list.size();
+		}
+	}
+
+	/**
+	 * Marks a loaded list as most recently used, evicts the least recently used lists if there are too many points in memory
+	 */
+	protected static synchronized void touch( final Object key, final List< ? > list )
+	{
+		final CachedList old = recentlyUsed.get( key );
+
+		// only the access order changed
+		if ( old != null && old.list == list )
+			return;
+
+		if ( old != null )
+			numCachedPoints -= old.size;
+
+		final CachedList entry = new CachedList( list );
+		recentlyUsed.put( key, entry );
+		numCachedPoints += entry.size;
+
+		// the list that was just used is the last one and always stays
+		final Iterator< CachedList > it = recentlyUsed.values().iterator();
+
+		while ( numCachedPoints > maxCachedPoints && recentlyUsed.size() > 1 )
+		{
+			numCachedPoints -= it.next().size;
+			it.remove();
+		}
+	}
+
+	protected static synchronized void forget( final Object key )
+	{
+		final CachedList old = recentlyUsed.remove( key );
+
+		if ( old != null )
+			numCachedPoints -= old.size;
+	}
 }
@@ -0,0 +1,279 @@
+package spim.fiji.spimdata.interestpoints;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+
+/**
+ * Binary storage of interest points and correspondences, an alternative to the tab-separated text files.
+ *
+ * Both are stored column by column (little endian) after a header of ints (magic, version, type, count, ...):
+ * interest points as the ids followed by one column of doubles per dimension, correspondences as a table of the
+ * labels followed by the columns detection id, timepoint id, viewsetup id, label index and corresponding detection id.
+ * Files are read into memory at once and then with bulk gets of whole columns, no parsing is involved (the file is not
+ * memory mapped, a mapping would keep it locked on Windows until it is garbage collected).
+ */
+public class InterestPointsBinary
+{
+	public static final int magic = 0x53504950; // "SPIP"
+	public static final int version = 1;
+
+	public static final int typeInterestPoints = 0;
+	public static final int typeCorrespondences = 1;
+
+	protected static final Charset utf8 = Charset.forName( "UTF-8" );
+
+	/**
+	 * @param file - the file to write
+	 * @param points - the interest points, all with the same number of dimensions
+	 * @throws IOException
+	 */
+	public static void saveInterestPoints( final File file, final List< InterestPoint > points ) throws IOException
+	{
+		final int count = points.size();
+		final int n = count == 0 ? 3 : points.get( 0 ).getL().length;
+
+		final ByteBuffer buffer = allocate( 5 * 4 + count * 4 + count * n * 8 );
+
+		buffer.putInt( magic );
+		buffer.putInt( version );
+		buffer.putInt( typeInterestPoints );
+		buffer.putInt( count );
+		buffer.putInt( n );
+
+		for ( final InterestPoint p : points )
+			buffer.putInt( p.getId() );
+
+		for ( int d = 0; d < n; ++d )
+			for ( final InterestPoint p : points )
+				buffer.putDouble( p.getL()[ d ] );
+
+		write( file, buffer );
+	}
+
+	/**
+	 * @param file - the file to read
+	 * @return - the interest points
+	 * @throws IOException
+	 */
+	public static ArrayList< InterestPoint > loadInterestPoints( final File file ) throws IOException
+	{
+		final ByteBuffer buffer = read( file );
+
+		checkHeader( file, buffer, typeInterestPoints );
+
+		final int count = buffer.getInt();
+		final int n = buffer.getInt();
+
+		final int[] ids = new int[ count ];
+		final IntBuffer idColumn = buffer.asIntBuffer();
+		idColumn.get( ids );
+		buffer.position( buffer.position() + count * 4 );
+
+		final double[][] columns = new double[ n ][ count ];
+		final DoubleBuffer coordinates = buffer.asDoubleBuffer();
+
+		for ( int d = 0; d < n; ++d )
+			coordinates.get( columns[ d ] );
+
+		final ArrayList< InterestPoint > points = new ArrayList< InterestPoint >( count );
+
+		for ( int i = 0; i < count; ++i )
+		{
+			final double[] l = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				l[ d ] = columns[ d ][ i ];
+
+			points.add( new InterestPoint( ids[ i ], l ) );
+		}
+
+		return points;
+	}
+
+	/**
+	 * @param file - the file to write
+	 * @param correspondences - the corresponding interest points
+	 * @throws IOException
+	 */
+	public static void saveCorrespondingInterestPoints( final File file, final List< CorrespondingInterestPoints > correspondences ) throws IOException
+	{
+		final int count = correspondences.size();
+
+		// the labels are stored once, the correspondences refer to them by index
+		final ArrayList< String > labels = new ArrayList< String >();
+		final int[] labelIndex = new int[ count ];
+
+		for ( int i = 0; i < count; ++i )
+		{
+			final String label = correspondences.get( i ).getCorrespodingLabel();
+
+			int index = labels.indexOf( label );
+
+			if ( index < 0 )
+			{
+				index = labels.size();
+				labels.add( label );
+			}
+
+			labelIndex[ i ] = index;
+		}
+
+		final ArrayList< byte[] > labelBytes = new ArrayList< byte[] >();
+		int labelSize = 0;
+
+		for ( final String label : labels )
+		{
+			final byte[] b = label.getBytes( utf8 );
+			labelBytes.add( b );
+			labelSize += 4 + b.length;
+		}
+
+		final ByteBuffer buffer = allocate( 5 * 4 + labelSize + count * 5 * 4 );
+
+		buffer.putInt( magic );
+		buffer.putInt( version );
+		buffer.putInt( typeCorrespondences );
+		buffer.putInt( count );
+		buffer.putInt( labels.size() );
+
+		for ( final byte[] b : labelBytes )
+		{
+			buffer.putInt( b.length );
+			buffer.put( b );
+		}
+
+		for ( final CorrespondingInterestPoints c : correspondences )
+			buffer.putInt( c.getDetectionId() );
+
+		for ( final CorrespondingInterestPoints c : correspondences )
+			buffer.putInt( c.getCorrespondingViewId().getTimePointId() );
+
+		for ( final CorrespondingInterestPoints c : correspondences )
+			buffer.putInt( c.getCorrespondingViewId().getViewSetupId() );
+
+		for ( int i = 0; i < count; ++i )
+			buffer.putInt( labelIndex[ i ] );
+
+		for ( final CorrespondingInterestPoints c : correspondences )
+			buffer.putInt( c.getCorrespondingDetectionId() );
+
+		write( file, buffer );
+	}
+
+	/**
+	 * @param file - the file to read
+	 * @return - the corresponding interest points
+	 * @throws IOException
+	 */
+	public static ArrayList< CorrespondingInterestPoints > loadCorrespondingInterestPoints( final File file ) throws IOException
+	{
+		final ByteBuffer buffer = read( file );
+
+		checkHeader( file, buffer, typeCorrespondences );
+
+		final int count = buffer.getInt();
+		final int numLabels = buffer.getInt();
+
+		final String[] labels = new String[ numLabels ];
+
+		for ( int i = 0; i < numLabels; ++i )
+		{
+			final byte[] b = new byte[ buffer.getInt() ];
+			buffer.get( b );
+			labels[ i ] = new String( b, utf8 );
+		}
+
+		final int[][] columns = new int[ 5 ][ count ];
+		final IntBuffer ints = buffer.asIntBuffer();
+
+		for ( int c = 0; c < 5; ++c )
+			ints.get( columns[ c ] );
+
+		final ArrayList< CorrespondingInterestPoints > correspondences = new ArrayList< CorrespondingInterestPoints >( count );
+
+		for ( int i = 0; i < count; ++i )
+			correspondences.add( new CorrespondingInterestPoints(
+					columns[ 0 ][ i ],
+					new ViewId( columns[ 1 ][ i ], columns[ 2 ][ i ] ),
+					labels[ columns[ 3 ][ i ] ],
+					columns[ 4 ][ i ] ) );
+
+		return correspondences;
+	}
+
+	protected static ByteBuffer allocate( final long size ) throws IOException
+	{
+		if ( size > Integer.MAX_VALUE )
+			throw new IOException( "Too many interest points for one file (" + size + " bytes)." );
+
+		return ByteBuffer.allocate( (int)size ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	protected static void checkHeader( final File file, final ByteBuffer buffer, final int type ) throws IOException
+	{
+		if ( buffer.getInt() != magic )
+			throw new IOException( "'" + file + "' is not a binary interest point file." );
+
+		final int v = buffer.getInt();
+
+		if ( v > version )
+			throw new IOException( "'" + file + "' has version " + v + ", only version " + version + " and older are supported." );
+
+		if ( buffer.getInt() != type )
+			throw new IOException( "'" + file + "' contains " + ( type == typeInterestPoints ? "correspondences" : "interest points" ) + "." );
+	}
+
+	protected static ByteBuffer read( final File file ) throws IOException
+	{
+		final FileInputStream in = new FileInputStream( file );
+
+		try
+		{
+			final FileChannel channel = in.getChannel();
+			final ByteBuffer buffer = allocate( channel.size() );
+
+			while ( buffer.hasRemaining() )
+				if ( channel.read( buffer ) < 0 )
+					throw new IOException( "'" + file + "' is truncated." );
+
+			buffer.flip();
+
+			return buffer;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	protected static void write( final File file, final ByteBuffer buffer ) throws IOException
+	{
+		buffer.flip();
+
+		final FileOutputStream out = new FileOutputStream( file );
+
+		try
+		{
+			final FileChannel channel = out.getChannel();
+
+			while ( buffer.hasRemaining() )
+				channel.write( buffer );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package spim.fiji.spimdata.interestpoints;
 
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTSFILE_TAG;
+import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_FORMAT_ATTRIBUTE_NAME;
+import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_FORMAT_BINARY;
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_LABEL_ATTRIBUTE_NAME;
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_PARAMETERS_ATTRIBUTE_NAME;
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_SETUP_ATTRIBUTE_NAME;
@@ -64,6 +66,9 @@ public class XmlIoViewInterestPoints extends XmlIoSingleton< ViewInterestPoints
 			final String label = viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_LABEL_ATTRIBUTE_NAME );
 			final String parameters = viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_PARAMETERS_ATTRIBUTE_NAME );
 
+			// text files if not specified (XMLs written before the binary format existed)
+			final boolean binary = VIEWINTERESTPOINTS_FORMAT_BINARY.equals( viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_FORMAT_ATTRIBUTE_NAME ) );
+
 			final String interestPointFileName = viewInterestPointsElement.getTextTrim();
 
 			final ViewId viewId = new ViewId( timepointId, setupId );
@@ -72,6 +77,7 @@ public class XmlIoViewInterestPoints extends XmlIoSingleton< ViewInterestPoints
 			// we do not load the interestpoints nor the correspondinginterestpoints, we just do that once it is requested
 			final InterestPointList list = new InterestPointList( basePath, new File( interestPointFileName ) );
 			list.setParameters( parameters );
+			list.setSaveBinary( binary );
 			collection.addInterestPointList( label, list );
 		}
 
@@ -85,6 +91,10 @@ public class XmlIoViewInterestPoints extends XmlIoSingleton< ViewInterestPoints
 		elem.setAttribute( VIEWINTERESTPOINTS_SETUP_ATTRIBUTE_NAME, Integer.toString( viewId ) );
 		elem.setAttribute( VIEWINTERESTPOINTS_LABEL_ATTRIBUTE_NAME, label );
 		elem.setAttribute( VIEWINTERESTPOINTS_PARAMETERS_ATTRIBUTE_NAME, interestPointList.getParameters() );
+
+		// only binary lists are marked, so that XMLs with text files stay readable by older versions
+		if ( interestPointList.isSaveBinary() )
+			elem.setAttribute( VIEWINTERESTPOINTS_FORMAT_ATTRIBUTE_NAME, VIEWINTERESTPOINTS_FORMAT_BINARY );
 		// a hack so that windows does not put its backslashes in
 		elem.setText( interestPointList.getFile().toString().replace( "\\", "/" ) );
 
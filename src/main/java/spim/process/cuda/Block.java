@@ -98,6 +98,11 @@ public class Block
 		return dim;
 	}
 
+	public int[] getOffset() { return offset; }
+	public int[] getEffectiveSize() { return effectiveSize; }
+	public int[] getEffectiveOffset() { return effectiveOffset; }
+	public int[] getEffectiveLocalOffset() { return effectiveLocalOffset; }
+
 	/**
 	 * @return - if the blocks that cover an area/volume/... are precise, i.e. if they are identical to performing the convolution on the entire image. Non-precise blocks do not need an outofbounds, they will not query data from outside of the blocked area.
 	 */
@@ -16,6 +16,7 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
@@ -258,4 +259,46 @@ public class FusionHelper
 		return portions;
 	}
 
+	/**
+	 * Divides an image of a certain size into disjoint blocks, the blocks at the border may be smaller
+	 * 
+	 * @param dim - the dimensions of the image
+	 * @param blockSize - the size of a block in each dimension
+	 * @return - a list of intervals (in pixel coordinates of the image) covering the image
+	 */
+	public static final ArrayList< FinalInterval > divideIntoBlocks( final long[] dim, final int[] blockSize )
+	{
+		final int n = dim.length;
+		final ArrayList< FinalInterval > blocks = new ArrayList< FinalInterval >();
+
+		final long[] numBlocks = new long[ n ];
+		long totalBlocks = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			numBlocks[ d ] = dim[ d ] / blockSize[ d ] + Math.min( dim[ d ] % blockSize[ d ], 1 );
+			totalBlocks *= numBlocks[ d ];
+		}
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( long i = 0; i < totalBlocks; ++i )
+		{
+			long index = i;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long b = index % numBlocks[ d ];
+				index /= numBlocks[ d ];
+
+				min[ d ] = b * blockSize[ d ];
+				max[ d ] = Math.min( min[ d ] + blockSize[ d ], dim[ d ] ) - 1;
+			}
+
+			blocks.add( new FinalInterval( min.clone(), max.clone() ) );
+		}
+
+		return blocks;
+	}
 }
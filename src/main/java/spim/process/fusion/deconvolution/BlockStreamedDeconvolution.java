@@ -0,0 +1,472 @@
+package spim.process.fusion.deconvolution;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.postprocessing.deconvolution2.AdjustInput;
+import mpicbg.spim.postprocessing.deconvolution2.BayesMVDeconvolution;
+import mpicbg.spim.postprocessing.deconvolution2.CPUFourierConvolution;
+import mpicbg.spim.postprocessing.deconvolution2.LRFFT;
+import mpicbg.spim.postprocessing.deconvolution2.LRFFT.PSFTYPE;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import spim.Threads;
+import spim.process.cuda.Block;
+import spim.process.cuda.BlockGeneratorFixedSizePrecise;
+
+/**
+ * The same multi-view deconvolution as {@link mpicbg.spim.postprocessing.deconvolution2.BayesMVDeconvolution},
+ * but out-of-core: the transformed views, the weights and the deconvolved image psi are stored in
+ * {@link MappedFloatVolume}s, and each update is computed block by block. A block is read including a halo
+ * of the size of both kernels, so its core is identical to computing the update on the whole image.
+ * Only the blocks in flight are resident, the input of the next block is read by an I/O thread while the
+ * current one is computed.
+ *
+ * Computes on the CPU only, the debug display is not supported.
+ */
+public class BlockStreamedDeconvolution
+{
+	public static int[] defaultBlockSize = new int[]{ 256, 256, 256 };
+
+	final List< MappedFloatVolume > imgs, weights;
+	final int numViews;
+	final int[] imgSize, blockSize;
+	final Block[] blocks;
+	final CPUFourierConvolution[] conv1, conv2;
+	final Img< ComplexFloatType >[] fftBuffer1, fftBuffer2;
+	final double lambda;
+	final File tempDirectory;
+
+	float avg;
+	double osemspeedup;
+
+	/**
+	 * @param imgs - the transformed views
+	 * @param weights - the normalized weights
+	 * @param kernels - the PSF of each view
+	 * @param iterationType - the type of iteration
+	 * @param lambda - the Tikhonov parameter (0 means no regularization)
+	 * @param osemspeedup - the OSEM acceleration
+	 * @param osemspeedupindex - 1 == use min number of overlapping views, 2 == use average number of overlapping views
+	 * @param blockSize - the size of the blocks including the halo
+	 * @param tempDirectory - where to store psi, null for the default temporary directory
+	 */
+	@SuppressWarnings( "unchecked" )
+	public BlockStreamedDeconvolution(
+			final List< MappedFloatVolume > imgs,
+			final List< MappedFloatVolume > weights,
+			final List< Img< FloatType > > kernels,
+			final PSFTYPE iterationType,
+			final double lambda,
+			final double osemspeedup,
+			final int osemspeedupindex,
+			final int[] blockSize,
+			final File tempDirectory )
+	{
+		this.imgs = imgs;
+		this.weights = weights;
+		this.numViews = imgs.size();
+		this.lambda = lambda;
+		this.tempDirectory = tempDirectory;
+
+		final long[] dim = imgs.get( 0 ).getDimensions();
+		this.imgSize = new int[]{ (int)dim[ 0 ], (int)dim[ 1 ], (int)dim[ 2 ] };
+
+		// norm the kernels and compute the kernels for the second convolution
+		final ArrayList< Image< mpicbg.imglib.type.numeric.real.FloatType > > kernels1 = new ArrayList< Image< mpicbg.imglib.type.numeric.real.FloatType > >();
+
+		for ( final Img< FloatType > kernel : kernels )
+		{
+			final Image< mpicbg.imglib.type.numeric.real.FloatType > k = LRFFT.wrap( kernel );
+			AdjustInput.normImage( k );
+			kernels1.add( k );
+		}
+
+		final ArrayList< Image< mpicbg.imglib.type.numeric.real.FloatType > > kernels2 = new ArrayList< Image< mpicbg.imglib.type.numeric.real.FloatType > >();
+
+		for ( final Image< mpicbg.imglib.type.numeric.real.FloatType > k : kernels1 )
+			kernels2.add( LRFFT.computeKernel2( k, kernels1, iterationType, numViews ) );
+
+		// the halo has to cover both convolutions
+		final int[] kernelSize = new int[ 3 ];
+
+		for ( int v = 0; v < numViews; ++v )
+			for ( int d = 0; d < 3; ++d )
+				kernelSize[ d ] = Math.max( kernelSize[ d ], kernels1.get( v ).getDimension( d ) + kernels2.get( v ).getDimension( d ) - 1 );
+
+		// the blocks have to be larger than the halo, but it makes no sense if they are larger than the image
+		this.blockSize = new int[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+			this.blockSize[ d ] = Math.min( Math.max( blockSize[ d ], 2 * kernelSize[ d ] ), imgSize[ d ] + kernelSize[ d ] - 1 );
+
+		this.blocks = new BlockGeneratorFixedSizePrecise( this.blockSize ).divideIntoBlocks( imgSize, kernelSize );
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Out-of-core deconvolution, blocksize " + Util.printCoordinates( this.blockSize ) + ", halo " + Util.printCoordinates( kernelSize ) + ", " + blocks.length + " blocks." );
+
+		// the kernel FFTs are computed once, the buffers for the FFT of the image are shared by all convolutions with the same size
+		this.conv1 = new CPUFourierConvolution[ numViews ];
+		this.conv2 = new CPUFourierConvolution[ numViews ];
+		this.fftBuffer1 = new Img[ numViews ];
+		this.fftBuffer2 = new Img[ numViews ];
+
+		final ArrayList< Img< ComplexFloatType > > buffers = new ArrayList< Img< ComplexFloatType > >();
+
+		for ( int v = 0; v < numViews; ++v )
+		{
+			conv1[ v ] = new CPUFourierConvolution( this.blockSize, kernels1.get( v ) );
+			conv2[ v ] = new CPUFourierConvolution( this.blockSize, kernels2.get( v ) );
+
+			fftBuffer1[ v ] = getBuffer( conv1[ v ], buffers );
+			fftBuffer2[ v ] = getBuffer( conv2[ v ], buffers );
+		}
+
+		computeAverage( osemspeedup, osemspeedupindex );
+	}
+
+	public float getAvg() { return avg; }
+	public double getOSEMSpeedup() { return osemspeedup; }
+
+	/**
+	 * Runs the deconvolution
+	 *
+	 * @param numIterations - the number of iterations
+	 * @return - the deconvolved image (the caller has to close it), or null if it failed
+	 */
+	public MappedFloatVolume run( final int numIterations )
+	{
+		if ( blocks == null )
+			return null;
+
+		MappedFloatVolume psi = null, psiNext = null;
+
+		final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+
+		try
+		{
+			final long[] dim = imgs.get( 0 ).getDimensions();
+
+			psi = new MappedFloatVolume( dim, tempDirectory, "psi" );
+			psiNext = new MappedFloatVolume( dim, tempDirectory, "psi" );
+
+			// psi is initialized with the average
+			psi.fill( avg );
+
+			// two sets of buffers, one is read while the other one is computed
+			final BlockData[] data = new BlockData[]{ new BlockData(), new BlockData() };
+
+			for ( int i = 0; i < numIterations; ++i )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): iteration: " + i );
+
+				double sumChange = 0;
+				double maxChange = -1;
+
+				for ( int view = 0; view < numViews; ++view )
+				{
+					Future< BlockData > next = ioExecutor.submit( read( blocks[ 0 ], data[ 0 ], psi, view ) );
+
+					for ( int b = 0; b < blocks.length; ++b )
+					{
+						final BlockData current = next.get();
+
+						if ( b + 1 < blocks.length )
+							next = ioExecutor.submit( read( blocks[ b + 1 ], data[ ( b + 1 ) % 2 ], psi, view ) );
+
+						final double[] change = update( blocks[ b ], current, view, taskExecutor );
+
+						sumChange += change[ 0 ];
+						maxChange = Math.max( maxChange, change[ 1 ] );
+
+						psiNext.writeBlock( blocks[ b ].getEffectiveOffset(), blocks[ b ].getEffectiveSize(), current.out );
+					}
+
+					// the next view continues from the updated psi
+					final MappedFloatVolume tmp = psi;
+					psi = psiNext;
+					psiNext = tmp;
+				}
+
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): iteration: " + i + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange );
+			}
+
+			psiNext.close();
+
+			return psi;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Cannot create the image for the deconvolved image on disk: " + e );
+			e.printStackTrace();
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Out-of-core deconvolution was interrupted: " + e );
+			e.printStackTrace();
+		}
+		catch ( final ExecutionException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Out-of-core deconvolution failed: " + e );
+			e.printStackTrace();
+		}
+		finally
+		{
+			ioExecutor.shutdownNow();
+			taskExecutor.shutdown();
+		}
+
+		if ( psi != null )
+			psi.close();
+
+		if ( psiNext != null )
+			psiNext.close();
+
+		return null;
+	}
+
+	/**
+	 * The buffers of one block in flight
+	 */
+	protected class BlockData
+	{
+		// psi and the view including the halo, and the temporary image for the convolutions
+		final float[] psi, img, tmp;
+
+		// weight and result of the core
+		final float[] weight, out;
+
+		public BlockData()
+		{
+			final int n = blockSize[ 0 ] * blockSize[ 1 ] * blockSize[ 2 ];
+
+			this.psi = new float[ n ];
+			this.img = new float[ n ];
+			this.tmp = new float[ n ];
+			this.weight = new float[ n ];
+			this.out = new float[ n ];
+		}
+	}
+
+	protected Callable< BlockData > read( final Block block, final BlockData data, final MappedFloatVolume psi, final int view )
+	{
+		return new Callable< BlockData >()
+		{
+			@Override
+			public BlockData call() throws Exception
+			{
+				psi.readBlock( block.getOffset(), blockSize, data.psi );
+				imgs.get( view ).readBlock( block.getOffset(), blockSize, data.img );
+				weights.get( view ).readBlock( block.getEffectiveOffset(), block.getEffectiveSize(), data.weight );
+
+				return data;
+			}
+		};
+	}
+
+	/**
+	 * Computes the update of psi for the core of one block
+	 *
+	 * @return - sum and max of the change
+	 */
+	protected double[] update( final Block block, final BlockData data, final int view, final ExecutorService taskExecutor ) throws InterruptedException, ExecutionException
+	{
+		final long[] dim = new long[]{ blockSize[ 0 ], blockSize[ 1 ], blockSize[ 2 ] };
+		final Img< FloatType > tmp = ArrayImgs.floats( data.tmp, dim );
+
+		// convolve psi (current guess of the image) with the PSF of the current view
+		System.arraycopy( data.psi, 0, data.tmp, 0, data.tmp.length );
+		conv1[ view ].convolve( tmp, tmp, fftBuffer1[ view ] );
+
+		// compute quotient img/psiBlurred
+		final int planeSize = blockSize[ 0 ] * blockSize[ 1 ];
+		final ArrayList< Callable< double[] > > tasks = new ArrayList< Callable< double[] > >();
+
+		for ( int t = 0; t < Threads.numThreads(); ++t )
+		{
+			final int thread = t;
+
+			tasks.add( new Callable< double[] >()
+			{
+				@Override
+				public double[] call() throws Exception
+				{
+					for ( int z = thread; z < blockSize[ 2 ]; z += Threads.numThreads() )
+						for ( int i = z * planeSize, j = 0; j < planeSize; ++i, ++j )
+							data.tmp[ i ] = data.img[ i ] / data.tmp[ i ];
+
+					return null;
+				}
+			});
+		}
+
+		for ( final Future< double[] > f : taskExecutor.invokeAll( tasks ) )
+			f.get();
+
+		// blur the residuals image with the kernel
+		conv2[ view ].convolve( tmp, tmp, fftBuffer2[ view ] );
+
+		// compute the new values for the core
+		final int[] size = block.getEffectiveSize();
+		final int[] local = block.getEffectiveLocalOffset();
+		final float osem = (float)osemspeedup;
+
+		tasks.clear();
+
+		for ( int t = 0; t < Threads.numThreads(); ++t )
+		{
+			final int thread = t;
+
+			tasks.add( new Callable< double[] >()
+			{
+				@Override
+				public double[] call() throws Exception
+				{
+					double sumChange = 0;
+					double maxChange = -1;
+
+					for ( int z = thread; z < size[ 2 ]; z += Threads.numThreads() )
+						for ( int y = 0; y < size[ 1 ]; ++y )
+						{
+							int i = ( ( z + local[ 2 ] ) * blockSize[ 1 ] + y + local[ 1 ] ) * blockSize[ 0 ] + local[ 0 ];
+							int o = ( z * size[ 1 ] + y ) * size[ 0 ];
+
+							for ( int x = 0; x < size[ 0 ]; ++x, ++i, ++o )
+							{
+								// individual contribution never higher than 1
+								final float weight = Math.min( 1, data.weight[ o ] * osem );
+								final float lastPsiValue = data.psi[ i ];
+								final float nextPsiValue = BayesMVDeconvolution.computeNextPsiValue( lastPsiValue, data.tmp[ i ], weight, lambda );
+
+								data.out[ o ] = nextPsiValue;
+
+								final float change = Math.abs( nextPsiValue - lastPsiValue );
+								sumChange += change;
+								maxChange = Math.max( maxChange, change );
+							}
+						}
+
+					return new double[]{ sumChange, maxChange };
+				}
+			});
+		}
+
+		double sumChange = 0;
+		double maxChange = -1;
+
+		for ( final Future< double[] > f : taskExecutor.invokeAll( tasks ) )
+		{
+			final double[] change = f.get();
+			sumChange += change[ 0 ];
+			maxChange = Math.max( maxChange, change[ 1 ] );
+		}
+
+		return new double[]{ sumChange, maxChange };
+	}
+
+	/**
+	 * Computes the average intensity in the overlapping area and the OSEM speedup plane by plane,
+	 * same as AdjustInput.normAllImages
+	 */
+	protected void computeAverage( final double osemspeedup, final int osemspeedupindex )
+	{
+		final int planeSize = imgSize[ 0 ] * imgSize[ 1 ];
+
+		double sum = 0;
+		long count = 0;
+		int minNumOverlap = numViews;
+		long avgNumOverlap = 0;
+		long countAvgNumOverlap = 0;
+
+		final float[][] imgPlanes = new float[ numViews ][ planeSize ];
+		final float[][] weightPlanes = new float[ numViews ][ planeSize ];
+
+		for ( int z = 0; z < imgSize[ 2 ]; ++z )
+		{
+			for ( int v = 0; v < numViews; ++v )
+			{
+				imgs.get( v ).readPlane( z, imgPlanes[ v ] );
+				weights.get( v ).readPlane( z, weightPlanes[ v ] );
+			}
+
+			for ( int i = 0; i < planeSize; ++i )
+			{
+				double sumLocal = 0;
+				int countLocal = 0;
+
+				for ( int v = 0; v < numViews; ++v )
+				{
+					if ( weightPlanes[ v ][ i ] != 0 )
+					{
+						sumLocal += imgPlanes[ v ][ i ];
+						countLocal++;
+					}
+				}
+
+				// at least two overlap
+				if ( countLocal > 1 )
+				{
+					sum += sumLocal;
+					count += countLocal;
+				}
+
+				if ( countLocal > 0 )
+				{
+					avgNumOverlap += countLocal;
+					countAvgNumOverlap++;
+
+					minNumOverlap = Math.min( countLocal, minNumOverlap );
+				}
+			}
+		}
+
+		this.avg = count == 0 ? 1 : (float)( sum / count );
+
+		final double avgNumOverlapFinal = countAvgNumOverlap == 0 ? 1 : (double)avgNumOverlap / (double)countAvgNumOverlap;
+
+		if ( osemspeedupindex == 1 )
+			this.osemspeedup = Math.max( 1, minNumOverlap );
+		else if ( osemspeedupindex == 2 )
+			this.osemspeedup = Math.max( 1, avgNumOverlapFinal );
+		else
+			this.osemspeedup = osemspeedup;
+
+		IOFunctions.println( "Min number of overlapping views: " + minNumOverlap );
+		IOFunctions.println( "Average number of overlapping views: " + avgNumOverlapFinal );
+		IOFunctions.println( "Average intensity in overlapping area: " + avg );
+		IOFunctions.println( "OSEM acceleration: " + this.osemspeedup );
+	}
+
+	protected static Img< ComplexFloatType > getBuffer( final CPUFourierConvolution conv, final ArrayList< Img< ComplexFloatType > > buffers )
+	{
+		final long[] fftSize = conv.getFFTSize();
+
+		for ( final Img< ComplexFloatType > buffer : buffers )
+		{
+			final long[] size = new long[ buffer.numDimensions() ];
+			buffer.dimensions( size );
+
+			if ( Arrays.equals( size, fftSize ) )
+				return buffer;
+		}
+
+		final Img< ComplexFloatType > buffer = conv.createFFTImg();
+		buffers.add( buffer );
+
+		return buffer;
+	}
+}
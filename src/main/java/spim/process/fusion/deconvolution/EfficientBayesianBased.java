@@ -4,9 +4,11 @@ import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.gui.GenericDialog;
 
+import java.awt.Checkbox;
 import java.awt.Choice;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -75,6 +77,8 @@ public class EfficientBayesianBased extends Fusion
 	public static int defaultExtractPSF = 0;
 	public static int defaultDisplayPSF = 1;
 	public static boolean defaultDebugMode = false;
+	public static boolean defaultOutOfCore = false;
+	public static String defaultTempDirectory = "";
 	public static boolean defaultAdjustBlending = false;
 	public static int defaultDebugInterval = 1;
 	public static double defaultOSEMspeedup = 1;
@@ -104,6 +108,8 @@ public class EfficientBayesianBased extends Fusion
 
 	boolean useBlocks;
 	int[] blockSize;
+	boolean outOfCore;
+	File tempDirectory;
 	boolean useCUDA;
 	int debugInterval;
 	double osemSpeedUp;
@@ -123,6 +129,7 @@ public class EfficientBayesianBased extends Fusion
 	ArrayList< CUDADevice > deviceList = null;
 
 	Choice gpu, block, it;
+	Checkbox outOfCoreBox;
 
 	public EfficientBayesianBased( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
 	{
@@ -151,6 +158,8 @@ public class EfficientBayesianBased extends Fusion
 					  new int[]{blendingBorderX, blendingBorderY, blendingBorderZ},
 					  new int[]{blendingRangeX, blendingRangeY, blendingRangeZ});
 
+			pfd.setOutOfCore(outOfCore, tempDirectory);
+
 			// set debug mode
 			BayesMVDeconvolution.debug = debugMode;
 			BayesMVDeconvolution.debugInterval = debugInterval;
@@ -195,6 +204,19 @@ public class EfficientBayesianBased extends Fusion
 						return true;
 					}
 					
+					if (outOfCore) {
+						final boolean success = deconvolveOutOfCore(pfd, bb, exporter, titler, t, c, anglesToProcess, illumsToProcess);
+						pfd.closeMappedVolumes();
+
+						if (!success) {
+							IOFunctions.println(
+									  "FAILED to deconvolve timepoint=" + t.getName() + " (id=" + t.getId() + ")"
+									  + ", channel=" + c.getName() + " (id=" + c.getId() + ")");
+						}
+
+						continue;
+					}
+
 					final LRInput deconvolutionData = new LRInput();
 					
 					for (final ViewDescription vd : pfd.getViewDescriptions()) {
@@ -238,6 +260,61 @@ public class EfficientBayesianBased extends Fusion
 		return true;
 	}
 	
+	/**
+	 * Deconvolves one stack out-of-core and exports it
+	 */
+	protected boolean deconvolveOutOfCore(
+			final ProcessForDeconvolution pfd,
+			final BoundingBoxGUI bb,
+			final ImgExport exporter,
+			final FixedNameImgTitler titler,
+			final TimePoint t,
+			final Channel c,
+			final List< Angle > anglesToProcess,
+			final List< Illumination > illumsToProcess )
+	{
+		final ArrayList< MappedFloatVolume > imgs = new ArrayList< MappedFloatVolume >();
+		final ArrayList< MappedFloatVolume > weights = new ArrayList< MappedFloatVolume >();
+		final ArrayList< Img< FloatType > > kernels = new ArrayList< Img< FloatType > >();
+
+		for ( final ViewDescription vd : pfd.getViewDescriptions() )
+		{
+			imgs.add( pfd.getMappedImgs().get( vd ) );
+			weights.add( pfd.getMappedWeights().get( vd ) );
+			kernels.add( pfd.getExtractPSF().getTransformedPSF( vd ) );
+		}
+
+		if ( useCUDA )
+			IOFunctions.println( "Out-of-core deconvolution computes on the CPU only." );
+
+		final BlockStreamedDeconvolution decon = new BlockStreamedDeconvolution(
+				imgs, weights, kernels,
+				iterationType,
+				useTikhonovRegularization ? lambda : 0,
+				osemSpeedUp, osemspeedupIndex,
+				blockSize != null ? blockSize : BlockStreamedDeconvolution.defaultBlockSize,
+				tempDirectory );
+
+		final MappedFloatVolume psi = decon.run( numIterations );
+
+		if ( psi == null )
+			return false;
+
+		// the exporters need the whole image
+		final Img< FloatType > deconvolved = bb.getImgFactory( new FloatType() ).create( bb.getDimensions(), new FloatType() );
+		psi.copyTo( deconvolved );
+		psi.close();
+
+		titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
+
+		return exporter.exportImage(
+				deconvolved,
+				bb,
+				t,
+				newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ),
+				0, 1 );
+	}
+
 	@Override
 	public boolean queryParameters()
 	{
@@ -245,6 +322,10 @@ public class EfficientBayesianBased extends Fusion
 		if ( !getBlocks() )
 			return false;
 		
+		// check out-of-core
+		if ( !getOutOfCore() )
+			return false;
+
 		// check CUDA
 		if ( !getCUDA() )
 			return false;
@@ -282,6 +363,8 @@ public class EfficientBayesianBased extends Fusion
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
 		gpu.addItemListener( new ItemListener() { @Override
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
+		outOfCoreBox.addItemListener( new ItemListener() { @Override
+		public void itemStateChanged(ItemEvent e) { m.update(); } });
 	}
 
 	@Override
@@ -297,6 +380,8 @@ public class EfficientBayesianBased extends Fusion
 		gd.addNumericField( "Tikhonov_parameter", defaultLambda, 4 );
 		gd.addChoice( "Compute", blocksChoice, blocksChoice[ defaultBlockSizeIndex ] );
 		block = (Choice)gd.getChoices().lastElement();
+		gd.addCheckbox( "Out_of_core (keep transformed views on disk, compute block-wise)", defaultOutOfCore );
+		outOfCoreBox = (Checkbox)gd.getCheckboxes().lastElement();
 		gd.addChoice( "Compute_on", computationOnChoice, computationOnChoice[ defaultComputationTypeIndex ] );
 		gpu = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "PSF_estimation", extractPSFChoice, extractPSFChoice[ defaultExtractPSF ] );
@@ -328,6 +413,7 @@ public class EfficientBayesianBased extends Fusion
 		useTikhonovRegularization = defaultUseTikhonovRegularization = gd.getNextBoolean();
 		lambda = defaultLambda = gd.getNextNumber();
 		blockSizeIndex = defaultBlockSizeIndex = gd.getNextChoiceIndex();
+		outOfCore = defaultOutOfCore = gd.getNextBoolean();
 		computationTypeIndex = defaultComputationTypeIndex = gd.getNextChoiceIndex();
 		extractPSFIndex = defaultExtractPSF = gd.getNextChoiceIndex();
 		displayPSF = defaultDisplayPSF = gd.getNextChoiceIndex();
@@ -374,6 +460,13 @@ public class EfficientBayesianBased extends Fusion
 		else
 			blockSize = fusedSizeMB;
 		
+		if ( outOfCoreBox.getState() )
+		{
+			// fft of psf's, blocks in flight and the output image, the transformed views and weights are on disk
+			final long outOfCoreBlockSize = blockChoice == 0 ? (256 * 256 * 256 * bytePerPixel)/(1024*1024) : blockSize;
+			return (long)( outOfCoreBlockSize * getMaxNumViewsPerTimepoint() * 2 * 1.5 + outOfCoreBlockSize * 10 * 1.5 ) + fusedSizeMB;
+		}
+
 		// transformed weight images + input data
 		long totalRam = fusedSizeMB * getMaxNumViewsPerTimepoint() * 2;
 		
@@ -1012,6 +1105,35 @@ public class EfficientBayesianBased extends Fusion
 		return true;
 	}
 	
+	protected boolean getOutOfCore()
+	{
+		if ( !outOfCore )
+		{
+			this.tempDirectory = null;
+			return true;
+		}
+
+		final GenericDialogPlus gd = new GenericDialogPlus( "Out-of-core deconvolution" );
+
+		gd.addDirectoryField( "Temporary_directory", defaultTempDirectory, 50 );
+		gd.addMessage( "" );
+		gd.addMessage( "Note: needs space for two images per view and two more images (empty = system default).", GUIHelper.mediumstatusfont );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		defaultTempDirectory = gd.getNextString().trim();
+
+		if ( defaultTempDirectory.length() == 0 )
+			this.tempDirectory = null;
+		else
+			this.tempDirectory = new File( defaultTempDirectory );
+
+		return true;
+	}
+
 	protected boolean getCUDA()
 	{
 		// we need to popluate the deviceList in any case
@@ -1478,6 +1600,26 @@ public class EfficientBayesianBased extends Fusion
 		this.psfSizeY = psfSizeY;
 	}
 
+	public boolean isOutOfCore()
+	{
+		return outOfCore;
+	}
+
+	public void setOutOfCore( boolean outOfCore )
+	{
+		this.outOfCore = outOfCore;
+	}
+
+	public File getTempDirectory()
+	{
+		return tempDirectory;
+	}
+
+	public void setTempDirectory( File tempDirectory )
+	{
+		this.tempDirectory = tempDirectory;
+	}
+
 	public int getPsfSizeZ()
 	{
 		return psfSizeZ;
@@ -0,0 +1,226 @@
+package spim.process.fusion.deconvolution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * A 3d float volume that is stored in a temporary file and memory-mapped in slabs of z-planes,
+ * so the operating system decides which parts are resident. Used by the out-of-core deconvolution
+ * to keep the transformed views, weights and the deconvolved image on disk.
+ *
+ * Blocks can be read (with mirroring outside of the volume) and written concurrently by many threads
+ * as long as the written areas do not overlap.
+ */
+public class MappedFloatVolume
+{
+	final int w, h, d;
+	final long planeSize;
+
+	// number of z-planes per mapped slab (a mapping is limited to 2GB)
+	final int planesPerSlab;
+
+	final File file;
+	final RandomAccessFile raf;
+	final FloatBuffer[] slabs;
+
+	/**
+	 * @param dim - the dimensions of the volume
+	 * @param directory - where to create the temporary file, null for the default temporary directory
+	 * @param name - prefix of the temporary file
+	 * @throws IOException
+	 */
+	public MappedFloatVolume( final long[] dim, final File directory, final String name ) throws IOException
+	{
+		this.w = (int)dim[ 0 ];
+		this.h = (int)dim[ 1 ];
+		this.d = (int)dim[ 2 ];
+		this.planeSize = (long)w * (long)h;
+
+		if ( planeSize * 4 > Integer.MAX_VALUE )
+			throw new IOException( "One plane of " + w + "x" + h + " pixels is too large to be memory-mapped." );
+
+		this.planesPerSlab = (int)Math.min( d, Integer.MAX_VALUE / ( planeSize * 4 ) );
+
+		this.file = File.createTempFile( name, ".raw", directory );
+		this.file.deleteOnExit();
+
+		this.raf = new RandomAccessFile( file, "rw" );
+		this.raf.setLength( planeSize * d * 4 );
+
+		final FileChannel channel = raf.getChannel();
+		this.slabs = new FloatBuffer[ ( d + planesPerSlab - 1 ) / planesPerSlab ];
+
+		for ( int s = 0; s < slabs.length; ++s )
+		{
+			final int numPlanes = Math.min( planesPerSlab, d - s * planesPerSlab );
+			final MappedByteBuffer buffer = channel.map( MapMode.READ_WRITE, s * planesPerSlab * planeSize * 4, numPlanes * planeSize * 4 );
+			buffer.order( ByteOrder.nativeOrder() );
+
+			slabs[ s ] = buffer.asFloatBuffer();
+		}
+	}
+
+	public long[] getDimensions() { return new long[]{ w, h, d }; }
+	public long size() { return planeSize * d; }
+	public File getFile() { return file; }
+
+	/**
+	 * Sets all pixels to the same value
+	 */
+	public void fill( final float value )
+	{
+		final float[] plane = new float[ (int)planeSize ];
+
+		for ( int i = 0; i < plane.length; ++i )
+			plane[ i ] = value;
+
+		for ( int z = 0; z < d; ++z )
+			writePlane( z, plane );
+	}
+
+	public void readPlane( final int z, final float[] plane )
+	{
+		final FloatBuffer b = slabs[ z / planesPerSlab ].duplicate();
+		b.position( (int)( ( z % planesPerSlab ) * planeSize ) );
+		b.get( plane, 0, (int)planeSize );
+	}
+
+	public void writePlane( final int z, final float[] plane )
+	{
+		final FloatBuffer b = slabs[ z / planesPerSlab ].duplicate();
+		b.position( (int)( ( z % planesPerSlab ) * planeSize ) );
+		b.put( plane, 0, (int)planeSize );
+	}
+
+	/**
+	 * Reads a block, the parts outside of the volume are mirrored (same as Views.extendMirrorSingle)
+	 *
+	 * @param offset - where the block starts in the volume (can be negative)
+	 * @param size - the size of the block
+	 * @param block - the target, at least size[0]*size[1]*size[2]
+	 */
+	public void readBlock( final int[] offset, final int[] size, final float[] block )
+	{
+		final int sx = size[ 0 ];
+		final int x0 = offset[ 0 ];
+		final boolean rowInside = x0 >= 0 && x0 + sx <= w;
+
+		int i = 0;
+
+		for ( int z = 0; z < size[ 2 ]; ++z )
+		{
+			final int zs = mirror( offset[ 2 ] + z, d );
+			final FloatBuffer slab = slabs[ zs / planesPerSlab ].duplicate();
+			final int planeStart = (int)( ( zs % planesPerSlab ) * planeSize );
+
+			for ( int y = 0; y < size[ 1 ]; ++y )
+			{
+				final int rowStart = planeStart + mirror( offset[ 1 ] + y, h ) * w;
+
+				if ( rowInside )
+				{
+					slab.position( rowStart + x0 );
+					slab.get( block, i, sx );
+					i += sx;
+				}
+				else
+				{
+					for ( int x = 0; x < sx; ++x )
+						block[ i++ ] = slab.get( rowStart + mirror( x0 + x, w ) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a block, it has to be completely inside the volume
+	 *
+	 * @param offset - where the block starts in the volume
+	 * @param size - the size of the block
+	 * @param block - the source, at least size[0]*size[1]*size[2]
+	 */
+	public void writeBlock( final int[] offset, final int[] size, final float[] block )
+	{
+		final int sx = size[ 0 ];
+		int i = 0;
+
+		for ( int z = 0; z < size[ 2 ]; ++z )
+		{
+			final int zs = offset[ 2 ] + z;
+			final FloatBuffer slab = slabs[ zs / planesPerSlab ].duplicate();
+			final int planeStart = (int)( ( zs % planesPerSlab ) * planeSize );
+
+			for ( int y = 0; y < size[ 1 ]; ++y )
+			{
+				slab.position( planeStart + ( offset[ 1 ] + y ) * w + offset[ 0 ] );
+				slab.put( block, i, sx );
+				i += sx;
+			}
+		}
+	}
+
+	/**
+	 * Copies the whole volume plane by plane into an image of the same size
+	 *
+	 * @param target - the image
+	 */
+	public void copyTo( final RandomAccessibleInterval< FloatType > target )
+	{
+		final float[] plane = new float[ (int)planeSize ];
+
+		for ( int z = 0; z < d; ++z )
+		{
+			readPlane( z, plane );
+
+			final Cursor< FloatType > c = Views.flatIterable( Views.hyperSlice( target, 2, target.min( 2 ) + z ) ).cursor();
+
+			for ( int i = 0; i < plane.length; ++i )
+				c.next().set( plane[ i ] );
+		}
+	}
+
+	/**
+	 * Closes the file and deletes it, the volume cannot be used afterwards
+	 */
+	public void close()
+	{
+		try
+		{
+			raf.close();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+
+		// on some platforms the file can only be deleted once the mapping is garbage collected,
+		// in this case deleteOnExit takes care of it
+		file.delete();
+	}
+
+	final protected static int mirror( int i, final int n )
+	{
+		if ( n == 1 )
+			return 0;
+
+		final int p = 2 * n - 2;
+
+		i %= p;
+
+		if ( i < 0 )
+			i += p;
+
+		return i < n ? i : p - i;
+	}
+}
@@ -1,6 +1,9 @@
 package spim.process.fusion.deconvolution;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,6 +25,7 @@ import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.real.FloatType;
 import spim.Threads;
@@ -52,6 +56,11 @@ public class ProcessForDeconvolution
 	public static int[] defaultBlendingRange = new int[]{ defaultBlendingRangeNumber, defaultBlendingRangeNumber, defaultBlendingRangeNumber };
 	public static int[] defaultBlendingBorder = null;
 
+	/**
+	 * how many pixels are fused at once when fusing out-of-core
+	 */
+	public static long defaultSlabPixels = 32 * 1024 * 1024;
+
 	final protected SpimData2 spimData;
 	final protected List< ViewId > viewIdsToProcess;
 	final BoundingBoxGUI bb;
@@ -63,6 +72,10 @@ public class ProcessForDeconvolution
 	ArrayList< ViewDescription > viewDescriptions;
 	HashMap< ViewId, Img< FloatType > > imgs, weights;
 	ExtractPSF< FloatType > ePSF;
+
+	boolean outOfCore = false;
+	File tempDirectory = null;
+	HashMap< ViewId, MappedFloatVolume > mappedImgs, mappedWeights;
 	
 	public ProcessForDeconvolution(
 			final SpimData2 spimData,
@@ -82,7 +95,37 @@ public class ProcessForDeconvolution
 	public HashMap< ViewId, Img< FloatType > > getTransformedImgs() { return imgs; }
 	public HashMap< ViewId, Img< FloatType > > getTransformedWeights() { return weights; }
 	public ArrayList< ViewDescription > getViewDescriptions() { return viewDescriptions; }
+	public HashMap< ViewId, MappedFloatVolume > getMappedImgs() { return mappedImgs; }
+	public HashMap< ViewId, MappedFloatVolume > getMappedWeights() { return mappedWeights; }
 	public int getMinOverlappingViews() { return minOverlappingViews; }
+
+	/**
+	 * @param outOfCore - if true, the transformed views and weights are fused slab by slab into files instead of images in RAM (see {@link #getMappedImgs()})
+	 * @param tempDirectory - where to store them, null for the default temporary directory
+	 */
+	public void setOutOfCore( final boolean outOfCore, final File tempDirectory )
+	{
+		this.outOfCore = outOfCore;
+		this.tempDirectory = tempDirectory;
+	}
+
+	public boolean isOutOfCore() { return outOfCore; }
+
+	/**
+	 * Deletes the files of the transformed views and weights of the last stack
+	 */
+	public void closeMappedVolumes()
+	{
+		if ( mappedImgs != null )
+			for ( final MappedFloatVolume v : mappedImgs.values() )
+				v.close();
+
+		if ( mappedWeights != null )
+			for ( final MappedFloatVolume v : mappedWeights.values() )
+				v.close();
+
+		mappedImgs = mappedWeights = null;
+	}
 	public double getAvgOverlappingViews() { return avgOverlappingViews; }
 
 	/** 
@@ -137,6 +180,9 @@ public class ProcessForDeconvolution
 		// remember the extracted or loaded PSFs
 		extractPSFLabels.get( channel ).setExtractPSFInstance( ePSF );
 
+		if ( outOfCore && !weightsOnly )
+			return fuseStacksOutOfCore( timepoint, channel, extractPSFs, extractPSFLabels, psfSize );
+
 		// we will need to run some batches until all is fused
 		for ( int i = 0; i < viewDescriptions.size(); ++i )
 		{
@@ -219,19 +265,7 @@ public class ProcessForDeconvolution
 			
 			// extract PSFs if wanted
 			if ( extractPSFs )
-			{
-				final ArrayList< double[] > llist = getLocationsOfCorrespondingBeads( timepoint, inputData, extractPSFLabels.get( channel ).getLabel() );
-				
-				IOFunctions.println( "Extracting PSF for viewsetup " + inputData.getViewSetupId() + " using label '" + extractPSFLabels.get( channel ).getLabel() + "'" +
-						" (" +llist.size() + " corresponding detections available)" );
-				
-				ePSF.extractNextImg(
-						img,
-						inputData,
-						spimData.getViewRegistrations().getViewRegistration( inputData ).getModel(),
-						llist,
-						psfSize );
-			}
+				extractPSF( timepoint, inputData, img, extractPSFLabels.get( channel ).getLabel(), psfSize );
 			
 			if ( !weightsOnly )
 				imgs.put( inputData, fusedImg );
@@ -263,6 +297,225 @@ public class ProcessForDeconvolution
 		return true;
 	}
 	
+	protected void extractPSF( final TimePoint timepoint, final ViewDescription inputData, final RandomAccessibleInterval< FloatType > img, final String label, final long[] psfSize )
+	{
+		final ArrayList< double[] > llist = getLocationsOfCorrespondingBeads( timepoint, inputData, label );
+		
+		IOFunctions.println( "Extracting PSF for viewsetup " + inputData.getViewSetupId() + " using label '" + label + "'" +
+				" (" +llist.size() + " corresponding detections available)" );
+		
+		ePSF.extractNextImg(
+				img,
+				inputData,
+				spimData.getViewRegistrations().getViewRegistration( inputData ).getModel(),
+				llist,
+				psfSize );
+	}
+
+	/**
+	 * Fuses all views of one stack into files (see {@link MappedFloatVolume}), slab by slab, so only one slab
+	 * of the transformed view and weight is in RAM at a time. The weights are normalized plane by plane.
+	 */
+	protected boolean fuseStacksOutOfCore(
+			final TimePoint timepoint,
+			final Channel channel,
+			final boolean extractPSFs,
+			final HashMap< Channel, ChannelPSF > extractPSFLabels,
+			final long[] psfSize )
+	{
+		closeMappedVolumes();
+
+		this.imgs = new HashMap< ViewId, Img< FloatType > >();
+		this.weights = new HashMap< ViewId, Img< FloatType > >();
+		this.mappedImgs = new HashMap< ViewId, MappedFloatVolume >();
+		this.mappedWeights = new HashMap< ViewId, MappedFloatVolume >();
+
+		final long[] dim = bb.getDimensions();
+		final int w = (int)dim[ 0 ];
+		final int h = (int)dim[ 1 ];
+		final int slabDepth = (int)Math.max( 1, Math.min( dim[ 2 ], defaultSlabPixels / ( dim[ 0 ] * dim[ 1 ] ) ) );
+
+		// the slabs are re-used for all views
+		final float[] fused = new float[ w * h * slabDepth ];
+		final float[] weight = new float[ w * h * slabDepth ];
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+
+		try
+		{
+			for ( int i = 0; i < viewDescriptions.size(); ++i )
+			{
+				IOFunctions.println( "Fusing view " + i + " of " + (viewDescriptions.size()-1) + " to disk, " + slabDepth + " planes at a time." );
+
+				final ViewDescription inputData = viewDescriptions.get( i );
+
+				final MappedFloatVolume mappedImg = new MappedFloatVolume( dim, tempDirectory, "view" );
+				mappedImgs.put( inputData, mappedImg );
+
+				final MappedFloatVolume mappedWeight = new MappedFloatVolume( dim, tempDirectory, "weight" );
+				mappedWeights.put( inputData, mappedWeight );
+
+				final RandomAccessibleInterval< FloatType > img = ProcessFusion.getImage( new FloatType(), spimData, inputData, true );
+				final Blending blending = getBlending( img, blendingBorder, blendingRange, inputData );
+				final AffineTransform3D model = spimData.getViewRegistrations().getViewRegistration( inputData ).getModel();
+
+				for ( int z = 0; z < dim[ 2 ]; z += slabDepth )
+				{
+					final int depth = (int)Math.min( slabDepth, dim[ 2 ] - z );
+
+					// pixels outside of the view are not written
+					Arrays.fill( fused, 0 );
+					Arrays.fill( weight, 0 );
+
+					final Img< FloatType > fusedSlab = ArrayImgs.floats( fused, w, h, depth );
+					final Img< FloatType > weightSlab = ArrayImgs.floats( weight, w, h, depth );
+					final long[] offset = new long[]{ bb.min( 0 ), bb.min( 1 ), bb.min( 2 ) + z };
+
+					final ArrayList< Callable< String > > tasks = new ArrayList< Callable< String > >();
+
+					for ( final ImagePortion portion : FusionHelper.divideIntoPortions( fusedSlab.size(), Threads.numThreads() * 4 ) )
+						tasks.add( new ProcessForDeconvolutionPortion( portion, img, blending, model, fusedSlab, weightSlab, offset ) );
+
+					for ( final Future< String > f : taskExecutor.invokeAll( tasks ) )
+						f.get();
+
+					mappedImg.writeBlock( new int[]{ 0, 0, z }, new int[]{ w, h, depth }, fused );
+					mappedWeight.writeBlock( new int[]{ 0, 0, z }, new int[]{ w, h, depth }, weight );
+				}
+
+				// extract PSFs if wanted
+				if ( extractPSFs )
+					extractPSF( timepoint, inputData, img, extractPSFLabels.get( channel ).getLabel(), psfSize );
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to create the files for out-of-core deconvolution: " + e );
+			e.printStackTrace();
+			return false;
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute fusion: " + e );
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		// normalize the weights
+		final ArrayList< MappedFloatVolume > weightsSorted = new ArrayList< MappedFloatVolume >();
+
+		for ( final ViewDescription vd : viewDescriptions )
+			weightsSorted.add( mappedWeights.get( vd ) );
+
+		if ( !normalizeMappedWeightsAndComputeMinAvgViews( weightsSorted ) )
+			return false;
+
+		IOFunctions.println( "Minimal number of overlapping views: " + getMinOverlappingViews() + ", using " + (this.minOverlappingViews = Math.max( 1, this.minOverlappingViews ) ) );
+		IOFunctions.println( "Average number of overlapping views: " + getAvgOverlappingViews() + ", using " + (this.avgOverlappingViews = Math.max( 1, this.avgOverlappingViews ) ) );
+
+		return true;
+	}
+
+	/**
+	 * Same as {@link #normalizeWeightsAndComputeMinAvgViews(List)}, but plane by plane on weights stored on disk
+	 */
+	protected boolean normalizeMappedWeightsAndComputeMinAvgViews( final List< MappedFloatVolume > weights )
+	{
+		final long[] dim = weights.get( 0 ).getDimensions();
+		final int planeSize = (int)( dim[ 0 ] * dim[ 1 ] );
+
+		// split up into many parts for multithreading, every part is a range of planes
+		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( dim[ 2 ], Threads.numThreads() * 2 );
+
+		// set up executor service
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ArrayList< Callable< double[] > > tasks = new ArrayList< Callable< double[] > >();
+
+		for ( final ImagePortion portion : portions )
+		{
+			tasks.add( new Callable< double[] >() 
+					{
+						@Override
+						public double[] call() throws Exception
+						{
+							final float[][] planes = new float[ weights.size() ][ planeSize ];
+
+							int minNumViews = weights.size();
+							long countViews = 0;
+
+							for ( int z = (int)portion.getStartPosition(); z < portion.getStartPosition() + portion.getLoopSize(); ++z )
+							{
+								for ( int v = 0; v < weights.size(); ++v )
+									weights.get( v ).readPlane( z, planes[ v ] );
+
+								for ( int j = 0; j < planeSize; ++j )
+								{
+									double sumW = 0;
+									int count = 0;
+
+									for ( final float[] plane : planes )
+									{
+										final float w = plane[ j ];
+										sumW += w;
+
+										if ( w > 0 )
+											++count;
+									}
+
+									countViews += count;
+									minNumViews = Math.min( minNumViews, count );
+
+									if ( sumW > 1 )
+										for ( final float[] plane : planes )
+											plane[ j ] = (float)( plane[ j ] / sumW );
+								}
+
+								for ( int v = 0; v < weights.size(); ++v )
+									weights.get( v ).writePlane( z, planes[ v ] );
+							}
+
+							final double avgNumViews = (double)countViews / (double)( portion.getLoopSize() * planeSize );
+
+							return new double[]{ minNumViews, avgNumViews };
+						}
+					});
+		}
+
+		// run threads
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			final List< Future< double[] > > futures = taskExecutor.invokeAll( tasks );
+			
+			this.minOverlappingViews = weights.size();
+			this.avgOverlappingViews = 0;
+			
+			for ( final Future< double[] > f : futures )
+			{
+				final double[] minAvg = f.get();
+				
+				this.minOverlappingViews = Math.min( this.minOverlappingViews, (int)Math.round( minAvg[ 0 ] ) );
+				this.avgOverlappingViews += minAvg[ 1 ];
+			}
+			
+			this.avgOverlappingViews /= futures.size();
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute weight normalization for deconvolution: " + e );
+			e.printStackTrace();
+			return false;
+		}
+
+		taskExecutor.shutdown();
+
+		return true;
+	}
+
 	private ExtractPSF<FloatType> loadPSFs(
 			final Channel ch,
 			final ArrayList< ViewDescription > allInputData,
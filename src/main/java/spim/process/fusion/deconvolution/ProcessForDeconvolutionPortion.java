@@ -26,7 +26,7 @@ public class ProcessForDeconvolutionPortion implements Callable< String >
 	final RandomAccessibleInterval< FloatType > img;
 	final AffineTransform3D transform;
 	final Img< FloatType > weightImg, fusedImg;
-	final BoundingBoxGUI bb;
+	final long[] offset;
 	final Blending blending;
 	
 	public ProcessForDeconvolutionPortion(
@@ -37,6 +37,21 @@ public class ProcessForDeconvolutionPortion implements Callable< String >
 			final Img< FloatType > fusedImg,
 			final Img< FloatType > weightImg,
 			final BoundingBoxGUI bb )
+	{
+		this( portion, img, blending, transform, fusedImg, weightImg, new long[]{ bb.min( 0 ), bb.min( 1 ), bb.min( 2 ) } );
+	}
+
+	/**
+	 * @param offset - the position of the first pixel of fusedImg in world coordinates (e.g. to fuse only a slab of the bounding box)
+	 */
+	public ProcessForDeconvolutionPortion(
+			final ImagePortion portion,
+			final RandomAccessibleInterval< FloatType > img,
+			final Blending blending,
+			final AffineTransform3D transform,
+			final Img< FloatType > fusedImg,
+			final Img< FloatType > weightImg,
+			final long[] offset )
 	{
 		this.portion = portion;
 		this.img = img;
@@ -44,7 +59,7 @@ public class ProcessForDeconvolutionPortion implements Callable< String >
 		this.transform = transform;
 		this.fusedImg = fusedImg;
 		this.blending = blending;
-		this.bb = bb;
+		this.offset = offset;
 	}
 	
 	@Override
@@ -76,9 +91,9 @@ public class ProcessForDeconvolutionPortion implements Callable< String >
 			// move weight cursor forward and get the value 
 			final FloatType w = cursorW.next();
 
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
+			s[ 0 ] += offset[ 0 ];
+			s[ 1 ] += offset[ 1 ];
+			s[ 2 ] += offset[ 2 ];
 			
 			transform.applyInverse( t, s );
 			
@@ -53,19 +53,19 @@ import bdv.img.hdf5.Partition;
 public class ExportSpimData2HDF5 implements ImgExport
 {
 
-	private List< TimePoint > newTimepoints;
+	protected List< TimePoint > newTimepoints;
 
-	private List< ViewSetup > newViewSetups;
+	protected List< ViewSetup > newViewSetups;
 
-	private Parameters params;
+	protected Parameters params;
 
-	private SpimData2 spimData;
+	protected SpimData2 spimData;
 
-	private Map< Integer, ExportMipmapInfo > perSetupExportMipmapInfo;
+	protected Map< Integer, ExportMipmapInfo > perSetupExportMipmapInfo;
 
-	private HashMap< ViewId, Partition > viewIdToPartition;
+	protected HashMap< ViewId, Partition > viewIdToPartition;
 
-	private final ProgressWriter progressWriter = new ProgressWriterIJ();
+	protected final ProgressWriter progressWriter = new ProgressWriterIJ();
 
 	@Override
 	public boolean finish()
@@ -260,6 +260,20 @@ public class ExportSpimData2HDF5 implements ImgExport
 		final ProgressWriter progressWriter = new SubTaskProgressWriter( this.progressWriter, 0.0, 1.0 ); // TODO
 		WriteSequenceToHdf5.writeViewToHdf5PartitionFile( ushortimg, partition, tp.getId(), vs.getId(), mipmapInfo, writeMipmapInfo, deflate, null, null, progressWriter );
 
+		updateRegistration( bb, tp, vs );
+
+		return true;
+	}
+
+	/**
+	 * Sets the registration of the new view to the transformation defined by the bounding box
+	 * 
+	 * @param bb - the bounding box used to fuse this image
+	 * @param tp - the current (new) timepoint
+	 * @param vs - the current (new) viewsetup
+	 */
+	protected void updateRegistration( final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
 		// update the registrations
 		final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( new ViewId( tp.getId(), vs.getId() ) );
 
@@ -272,8 +286,6 @@ public class ExportSpimData2HDF5 implements ImgExport
 
 		vr.getTransformList().clear();
 		vr.getTransformList().add( vt );
-
-		return true;
 	}
 
 	@Override
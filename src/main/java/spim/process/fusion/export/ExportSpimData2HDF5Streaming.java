@@ -0,0 +1,178 @@
+package spim.process.fusion.export;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.converter.RealUnsignedShortConverter;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import bdv.export.ExportMipmapInfo;
+import bdv.img.hdf5.Partition;
+
+/**
+ * Same as {@link ExportSpimData2HDF5}, but if the fusion supports it the fused image is written
+ * block by block while it is fused, i.e. the fused image and its 16 bit version are never held in
+ * memory entirely and fusion and writing to disk run at the same time.
+ */
+public class ExportSpimData2HDF5Streaming extends ExportSpimData2HDF5 implements ImgExportStreaming
+{
+	@Override
+	public boolean supportsStreaming( final boolean is16bit )
+	{
+		// the conversion to 16 bit needs to be known before the first block is written
+		return is16bit || ( params.getConvertChoice() != 0 && !Double.isNaN( params.getMin() ) && !Double.isNaN( params.getMax() ) );
+	}
+
+	@Override
+	public int[] getStreamingBlockSize( final ViewSetup vs, final int[] blockSize )
+	{
+		return Hdf5StreamingWriter.alignBlockSize( blockSize, perSetupExportMipmapInfo.get( vs.getId() ) );
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean exportBlocks(
+			final BlockingQueue< FusedBlock< T > > blocks,
+			final int numBlocks,
+			final BoundingBoxGUI bb,
+			final TimePoint tp,
+			final ViewSetup vs,
+			final boolean is16bit )
+	{
+		final Partition partition = viewIdToPartition.get( new ViewId( tp.getId(), vs.getId() ) );
+		final ExportMipmapInfo mipmapInfo = perSetupExportMipmapInfo.get( vs.getId() );
+		final boolean writeMipmapInfo = true;
+
+		final RealUnsignedShortConverter< T > converter;
+
+		if ( is16bit )
+		{
+			converter = null;
+		}
+		else
+		{
+			IOFunctions.println( "Min intensity for 16bit conversion: " + params.getMin() );
+			IOFunctions.println( "Max intensity for 16bit conversion: " + params.getMax() );
+			converter = new RealUnsignedShortConverter< T >( params.getMin(), params.getMax() );
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Streaming fused blocks to '" + partition.getPath() + "'" );
+
+		Hdf5StreamingWriter writer = null;
+		boolean success = true;
+
+		try
+		{
+			writer = new Hdf5StreamingWriter( new File( partition.getPath() ), tp.getId(), vs.getId(), bb.getDimensions(), mipmapInfo, writeMipmapInfo, params.getDeflate() );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Cannot open '" + partition.getPath() + "' for writing: " + e );
+			e.printStackTrace();
+			success = false;
+		}
+
+		final UnsignedShortType ushort = new UnsignedShortType();
+		int written = 0;
+
+		// we need to take all blocks, otherwise the fusion threads will wait forever
+		while ( true )
+		{
+			final FusedBlock< T > block;
+
+			try
+			{
+				block = blocks.take();
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Interrupted while waiting for fused blocks: " + e );
+				success = false;
+				break;
+			}
+
+			if ( block.isLast() )
+				break;
+
+			if ( !success )
+				continue;
+
+			try
+			{
+				final Interval interval = block.getInterval();
+				final long[] min = new long[ 3 ];
+				final int[] size = new int[ 3 ];
+
+				for ( int d = 0; d < 3; ++d )
+				{
+					min[ d ] = interval.min( d );
+					size[ d ] = (int)interval.dimension( d );
+				}
+
+				final short[] data = new short[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+				final Cursor< T > c = block.getImg().cursor();
+
+				for ( int i = 0; i < data.length; ++i )
+				{
+					final T v = c.next();
+
+					if ( converter == null )
+					{
+						data[ i ] = (short)(int)v.getRealDouble();
+					}
+					else
+					{
+						converter.convert( v, ushort );
+						data[ i ] = (short)ushort.get();
+					}
+				}
+
+				writer.writeBlock( data, min, size );
+
+				progressWriter.setProgress( (double)( ++written ) / numBlocks );
+			}
+			catch ( final Exception e )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Failed to write block: " + e );
+				e.printStackTrace();
+				success = false;
+			}
+		}
+
+		if ( writer != null )
+			writer.close();
+
+		// the fusion of a block failed, the missing chunks would silently be zero
+		if ( success && written != numBlocks )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Only " + written + " of " + numBlocks + " blocks were fused and written to '" + partition.getPath() + "'." );
+			success = false;
+		}
+
+		if ( success )
+			updateRegistration( bb, tp, vs );
+
+		return success;
+	}
+
+	@Override
+	public ImgExport newInstance()
+	{
+		BoundingBoxGUI.defaultPixelType = 1; // set to 16 bit by default
+		return new ExportSpimData2HDF5Streaming();
+	}
+
+	@Override
+	public String getDescription()
+	{
+		return "Save as new XML Project (HDF5, write while fusing)";
+	}
+}
@@ -0,0 +1,39 @@
+package spim.process.fusion.export;
+
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+
+/**
+ * One block of a fused image as it is handed from the fusion to an {@link ImgExportStreaming},
+ * a block without image marks the end of the stream.
+ *
+ * @param <T>
+ */
+public class FusedBlock< T >
+{
+	final Interval interval;
+	final Img< T > img;
+
+	/**
+	 * @param interval - where the block is located in the fused image (pixel coordinates)
+	 * @param img - the fused block (zero-min, same dimensions as the interval)
+	 */
+	public FusedBlock( final Interval interval, final Img< T > img )
+	{
+		this.interval = interval;
+		this.img = img;
+	}
+
+	public Interval getInterval() { return interval; }
+	public Img< T > getImg() { return img; }
+
+	/**
+	 * @return - true if this marks the end of the stream
+	 */
+	public boolean isLast() { return img == null; }
+
+	/**
+	 * @return - the block that marks the end of the stream
+	 */
+	public static < T > FusedBlock< T > lastBlock() { return new FusedBlock< T >( null, null ); }
+}
@@ -0,0 +1,207 @@
+package spim.process.fusion.export;
+
+import java.io.File;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.img.hdf5.Util;
+import ch.systems.cisd.base.mdarray.MDShortArray;
+import ch.systems.cisd.hdf5.HDF5Factory;
+import ch.systems.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systems.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Writes one view into a BigDataViewer HDF5 (partition) file block by block. The mipmap
+ * pyramid is built incrementally, every block is downsampled for all levels right away.
+ * The blocks may arrive in any order, but their position has to be a multiple of the
+ * subsampling factors of all levels (see {@link #alignBlockSize(int[], ExportMipmapInfo)}).
+ *
+ * Not thread-safe, all blocks have to be written from the same thread.
+ */
+public class Hdf5StreamingWriter
+{
+	final IHDF5Writer writer;
+	final int timepointId, setupId;
+	final int[][] resolutions;
+	final long[][] levelDims;
+
+	public Hdf5StreamingWriter(
+			final File hdf5File,
+			final int timepointId,
+			final int setupId,
+			final long[] dimensions,
+			final ExportMipmapInfo mipmapInfo,
+			final boolean writeMipmapInfo,
+			final boolean deflate )
+	{
+		this.timepointId = timepointId;
+		this.setupId = setupId;
+		this.resolutions = mipmapInfo.getExportResolutions();
+
+		final int[][] subdivisions = mipmapInfo.getSubdivisions();
+		final int numLevels = resolutions.length;
+
+		this.writer = HDF5Factory.open( hdf5File );
+
+		if ( writeMipmapInfo )
+		{
+			final double[][] dres = new double[ numLevels ][ 3 ];
+
+			for ( int l = 0; l < numLevels; ++l )
+				for ( int d = 0; d < 3; ++d )
+					dres[ l ][ d ] = resolutions[ l ][ d ];
+
+			writer.float64().writeMatrix( Util.getResolutionsPath( setupId ), dres );
+			writer.int32().writeMatrix( Util.getSubdivisionsPath( setupId ), subdivisions );
+		}
+
+		final HDF5IntStorageFeatures features = deflate ? HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE : HDF5IntStorageFeatures.INT_AUTO_SCALING;
+
+		this.levelDims = new long[ numLevels ][ 3 ];
+
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			for ( int d = 0; d < 3; ++d )
+				levelDims[ l ][ d ] = Math.max( dimensions[ d ] / resolutions[ l ][ d ], 1 );
+
+			// hdf5 stores zyx
+			writer.int16().createMDArray(
+					Util.getCellsPath( timepointId, setupId, l ),
+					new long[]{ levelDims[ l ][ 2 ], levelDims[ l ][ 1 ], levelDims[ l ][ 0 ] },
+					new int[]{ subdivisions[ l ][ 2 ], subdivisions[ l ][ 1 ], subdivisions[ l ][ 0 ] },
+					features );
+		}
+	}
+
+	/**
+	 * Writes one full-resolution block and its downsampled versions for all mipmap levels
+	 *
+	 * @param data - the 16 bit data, x is the fastest dimension
+	 * @param min - the position of the block in the full resolution image
+	 * @param size - the size of the block
+	 */
+	public void writeBlock( final short[] data, final long[] min, final int[] size )
+	{
+		for ( int l = 0; l < resolutions.length; ++l )
+		{
+			final int[] f = resolutions[ l ];
+
+			final long[] levelMin = new long[ 3 ];
+			final int[] levelSize = new int[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				if ( min[ d ] % f[ d ] != 0 )
+					throw new IllegalArgumentException( "Block position " + min[ d ] + " is not a multiple of the subsampling factor " + f[ d ] + " (level " + l + ")" );
+
+				levelMin[ d ] = min[ d ] / f[ d ];
+				final long levelMax = Math.min( ( min[ d ] + size[ d ] + f[ d ] - 1 ) / f[ d ], levelDims[ l ][ d ] );
+				levelSize[ d ] = (int)( levelMax - levelMin[ d ] );
+			}
+
+			// nothing to write at this level (the block only covers pixels that are dropped by the subsampling)
+			if ( levelSize[ 0 ] <= 0 || levelSize[ 1 ] <= 0 || levelSize[ 2 ] <= 0 )
+				continue;
+
+			final short[] levelData;
+
+			if ( f[ 0 ] == 1 && f[ 1 ] == 1 && f[ 2 ] == 1 )
+				levelData = data;
+			else
+				levelData = downsample( data, size, f, levelSize );
+
+			writer.int16().writeMDArrayBlockWithOffset(
+					Util.getCellsPath( timepointId, setupId, l ),
+					new MDShortArray( levelData, new int[]{ levelSize[ 2 ], levelSize[ 1 ], levelSize[ 0 ] } ),
+					new long[]{ levelMin[ 2 ], levelMin[ 1 ], levelMin[ 0 ] } );
+		}
+	}
+
+	public void close()
+	{
+		writer.close();
+	}
+
+	/**
+	 * Averages the unsigned 16 bit values of a block, only pixels inside the block are considered
+	 */
+	protected static short[] downsample( final short[] data, final int[] size, final int[] f, final int[] levelSize )
+	{
+		final short[] out = new short[ levelSize[ 0 ] * levelSize[ 1 ] * levelSize[ 2 ] ];
+
+		int i = 0;
+
+		for ( int z = 0; z < levelSize[ 2 ]; ++z )
+		{
+			final int z0 = z * f[ 2 ];
+			final int z1 = Math.min( z0 + f[ 2 ], size[ 2 ] );
+
+			for ( int y = 0; y < levelSize[ 1 ]; ++y )
+			{
+				final int y0 = y * f[ 1 ];
+				final int y1 = Math.min( y0 + f[ 1 ], size[ 1 ] );
+
+				for ( int x = 0; x < levelSize[ 0 ]; ++x )
+				{
+					final int x0 = x * f[ 0 ];
+					final int x1 = Math.min( x0 + f[ 0 ], size[ 0 ] );
+
+					long sum = 0;
+					int count = 0;
+
+					for ( int zz = z0; zz < z1; ++zz )
+						for ( int yy = y0; yy < y1; ++yy )
+						{
+							int j = ( zz * size[ 1 ] + yy ) * size[ 0 ] + x0;
+
+							for ( int xx = x0; xx < x1; ++xx )
+							{
+								sum += data[ j++ ] & 0xffff;
+								++count;
+							}
+						}
+
+					out[ i++ ] = (short)( count == 0 ? 0 : Math.round( (double)sum / count ) );
+				}
+			}
+		}
+
+		return out;
+	}
+
+	/**
+	 * @param blockSize - the desired block size
+	 * @param mipmapInfo - the mipmap levels
+	 * @return - the smallest block size larger or equal the desired one that is a multiple of all subsampling factors
+	 */
+	public static int[] alignBlockSize( final int[] blockSize, final ExportMipmapInfo mipmapInfo )
+	{
+		final int[][] resolutions = mipmapInfo.getExportResolutions();
+		final int[] aligned = new int[ blockSize.length ];
+
+		for ( int d = 0; d < blockSize.length; ++d )
+		{
+			int lcm = 1;
+
+			for ( int l = 0; l < resolutions.length; ++l )
+				lcm = lcm( lcm, resolutions[ l ][ d ] );
+
+			aligned[ d ] = ( ( blockSize[ d ] + lcm - 1 ) / lcm ) * lcm;
+		}
+
+		return aligned;
+	}
+
+	protected static int lcm( final int a, final int b )
+	{
+		int x = a, y = b;
+
+		while ( y != 0 )
+		{
+			final int t = y;
+			y = x % y;
+			x = t;
+		}
+
+		return a / x * b;
+	}
+}
@@ -0,0 +1,43 @@
+package spim.process.fusion.export;
+
+import java.util.concurrent.BlockingQueue;
+
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * An {@link ImgExport} that can write the fused image block by block while it is being fused,
+ * so that the entire fused image never needs to be held in memory.
+ */
+public interface ImgExportStreaming extends ImgExport
+{
+	/**
+	 * @param is16bit - if the fused data is 16 bit
+	 * @return - true if the next image can be streamed (e.g. the min/max for the conversion to 16 bit is known before fusing)
+	 */
+	public boolean supportsStreaming( final boolean is16bit );
+
+	/**
+	 * @param vs - the current (new) viewsetup
+	 * @param blockSize - the block size requested by the fusion
+	 * @return - the block size that the fusion has to use (e.g. aligned to the mipmap levels)
+	 */
+	public int[] getStreamingBlockSize( final ViewSetup vs, final int[] blockSize );
+
+	/**
+	 * Exports the image block by block as they are fused. Takes blocks from the queue until
+	 * {@link FusedBlock#isLast()} is true, even if writing failed, so that the fusion is never blocked.
+	 *
+	 * @param blocks - the queue the fusion writes the blocks to
+	 * @param numBlocks - how many blocks will be fused
+	 * @param bb - the bounding box used to fuse this image
+	 * @param tp - the current (new) timepoint
+	 * @param vs - the current (new) viewsetup
+	 * @param is16bit - if the fused data is 16 bit
+	 * @return - true if the image was written successfully, i.e. all numBlocks blocks arrived and were written
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean exportBlocks( final BlockingQueue< FusedBlock< T > > blocks, final int numBlocks, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs, final boolean is16bit );
+}
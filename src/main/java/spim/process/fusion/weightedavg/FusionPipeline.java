@@ -0,0 +1,208 @@
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.RandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.export.FixedNameImgTitler;
+import spim.process.fusion.export.ImgExport;
+
+/**
+ * Fuses many stacks (timepoints/channels) as a pipeline of three stages that run at the same time:
+ * the input views of the next stacks are loaded by one I/O thread (if the {@link ProcessFusion} supports it),
+ * the current stack is fused, and the previous stacks are exported by one export thread.
+ *
+ * Both outer stages are bounded, at most prefetchStacks stacks are loaded ahead and at most exportQueueSize
+ * fused images wait for (or are in) export. If the exporter cannot keep up, the fusion waits.
+ */
+public class FusionPipeline
+{
+	/**
+	 * off by default: the exporter then runs at the same time as the loading and fusion of the next stacks, which is
+	 * only safe for exporters that do not write into the dataset that is being fused (e.g. AppendSpimData2HDF5 writes
+	 * into the HDF5 file and updates the SpimData2 that the fusion reads)
+	 */
+	public static boolean defaultPipelined = false;
+	public static int defaultPrefetchStacks = 1;
+	public static int defaultExportQueueSize = 1;
+
+	/**
+	 * One stack to fuse and export
+	 */
+	public static class Stack
+	{
+		final TimePoint timepoint;
+		final Channel channel;
+		final String title;
+		final ViewSetup viewSetup;
+
+		public Stack( final TimePoint timepoint, final Channel channel, final String title, final ViewSetup viewSetup )
+		{
+			this.timepoint = timepoint;
+			this.channel = channel;
+			this.title = title;
+			this.viewSetup = viewSetup;
+		}
+	}
+
+	final ProcessFusion process;
+	final ImgExport exporter;
+	final FixedNameImgTitler titler;
+	final BoundingBoxGUI bb;
+	final SpimData2 spimData;
+	final List< ViewId > viewIdsToProcess;
+	final int prefetchStacks, exportQueueSize;
+
+	public FusionPipeline(
+			final ProcessFusion process,
+			final ImgExport exporter,
+			final FixedNameImgTitler titler,
+			final BoundingBoxGUI bb,
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final int prefetchStacks,
+			final int exportQueueSize )
+	{
+		this.process = process;
+		this.exporter = exporter;
+		this.titler = titler;
+		this.bb = bb;
+		this.spimData = spimData;
+		this.viewIdsToProcess = viewIdsToProcess;
+		this.prefetchStacks = process.supportsPrefetch() ? Math.max( 0, prefetchStacks ) : 0;
+		this.exportQueueSize = Math.max( 1, exportQueueSize );
+	}
+
+	/**
+	 * Fuses and exports all stacks, returns when the last one is exported
+	 *
+	 * @param stacks
+	 * @param type
+	 * @param interpolatorFactory
+	 * @return - true if all stacks were exported successfully
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean run(
+			final List< Stack > stacks,
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory )
+	{
+		final int numStacks = stacks.size();
+
+		final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+		final ExecutorService exportExecutor = Executors.newSingleThreadExecutor();
+		final Semaphore exportSlots = new Semaphore( exportQueueSize );
+
+		final ArrayList< Future< String > > prefetches = new ArrayList< Future< String > >( numStacks );
+		final ArrayList< Future< Boolean > > exports = new ArrayList< Future< Boolean > >( numStacks );
+
+		for ( int i = 0; i < numStacks; ++i )
+			prefetches.add( null );
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fusing " + numStacks + " stacks as a pipeline (prefetch " + prefetchStacks + ", export queue " + exportQueueSize + ")." );
+
+		boolean success = true;
+
+		try
+		{
+			for ( int i = 0; i < numStacks; ++i )
+			{
+				final Stack stack = stacks.get( i );
+
+				// request the views of the next stacks
+				for ( int j = i + 1; j <= i + prefetchStacks && j < numStacks; ++j )
+					if ( prefetches.get( j ) == null )
+						prefetches.set( j, ioExecutor.submit( prefetch( stacks.get( j ), type ) ) );
+
+				// make sure the views of this stack are not loaded twice
+				if ( prefetches.get( i ) != null )
+					prefetches.get( i ).get();
+
+				final Img< T > img = process.fuseStack( type, interpolatorFactory, stack.timepoint, stack.channel );
+
+				// backpressure, wait until the exporter has space for one more image
+				exportSlots.acquire();
+
+				exports.add( exportExecutor.submit( new Callable< Boolean >()
+				{
+					@Override
+					public Boolean call() throws Exception
+					{
+						try
+						{
+							titler.setTitle( stack.title );
+							return exporter.exportImage( img, bb, stack.timepoint, stack.viewSetup );
+						}
+						finally
+						{
+							exportSlots.release();
+						}
+					}
+				} ) );
+			}
+
+			for ( final Future< Boolean > export : exports )
+				success &= export.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fusion pipeline was interrupted: " + e );
+			e.printStackTrace();
+			success = false;
+		}
+		catch ( final ExecutionException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fusion pipeline failed: " + e );
+			e.printStackTrace();
+			success = false;
+		}
+		finally
+		{
+			ioExecutor.shutdownNow();
+			exportExecutor.shutdown();
+			process.prefetched.clear();
+		}
+
+		return success;
+	}
+
+	protected < T extends RealType< T > > Callable< String > prefetch( final Stack stack, final T type )
+	{
+		return new Callable< String >()
+		{
+			@Override
+			public String call() throws Exception
+			{
+				final ArrayList< ViewDescription > inputData =
+						FusionHelper.assembleInputData( spimData, stack.timepoint, stack.channel, viewIdsToProcess );
+
+				for ( final ViewDescription vd : inputData )
+				{
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Prefetching Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+					process.prefetch( type, vd );
+				}
+
+				return "Prefetched " + stack.title;
+			}
+		};
+	}
+}
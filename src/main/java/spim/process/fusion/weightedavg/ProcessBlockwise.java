@@ -0,0 +1,279 @@
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.Threads;
+import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.export.FusedBlock;
+import bdv.img.hdf5.Hdf5ImageLoader;
+
+/**
+ * Fuses the output bounding box block by block. For each block only the parts of the input views
+ * that contribute to it are fetched (through the cell cache of the {@link Hdf5ImageLoader}), so the
+ * input views are never loaded completely. Peak memory for the input data is bounded by
+ * (number of threads) x (block size) x (number of overlapping views).
+ */
+public class ProcessBlockwise extends ProcessFusion
+{
+	public static int[] defaultBlockSize = new int[]{ 128, 128, 128 };
+
+	final int[] blockSize;
+
+	public ProcessBlockwise(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final BoundingBoxGUI bb,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final int[] blockSize )
+	{
+		super( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
+
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Fuses one stack, i.e. all angles/illuminations for one timepoint and channel
+	 *
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param timepoint
+	 * @param channel
+	 * @return
+	 */
+	@Override
+	public < T extends RealType< T > & NativeType< T > > Img< T > fuseStack(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint,
+			final Channel channel )
+	{
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Reserving memory for fused image.");
+
+		// get all views that are fused
+		final ArrayList< ViewDescription > inputData =
+				FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess );
+
+		// it can be that for a certain comination of timepoint/channel there is nothing to do
+		// (e.g. fuse timepoint 1 channel 1 and timepoint 2 channel 2)
+		if ( inputData.size() == 0 )
+			return null;
+
+		// try creating the output (type needs to be there to define T)
+		final Img< T > fusedImg = bb.getImgFactory( type ).create( bb.getDimensions(), type );
+
+		if ( fusedImg == null )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): WeightedAverageFusion: Cannot create output image."  );
+			return null;
+		}
+
+		// the images are only wrapped, nothing is loaded yet
+		final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+		{
+			final ViewDescription vd = inputData.get( i );
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Requesting lazy Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+			imgs.add( getLazyImage( type, spimData, vd ) );
+		}
+
+		if ( useContentBased && !defaultContentBasedTiled )
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): WARNING: Content-based weights are computed on the entire views, memory consumption will not be bounded by the block size." );
+
+		// get all weighting methods
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
+
+		final AffineTransform3D[] transforms = getTransforms( inputData );
+
+		// split up into blocks, every block is one task
+		final ArrayList< FinalInterval > blocks = FusionHelper.divideIntoBlocks( bb.getDimensions(), blockSize );
+
+		// set up executor service
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ArrayList< ProcessBlockwisePortion< T > > tasks = new ArrayList< ProcessBlockwisePortion< T > >();
+
+		for ( final FinalInterval block : blocks )
+			tasks.add( new ProcessBlockwisePortion< T >( block, type, imgs, weights, interpolatorFactory, transforms, fusedImg, bb ) );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting block-wise fusion process (" + blocks.size() + " blocks)." );
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			taskExecutor.invokeAll( tasks );
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion: " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		taskExecutor.shutdown();
+
+		return fusedImg;
+	}
+
+	/**
+	 * Fuses one stack, i.e. all angles/illuminations for one timepoint and channel, block by block without
+	 * creating the fused image. Every fused block is put into the queue, the end is marked by {@link FusedBlock#lastBlock()},
+	 * which is also put if the fusion fails.
+	 *
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param timepoint
+	 * @param channel
+	 * @param blockSize - the size of the blocks that are put into the queue
+	 * @param queue - where the fused blocks go, should be bounded to limit memory
+	 * @return - true if all blocks were fused and put into the queue
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean fuseStack(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint,
+			final Channel channel,
+			final int[] blockSize,
+			final BlockingQueue< FusedBlock< T > > queue )
+	{
+		try
+		{
+			// get all views that are fused
+			final ArrayList< ViewDescription > inputData =
+					FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess );
+
+			if ( inputData.size() == 0 )
+				return false;
+
+			final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+
+			for ( int i = 0; i < inputData.size(); ++i )
+			{
+				final ViewDescription vd = inputData.get( i );
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Requesting lazy Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+				imgs.add( getLazyImage( type, spimData, vd ) );
+			}
+
+			if ( useContentBased && !defaultContentBasedTiled )
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): WARNING: Content-based weights are computed on the entire views, memory consumption will not be bounded by the block size." );
+
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+
+			for ( int i = 0; i < inputData.size(); ++i )
+				weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
+
+			final AffineTransform3D[] transforms = getTransforms( inputData );
+			final ArrayList< FinalInterval > blocks = FusionHelper.divideIntoBlocks( bb.getDimensions(), blockSize );
+
+			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+			final ArrayList< ProcessBlockwiseStreamingPortion< T > > tasks = new ArrayList< ProcessBlockwiseStreamingPortion< T > >();
+
+			for ( final FinalInterval block : blocks )
+				tasks.add( new ProcessBlockwiseStreamingPortion< T >( block, type, imgs, weights, interpolatorFactory, transforms, queue, bb ) );
+
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting block-wise fusion process (" + blocks.size() + " blocks, streaming)." );
+
+			boolean success = true;
+
+			try
+			{
+				// invokeAll() returns when all tasks are complete, a block that failed was not put into the queue
+				for ( final Future< String > future : taskExecutor.invokeAll( tasks ) )
+				{
+					try
+					{
+						future.get();
+					}
+					catch ( final ExecutionException e )
+					{
+						IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to fuse block: " + e.getCause() );
+						e.getCause().printStackTrace();
+						success = false;
+					}
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion: " + e );
+				e.printStackTrace();
+				return false;
+			}
+			finally
+			{
+				taskExecutor.shutdown();
+			}
+
+			return success;
+		}
+		finally
+		{
+			// the exporter waits for this
+			try
+			{
+				queue.put( FusedBlock.< T >lastBlock() );
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to finish fusion: " + e );
+			}
+		}
+	}
+
+	/**
+	 * Returns the image without loading it into memory if the ImgLoader supports it (i.e. it is backed by cached cells).
+	 * Otherwise the image is loaded as in {@link ProcessFusion#getImage(RealType, SpimData2, ViewId, boolean)}.
+	 *
+	 * @param type
+	 * @param spimData
+	 * @param view
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > getLazyImage( final T type, final SpimData2 spimData, final ViewId view )
+	{
+		final ImgLoader< ? > imgLoader = spimData.getSequenceDescription().getImgLoader();
+
+		if ( !( imgLoader instanceof Hdf5ImageLoader ) )
+			return getImage( type, spimData, view, false );
+
+		final RandomAccessibleInterval< UnsignedShortType > img = ( ( Hdf5ImageLoader ) imgLoader ).getImage( view );
+
+		if ( (RealType)type instanceof FloatType )
+			return (RandomAccessibleInterval)new ConvertedRandomAccessibleInterval< UnsignedShortType, FloatType >( img, new RealFloatConverter< UnsignedShortType >(), new FloatType() );
+		else if ( (RealType)type instanceof UnsignedShortType )
+			return (RandomAccessibleInterval)img;
+		else
+			return null;
+	}
+}
@@ -0,0 +1,260 @@
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * Fuse one block of a block-wise fusion, supports any number of weight functions. Only the parts
+ * of the input views that overlap with the block are copied into memory.
+ *
+ * @param <T>
+ */
+public class ProcessBlockwisePortion< T extends RealType< T > & NativeType< T > > implements Callable< String >
+{
+	final Interval block;
+	final T type;
+	final ArrayList< RandomAccessibleInterval< T > > imgs;
+	final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights;
+	final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory;
+	final AffineTransform3D[] transforms;
+	final Img< T > fusedImg;
+	final BoundingBoxGUI bb;
+
+	final int downSampling;
+
+	public ProcessBlockwisePortion(
+			final Interval block,
+			final T type,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final Img< T > fusedImg,
+			final BoundingBoxGUI bb )
+	{
+		this.block = block;
+		this.type = type;
+		this.imgs = imgs;
+		this.weights = weights;
+		this.interpolatorFactory = interpolatorFactory;
+		this.transforms = transforms;
+		this.fusedImg = fusedImg;
+		this.bb = bb;
+		this.downSampling = bb.getDownSampling();
+	}
+
+	@Override
+	public String call() throws Exception
+	{
+		return fuseBlock( fusedImg.randomAccess() );
+	}
+
+	/**
+	 * Fuses the block and writes it into the {@link RandomAccess}, which is in the
+	 * coordinate system of the fused image.
+	 *
+	 * @param out - where to write the fused block
+	 * @return - a status message
+	 */
+	protected String fuseBlock( final RandomAccess< T > out )
+	{
+		final int numViews = imgs.size();
+
+		// which views contribute to this block, and the local copies of the overlapping parts
+		final ArrayList< Integer > views = new ArrayList< Integer >();
+		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >();
+		final ArrayList< ArrayList< RealRandomAccess< FloatType > > > weightAccess = new ArrayList< ArrayList< RealRandomAccess< FloatType > > >();
+		final ArrayList< long[] > offsets = new ArrayList< long[] >();
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			final RandomAccessibleInterval< T > img = imgs.get( i );
+
+			if ( !overlappingInterval( img, transforms[ i ], min, max ) )
+				continue;
+
+			views.add( i );
+			offsets.add( min.clone() );
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( copyBlock( img, min, max ) ), interpolatorFactory ).realRandomAccess() );
+
+			final ArrayList< RealRandomAccess< FloatType > > list = new ArrayList< RealRandomAccess< FloatType > >();
+
+			for ( final RealRandomAccessible< FloatType > rra : weights.get( i ) )
+				list.add( rra.realRandomAccess() );
+
+			weightAccess.add( list );
+		}
+
+		final int numBlockViews = views.size();
+
+		if ( numBlockViews == 0 )
+			return "Block " + block + " has no overlapping views.";
+
+		final AffineTransform3D[] blockTransforms = new AffineTransform3D[ numBlockViews ];
+		final int[][] imgSizes = new int[ numBlockViews ][ 3 ];
+
+		for ( int j = 0; j < numBlockViews; ++j )
+		{
+			final RandomAccessibleInterval< T > img = imgs.get( views.get( j ) );
+			blockTransforms[ j ] = transforms[ views.get( j ) ];
+			imgSizes[ j ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
+		}
+
+		final ViewLineRanges lines = new ViewLineRanges( blockTransforms, imgSizes, downSampling );
+		final long length = block.dimension( 0 );
+
+		final float[] t = new float[ 3 ];
+		final float[] l = new float[ 3 ];
+
+		for ( long z = block.min( 2 ); z <= block.max( 2 ); ++z )
+			for ( long y = block.min( 1 ); y <= block.max( 1 ); ++y )
+			{
+				final int numActive = lines.setLine(
+						block.min( 0 ) * downSampling + bb.min( 0 ),
+						y * downSampling + bb.min( 1 ),
+						z * downSampling + bb.min( 2 ), length );
+
+				// no view contributes to this line
+				if ( numActive == 0 )
+					continue;
+
+				final int[] active = lines.active();
+
+				out.setPosition( block.min( 0 ), 0 );
+				out.setPosition( y, 1 );
+				out.setPosition( z, 2 );
+
+				for ( long x = 0; x < length; ++x )
+				{
+					double sum = 0;
+					double sumW = 0;
+
+					for ( int k = 0; k < numActive; ++k )
+					{
+						final int j = active[ k ];
+
+						if ( lines.contains( j, x ) )
+						{
+							lines.position( j, x, t );
+
+							final long[] offset = offsets.get( j );
+							l[ 0 ] = t[ 0 ] - offset[ 0 ];
+							l[ 1 ] = t[ 1 ] - offset[ 1 ];
+							l[ 2 ] = t[ 2 ] - offset[ 2 ];
+
+							final RealRandomAccess< T > r = interpolators.get( j );
+							r.setPosition( l );
+
+							double w = 1;
+
+							for ( final RealRandomAccess< FloatType > weight : weightAccess.get( j ) )
+							{
+								weight.setPosition( t );
+								w *= weight.get().get();
+							}
+
+							sum += r.get().getRealDouble() * w;
+							sumW += w;
+						}
+					}
+
+					if ( sumW > 0 )
+						out.get().setReal( sum / sumW );
+
+					out.fwd( 0 );
+				}
+			}
+
+		return "Block " + block + " finished successfully (" + numBlockViews + " views).";
+	}
+
+	/**
+	 * Computes the interval of the input view that is required to fuse the current block,
+	 * including one pixel on each side for the interpolation.
+	 *
+	 * @param img - the input view
+	 * @param transform - the transformation of the input view
+	 * @param min - the minimal coordinate in the input view (will be written)
+	 * @param max - the maximal coordinate in the input view (will be written)
+	 * @return - false if the input view does not overlap with the block
+	 */
+	protected boolean overlappingInterval( final RandomAccessibleInterval< T > img, final AffineTransform3D transform, final long[] min, final long[] max )
+	{
+		final double[] s = new double[ 3 ];
+		final double[] t = new double[ 3 ];
+		final double[] tMin = new double[]{ Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] tMax = new double[]{ -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+		// the transform is affine, so the bounding box of the eight transformed corners contains the entire block
+		for ( int c = 0; c < 8; ++c )
+		{
+			for ( int d = 0; d < 3; ++d )
+				s[ d ] = ( ( ( c >> d ) & 1 ) == 0 ? block.min( d ) : block.max( d ) ) * downSampling + bb.min( d );
+
+			transform.applyInverse( t, s );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				tMin[ d ] = Math.min( tMin[ d ], t[ d ] );
+				tMax[ d ] = Math.max( tMax[ d ], t[ d ] );
+			}
+		}
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			if ( tMax[ d ] < 0 || tMin[ d ] >= img.dimension( d ) )
+				return false;
+
+			min[ d ] = Math.max( (long)Math.floor( tMin[ d ] ) - 1, -1 );
+			max[ d ] = Math.min( (long)Math.ceil( tMax[ d ] ) + 1, img.dimension( d ) );
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copies a part of the input view into a new {@link Img}, this is the only time data is requested from the ImgLoader.
+	 *
+	 * @param img - the input view
+	 * @param min - the minimal coordinate in the input view
+	 * @param max - the maximal coordinate in the input view
+	 * @return - a copy of the interval (with zero-min)
+	 */
+	protected Img< T > copyBlock( final RandomAccessibleInterval< T > img, final long[] min, final long[] max )
+	{
+		final long[] dim = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+			dim[ d ] = max[ d ] - min[ d ] + 1;
+
+		final Img< T > copy = new ArrayImgFactory< T >().create( dim, type );
+
+		final Cursor< T > in = Views.flatIterable( Views.interval( Views.extendMirrorSingle( img ), min, max ) ).cursor();
+		final Cursor< T > c = copy.cursor();
+
+		while ( c.hasNext() )
+			c.next().set( in.next() );
+
+		return copy;
+	}
+}
@@ -0,0 +1,63 @@
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.export.FusedBlock;
+
+/**
+ * Fuse one block of a block-wise fusion into its own small image and hand it to the exporter
+ * instead of writing it into the fused image.
+ *
+ * @param <T>
+ */
+public class ProcessBlockwiseStreamingPortion< T extends RealType< T > & NativeType< T > > extends ProcessBlockwisePortion< T >
+{
+	final BlockingQueue< FusedBlock< T > > queue;
+
+	public ProcessBlockwiseStreamingPortion(
+			final Interval block,
+			final T type,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final BlockingQueue< FusedBlock< T > > queue,
+			final BoundingBoxGUI bb )
+	{
+		super( block, type, imgs, weights, interpolatorFactory, transforms, null, bb );
+
+		this.queue = queue;
+	}
+
+	@Override
+	public String call() throws Exception
+	{
+		final long[] dim = new long[ block.numDimensions() ];
+		final long[] min = new long[ block.numDimensions() ];
+		block.dimensions( dim );
+		block.min( min );
+
+		final Img< T > blockImg = new ArrayImgFactory< T >().create( dim, type );
+
+		final String result = fuseBlock( Views.translate( blockImg, min ).randomAccess() );
+
+		// blocks if the exporter is too slow, this bounds the memory
+		queue.put( new FusedBlock< T >( block, blockImg ) );
+
+		return result;
+	}
+}
@@ -2,6 +2,7 @@ package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.ImgLoader;
@@ -27,6 +28,7 @@ import spim.fiji.spimdata.ViewSetupUtils;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.weights.Blending;
 import spim.process.fusion.weights.ContentBased;
+import spim.process.fusion.weights.ContentBasedTiled;
 import bdv.img.hdf5.Hdf5ImageLoader;
 
 public abstract class ProcessFusion
@@ -38,12 +40,21 @@ public abstract class ProcessFusion
 	public static double[] defaultContentBasedSigma1 = new double[]{ 20, 20, 20 };
 	public static double[] defaultContentBasedSigma2 = new double[]{ 40, 40, 40 };
 	public static boolean defaultAdjustContentBasedSigmaForAnisotropy = true;
+
+	/**
+	 * if the content-based weights are approximated tile-wise on a downsampled grid (see {@link ContentBasedTiled});
+	 * this bounds the memory, but the fused image is not identical, so it is off by default
+	 */
+	public static boolean defaultContentBasedTiled = false;
 	
 	final protected SpimData2 spimData;
 	final List< ViewId > viewIdsToProcess;
 	final BoundingBoxGUI bb;
 	final boolean useBlending;
 	final boolean useContentBased;
+
+	// input images that were loaded ahead of time (see FusionPipeline), they are handed out only once
+	final ConcurrentHashMap< ViewId, RandomAccessibleInterval< ? > > prefetched = new ConcurrentHashMap< ViewId, RandomAccessibleInterval< ? > >();
 	
 	public ProcessFusion(
 			final SpimData2 spimData,
@@ -85,7 +96,7 @@ public abstract class ProcessFusion
 		return new Blending( interval, border, blending );
 	}
 	
-	protected < T extends RealType< T > > ContentBased< T > getContentBased( final RandomAccessibleInterval< T > img, final ViewDescription desc, final ImgLoader< ? > imgLoader )
+	protected < T extends RealType< T > > RealRandomAccessible< FloatType > getContentBased( final RandomAccessibleInterval< T > img, final ViewDescription desc, final ImgLoader< ? > imgLoader )
 	{
 		final double[] sigma1 = ProcessFusion.defaultContentBasedSigma1.clone();
 		final double[] sigma2 = ProcessFusion.defaultContentBasedSigma2.clone();
@@ -102,7 +113,11 @@ public abstract class ProcessFusion
 			}
 		}
 
-		return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2);
+		// tile-wise on a downsampled grid, the weight image of the full view is never created
+		if ( defaultContentBasedTiled )
+			return new ContentBasedTiled< T >( img, sigma1, sigma2 );
+		else
+			return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2);
 	}
 	
 	protected < T extends RealType< T > > ArrayList< RealRandomAccessible< FloatType > > getAllWeights(
@@ -147,6 +162,37 @@ public abstract class ProcessFusion
 		return transforms;
 	}
 
+	/**
+	 * Loads an input image now so that the next call of {@link #fuseStack(RealType, InterpolatorFactory, TimePoint, Channel)}
+	 * does not have to wait for it. Only supported if the process loads the input images entirely.
+	 *
+	 * @param type - must be the same type as the one used for fusion
+	 * @param view
+	 */
+	public < T extends RealType< T > > void prefetch( final T type, final ViewId view )
+	{
+		prefetched.put( new ViewId( view.getTimePointId(), view.getViewSetupId() ), getImage( type, spimData, view, false ) );
+	}
+
+	/**
+	 * @return - true if input images can be loaded ahead of time using {@link #prefetch(RealType, ViewId)}
+	 */
+	public boolean supportsPrefetch() { return false; }
+
+	/**
+	 * Returns the input image if it was prefetched, otherwise it is loaded now
+	 */
+	@SuppressWarnings( "unchecked" )
+	protected < T extends RealType< T > > RandomAccessibleInterval< T > getInputImage( final T type, final ViewId view )
+	{
+		final RandomAccessibleInterval< ? > img = prefetched.remove( new ViewId( view.getTimePointId(), view.getViewSetupId() ) );
+
+		if ( img != null )
+			return (RandomAccessibleInterval< T >)img;
+		else
+			return getImage( type, spimData, view, false );
+	}
+
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public static < T extends RealType< T > > RandomAccessibleInterval< T > getImage( final T type, final SpimData2 spimData, final ViewId view, final boolean normalize )
 	{
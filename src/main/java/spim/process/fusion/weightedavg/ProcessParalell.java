@@ -38,6 +38,9 @@ public class ProcessParalell extends ProcessFusion
 		super( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 	}
 
+	@Override
+	public boolean supportsPrefetch() { return true; }
+
 	/** 
 	 * Fuses one stack, i.e. all angles/illuminations for one timepoint and channel
 	 * 
@@ -80,7 +83,7 @@ public class ProcessParalell extends ProcessFusion
 		{
 			final ViewDescription vd = inputData.get( i );
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
-			imgs.add( getImage( type, spimData, vd, false ) );
+			imgs.add( getInputImage( type, vd ) );
 		}
 		
 		// get all weighting methods
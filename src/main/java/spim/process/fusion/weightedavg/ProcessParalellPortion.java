@@ -3,7 +3,7 @@ package spim.process.fusion.weightedavg;
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
@@ -12,7 +12,6 @@ import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
@@ -32,7 +31,6 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 	final Img< T > fusedImg;
 	final BoundingBoxGUI bb;
 	
-	final boolean doDownSampling;
 	final int downSampling;
 	
 	public ProcessParalellPortion(
@@ -50,11 +48,6 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 		this.fusedImg = fusedImg;
 		this.bb = bb;
 		this.downSampling = bb.getDownSampling();
-		
-		if ( downSampling == 1 )
-			doDownSampling = false;
-		else
-			doDownSampling = true;
 	}
 	
 	@Override
@@ -74,47 +67,65 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
 		}
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
+		final RandomAccess< T > out = fusedImg.randomAccess();
+		final ViewLineRanges lines = new ViewLineRanges( transforms, imgSizes, downSampling );
+		final long[] dim = new long[ 3 ];
+		fusedImg.dimensions( dim );
+
 		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
-		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
+
+		// walk the portion line by line, every line is transformed only once per view
+		final long end = portion.getStartPosition() + portion.getLoopSize();
+
+		for ( long index = portion.getStartPosition(); index < end; )
 		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
+			final long x0 = index % dim[ 0 ];
+			final long y = ( index / dim[ 0 ] ) % dim[ 1 ];
+			final long z = index / ( dim[ 0 ] * dim[ 1 ] );
+			final long length = Math.min( dim[ 0 ] - x0, end - index );
+
+			index += length;
+
+			final int numActive = lines.setLine(
+					x0 * downSampling + bb.min( 0 ),
+					y * downSampling + bb.min( 1 ),
+					z * downSampling + bb.min( 2 ), length );
+
+			// no view contributes to this line
+			if ( numActive == 0 )
+				continue;
+
+			final int[] active = lines.active();
+
+			out.setPosition( x0, 0 );
+			out.setPosition( y, 1 );
+			out.setPosition( z, 2 );
+
+			for ( long x = 0; x < length; ++x )
 			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			int sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
-				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				double sum = 0;
+				int sumW = 0;
+
+				for ( int k = 0; k < numActive; ++k )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
-					r.setPosition( t );
-					sum += r.get().getRealDouble();
-					++sumW;
+					final int i = active[ k ];
+
+					if ( lines.contains( i, x ) )
+					{
+						lines.position( i, x, t );
+
+						final RealRandomAccess< T > r = interpolators.get( i );
+						r.setPosition( t );
+						sum += r.get().getRealDouble();
+						++sumW;
+					}
 				}
+
+				if ( sumW > 0 )
+					out.get().setReal( sum / sumW );
+
+				out.fwd( 0 );
 			}
-			
-			if ( sumW > 0 )
-				v.setReal( sum / sumW );
 		}
 		
 		return portion + " finished successfully (no weights).";
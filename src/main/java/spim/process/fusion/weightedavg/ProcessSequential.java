@@ -5,31 +5,47 @@ import java.util.Date;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.ViewSetupUtils;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 public class ProcessSequential extends ProcessFusion
 {
+	/**
+	 * number of sequential views that means: plan the number of views that are loaded at once from the memory budget
+	 */
+	public static final int AUTO = -1;
+
+	/**
+	 * fraction of the maximal heap size that the fusion may use if the number of views is planned automatically
+	 */
+	public static double defaultMemoryFraction = 0.75;
+
 	final int numSequentialViews;
 	
 	public ProcessSequential(
@@ -90,78 +106,103 @@ public class ProcessSequential extends ProcessFusion
 			return null;
 		}
 
+		// if planned automatically, the next group of views is loaded while the current one is fused
+		final boolean prefetch = numSequentialViews == AUTO;
+		final int numViews;
+
+		if ( numSequentialViews == AUTO )
+		{
+			final long budget = (long)( Runtime.getRuntime().maxMemory() * defaultMemoryFraction );
+			final long fusedBytes = fusedImg.size() * ( bytesPerPixel( type ) + 4 );
+
+			numViews = planNumSequentialViews( budget, fusedBytes, maxViewBytes( allInputData, type ), allInputData.size(), prefetch );
+
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Memory budget " + budget / ( 1024*1024 ) + " MB, fusing " + numViews + " views at once (prefetching the next ones)." );
+		}
+		else
+		{
+			numViews = numSequentialViews;
+		}
+
 		// we will need to run some batches until all is fused
-		for ( int batch = 0; batch < numBatches( allInputData.size(), numSequentialViews ); ++batch )
+		final int numBatches = numBatches( allInputData.size(), numViews );
+
+		// split up into many parts for multithreading
+		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
+
+		// set up executor services, one for fusion and one that loads the images
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+
+		try
 		{
-			final int start = batch * numSequentialViews;
-			final int end = Math.min( ( batch + 1 ) * numSequentialViews, allInputData.size() );
-			
-			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing view " + start + " ... " + (end-1) + " of " + (allInputData.size()-1) );
-			
-			final ArrayList< ViewDescription > inputData = new ArrayList< ViewDescription >();
-			
-			for ( int i = start; i < end; ++i )
-				inputData.add( allInputData.get( i ) );
-			
-			// same as in the paralell fusion now more or less
-			final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
-
-			for ( int i = 0; i < inputData.size(); ++i )
-			{
-				final ViewDescription vd = inputData.get( i );
-				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
-				imgs.add( getImage( type, spimData, vd, false ) );
-			}
-			
-			// get all weighting methods
-			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
-			
-			for ( int i = 0; i < inputData.size(); ++i )
-				weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
-			
-			// split up into many parts for multithreading
-			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
-
-			// set up executor service
-			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
-			final ArrayList< ProcessSequentialPortion< T > > tasks = new ArrayList< ProcessSequentialPortion< T > >();
-
-			if ( weights.get( 0 ).size() == 0 ) // no weights
-			{		
-				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortion< T >( portion, imgs, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
-			}
-			else if ( weights.get( 0 ).size() > 1 ) // many weights
-			{
-				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortionWeights< T >( portion, imgs, weights, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
-			}
-			else // one weight
+			Future< LoadedViews< T > > next = ioExecutor.submit( loadBatch( type, allInputData, 0, numViews ) );
+
+			for ( int batch = 0; batch < numBatches; ++batch )
 			{
-				final ArrayList< RealRandomAccessible< FloatType > > singleWeight = new ArrayList< RealRandomAccessible< FloatType > >();
-				
-				for ( int i = 0; i < inputData.size(); ++i )
-					singleWeight.add( weights.get( i ).get( 0 ) );
-				
-				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
-			}
+				final LoadedViews< T > current = next.get();
 
-			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
+				// load the next batch while this one is fused
+				if ( batch + 1 < numBatches && prefetch )
+					next = ioExecutor.submit( loadBatch( type, allInputData, batch + 1, numViews ) );
+
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing view " + current.start + " ... " + (current.end-1) + " of " + (allInputData.size()-1) );
+
+				final ArrayList< ViewDescription > inputData = current.inputData;
+				final ArrayList< RandomAccessibleInterval< T > > imgs = current.imgs;
+				final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = current.weights;
+				final AffineTransform3D[] transforms = getTransforms( inputData );
+
+				// every portion is a different part of the output, so no two threads ever write to the same pixel
+				final ArrayList< ProcessSequentialPortion< T > > tasks = new ArrayList< ProcessSequentialPortion< T > >();
+
+				if ( weights.get( 0 ).size() == 0 ) // no weights
+				{		
+					for ( final ImagePortion portion : portions )
+						tasks.add( new ProcessSequentialPortion< T >( portion, imgs, interpolatorFactory, transforms, fusedImg, weightImg, bb ) );
+				}
+				else if ( weights.get( 0 ).size() > 1 ) // many weights
+				{
+					for ( final ImagePortion portion : portions )
+						tasks.add( new ProcessSequentialPortionWeights< T >( portion, imgs, weights, interpolatorFactory, transforms, fusedImg, weightImg, bb ) );
+				}
+				else // one weight
+				{
+					final ArrayList< RealRandomAccessible< FloatType > > singleWeight = new ArrayList< RealRandomAccessible< FloatType > >();
+					
+					for ( int i = 0; i < inputData.size(); ++i )
+						singleWeight.add( weights.get( i ).get( 0 ) );
+					
+					for ( final ImagePortion portion : portions )
+						tasks.add( new ProcessSequentialPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, transforms, fusedImg, weightImg, bb ) );
+				}
+
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
 
-			try
-			{
 				// invokeAll() returns when all tasks are complete
 				taskExecutor.invokeAll( tasks );
-			}
-			catch ( final InterruptedException e )
-			{
-				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion: " + e );
-				e.printStackTrace();
-				return null;
-			}
 
-			taskExecutor.shutdown();			
+				// without prefetching the next batch is only loaded once this one is done
+				if ( batch + 1 < numBatches && !prefetch )
+					next = ioExecutor.submit( loadBatch( type, allInputData, batch + 1, numViews ) );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion: " + e );
+			e.printStackTrace();
+			return null;
+		}
+		catch ( final ExecutionException e )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to load input images: " + e );
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+			ioExecutor.shutdownNow();
 		}
 
 		// compute final image from intensities and weights
@@ -169,6 +210,105 @@ public class ProcessSequential extends ProcessFusion
 		
 		return fusedImg;
 	}
+
+	/**
+	 * @param budget - the memory that can be used in bytes
+	 * @param fusedBytes - the memory required for the fused image and the weight image in bytes
+	 * @param viewBytes - the memory required for one input view (including its weights) in bytes
+	 * @param numViews - the number of views that are fused
+	 * @param prefetch - if the next group of views is loaded while the current one is fused (two groups in memory)
+	 * @return - how many views can be fused at once, at least one
+	 */
+	public static int planNumSequentialViews( final long budget, final long fusedBytes, final long viewBytes, final int numViews, final boolean prefetch )
+	{
+		final long available = budget - fusedBytes;
+		final long perGroupView = Math.max( 1, viewBytes ) * ( prefetch ? 2 : 1 );
+
+		return (int)Math.max( 1, Math.min( numViews, available / perGroupView ) );
+	}
+
+	/**
+	 * @return - the memory the largest of the views requires when loaded as T (including a full-size content-based weight image if required)
+	 */
+	protected < T extends RealType< T > > long maxViewBytes( final List< ViewDescription > inputData, final T type )
+	{
+		final ImgLoader< ? > imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final int bytesPerPixel = bytesPerPixel( type ) + ( useContentBased && !defaultContentBasedTiled ? 4 : 0 );
+		long max = 0;
+
+		for ( final ViewDescription vd : inputData )
+		{
+			final Dimensions dim = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), imgLoader );
+			long size = bytesPerPixel;
+
+			for ( int d = 0; d < dim.numDimensions(); ++d )
+				size *= dim.dimension( d );
+
+			max = Math.max( max, size );
+		}
+
+		return max;
+	}
+
+	protected static < T extends RealType< T > > int bytesPerPixel( final T type )
+	{
+		return Math.max( 1, type.getBitsPerPixel() / 8 );
+	}
+
+	/**
+	 * Loads the images of one batch and sets up their weights, it is run by the I/O thread.
+	 */
+	protected < T extends RealType< T > > Callable< LoadedViews< T > > loadBatch(
+			final T type,
+			final ArrayList< ViewDescription > allInputData,
+			final int batch,
+			final int numViews )
+	{
+		return new Callable< LoadedViews< T > >()
+		{
+			@Override
+			public LoadedViews< T > call() throws Exception
+			{
+				final int start = batch * numViews;
+				final int end = Math.min( ( batch + 1 ) * numViews, allInputData.size() );
+
+				final LoadedViews< T > views = new LoadedViews< T >( start, end );
+
+				for ( int i = start; i < end; ++i )
+					views.inputData.add( allInputData.get( i ) );
+
+				// same as in the paralell fusion now more or less
+				for ( final ViewDescription vd : views.inputData )
+				{
+					IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+					views.imgs.add( getImage( type, spimData, vd, false ) );
+				}
+
+				// get all weighting methods
+				for ( int i = 0; i < views.inputData.size(); ++i )
+					views.weights.add( getAllWeights( views.imgs.get( i ), views.inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
+
+				return views;
+			}
+		};
+	}
+
+	/**
+	 * The images and weights of one batch of views
+	 */
+	protected static class LoadedViews< T extends RealType< T > >
+	{
+		final int start, end;
+		final ArrayList< ViewDescription > inputData = new ArrayList< ViewDescription >();
+		final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+
+		public LoadedViews( final int start, final int end )
+		{
+			this.start = start;
+			this.end = end;
+		}
+	}
 	
 	protected < T extends RealType< T > > void mergeFinalImage( final Img< T > img, final Img< FloatType > weights )
 	{
@@ -2,7 +2,7 @@ package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
@@ -13,7 +13,6 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
@@ -64,61 +63,79 @@ public class ProcessSequentialPortionWeight< T extends RealType< T > > extends P
 			weightAccess.add( weights.get( i ).realRandomAccess() );
 		}
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final Cursor< FloatType > cursorW = weightImg.cursor();
+		final RandomAccess< T > out = fusedImg.randomAccess();
+		final RandomAccess< FloatType > outW = weightImg.randomAccess();
+		final ViewLineRanges lines = new ViewLineRanges( transforms, imgSizes, downSampling );
+		final long[] dim = new long[ 3 ];
+		fusedImg.dimensions( dim );
 
-		final float[] s = new float[ 3 ];
 		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
-		cursorW.jumpFwd( portion.getStartPosition() );
-		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
+
+		// walk the portion line by line, every line is transformed only once per view
+		final long end = portion.getStartPosition() + portion.getLoopSize();
+
+		for ( long index = portion.getStartPosition(); index < end; )
 		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
+			final long x0 = index % dim[ 0 ];
+			final long y = ( index / dim[ 0 ] ) % dim[ 1 ];
+			final long z = index / ( dim[ 0 ] * dim[ 1 ] );
+			final long length = Math.min( dim[ 0 ] - x0, end - index );
+
+			index += length;
+
+			final int numActive = lines.setLine(
+					x0 * downSampling + bb.min( 0 ),
+					y * downSampling + bb.min( 1 ),
+					z * downSampling + bb.min( 2 ), length );
+
+			// no view contributes to this line
+			if ( numActive == 0 )
+				continue;
 
-			// move weight cursor forward and get the value 
-			final FloatType w = cursorW.next();
+			final int[] active = lines.active();
 
-			if ( doDownSampling )
+			out.setPosition( x0, 0 );
+			out.setPosition( y, 1 );
+			out.setPosition( z, 2 );
+			outW.setPosition( out );
+
+			for ( long x = 0; x < length; ++x )
 			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			double sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
-				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				double sum = 0;
+				double sumW = 0;
+
+				for ( int k = 0; k < numActive; ++k )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
-					r.setPosition( t );
-					
-					final RealRandomAccess< FloatType > weight = weightAccess.get( i );
-					weight.setPosition( t );
-					
-					final double w1 = weight.get().get();
-					
-					sum += r.get().getRealDouble() * w1;
-					sumW += w1;
+					final int i = active[ k ];
+
+					if ( lines.contains( i, x ) )
+					{
+						lines.position( i, x, t );
+
+						final RealRandomAccess< T > r = interpolators.get( i );
+						r.setPosition( t );
+
+						final RealRandomAccess< FloatType > weight = weightAccess.get( i );
+						weight.setPosition( t );
+
+						final double w = weight.get().get();
+
+						sum += r.get().getRealDouble() * w;
+						sumW += w;
+					}
 				}
-			}
-			
-			if ( sumW > 0 )
-			{
-				v.setReal( v.getRealFloat() + sum );
-				w.set( w.get() + (float)sumW );
+
+				if ( sumW > 0 )
+				{
+					final T v = out.get();
+					final FloatType w = outW.get();
+
+					v.setReal( v.getRealFloat() + sum );
+					w.set( w.get() + (float)sumW );
+				}
+
+				out.fwd( 0 );
+				outW.fwd( 0 );
 			}
 		}
 		
@@ -0,0 +1,167 @@
+package spim.process.fusion.weightedavg;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Walks the fused image line by line (along x) instead of voxel by voxel. For every line the start
+ * position is transformed once into each input view, all further positions are computed from a
+ * precomputed per-view increment. It also computes the contiguous range of the line that lies inside
+ * each input view, so views that do not intersect a line are skipped entirely and the per-voxel
+ * intersection test is not necessary anymore.
+ *
+ * One instance per thread, it is not thread-safe.
+ */
+public class ViewLineRanges
+{
+	final AffineTransform3D[] transforms;
+	final int[][] imgSizes;
+	final int numViews;
+
+	// where the current line starts in each view and how far it moves per pixel of the fused image
+	final double[][] start, inc;
+
+	// the first and last pixel of the current line that is inside each view
+	final long[] first, last;
+
+	// the views that intersect with the current line
+	final int[] active;
+	int numActive;
+
+	final double[] tmp = new double[ 3 ];
+
+	/**
+	 * @param transforms - the transformations of the input views
+	 * @param imgSizes - the dimensions of the input views
+	 * @param downSampling - the downsampling of the fused image (one pixel step in x in the fused image)
+	 */
+	public ViewLineRanges( final AffineTransform3D[] transforms, final int[][] imgSizes, final int downSampling )
+	{
+		this.transforms = transforms;
+		this.imgSizes = imgSizes;
+		this.numViews = transforms.length;
+
+		this.start = new double[ numViews ][ 3 ];
+		this.inc = new double[ numViews ][ 3 ];
+		this.first = new long[ numViews ];
+		this.last = new long[ numViews ];
+		this.active = new int[ numViews ];
+
+		final double[] s = new double[ 3 ];
+		final double[] t0 = new double[ 3 ];
+		final double[] t1 = new double[ 3 ];
+
+		// the transform is affine, the increment is the same everywhere
+		for ( int i = 0; i < numViews; ++i )
+		{
+			s[ 0 ] = s[ 1 ] = s[ 2 ] = 0;
+			transforms[ i ].applyInverse( t0, s );
+
+			s[ 0 ] = downSampling;
+			transforms[ i ].applyInverse( t1, s );
+
+			for ( int d = 0; d < 3; ++d )
+				inc[ i ][ d ] = t1[ d ] - t0[ d ];
+		}
+	}
+
+	/**
+	 * Sets a new line.
+	 *
+	 * @param x - the position of the first pixel of the line in world coordinates
+	 * @param y - the position of the first pixel of the line in world coordinates
+	 * @param z - the position of the first pixel of the line in world coordinates
+	 * @param length - the number of pixels of the line
+	 * @return - the number of views that intersect with the line
+	 */
+	public int setLine( final double x, final double y, final double z, final long length )
+	{
+		tmp[ 0 ] = x;
+		tmp[ 1 ] = y;
+		tmp[ 2 ] = z;
+
+		numActive = 0;
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			transforms[ i ].applyInverse( start[ i ], tmp );
+
+			if ( computeRange( i, length ) )
+				active[ numActive++ ] = i;
+		}
+
+		return numActive;
+	}
+
+	/**
+	 * @return - the indices of the views that intersect with the current line, only the first {@link #numActive()} are valid
+	 */
+	public int[] active() { return active; }
+	public int numActive() { return numActive; }
+
+	/**
+	 * @param view - the index of the view
+	 * @param x - the pixel of the current line (starting at 0)
+	 * @return - true if this pixel is inside the view
+	 */
+	public final boolean contains( final int view, final long x ) { return x >= first[ view ] && x <= last[ view ]; }
+
+	/**
+	 * Computes the position of a pixel of the current line in the input view.
+	 *
+	 * @param view - the index of the view
+	 * @param x - the pixel of the current line (starting at 0)
+	 * @param t - the position in the input view (will be written)
+	 */
+	public final void position( final int view, final long x, final float[] t )
+	{
+		final double[] st = start[ view ];
+		final double[] in = inc[ view ];
+
+		t[ 0 ] = (float)( st[ 0 ] + x * in[ 0 ] );
+		t[ 1 ] = (float)( st[ 1 ] + x * in[ 1 ] );
+		t[ 2 ] = (float)( st[ 2 ] + x * in[ 2 ] );
+	}
+
+	/**
+	 * Solves 0 &lt;= start + x * inc &lt; size for all dimensions, same test as
+	 * {@link spim.process.fusion.FusionHelper#intersects(float, float, float, int, int, int)}.
+	 */
+	protected boolean computeRange( final int i, final long length )
+	{
+		double lo = 0;
+		double hi = length - 1;
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double st = start[ i ][ d ];
+			final double in = inc[ i ][ d ];
+			final int size = imgSizes[ i ][ d ];
+
+			if ( in == 0 )
+			{
+				if ( st < 0 || st >= size )
+					return false;
+			}
+			else if ( in > 0 )
+			{
+				// x >= -st/in and x < (size-st)/in
+				lo = Math.max( lo, Math.ceil( -st / in ) );
+				hi = Math.min( hi, Math.ceil( ( size - st ) / in ) - 1 );
+			}
+			else
+			{
+				// x <= -st/in and x > (size-st)/in
+				lo = Math.max( lo, Math.floor( ( size - st ) / in ) + 1 );
+				hi = Math.min( hi, Math.floor( -st / in ) );
+			}
+
+			if ( lo > hi )
+				return false;
+		}
+
+		first[ i ] = (long)lo;
+		last[ i ] = (long)hi;
+
+		return true;
+	}
+}
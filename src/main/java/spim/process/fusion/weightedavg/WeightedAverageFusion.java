@@ -2,10 +2,17 @@ package spim.process.fusion.weightedavg;
 
 import ij.gui.GenericDialog;
 
+import java.awt.Checkbox;
 import java.awt.Choice;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
@@ -15,21 +22,27 @@ import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.io.IOFunctions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessible;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import spim.fiji.plugin.Apply_Transformation;
 import spim.fiji.plugin.fusion.Fusion;
+import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.boundingbox.BoundingBoxGUI.ManageListeners;
 import spim.process.fusion.export.FixedNameImgTitler;
+import spim.process.fusion.export.FusedBlock;
 import spim.process.fusion.export.ImgExport;
+import spim.process.fusion.export.ImgExportStreaming;
 import spim.process.fusion.export.ImgExportTitle;
 
 public class WeightedAverageFusion extends Fusion
@@ -41,6 +54,12 @@ public class WeightedAverageFusion extends Fusion
 	protected int numParalellViews = 1;
 	
 	protected Choice sequentialViews = null;
+	protected int autoViewsIndex = -1;
+
+	public static boolean defaultBlockwise = false;
+	protected boolean blockwise = false;
+
+	protected Checkbox blockwiseBox = null;
 
 	public WeightedAverageFusion(
 			final SpimData2 spimData,
@@ -72,7 +91,9 @@ public class WeightedAverageFusion extends Fusion
 
 		final ProcessFusion process;
 		
-		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
+		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && blockwise )
+			process = new ProcessBlockwise( spimData, viewIdsToProcess, bb, useBlending, useContentBased, ProcessBlockwise.defaultBlockSize );
+		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
 			process = new ProcessParalell( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA )
 			process = new ProcessSequential( spimData, viewIdsToProcess, bb, useBlending, useContentBased, numParalellViews );
@@ -80,20 +101,44 @@ public class WeightedAverageFusion extends Fusion
 			process = new ProcessIndependent( spimData, viewIdsToProcess, bb, exporter, newViewsetups );
 
 
+		// the block-wise fusion can write directly to the exporter without creating the fused image
+		final boolean streaming = process instanceof ProcessBlockwise && exporter instanceof ImgExportStreaming && ( (ImgExportStreaming)exporter ).supportsStreaming( bb.getPixelType() == 1 );
+
+		// otherwise loading, fusing and exporting of consecutive stacks can overlap
+		final boolean pipelined = getFusionType() == WeightedAvgFusionType.FUSEDATA && !streaming && FusionPipeline.defaultPipelined;
+		final ArrayList< FusionPipeline.Stack > stacks = new ArrayList< FusionPipeline.Stack >();
+
 		for ( final TimePoint t : timepointsToProcess )
 			for ( final Channel c : channelsToProcess )
 			{
 				final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
 				final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
 
-				titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
-				if ( bb.getPixelType() == 0 )
+				final String title = "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess );
+				final ViewSetup vs = newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) );
+
+				if ( pipelined )
+				{
+					stacks.add( new FusionPipeline.Stack( t, c, title, vs ) );
+					continue;
+				}
+
+				titler.setTitle( title );
+
+				if ( streaming )
+				{
+					if ( bb.getPixelType() == 0 )
+						fuseAndStream( (ProcessBlockwise)process, (ImgExportStreaming)exporter, new FloatType(), bb, t, c, vs );
+					else
+						fuseAndStream( (ProcessBlockwise)process, (ImgExportStreaming)exporter, new UnsignedShortType(), bb, t, c, vs );
+				}
+				else if ( bb.getPixelType() == 0 )
 				{
 					exporter.exportImage(
 							process.fuseStack( new FloatType(), getInterpolatorFactory( new FloatType() ), t , c ),
 							bb,
 							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+							vs );
 				}
 				else
 				{
@@ -101,13 +146,75 @@ public class WeightedAverageFusion extends Fusion
 							process.fuseStack( new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ), t , c ),
 							bb,
 							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+							vs );
 				}
 			}
 
+		if ( pipelined )
+		{
+			final FusionPipeline pipeline = new FusionPipeline(
+					process, exporter, titler, bb, spimData, viewIdsToProcess,
+					FusionPipeline.defaultPrefetchStacks, FusionPipeline.defaultExportQueueSize );
+
+			if ( bb.getPixelType() == 0 )
+				pipeline.run( stacks, new FloatType(), getInterpolatorFactory( new FloatType() ) );
+			else
+				pipeline.run( stacks, new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ) );
+		}
+
 		return true;
 	}
 
+	/**
+	 * Fuses one stack block by block in the background while the exporter writes the blocks as they are finished.
+	 * The queue in between is bounded, so the fusion waits if the exporter cannot keep up.
+	 */
+	protected < T extends RealType< T > & NativeType< T > > boolean fuseAndStream(
+			final ProcessBlockwise process,
+			final ImgExportStreaming exporter,
+			final T type,
+			final BoundingBoxGUI bb,
+			final TimePoint t,
+			final Channel c,
+			final ViewSetup vs )
+	{
+		// it can be that for a certain comination of timepoint/channel there is nothing to do
+		if ( FusionHelper.assembleInputData( spimData, t, c, viewIdsToProcess ).size() == 0 )
+			return false;
+
+		final int[] blockSize = exporter.getStreamingBlockSize( vs, ProcessBlockwise.defaultBlockSize );
+		final int numBlocks = FusionHelper.divideIntoBlocks( bb.getDimensions(), blockSize ).size();
+		final BlockingQueue< FusedBlock< T > > queue = new ArrayBlockingQueue< FusedBlock< T > >( Threads.numThreads() * 2 );
+		final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory = getInterpolatorFactory( type );
+
+		final boolean[] fused = new boolean[ 1 ];
+
+		final Thread fusion = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				fused[ 0 ] = process.fuseStack( type, interpolatorFactory, t, c, blockSize, queue );
+			}
+		} );
+
+		fusion.start();
+
+		final boolean success = exporter.exportBlocks( queue, numBlocks, bb, t, vs, bb.getPixelType() == 1 );
+
+		try
+		{
+			fusion.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Interrupted while waiting for the fusion to finish: " + e );
+			return false;
+		}
+
+		return success && fused[ 0 ];
+	}
+
 	@Override
 	public boolean queryParameters()
 	{
@@ -152,25 +259,32 @@ public class WeightedAverageFusion extends Fusion
 				for ( final Channel c : channelsToProcess )
 					maxViews = Math.max( maxViews, FusionHelper.assembleInputData( spimData, t, c, viewIdsToProcess ).size() );
 			
-			// any choice but all views
-			final String[] views = new String[ maxViews ];
+			// any choice but all views, and the automatic choice
+			final String[] views = new String[ maxViews + 1 ];
 			
 			views[ 0 ] = "All";
 			
-			for ( int i = 1; i < views.length; ++i )
+			for ( int i = 1; i < views.length - 1; ++i )
 				views[ i ] = "" + i;
+
+			views[ views.length - 1 ] = "Auto (fit into memory, load next views while fusing)";
+			this.autoViewsIndex = views.length - 1;
 			
 			if ( defaultNumParalellViewsIndex < 0 || defaultNumParalellViewsIndex >= views.length )
 				defaultNumParalellViewsIndex = 0;
 			
 			gd.addChoice( "Process_views_in_paralell", views, views[ defaultNumParalellViewsIndex ] );
 			this.sequentialViews = (Choice)gd.getChoices().lastElement();
+
+			gd.addCheckbox( "Fuse_block-wise (load only overlapping parts of the views)", defaultBlockwise );
+			this.blockwiseBox = (Checkbox)gd.getCheckboxes().lastElement();
 		}
 		
 		if ( this.getFusionType() == WeightedAvgFusionType.FUSEDATA )
 		{
 			gd.addCheckbox( "Blend images smoothly", Fusion.defaultUseBlending );
 			gd.addCheckbox( "Content-based fusion", Fusion.defaultUseContentBased );
+			gd.addCheckbox( "Content-based_weights_tile-wise (approximate, bounded memory)", ProcessFusion.defaultContentBasedTiled );
 		}
 		gd.addChoice( "Interpolation", Fusion.interpolationTypes, Fusion.interpolationTypes[ Fusion.defaultInterpolation ] );
 	}
@@ -181,9 +295,15 @@ public class WeightedAverageFusion extends Fusion
 		if ( this.getFusionType() == WeightedAvgFusionType.FUSEDATA )
 		{
 			defaultNumParalellViewsIndex = gd.getNextChoiceIndex();
-			this.numParalellViews = defaultNumParalellViewsIndex;
+
+			if ( defaultNumParalellViewsIndex == autoViewsIndex )
+				this.numParalellViews = ProcessSequential.AUTO;
+			else
+				this.numParalellViews = defaultNumParalellViewsIndex;
+			this.blockwise = defaultBlockwise = gd.getNextBoolean();
 			this.useBlending = Fusion.defaultUseBlending = gd.getNextBoolean();
 			this.useContentBased = Fusion.defaultUseContentBased = gd.getNextBoolean();
+			ProcessFusion.defaultContentBasedTiled = gd.getNextBoolean();
 		}
 		else
 		{
@@ -194,18 +314,64 @@ public class WeightedAverageFusion extends Fusion
 		return true;
 	}
 	
+	@Override
+	public void registerAdditionalListeners( final ManageListeners m )
+	{
+		if ( this.getFusionType() == WeightedAvgFusionType.FUSEDATA )
+		{
+			sequentialViews.addItemListener( new ItemListener() { @Override
+			public void itemStateChanged(ItemEvent e) { m.update(); } });
+			blockwiseBox.addItemListener( new ItemListener() { @Override
+			public void itemStateChanged(ItemEvent e) { m.update(); } });
+		}
+	}
+
 	@Override
 	public long totalRAM( final long fusedSizeMB, final int bytePerPixel )
 	{
-		if ( type == WeightedAvgFusionType.FUSEDATA && sequentialViews.getSelectedIndex() == 0 )
-			return fusedSizeMB + (getMaxNumViewsPerTimepoint() * (avgPixels/ ( 1024*1024 )) * bytePerPixel);
+		if ( type == WeightedAvgFusionType.FUSEDATA && blockwiseBox.getState() )
+		{
+			final int[] b = ProcessBlockwise.defaultBlockSize;
+			final long blockPixels = (long)b[ 0 ] * (long)b[ 1 ] * (long)b[ 2 ];
+
+			// every thread holds the overlapping parts of all views for one block
+			return fusedSizeMB + pipelinedExportMB( fusedSizeMB ) + ( Threads.numThreads() * getMaxNumViewsPerTimepoint() * blockPixels * bytePerPixel ) / ( 1024*1024 );
+		}
+		else if ( type == WeightedAvgFusionType.FUSEDATA && sequentialViews.getSelectedIndex() == autoViewsIndex )
+		{
+			// two groups of views (the current and the prefetched one), but never more than the budget
+			final long budgetMB = (long)( Runtime.getRuntime().maxMemory() * ProcessSequential.defaultMemoryFraction ) / ( 1024*1024 );
+			return pipelinedExportMB( fusedSizeMB ) + Math.min( budgetMB, fusedSizeMB + 2 * (getMaxNumViewsPerTimepoint() * (avgPixels/ ( 1024*1024 )) * bytePerPixel) );
+		}
+		else if ( type == WeightedAvgFusionType.FUSEDATA && sequentialViews.getSelectedIndex() == 0 )
+		{
+			// the views of the next stacks are loaded while fusing
+			final int stacksInMemory = 1 + ( isPipelined() ? FusionPipeline.defaultPrefetchStacks : 0 );
+			return fusedSizeMB + pipelinedExportMB( fusedSizeMB ) + stacksInMemory * (getMaxNumViewsPerTimepoint() * (avgPixels/ ( 1024*1024 )) * bytePerPixel);
+		}
 		else if ( type == WeightedAvgFusionType.FUSEDATA )
-			return fusedSizeMB + ((sequentialViews.getSelectedIndex()) * (avgPixels/ ( 1024*1024 )) * bytePerPixel);
+			return fusedSizeMB + pipelinedExportMB( fusedSizeMB ) + ((sequentialViews.getSelectedIndex()) * (avgPixels/ ( 1024*1024 )) * bytePerPixel);
 		else
 			return fusedSizeMB + (avgPixels/ ( 1024*1024 )) * bytePerPixel;
 	
 	}
 
+	/**
+	 * @return - if more than one stack is fused using the {@link FusionPipeline}
+	 */
+	protected boolean isPipelined()
+	{
+		return FusionPipeline.defaultPipelined && timepointsToProcess.size() * channelsToProcess.size() > 1;
+	}
+
+	/**
+	 * @return - the memory for the fused images that wait for export in the {@link FusionPipeline}
+	 */
+	protected long pipelinedExportMB( final long fusedSizeMB )
+	{
+		return isPipelined() ? fusedSizeMB * FusionPipeline.defaultExportQueueSize : 0;
+	}
+
 	@Override
 	protected Map< ViewSetup, ViewSetup > createNewViewSetups( final BoundingBoxGUI bb )
 	{
@@ -411,4 +577,14 @@ public class WeightedAverageFusion extends Fusion
 	{
 		this.numParalellViews = numParalellViews;
 	}
+
+	public boolean isBlockwise()
+	{
+		return blockwise;
+	}
+
+	public void setBlockwise( boolean blockwise )
+	{
+		this.blockwise = blockwise;
+	}
 }
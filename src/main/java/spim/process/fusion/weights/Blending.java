@@ -15,6 +15,12 @@ import net.imglib2.type.numeric.real.FloatType;
  */
 public class Blending implements RealRandomAccessible< FloatType >
 {
+	/**
+	 * use the lookup-table implementation of the cosine ramp ({@link BlendingRealRandomAccessLUT}), the
+	 * result differs by less than 1e-6 from {@link BlendingRealRandomAccess}
+	 */
+	public static boolean useLookUpTable = true;
+
 	final Interval interval;
 	final float[] border, blending;
 
@@ -38,7 +44,10 @@ public class Blending implements RealRandomAccessible< FloatType >
 	@Override
 	public RealRandomAccess<FloatType> realRandomAccess()
 	{
-		return new BlendingRealRandomAccess( interval, border, blending );
+		if ( useLookUpTable )
+			return new BlendingRealRandomAccessLUT( interval, border, blending );
+		else
+			return new BlendingRealRandomAccess( interval, border, blending );
 	}
 
 	@Override
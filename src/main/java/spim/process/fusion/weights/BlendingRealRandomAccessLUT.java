@@ -0,0 +1,118 @@
+package spim.process.fusion.weights;
+
+import net.imglib2.Interval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.Sampler;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Same blending function as {@link BlendingRealRandomAccess}, but the cosine ramp is read from a
+ * precomputed table (linearly interpolated, max. error below 1e-6) and the per-dimension factors are
+ * only recomputed for the dimensions whose position changed. When moving along a scanline only the
+ * factor of x is computed, the ones of y and z are reused.
+ *
+ * The views are sampled through their registration, so this cache only hits for views that are just
+ * translated (axis-aligned). For rotated views all coordinates change from one output pixel to the next
+ * and only the table lookup saves time.
+ */
+public class BlendingRealRandomAccessLUT extends BlendingRealRandomAccess
+{
+	/**
+	 * number of intervals of the cosine table over [0...1]
+	 */
+	final public static int lutSize = 1024;
+	final static float[] lut = createLUT( lutSize );
+
+	// the last position and factor of each dimension
+	final float[] lastL, factor;
+
+	/**
+	 * RealRandomAccess that computes a blending function for a certain {@link Interval}
+	 *
+	 * @param interval - the interval it is defined on (return zero outside of it)
+	 * @param border - how many pixels to skip before starting blending (on each side of each dimension)
+	 * @param blending - how many pixels to compute the blending function on (on each side of each dimension)
+	 */
+	public BlendingRealRandomAccessLUT(
+			final Interval interval,
+			final float[] border,
+			final float[] blending )
+	{
+		super( interval, border, blending );
+
+		this.lastL = new float[ n ];
+		this.factor = new float[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			this.lastL[ d ] = Float.NaN; // never equal to anything
+	}
+
+	@Override
+	public FloatType get()
+	{
+		// compute multiplicative distance to the respective borders [0...1]
+		float minDistance = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final float ld = l[ d ];
+
+			if ( ld != lastL[ d ] )
+			{
+				lastL[ d ] = ld;
+
+				// the position in the image relative to the boundaries and the border
+				final float lr = ( ld - min[ d ] );
+
+				// the distance to the border that is closer
+				final float dist = Math.max( 0, Math.min( lr - border[ d ], dimMinus1[ d ] - lr - border[ d ] ) );
+
+				factor[ d ] = Math.min( 1, dist / blending[ d ] );
+			}
+
+			minDistance *= factor[ d ];
+		}
+
+		v.set( lookUp( minDistance ) );
+		return v;
+	}
+
+	/**
+	 * @param minDistance - the multiplicative distance to the borders [0...1]
+	 * @return - ( cos( ( 1 - minDistance ) * PI ) + 1 ) / 2, linearly interpolated from the table
+	 */
+	final public static float lookUp( final float minDistance )
+	{
+		if ( minDistance >= 1 )
+			return 1;
+		else if ( minDistance <= 0 )
+			return 0;
+
+		final float p = minDistance * lutSize;
+		final int i = (int)p;
+		final float f = p - i;
+
+		return lut[ i ] + f * ( lut[ i + 1 ] - lut[ i ] );
+	}
+
+	final protected static float[] createLUT( final int size )
+	{
+		final float[] lut = new float[ size + 1 ];
+
+		for ( int i = 0; i <= size; ++i )
+			lut[ i ] = (float)( Math.cos( ( 1 - (double)i / size ) * Math.PI ) + 1 ) / 2;
+
+		return lut;
+	}
+
+	@Override
+	public Sampler<FloatType> copy() { return copyRealRandomAccess(); }
+
+	@Override
+	public RealRandomAccess<FloatType> copyRealRandomAccess()
+	{
+		final BlendingRealRandomAccessLUT r = new BlendingRealRandomAccessLUT( interval, border, blending );
+		r.setPosition( this );
+		return r;
+	}
+}
@@ -0,0 +1,280 @@
+package spim.process.fusion.weights;
+
+import java.util.Date;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import spim.process.fusion.FusionHelper;
+
+/**
+ * Computes the same approximation of the local entropy as {@link ContentBased}, but with bounded memory:
+ * the input is downsampled (the sigmas are large, so the result is smooth anyways), the weights are
+ * only stored as a low-resolution grid that is linearly interpolated on access, and the input view is
+ * processed tile by tile (with enough overlap for both convolutions), so only one tile of the input
+ * view needs to be in memory at a time.
+ *
+ * @param <T>
+ */
+public class ContentBasedTiled< T extends RealType< T > > implements RealRandomAccessible< FloatType >
+{
+	/**
+	 * the sigma (in pixels of the low-resolution grid) that the smaller sigma should at least have
+	 */
+	public static double defaultMinSigmaLowRes = 4;
+
+	/**
+	 * the size of the tiles in pixels of the low-resolution grid (without overlap)
+	 */
+	public static int defaultTileSize = 64;
+
+	/**
+	 * The low-resolution grid containing the approxmimated content-based weights
+	 */
+	final Img< FloatType > grid;
+	final int n;
+
+	// downsampling factor and offset to map input coordinates into the grid
+	final int[] factor;
+	final double[] offset;
+
+	public ContentBasedTiled(
+			final RandomAccessibleInterval< T > input,
+			final double[] sigma1,
+			final double[] sigma2 )
+	{
+		this( input, sigma1, sigma2, defaultMinSigmaLowRes, defaultTileSize );
+	}
+
+	public ContentBasedTiled(
+			final RandomAccessibleInterval< T > input,
+			final double[] sigma1,
+			final double[] sigma2,
+			final double minSigmaLowRes,
+			final int tileSize )
+	{
+		this.n = input.numDimensions();
+		this.factor = new int[ n ];
+		this.offset = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			factor[ d ] = Math.max( 1, (int)Math.floor( Math.min( sigma1[ d ], sigma2[ d ] ) / minSigmaLowRes ) );
+
+			// a pixel of the grid is the average of factor pixels, its center is at (factor-1)/2
+			offset[ d ] = input.min( d ) + ( factor[ d ] - 1 ) / 2.0;
+		}
+
+		this.grid = approximateEntropy(
+				new ConvertedRandomAccessibleInterval< T, FloatType >( input, new RealFloatConverter< T >(), new FloatType() ),
+				sigma1,
+				sigma2,
+				tileSize );
+	}
+
+	public Img< FloatType > getContentBasedGrid() { return grid; }
+	public int[] getDownsampling() { return factor.clone(); }
+
+	protected Img< FloatType > approximateEntropy(
+			final RandomAccessibleInterval< FloatType > input,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int tileSize )
+	{
+		final long[] gridDim = new long[ n ];
+		final double[] s1 = new double[ n ];
+		final double[] s2 = new double[ n ];
+		final long[] overlap = new long[ n ];
+		final int[] tile = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			gridDim[ d ] = ( input.dimension( d ) + factor[ d ] - 1 ) / factor[ d ];
+			s1[ d ] = sigma1[ d ] / factor[ d ];
+			s2[ d ] = sigma2[ d ] / factor[ d ];
+
+			// both convolutions need their support
+			overlap[ d ] = (long)Math.ceil( 3 * ( s1[ d ] + s2[ d ] ) ) + 1;
+			tile[ d ] = tileSize;
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Computing content-based weights on a grid of " + Util.printCoordinates( gridDim ) + " (downsampling " + Util.printCoordinates( factor ) + ")" );
+
+		final Img< FloatType > grid = ArrayImgs.floats( gridDim );
+
+		for ( final FinalInterval core : FusionHelper.divideIntoBlocks( gridDim, tile ) )
+		{
+			// the tile including the overlap (in grid coordinates)
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = Math.max( 0, core.min( d ) - overlap[ d ] );
+				max[ d ] = Math.min( gridDim[ d ] - 1, core.max( d ) + overlap[ d ] );
+			}
+
+			final FinalInterval extended = new FinalInterval( min, max );
+			final Img< FloatType > lowRes = downsample( input, extended );
+			final Img< FloatType > conv = lowRes.copy();
+
+			try
+			{
+				// compute I*sigma1
+				Gauss3.gauss( s1, Views.extendMirrorSingle( conv ), conv );
+
+				// compute ( I - I*sigma1 )^2
+				final Cursor< FloatType > c = conv.cursor();
+				final Cursor< FloatType > i = lowRes.cursor();
+
+				while ( c.hasNext() )
+				{
+					final float diff = c.next().get() - i.next().get();
+					c.get().set( diff * diff );
+				}
+
+				// compute ( ( I - I*sigma1 )^2 ) * sigma2
+				Gauss3.gauss( s2, Views.extendMirrorSingle( conv ), conv );
+			}
+			catch ( final IncompatibleTypeException e )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Failed to compute content-based weights: " + e );
+				e.printStackTrace();
+				return grid;
+			}
+
+			// copy the core of the tile into the grid
+			final Cursor< FloatType > out = Views.flatIterable( Views.interval( grid, core ) ).cursor();
+			final Cursor< FloatType > in = Views.flatIterable( Views.interval( Views.translate( conv, min ), core ) ).cursor();
+
+			while ( out.hasNext() )
+				out.next().set( in.next() );
+		}
+
+		// normalize to [0...1]
+		FusionHelper.normalizeImage( grid );
+
+		return grid;
+	}
+
+	/**
+	 * Averages the input image in blocks of factor pixels, only the part of the input that covers the
+	 * interval of the low-resolution grid is read.
+	 *
+	 * @param input - the input image
+	 * @param interval - the interval in grid coordinates
+	 * @return - the averaged image (zero-min)
+	 */
+	protected Img< FloatType > downsample( final RandomAccessibleInterval< FloatType > input, final FinalInterval interval )
+	{
+		final long[] dim = new long[ n ];
+		final long[] inMin = new long[ n ];
+		final long[] inMax = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			dim[ d ] = interval.dimension( d );
+			inMin[ d ] = input.min( d ) + interval.min( d ) * factor[ d ];
+			inMax[ d ] = Math.min( input.max( d ), input.min( d ) + ( interval.max( d ) + 1 ) * factor[ d ] - 1 );
+		}
+
+		final Img< FloatType > lowRes = ArrayImgs.floats( dim );
+		final Img< FloatType > count = ArrayImgs.floats( dim );
+
+		final Cursor< FloatType > c = Views.iterable( Views.interval( input, inMin, inMax ) ).localizingCursor();
+		final RandomAccess< FloatType > r = lowRes.randomAccess();
+		final RandomAccess< FloatType > rc = count.randomAccess();
+
+		while ( c.hasNext() )
+		{
+			final float v = c.next().get();
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long p = ( c.getLongPosition( d ) - inMin[ d ] ) / factor[ d ];
+				r.setPosition( p, d );
+				rc.setPosition( p, d );
+			}
+
+			r.get().set( r.get().get() + v );
+			rc.get().set( rc.get().get() + 1 );
+		}
+
+		final Cursor< FloatType > l = lowRes.cursor();
+		final Cursor< FloatType > lc = count.cursor();
+
+		while ( l.hasNext() )
+		{
+			final FloatType v = l.next();
+			final float w = lc.next().get();
+
+			if ( w > 0 )
+				v.set( v.get() / w );
+		}
+
+		return lowRes;
+	}
+
+	@Override
+	public int numDimensions() { return n; }
+
+	@Override
+	public RealRandomAccess< FloatType > realRandomAccess() { return new GridRealRandomAccess(); }
+
+	@Override
+	public RealRandomAccess< FloatType > realRandomAccess( final RealInterval interval ) { return realRandomAccess(); }
+
+	/**
+	 * Maps the coordinates of the input view into the low-resolution grid and interpolates linearly
+	 */
+	protected class GridRealRandomAccess extends RealPoint implements RealRandomAccess< FloatType >
+	{
+		final RealRandomAccess< FloatType > interpolator;
+
+		public GridRealRandomAccess()
+		{
+			super( n );
+
+			this.interpolator = Views.interpolate(
+					Views.extendBorder( grid ),
+					new NLinearInterpolatorFactory< FloatType >() ).realRandomAccess();
+		}
+
+		@Override
+		public FloatType get()
+		{
+			for ( int d = 0; d < n; ++d )
+				interpolator.setPosition( ( position[ d ] - offset[ d ] ) / factor[ d ], d );
+
+			return interpolator.get();
+		}
+
+		@Override
+		public GridRealRandomAccess copy() { return copyRealRandomAccess(); }
+
+		@Override
+		public GridRealRandomAccess copyRealRandomAccess()
+		{
+			final GridRealRandomAccess r = new GridRealRandomAccess();
+			r.setPosition( this );
+			return r;
+		}
+	}
+}
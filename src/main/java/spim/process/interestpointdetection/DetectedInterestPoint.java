@@ -0,0 +1,25 @@
+package spim.process.interestpointdetection;
+
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * An interest point as returned by the detection, additionally stores the absolute value of the
+ * DoG/DoM at the point so that the detections can be thresholded again later (see {@link DetectionCache})
+ */
+public class DetectedInterestPoint extends InterestPoint
+{
+	private static final long serialVersionUID = -2381626542396441416L;
+
+	protected final float value;
+
+	public DetectedInterestPoint( final int id, final double[] l, final float value )
+	{
+		super( id, l );
+		this.value = Math.abs( value );
+	}
+
+	/**
+	 * @return - the absolute value of the DoG/DoM that was compared to the threshold
+	 */
+	public float getValue() { return value; }
+}
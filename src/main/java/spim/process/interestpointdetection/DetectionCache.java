@@ -0,0 +1,326 @@
+package spim.process.interestpointdetection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.Partition;
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
+import spim.fiji.spimdata.imgloaders.LightSheetZ1ImgLoader;
+import spim.fiji.spimdata.imgloaders.MicroManagerImgLoader;
+import spim.fiji.spimdata.imgloaders.StackImgLoader;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * An on-disk cache of detections, so that a detection that only differs by a higher threshold does not need
+ * to open the image again. One file per view and set of parameters (everything except the threshold), it contains
+ * a key of the image, the threshold the detections were computed with and all detections with their DoG/DoM value.
+ *
+ * The key of the image only consists of metadata (see {@link #imageKey(ImgLoader, ViewDescription)}): the type of
+ * the ImgLoader, the path, size and modification time of the file(s) and the view, so it can be checked without
+ * loading the image.
+ *
+ * The files are written to a temporary file first and then renamed, so several cluster jobs can share one
+ * cache directory.
+ */
+public class DetectionCache
+{
+	public static final String suffix = ".detections";
+	protected static final int version = 2;
+
+	final File directory;
+
+	/**
+	 * @param directory - the directory of the cache, is created if it does not exist
+	 */
+	public DetectionCache( final File directory )
+	{
+		this.directory = directory;
+
+		if ( !directory.exists() && !directory.mkdirs() )
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Cannot create detection cache directory '" + directory + "'" );
+	}
+
+	public File getDirectory() { return directory; }
+
+	/**
+	 * A cached detection
+	 */
+	public static class Entry
+	{
+		final String imageKey;
+		final double threshold;
+		final List< InterestPoint > points;
+
+		/**
+		 * @param imageKey - the key of the image (see {@link DetectionCache#imageKey(ImgLoader, ViewDescription)})
+		 * @param threshold - the threshold the detections were computed with
+		 * @param points - the detections, must be {@link DetectedInterestPoint}s
+		 */
+		public Entry( final String imageKey, final double threshold, final List< InterestPoint > points )
+		{
+			this.imageKey = imageKey;
+			this.threshold = threshold;
+			this.points = points;
+		}
+
+		/**
+		 * @return - the key of the image the detections were computed on
+		 */
+		public String getImageKey() { return imageKey; }
+
+		/**
+		 * @return - the threshold the detections were computed with
+		 */
+		public double getThreshold() { return threshold; }
+
+		public List< InterestPoint > getPoints() { return points; }
+
+		/**
+		 * @param threshold - the threshold
+		 * @return - true if the detections for this threshold are contained in this entry
+		 */
+		public boolean covers( final double threshold ) { return this.threshold <= threshold; }
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @param parameters - all parameters of the detection except the threshold
+	 * @return - the file of this detection in the cache
+	 */
+	public File getFile( final ViewId viewId, final String parameters )
+	{
+		return new File( directory, "tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "_" +
+				Long.toHexString( hash( parameters ) ) + suffix );
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @param parameters - all parameters of the detection except the threshold
+	 * @param imageKey - the key of the image (see {@link #imageKey(ImgLoader, ViewDescription)})
+	 * @return - the cached detection or null if there is none for this view, parameters and image
+	 */
+	public Entry load( final ViewId viewId, final String parameters, final String imageKey )
+	{
+		final File file = getFile( viewId, parameters );
+
+		if ( !file.exists() )
+			return null;
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+
+			// the hash of the parameters is only part of the filename, make sure it is the same
+			if ( in.readInt() != version || !in.readUTF().equals( parameters ) || !in.readUTF().equals( imageKey ) )
+				return null;
+
+			final double threshold = in.readDouble();
+			final int n = in.readInt();
+			final int numPoints = in.readInt();
+
+			final ArrayList< InterestPoint > points = new ArrayList< InterestPoint >( numPoints );
+
+			for ( int i = 0; i < numPoints; ++i )
+			{
+				final double[] l = new double[ n ];
+
+				for ( int d = 0; d < n; ++d )
+					l[ d ] = in.readDouble();
+
+				points.add( new DetectedInterestPoint( i, l, in.readFloat() ) );
+			}
+
+			return new Entry( imageKey, threshold, points );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Cannot read cached detections '" + file + "': " + e );
+			return null;
+		}
+		finally
+		{
+			if ( in != null )
+				try { in.close(); } catch ( final IOException e ) {}
+		}
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @param parameters - all parameters of the detection except the threshold
+	 * @param entry - the detections
+	 * @return - true if the detections were written
+	 */
+	public boolean save( final ViewId viewId, final String parameters, final Entry entry )
+	{
+		final File file = getFile( viewId, parameters );
+		final File tmp = new File( directory, file.getName() + "." + Thread.currentThread().getId() + "." + System.nanoTime() + ".tmp" );
+
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+
+			final int n = entry.points.size() == 0 ? 3 : entry.points.get( 0 ).getL().length;
+
+			out.writeInt( version );
+			out.writeUTF( parameters );
+			out.writeUTF( entry.imageKey );
+			out.writeDouble( entry.threshold );
+			out.writeInt( n );
+			out.writeInt( entry.points.size() );
+
+			for ( final InterestPoint p : entry.points )
+			{
+				for ( int d = 0; d < n; ++d )
+					out.writeDouble( p.getL()[ d ] );
+
+				out.writeFloat( ((DetectedInterestPoint)p).getValue() );
+			}
+
+			out.close();
+			out = null;
+
+			// another job might have written the same entry in the meantime
+			if ( file.exists() )
+				file.delete();
+
+			if ( !tmp.renameTo( file ) )
+			{
+				tmp.delete();
+				return false;
+			}
+
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Cannot write cached detections '" + file + "': " + e );
+			tmp.delete();
+			return false;
+		}
+		finally
+		{
+			if ( out != null )
+				try { out.close(); } catch ( final IOException e ) {}
+		}
+	}
+
+	/**
+	 * @param points - the detections, must be {@link DetectedInterestPoint}s
+	 * @param threshold - the minimal value
+	 * @param inclusive - if a value equal to the threshold is kept
+	 * @return - the detections above the threshold with new consecutive ids
+	 */
+	public static ArrayList< InterestPoint > filter( final List< ? extends InterestPoint > points, final double threshold, final boolean inclusive )
+	{
+		final ArrayList< InterestPoint > filtered = new ArrayList< InterestPoint >();
+
+		// the detection compares float values
+		final float t = (float)threshold;
+
+		int id = 0;
+
+		for ( final InterestPoint p : points )
+		{
+			final float value = ((DetectedInterestPoint)p).getValue();
+
+			if ( value > t || ( inclusive && value == t ) )
+				filtered.add( new DetectedInterestPoint( id++, p.getL().clone(), value ) );
+		}
+
+		return filtered;
+	}
+
+	/**
+	 * @param imgLoader - the ImgLoader of the dataset
+	 * @param vd - the view
+	 * @return - a key that changes if the image of the view might have changed, consisting of the type of ImgLoader,
+	 * the path, size and modification time of the file(s), the view and its dimensions; or null if the files of
+	 * this ImgLoader are not known (these views are not cached)
+	 */
+	public static String imageKey( final ImgLoader< ? > imgLoader, final ViewDescription vd )
+	{
+		final ArrayList< File > files = new ArrayList< File >();
+
+		if ( imgLoader instanceof Hdf5ImageLoader )
+		{
+			files.add( ( (Hdf5ImageLoader)imgLoader ).getHdf5File() );
+
+			final List< Partition > partitions = ( (Hdf5ImageLoader)imgLoader ).getPartitions();
+
+			if ( partitions != null )
+				for ( final Partition partition : partitions )
+					files.add( new File( partition.getPath() ) );
+		}
+		else if ( imgLoader instanceof StackImgLoader )
+		{
+			files.add( ( (StackImgLoader)imgLoader ).getFile( vd ) );
+		}
+		else if ( imgLoader instanceof LightSheetZ1ImgLoader )
+		{
+			files.add( ( (LightSheetZ1ImgLoader)imgLoader ).getCZIFile() );
+		}
+		else if ( imgLoader instanceof MicroManagerImgLoader )
+		{
+			files.add( ( (MicroManagerImgLoader)imgLoader ).getFile() );
+		}
+
+		if ( files.size() == 0 )
+			return null;
+
+		final StringBuilder key = new StringBuilder( imgLoader.getClass().getName() );
+
+		key.append( ", tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() );
+
+		for ( final File file : files )
+		{
+			if ( file == null || !file.exists() )
+				return null;
+
+			key.append( ", " + file.getAbsolutePath() + " (length=" + file.length() + ", modified=" + file.lastModified() + ")" );
+		}
+
+		if ( vd.getViewSetup().hasSize() )
+		{
+			final Dimensions size = vd.getViewSetup().getSize();
+
+			key.append( ", size=" + size.dimension( 0 ) );
+
+			for ( int d = 1; d < size.numDimensions(); ++d )
+				key.append( "x" + size.dimension( d ) );
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * @param s - a string
+	 * @return - a 64 bit hash of the string
+	 */
+	public static long hash( final String s )
+	{
+		long h = 1125899906842597L;
+
+		for ( int i = 0; i < s.length(); ++i )
+			h = 31 * h + s.charAt( i );
+
+		return h;
+	}
+}
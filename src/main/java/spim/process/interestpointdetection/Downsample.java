@@ -161,6 +161,182 @@ public class Downsample
 		return;
 	}
 
+	/**
+	 * Downsamples a 3d image by an integer factor in each dimension in a single pass. Every output pixel o is
+	 * the weighted average of the input pixels around f*o with a triangular kernel of radius f. The kernel is
+	 * cut off at the image border, and the last output pixel only averages the input pixels up to its center,
+	 * so for f=2 the result is the same as {@link #simple2x(RandomAccessibleInterval, ImgFactory)}.
+	 * The input is read exactly once plane by plane (planes at the border of two slabs twice), so no
+	 * intermediate images are created and lazily loaded images are only loaded plane by plane.
+	 * The output is computed in parallel in slabs of z-planes.
+	 *
+	 * @param input - the 3d input image
+	 * @param imgFactory - the factory for the output image
+	 * @param factor - the downsampling in each dimension (1 means none)
+	 * @return - the downsampled image, dimensions are input.dimension( d ) / factor[ d ]
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > downsample( final RandomAccessibleInterval< T > input, final ImgFactory< T > imgFactory, final int[] factor )
+	{
+		if ( factor[ 0 ] <= 1 && factor[ 1 ] <= 1 && factor[ 2 ] <= 1 )
+			return input;
+
+		final int w = (int)input.dimension( 0 );
+		final int h = (int)input.dimension( 1 );
+		final int d = (int)input.dimension( 2 );
+
+		final int fx = Math.max( 1, factor[ 0 ] );
+		final int fy = Math.max( 1, factor[ 1 ] );
+		final int fz = Math.max( 1, factor[ 2 ] );
+
+		final int ow = Math.max( 1, w / fx );
+		final int oh = Math.max( 1, h / fy );
+		final int od = Math.max( 1, d / fz );
+
+		final Img< T > output = imgFactory.create( new long[]{ ow, oh, od }, Views.iterable( input ).firstElement() );
+
+		// the kernels are separable, so are the sums of the weights at the borders
+		final double[] normX = normalization( w, ow, fx );
+		final double[] normY = normalization( h, oh, fy );
+		final double[] normZ = normalization( d, od, fz );
+
+		final RandomAccessibleInterval< T > in = Views.zeroMin( input );
+
+		// split up the output planes into slabs for multithreading
+		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( od, Math.min( od, Threads.numThreads() * 2 ) );
+
+		// set up executor service
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( final ImagePortion portion : portions )
+		{
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final int ozFrom = (int)portion.getStartPosition();
+					final int ozTo = ozFrom + (int)portion.getLoopSize();
+
+					if ( ozFrom >= ozTo )
+						return null;
+
+					final double[][] planes = new double[ ozTo - ozFrom ][ ow * oh ];
+					final double[] row = new double[ w ];
+					final double[] rowX = new double[ ow ];
+
+					final int zFrom = Math.max( 0, ozFrom * fz - fz + 1 );
+					final int zTo = Math.min( d - 1, ( ozTo - 1 ) * fz + fz - 1 );
+
+					for ( int z = zFrom; z <= zTo; ++z )
+					{
+						final Cursor< T > c = Views.flatIterable( Views.hyperSlice( in, 2, z ) ).cursor();
+
+						for ( int y = 0; y < h; ++y )
+						{
+							for ( int x = 0; x < w; ++x )
+								row[ x ] = c.next().getRealDouble();
+
+							// downsample the row in x
+							for ( int ox = 0; ox < ow; ++ox )
+							{
+								final int center = ox * fx;
+								double sum = 0;
+
+								for ( int x = Math.max( 0, center - fx + 1 ), xMax = lastInput( ox, ow, w, fx ); x <= xMax; ++x )
+									sum += ( fx - Math.abs( x - center ) ) * row[ x ];
+
+								rowX[ ox ] = sum;
+							}
+
+							// add it to all output rows and planes it contributes to
+							for ( int oz = Math.max( ozFrom, ( z + fz - 1 ) / fz - 1 ), ozMax = Math.min( ozTo - 1, ( z + fz - 1 ) / fz ); oz <= ozMax; ++oz )
+							{
+								final int wz = fz - Math.abs( z - oz * fz );
+
+								if ( wz <= 0 || z > lastInput( oz, od, d, fz ) )
+									continue;
+
+								final double[] plane = planes[ oz - ozFrom ];
+
+								for ( int oy = Math.max( 0, ( y + fy - 1 ) / fy - 1 ), oyMax = Math.min( oh - 1, ( y + fy - 1 ) / fy ); oy <= oyMax; ++oy )
+								{
+									final int wy = fy - Math.abs( y - oy * fy );
+
+									if ( wy <= 0 || y > lastInput( oy, oh, h, fy ) )
+										continue;
+
+									final double weight = wz * wy;
+									final int offset = oy * ow;
+
+									for ( int ox = 0; ox < ow; ++ox )
+										plane[ offset + ox ] += weight * rowX[ ox ];
+								}
+							}
+						}
+					}
+
+					for ( int oz = ozFrom; oz < ozTo; ++oz )
+					{
+						final double[] plane = planes[ oz - ozFrom ];
+						final Cursor< T > out = Views.flatIterable( Views.hyperSlice( output, 2, oz ) ).cursor();
+
+						for ( int oy = 0; oy < oh; ++oy )
+							for ( int ox = 0; ox < ow; ++ox )
+								out.next().setReal( plane[ oy * ow + ox ] / ( normX[ ox ] * normY[ oy ] * normZ[ oz ] ) );
+					}
+
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			taskExecutor.invokeAll( tasks );
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "Failed to compute downsampling: " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		taskExecutor.shutdown();
+
+		return output;
+	}
+
+	/**
+	 * @return - the sum of the weights of the triangular kernel for each output pixel (smaller at the borders)
+	 */
+	protected static double[] normalization( final int size, final int outSize, final int f )
+	{
+		final double[] norm = new double[ outSize ];
+
+		for ( int o = 0; o < outSize; ++o )
+		{
+			final int center = o * f;
+
+			for ( int i = Math.max( 0, center - f + 1 ), iMax = lastInput( o, outSize, size, f ); i <= iMax; ++i )
+				norm[ o ] += f - Math.abs( i - center );
+		}
+
+		return norm;
+	}
+
+	/**
+	 * @return - the last input pixel that contributes to output pixel o, the last output pixel ends at its
+	 * center (as in {@link #simple2x(RandomAccessibleInterval, RandomAccessibleInterval, int)})
+	 */
+	protected static int lastInput( final int o, final int outSize, final int size, final int f )
+	{
+		final int center = o * f;
+
+		return Math.min( size - 1, o == outSize - 1 ? center : center + f - 1 );
+	}
+
 	public static void main( String[] args )
 	{
 		final Img< FloatType > img;
@@ -2,6 +2,10 @@ package spim.process.interestpointdetection;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
@@ -10,8 +14,14 @@ import mpicbg.imglib.image.Image;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.segmentation.SimplePeak;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.view.Views;
 import spim.Threads;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.ImagePortion;
 
 public class Localization
 {
@@ -33,7 +43,7 @@ public class Localization
 				for ( int d = 0; d < n; ++d )
 					pos[ d ] = peak.location[ d ];
 				
-				peaks2.add( new InterestPoint( id++, pos ) );
+				peaks2.add( new DetectedInterestPoint( id++, pos, peak.intensity ) );
 			}
 		}
 		
@@ -41,6 +51,11 @@ public class Localization
 	}
 
 	public static ArrayList< InterestPoint > computeQuadraticLocalization( final ArrayList< SimplePeak > peaks, final Image< FloatType > domImg, final boolean findMin, final boolean findMax, final float threshold )
+	{
+		return computeQuadraticLocalization( peaks, domImg, findMin, findMax, threshold, Threads.numThreads() );
+	}
+
+	public static ArrayList< InterestPoint > computeQuadraticLocalization( final ArrayList< SimplePeak > peaks, final Image< FloatType > domImg, final boolean findMin, final boolean findMax, final float threshold, final int numThreads )
 	{
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Subpixel localization using quadratic n-dimensional fit");
 
@@ -54,7 +69,7 @@ public class Localization
 		final SubpixelLocalization<FloatType> spl = new SubpixelLocalization<FloatType>( domImg, peakList );
 		spl.setAllowMaximaTolerance( true );
 		spl.setMaxNumMoves( 10 );
-		spl.setNumThreads( Threads.numThreads() );
+		spl.setNumThreads( numThreads );
 
 		if ( !spl.checkInput() || !spl.process() )
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Warning! Failed to compute subpixel localization " + spl.getErrorMessage() );
@@ -73,18 +88,296 @@ public class Localization
 				for ( int d = 0; d < n; ++d )
 					tmp[ d ] = detection.getSubPixelPosition( d );
 
-				peaks2.add( new InterestPoint( id++, tmp ) );
+				peaks2.add( new DetectedInterestPoint( id++, tmp, detection.getValue().get() ) );
 			}
 		}
 
 		return peaks2;
 	}
 	
-	public static ArrayList< InterestPoint > computeGaussLocalization( final ArrayList< SimplePeak > peaks, final Image< FloatType > domImg, final double sigma, final boolean findMin, final boolean findMax, final float threshold )
+	/**
+	 * Localizes every peak with a gaussian mask fit (Thompson et al. 2002) on a small patch of the original
+	 * image around the peak: the position is iteratively updated to the intensity-weighted centroid under a
+	 * gaussian mask centered at the current position, after subtracting the local background. Only the
+	 * patches are read, so neither the DoG/DoM image nor a copy of the image is needed. The peaks are fitted
+	 * in parallel, every task reuses its buffers for all of its peaks.
+	 *
+	 * @param peaks - the peaks (pixel coordinates of img)
+	 * @param img - the original image
+	 * @param sigma - the sigma of the spots (in pixels)
+	 * @param findMin
+	 * @param findMax
+	 * @param threshold - the minimal absolute value of the DoG/DoM at the peak
+	 * @return
+	 */
+	public static ArrayList< InterestPoint > computeGaussLocalization(
+			final ArrayList< SimplePeak > peaks,
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > img,
+			final double sigma,
+			final boolean findMin,
+			final boolean findMax,
+			final float threshold )
+	{
+		return computeGaussLocalization( peaks, img, sigma, findMin, findMax, threshold, Threads.numThreads() );
+	}
+
+	public static ArrayList< InterestPoint > computeGaussLocalization(
+			final ArrayList< SimplePeak > peaks,
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > img,
+			final double sigma,
+			final boolean findMin,
+			final boolean findMax,
+			final float threshold,
+			final int numThreads )
 	{
-		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Subpixel localization using Gaussian Mask Localization");					
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Subpixel localization using Gaussian Mask Localization");
+
+		final ArrayList< SimplePeak > selected = new ArrayList< SimplePeak >();
+
+		for ( final SimplePeak peak : peaks )
+			if ( ( ( peak.isMax && findMax ) || ( peak.isMin && findMin ) ) && peak.intensity > threshold )
+				selected.add( peak );
+
+		final int numPeaks = selected.size();
+		final double[][] locations = new double[ numPeaks ][];
+
+		if ( numPeaks > 0 )
+		{
+			final int n = img.numDimensions();
+			final RandomAccessible< net.imglib2.type.numeric.real.FloatType > extended = Views.extendMirrorSingle( img );
+
+			final int r = Math.max( 2, (int)Math.ceil( 2 * sigma ) );
+
+			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( numPeaks, Math.min( numPeaks, numThreads * 4 ) );
+			final ExecutorService taskExecutor = Executors.newFixedThreadPool( numThreads );
+			final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+			for ( final ImagePortion portion : portions )
+			{
+				tasks.add( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						final GaussianMaskFit fit = new GaussianMaskFit( n, r, sigma );
+						final RandomAccess< net.imglib2.type.numeric.real.FloatType > ra = extended.randomAccess();
+
+						for ( int i = (int)portion.getStartPosition(); i < portion.getStartPosition() + portion.getLoopSize(); ++i )
+						{
+							final SimplePeak peak = selected.get( i );
+							locations[ i ] = fit.fit( ra, peak.location, peak.isMin && !peak.isMax );
+						}
+
+						return null;
+					}
+				});
+			}
+
+			try
+			{
+				// invokeAll() returns when all tasks are complete
+				taskExecutor.invokeAll( tasks );
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute gaussian mask localization: " + e );
+				e.printStackTrace();
+			}
+			finally
+			{
+				taskExecutor.shutdown();
+			}
+		}
+
+		final ArrayList< InterestPoint > peaks2 = new ArrayList< InterestPoint >();
+
+		int id = 0;
+
+		for ( int i = 0; i < numPeaks; ++i )
+			if ( locations[ i ] != null )
+				peaks2.add( new DetectedInterestPoint( id++, locations[ i ], selected.get( i ).intensity ) );
+
+		return peaks2;
+	}
+
+	/**
+	 * Gaussian mask fit of one peak, keeps its buffers so that it can be reused for many peaks (not thread-safe)
+	 */
+	public static class GaussianMaskFit
+	{
+		public static int maxIterations = 20;
+		public static double maxChange = 0.001;
+
+		final int n, r, size, numPixels;
+		final double twoSigmaSq;
+
+		final float[] patch;
+		final double[][] mask;
+		final long[] min;
+
+		public GaussianMaskFit( final int n, final int r, final double sigma )
+		{
+			this.n = n;
+			this.r = r;
+			this.size = 2 * r + 1;
+			this.twoSigmaSq = 2 * sigma * sigma;
+
+			int numPixels = 1;
+
+			for ( int d = 0; d < n; ++d )
+				numPixels *= size;
+
+			this.numPixels = numPixels;
+			this.patch = new float[ numPixels ];
+			this.mask = new double[ n ][ size ];
+			this.min = new long[ n ];
+		}
 
-		// TODO: implement gauss fit
-		throw new RuntimeException( "Gauss fit not implemented yet" );
-	}	
+		/**
+		 * @param ra - access to the (extended) image
+		 * @param location - the integer location of the peak
+		 * @param invert - true if the peak is dark on bright background
+		 * @return - the subpixel location (the integer location if the fit does not converge inside the patch)
+		 */
+		public double[] fit( final RandomAccess< net.imglib2.type.numeric.real.FloatType > ra, final int[] location, final boolean invert )
+		{
+			for ( int d = 0; d < n; ++d )
+				min[ d ] = location[ d ] - r;
+
+			// read the patch, x fastest
+			ra.setPosition( min );
+
+			float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+
+			for ( int i = 0; i < numPixels; ++i )
+			{
+				final float v = ra.get().get();
+				patch[ i ] = v;
+
+				lo = Math.min( lo, v );
+				hi = Math.max( hi, v );
+
+				// move to the next pixel of the patch
+				for ( int d = 0; d < n; ++d )
+				{
+					if ( ra.getLongPosition( d ) < min[ d ] + size - 1 )
+					{
+						ra.fwd( d );
+						break;
+					}
+
+					ra.setPosition( min[ d ], d );
+				}
+			}
+
+			// subtract the background
+			for ( int i = 0; i < numPixels; ++i )
+				patch[ i ] = invert ? hi - patch[ i ] : patch[ i ] - lo;
+
+			// start at the center of the patch
+			final double[] c = new double[ n ];
+			final double[] sum = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				c[ d ] = r;
+
+			for ( int it = 0; it < maxIterations; ++it )
+			{
+				// the mask is separable
+				for ( int d = 0; d < n; ++d )
+					for ( int x = 0; x < size; ++x )
+						mask[ d ][ x ] = Math.exp( -( x - c[ d ] ) * ( x - c[ d ] ) / twoSigmaSq );
+
+				double sumW = 0;
+
+				for ( int d = 0; d < n; ++d )
+					sum[ d ] = 0;
+
+				if ( n == 3 )
+				{
+					final double[] mx = mask[ 0 ], my = mask[ 1 ], mz = mask[ 2 ];
+					double sx = 0, sy = 0, sz = 0;
+					int i = 0;
+
+					for ( int z = 0; z < size; ++z )
+						for ( int y = 0; y < size; ++y )
+						{
+							final double myz = my[ y ] * mz[ z ];
+
+							for ( int x = 0; x < size; ++x )
+							{
+								final double w = patch[ i++ ] * mx[ x ] * myz;
+
+								sumW += w;
+								sx += w * x;
+								sy += w * y;
+								sz += w * z;
+							}
+						}
+
+					sum[ 0 ] = sx;
+					sum[ 1 ] = sy;
+					sum[ 2 ] = sz;
+				}
+				else
+				{
+					final int[] p = new int[ n ];
+
+					for ( int i = 0; i < numPixels; ++i )
+					{
+						double w = patch[ i ];
+
+						for ( int d = 0; d < n; ++d )
+							w *= mask[ d ][ p[ d ] ];
+
+						sumW += w;
+
+						for ( int d = 0; d < n; ++d )
+							sum[ d ] += w * p[ d ];
+
+						for ( int d = 0; d < n; ++d )
+						{
+							if ( ++p[ d ] < size )
+								break;
+
+							p[ d ] = 0;
+						}
+					}
+				}
+
+				if ( sumW <= 0 )
+					break;
+
+				double change = 0;
+
+				for ( int d = 0; d < n; ++d )
+				{
+					final double cn = sum[ d ] / sumW;
+					change = Math.max( change, Math.abs( cn - c[ d ] ) );
+					c[ d ] = cn;
+				}
+
+				if ( change < maxChange )
+					break;
+			}
+
+			final double[] l = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				// diverged, keep the integer location
+				if ( Double.isNaN( c[ d ] ) || Math.abs( c[ d ] - r ) > r )
+				{
+					for ( int e = 0; e < n; ++e )
+						l[ e ] = location[ e ];
+
+					return l;
+				}
+
+				l[ d ] = min[ d ] + c[ d ];
+			}
+
+			return l;
+		}
+	}
 }
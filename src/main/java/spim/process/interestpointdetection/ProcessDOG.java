@@ -54,6 +54,32 @@ public class ProcessDOG
 			final boolean findMax,
 			final double minIntensity,
 			final double maxIntensity )
+	{
+		return compute( cuda, deviceList, accurateCUDA, percentGPUMem, img, imglib2img, sigma, threshold, localization,
+				imageSigmaX, imageSigmaY, imageSigmaZ, findMin, findMax, minIntensity, maxIntensity, Threads.numThreads() );
+	}
+
+	/**
+	 * Same as above, using numThreads threads (e.g. if several views are detected at the same time)
+	 */
+	public static ArrayList< InterestPoint > compute(
+			final CUDASeparableConvolution cuda,
+			final List< CUDADevice > deviceList,
+			final boolean accurateCUDA,
+			final double percentGPUMem,
+			final Image< FloatType > img,
+			final Img< net.imglib2.type.numeric.real.FloatType > imglib2img,
+			final float sigma,
+			final float threshold,
+			final int localization,
+			final double imageSigmaX,
+			final double imageSigmaY,
+			final double imageSigmaZ,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity,
+			final int numThreads )
 	{
 		float initialSigma = sigma;
 		
@@ -84,24 +110,14 @@ public class ProcessDOG
 		// normalize image
 		FusionHelper.normalizeImage( imglib2img, min, max );
 
-		final float k = LaPlaceFunctions.computeK( 4 );
-		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight(k);
-		final int steps = 3;
-		
+		final float K_MIN1_INV = computeNormalizationFactor();
+
 		//
 		// Compute the Sigmas for the gaussian convolution
 		//
-		final float[] sigmaStepsX = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
-		final float[] sigmaStepsDiffX = LaPlaceFunctions.computeSigmaDiff( sigmaStepsX, (float)imageSigmaX );
-		
-		final float[] sigmaStepsY = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
-		final float[] sigmaStepsDiffY = LaPlaceFunctions.computeSigmaDiff( sigmaStepsY, (float)imageSigmaY );
-		
-		final float[] sigmaStepsZ = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
-		final float[] sigmaStepsDiffZ = LaPlaceFunctions.computeSigmaDiff( sigmaStepsZ, (float)imageSigmaZ );
-		
-		final double[] sigma1 = new double[]{ sigmaStepsDiffX[0], sigmaStepsDiffY[0], sigmaStepsDiffZ[0] };
-		final double[] sigma2 = new double[]{ sigmaStepsDiffX[1], sigmaStepsDiffY[1], sigmaStepsDiffZ[1] };
+		final double[][] sigmas = computeSigmas( initialSigma, imageSigmaX, imageSigmaY, imageSigmaZ );
+		final double[] sigma1 = sigmas[ 0 ];
+		final double[] sigma2 = sigmas[ 1 ];
 
 		// compute difference of gaussian
 		DifferenceOfGaussianNewPeakFinder dog;
@@ -112,7 +128,7 @@ public class ProcessDOG
 			dog = new DifferenceOfGaussianCUDA( cuda, percentGPUMem, deviceList, img, imglib2img, accurateCUDA, sigma1, sigma2, minInitialPeakValue, K_MIN1_INV );
 
 		dog.setComputeConvolutionsParalell( false );
-		dog.setNumThreads( Threads.numThreads() );
+		dog.setNumThreads( numThreads );
 
 		// do quadratic fit??
 		if ( localization == 1 )
@@ -159,20 +175,53 @@ public class ProcessDOG
 		}
 		else if ( localization == 1 )
 		{
-			finalPeaks = Localization.computeQuadraticLocalization( peaks, dog.getDoGImage(), findMin, findMax, minPeakValue );
+			finalPeaks = Localization.computeQuadraticLocalization( peaks, dog.getDoGImage(), findMin, findMax, minPeakValue, numThreads );
 			dog.getDoGImage().close();
 		}
 		else
 		{
-			finalPeaks = Localization.computeGaussLocalization( peaks, null, sigma, findMin, findMax, minPeakValue );
+			finalPeaks = Localization.computeGaussLocalization( peaks, imglib2img, sigma, findMin, findMax, minPeakValue, numThreads );
 		}
 		
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + finalPeaks.size() + " peaks." );
 
-		// explicitly call the garbage collection as there are some outofmemory issues when processing many timepoints
-		dog = null;
-		System.gc();
-
 		return finalPeaks;
 	}
+
+	/**
+	 * @return - the factor the difference of the two gaussian convolutions is multiplied with
+	 */
+	public static float computeNormalizationFactor()
+	{
+		return LaPlaceFunctions.computeKWeight( LaPlaceFunctions.computeK( 4 ) );
+	}
+
+	/**
+	 * Computes the sigmas of both gaussian convolutions, taking into account the sigma the image already has
+	 *
+	 * @param initialSigma
+	 * @param imageSigmaX
+	 * @param imageSigmaY
+	 * @param imageSigmaZ
+	 * @return - { sigma1, sigma2 }
+	 */
+	public static double[][] computeSigmas( final float initialSigma, final double imageSigmaX, final double imageSigmaY, final double imageSigmaZ )
+	{
+		final float k = LaPlaceFunctions.computeK( 4 );
+		final int steps = 3;
+
+		final float[] sigmaStepsX = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffX = LaPlaceFunctions.computeSigmaDiff( sigmaStepsX, (float)imageSigmaX );
+		
+		final float[] sigmaStepsY = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffY = LaPlaceFunctions.computeSigmaDiff( sigmaStepsY, (float)imageSigmaY );
+		
+		final float[] sigmaStepsZ = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffZ = LaPlaceFunctions.computeSigmaDiff( sigmaStepsZ, (float)imageSigmaZ );
+		
+		final double[] sigma1 = new double[]{ sigmaStepsDiffX[0], sigmaStepsDiffY[0], sigmaStepsDiffZ[0] };
+		final double[] sigma2 = new double[]{ sigmaStepsDiffX[1], sigmaStepsDiffY[1], sigmaStepsDiffZ[1] };
+
+		return new double[][]{ sigma1, sigma2 };
+	}
 }
@@ -0,0 +1,359 @@
+package spim.process.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.algorithm.scalespace.SubpixelLocalization;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.wrapper.ImgLib2;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.segmentation.PeakFinder3d;
+import mpicbg.spim.segmentation.PeakFinder3d.Peaks;
+import mpicbg.spim.segmentation.SimplePeak;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.fusion.FusionHelper;
+
+/**
+ * Computes the same detections as {@link ProcessDOG} (CPU), but block by block so that a view never needs
+ * to be in memory as a whole. Every block is read through the (possibly lazily loading) input image with a
+ * halo that covers the support of the gaussian convolutions (3 sigma) and the neighborhood required for the
+ * peak detection and the quadratic fit. The blocks are processed in parallel, a peak is only kept by the
+ * block whose core contains it, so peaks that are found again in the halo of a neighboring block are dropped.
+ * The input can be of any real type, every block is converted to float when it is read.
+ */
+public class ProcessDOGBlockwise
+{
+	/**
+	 * the size of the blocks (without halo)
+	 */
+	public static int[] defaultBlockSize = new int[]{ 256, 256, 128 };
+
+	/**
+	 * @param input - the image (is not modified), e.g. the lazily loaded cells of an ImgLoader
+	 * @param presmoothSigma - additional smoothing before the detection, null or zero for none
+	 * @param sigma
+	 * @param threshold
+	 * @param localization - 0 (none), 1 (quadratic fit), 2 (gaussian mask)
+	 * @param imageSigmaX
+	 * @param imageSigmaY
+	 * @param imageSigmaZ
+	 * @param findMin
+	 * @param findMax
+	 * @param minIntensity
+	 * @param maxIntensity
+	 * @param blockSize - the size of the blocks (without halo)
+	 * @param numThreads - how many blocks are processed at the same time
+	 * @return - the detections
+	 */
+	public static < T extends RealType< T > > ArrayList< InterestPoint > compute(
+			final RandomAccessibleInterval< T > input,
+			final double[] presmoothSigma,
+			final float sigma,
+			final float threshold,
+			final int localization,
+			final double imageSigmaX,
+			final double imageSigmaY,
+			final double imageSigmaZ,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity,
+			final int[] blockSize,
+			final int numThreads )
+	{
+		final float minPeakValue = threshold;
+		final float minInitialPeakValue;
+
+		if ( localization == 0 )
+			minInitialPeakValue = minPeakValue;
+		else
+			minInitialPeakValue = threshold/10.0f;
+
+		final float min, max;
+
+		if ( Double.isNaN( minIntensity ) || Double.isNaN( maxIntensity ) || Double.isInfinite( minIntensity ) || Double.isInfinite( maxIntensity ) || minIntensity == maxIntensity )
+		{
+			// streams once through the image
+			final float[] minmax = FusionHelper.minMax( input );
+			min = minmax[ 0 ];
+			max = minmax[ 1 ];
+		}
+		else
+		{
+			min = (float)minIntensity;
+			max = (float)maxIntensity;
+		}
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): min intensity = " + min + ", max intensity = " + max );
+
+		final float K_MIN1_INV = ProcessDOG.computeNormalizationFactor();
+		final double[][] sigmas = ProcessDOG.computeSigmas( sigma, imageSigmaX, imageSigmaY, imageSigmaZ );
+		final double[] sigma1 = sigmas[ 0 ];
+		final double[] sigma2 = sigmas[ 1 ];
+
+		final RandomAccessibleInterval< T > img = Views.zeroMin( input );
+		final int n = img.numDimensions();
+
+		final long[] dim = new long[ n ];
+		img.dimensions( dim );
+
+		// the halos: peak neighborhood (+1 for the quadratic fit), gaussian support, presmoothing support
+		final long[] peakHalo = new long[ n ];
+		final long[] gaussHalo = new long[ n ];
+		final long[] smoothHalo = new long[ n ];
+		final boolean presmooth = presmoothSigma != null && ( presmoothSigma[ 0 ] > 0 || presmoothSigma[ 1 ] > 0 || presmoothSigma[ 2 ] > 0 );
+
+		for ( int d = 0; d < n; ++d )
+		{
+			peakHalo[ d ] = localization == 1 ? 3 : 1;
+			gaussHalo[ d ] = (long)Math.ceil( 3 * Math.max( sigma1[ d ], sigma2[ d ] ) ) + 1;
+			smoothHalo[ d ] = presmooth ? (long)Math.ceil( 3 * presmoothSigma[ d ] ) + 1 : 0;
+		}
+
+		final ArrayList< FinalInterval > blocks = FusionHelper.divideIntoBlocks( dim, blockSize );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): computing difference-of-gausian blockwise (sigma=" + sigma + ", " +
+				"threshold=" + minPeakValue + ", sigma1=" + Util.printCoordinates( sigma1 ) + ", sigma2=" + Util.printCoordinates( sigma2 ) + ", " +
+				blocks.size() + " blocks of " + Util.printCoordinates( blockSize ) + ")" );
+
+		final ArrayList< Callable< List< double[] > > > tasks = new ArrayList< Callable< List< double[] > > >();
+
+		for ( final FinalInterval core : blocks )
+		{
+			tasks.add( new Callable< List< double[] > >()
+			{
+				@Override
+				public List< double[] > call() throws Exception
+				{
+					return processBlock(
+							img, dim, core, peakHalo, gaussHalo, smoothHalo, presmooth ? presmoothSigma : null, min, max,
+							sigma1, sigma2, K_MIN1_INV, minInitialPeakValue, minPeakValue, localization, findMin, findMax );
+				}
+			});
+		}
+
+		final ArrayList< double[] > locations = new ArrayList< double[] >();
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( numThreads );
+
+		try
+		{
+			// the blocks are appended in order, so the ids do not depend on the scheduling
+			for ( final Future< List< double[] > > future : taskExecutor.invokeAll( tasks ) )
+				locations.addAll( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Failed to compute difference-of-gaussian blockwise: " + e, e );
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		final ArrayList< InterestPoint > finalPeaks;
+
+		if ( localization == 2 )
+		{
+			final ArrayList< SimplePeak > peaks = new ArrayList< SimplePeak >();
+
+			for ( final double[] l : locations )
+				peaks.add( new SimplePeak( new int[]{ (int)l[ 0 ] + (int)input.min( 0 ), (int)l[ 1 ] + (int)input.min( 1 ), (int)l[ 2 ] + (int)input.min( 2 ) }, (float)l[ 3 ], l[ 4 ] == 0, l[ 4 ] != 0 ) );
+
+			// the fit only reads small patches around the peaks from the original image
+			finalPeaks = Localization.computeGaussLocalization(
+					peaks, new ConvertedRandomAccessibleInterval< T, FloatType >( input, new RealFloatConverter< T >(), new FloatType() ),
+					sigma, findMin, findMax, minPeakValue, numThreads );
+		}
+		else
+		{
+			finalPeaks = new ArrayList< InterestPoint >();
+
+			int id = 0;
+
+			for ( final double[] l : locations )
+				finalPeaks.add( new DetectedInterestPoint( id++, new double[]{ l[ 0 ] + input.min( 0 ), l[ 1 ] + input.min( 1 ), l[ 2 ] + input.min( 2 ) }, (float)l[ 3 ] ) );
+		}
+
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + finalPeaks.size() + " peaks." );
+
+		return finalPeaks;
+	}
+
+	/**
+	 * Detects and localizes the peaks in the core of one block
+	 *
+	 * @return - the locations (zero-min coordinates) followed by the absolute DoG value (and for localization 0 and 2 whether it is a maximum), { x, y, z, value, isMax }
+	 */
+	protected static < T extends RealType< T > > List< double[] > processBlock(
+			final RandomAccessibleInterval< T > img,
+			final long[] dim,
+			final Interval core,
+			final long[] peakHalo,
+			final long[] gaussHalo,
+			final long[] smoothHalo,
+			final double[] presmoothSigma,
+			final float min,
+			final float max,
+			final double[] sigma1,
+			final double[] sigma2,
+			final float normalization,
+			final float minInitialPeakValue,
+			final float minPeakValue,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax ) throws Exception
+	{
+		final Interval dogInterval = expand( core, peakHalo );
+		final Interval smoothInterval = expand( dogInterval, gaussHalo );
+		final Interval readInterval = expand( smoothInterval, smoothHalo );
+
+		// read, convert and normalize the block, outside of the image it is mirrored as for the whole image
+		final Img< FloatType > block = ArrayImgs.floats( dimensions( readInterval ) );
+		final RandomAccessibleInterval< FloatType > blockView = Views.translate( block, min( readInterval ) );
+
+		final Cursor< T > in = Views.flatIterable( Views.interval( Views.extendMirrorSingle( img ), readInterval ) ).cursor();
+		final Cursor< FloatType > out = block.cursor();
+		final float diff = max - min;
+
+		while ( out.hasNext() )
+			out.next().set( ( in.next().getRealFloat() - min ) / diff );
+
+		RandomAccessibleInterval< FloatType > source = blockView;
+
+		if ( presmoothSigma != null )
+		{
+			final RandomAccessibleInterval< FloatType > smoothed = Views.translate( ArrayImgs.floats( dimensions( smoothInterval ) ), min( smoothInterval ) );
+			Gauss3.gauss( presmoothSigma, Views.extendMirrorSingle( blockView ), smoothed, 1 );
+			source = smoothed;
+		}
+
+		final long[] dogDim = dimensions( dogInterval );
+		final float[] dog = new float[ (int)( dogDim[ 0 ] * dogDim[ 1 ] * dogDim[ 2 ] ) ];
+		final Img< FloatType > gauss1 = ArrayImgs.floats( dogDim );
+		final Img< FloatType > gauss2 = ArrayImgs.floats( dog, dogDim );
+
+		Gauss3.gauss( sigma1, Views.extendMirrorSingle( source ), Views.translate( gauss1, min( dogInterval ) ), 1 );
+		Gauss3.gauss( sigma2, Views.extendMirrorSingle( source ), Views.translate( gauss2, min( dogInterval ) ), 1 );
+
+		// the difference of gaussian, in place in gauss2
+		final Cursor< FloatType > c1 = gauss1.cursor();
+		final Cursor< FloatType > c2 = gauss2.cursor();
+
+		while ( c2.hasNext() )
+		{
+			final FloatType t = c2.next();
+			t.set( ( t.get() - c1.next().get() ) * normalization );
+		}
+
+		final Peaks peaks = PeakFinder3d.findPeaks( dog, (int)dogDim[ 0 ], (int)dogDim[ 1 ], (int)dogDim[ 2 ], minInitialPeakValue, 1 );
+
+		// only keep the peaks in the core, the outermost pixels of the image cannot be peaks
+		final ArrayList< DifferenceOfGaussianPeak< mpicbg.imglib.type.numeric.real.FloatType > > peakList =
+				new ArrayList< DifferenceOfGaussianPeak< mpicbg.imglib.type.numeric.real.FloatType > >();
+
+		final ArrayList< double[] > locations = new ArrayList< double[] >();
+		final long[] offset = min( dogInterval );
+		final int[] l = new int[ 3 ];
+
+Peaks:	for ( int i = 0; i < peaks.size(); ++i )
+		{
+			if ( !( ( peaks.isMax( i ) && findMax ) || ( peaks.isMin( i ) && findMin ) ) )
+				continue;
+
+			l[ 0 ] = peaks.getX( i );
+			l[ 1 ] = peaks.getY( i );
+			l[ 2 ] = peaks.getZ( i );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				final long g = l[ d ] + offset[ d ];
+
+				if ( g < core.min( d ) || g > core.max( d ) || g < 1 || g > dim[ d ] - 2 )
+					continue Peaks;
+			}
+
+			if ( localization == 1 )
+				peakList.add( new DifferenceOfGaussianPeak< mpicbg.imglib.type.numeric.real.FloatType >(
+						l, new mpicbg.imglib.type.numeric.real.FloatType( peaks.getIntensity( i ) ), SpecialPoint.MAX ) );
+			else
+				locations.add( new double[]{ l[ 0 ] + offset[ 0 ], l[ 1 ] + offset[ 1 ], l[ 2 ] + offset[ 2 ], peaks.getIntensity( i ), peaks.isMax( i ) ? 1 : 0 } );
+		}
+
+		if ( localization != 1 || peakList.size() == 0 )
+			return locations;
+
+		final Image< mpicbg.imglib.type.numeric.real.FloatType > dogImg = ImgLib2.wrapFloatToImgLib1( gauss2 );
+
+		final SubpixelLocalization< mpicbg.imglib.type.numeric.real.FloatType > spl =
+				new SubpixelLocalization< mpicbg.imglib.type.numeric.real.FloatType >( dogImg, peakList );
+		spl.setAllowMaximaTolerance( true );
+		spl.setMaxNumMoves( 10 );
+		spl.setNumThreads( 1 );
+
+		if ( !spl.checkInput() || !spl.process() )
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Warning! Failed to compute subpixel localization " + spl.getErrorMessage() );
+
+		for ( final DifferenceOfGaussianPeak< mpicbg.imglib.type.numeric.real.FloatType > detection : peakList )
+		{
+			final float value = detection.getValue().get();
+
+			if ( Math.abs( value ) > minPeakValue )
+				locations.add( new double[]{
+						detection.getSubPixelPosition( 0 ) + offset[ 0 ],
+						detection.getSubPixelPosition( 1 ) + offset[ 1 ],
+						detection.getSubPixelPosition( 2 ) + offset[ 2 ],
+						Math.abs( value ) } );
+		}
+
+		return locations;
+	}
+
+	protected static FinalInterval expand( final Interval interval, final long[] border )
+	{
+		final int n = interval.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = interval.min( d ) - border[ d ];
+			max[ d ] = interval.max( d ) + border[ d ];
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	protected static long[] min( final Interval interval )
+	{
+		final long[] min = new long[ interval.numDimensions() ];
+		interval.min( min );
+		return min;
+	}
+
+	protected static long[] dimensions( final Interval interval )
+	{
+		final long[] dim = new long[ interval.numDimensions() ];
+		interval.dimensions( dim );
+		return dim;
+	}
+}
@@ -8,10 +8,12 @@ import mpicbg.imglib.type.numeric.integer.LongType;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.segmentation.DOM;
+import mpicbg.spim.segmentation.DifferenceOfMeanStreaming;
 import mpicbg.spim.segmentation.IntegralImage3d;
 import mpicbg.spim.segmentation.InteractiveIntegral;
 import mpicbg.spim.segmentation.SimplePeak;
 import net.imglib2.img.Img;
+import spim.Threads;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.fusion.FusionHelper;
 
@@ -48,8 +50,29 @@ public class ProcessDOM
 			final double minIntensity,
 			final double maxIntensity )
 	{
-		final Image< LongType > integralImg = IntegralImage3d.compute( img );
+		return compute( img, imglib2img, radius1, radius2, threshold, localization, imageSigmaX, imageSigmaY, imageSigmaZ,
+				findMin, findMax, minIntensity, maxIntensity, Threads.numThreads() );
+	}
 
+	/**
+	 * Same as above, using numThreads threads (e.g. if several views are detected at the same time)
+	 */
+	public static ArrayList< InterestPoint > compute(
+			final Image< FloatType > img,
+			final Img< net.imglib2.type.numeric.real.FloatType > imglib2img,
+			final int radius1,
+			final int radius2,
+			final float threshold,
+			final int localization,
+			final double imageSigmaX,
+			final double imageSigmaY,
+			final double imageSigmaZ,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity,
+			final int numThreads )
+	{
 		final float min, max;
 
 		if ( Double.isNaN( minIntensity ) || Double.isNaN( maxIntensity ) || Double.isInfinite( minIntensity ) || Double.isInfinite( maxIntensity ) || minIntensity == maxIntensity )
@@ -88,27 +111,45 @@ public class ProcessDOM
 		else
 		{
 			domImg = img;
-			for ( final FloatType tt : img )
-				tt.setZero();
 		}
 		
-		DOM.computeDifferencOfMean3d( integralImg, domImg, sX1, sY1, sZ1, sX2, sY2, sZ2, min, max );
+		final ArrayList< SimplePeak > peaks;
 
-		// close integral img
-		integralImg.close();
-		
-		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Extracting peaks (radius=" + radius1 + ", threshold=" + threshold + ")");					
+		if ( DifferenceOfMeanStreaming.isCompatible( img ) )
+		{
+			// streams over z-slabs of the float array and finds the peaks in the same pass, no integral image needed;
+			// every plane of domImg is written completely, also in-place
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Extracting peaks (radius=" + radius1 + ", threshold=" + threshold + ")");
+
+			peaks = DifferenceOfMeanStreaming.compute( img, domImg, sX1, sY1, sZ1, sX2, sY2, sZ2, min, max, threshold, numThreads ).toSimplePeaks();
+		}
+		else
+		{
+			final Image< LongType > integralImg = IntegralImage3d.compute( img );
+
+			if ( domImg == img )
+				for ( final FloatType tt : img )
+					tt.setZero();
+
+			DOM.computeDifferencOfMean3d( integralImg, domImg, sX1, sY1, sZ1, sX2, sY2, sZ2, min, max, numThreads );
+
+			// close integral img
+			integralImg.close();
+
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Extracting peaks (radius=" + radius1 + ", threshold=" + threshold + ")");
+
+			// compute the maxima/minima
+			peaks = InteractiveIntegral.findPeaks( domImg, threshold );
+		}
 
-		// compute the maxima/minima
-		final ArrayList< SimplePeak > peaks = InteractiveIntegral.findPeaks( domImg, threshold );
 		final ArrayList< InterestPoint > finalPeaks;
 		
 		if ( localization == 0 )
 			finalPeaks = Localization.noLocalization( peaks, findMin, findMax );
 		else if ( localization == 1 )
-			finalPeaks = Localization.computeQuadraticLocalization( peaks, domImg, findMin, findMax, threshold );
+			finalPeaks = Localization.computeQuadraticLocalization( peaks, domImg, findMin, findMax, threshold, numThreads );
 		else
-			finalPeaks = Localization.computeGaussLocalization( peaks, domImg, ( radius2 + radius1 )/2.0, findMin, findMax, threshold );
+			finalPeaks = Localization.computeGaussLocalization( peaks, imglib2img, ( radius2 + radius1 )/2.0, findMin, findMax, threshold, numThreads );
 
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + finalPeaks.size() + " peaks." );
 		
@@ -0,0 +1,66 @@
+package spim.process.interestpointregistration;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Computes the descriptors of each {@link PointCloud} (i.e. of each view in one registration) only once and
+ * shares them between all pairwise matchings of this view, which may run in parallel. The descriptors must not
+ * be modified by the matching.
+ *
+ * The point clouds are weak keys, the descriptors are dropped together with the view pairs of a registration.
+ *
+ * @param <D> - the descriptors of one point cloud
+ */
+public abstract class DescriptorCache< D >
+{
+	final Map< PointCloud, Entry< D > > cache = new WeakHashMap< PointCloud, Entry< D > >();
+
+	static class Entry< D >
+	{
+		D descriptors = null;
+	}
+
+	/**
+	 * @param cloud - the points
+	 * @return - the descriptors of the points, computed by the first thread that asks for them
+	 */
+	public D get( final PointCloud cloud )
+	{
+		Entry< D > entry;
+
+		synchronized ( cache )
+		{
+			entry = cache.get( cloud );
+
+			if ( entry == null )
+			{
+				entry = new Entry< D >();
+				cache.put( cloud, entry );
+			}
+		}
+
+		// other views can compute their descriptors meanwhile
+		synchronized ( entry )
+		{
+			if ( entry.descriptors == null )
+				entry.descriptors = create( cloud );
+
+			return entry.descriptors;
+		}
+	}
+
+	public void clear()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+		}
+	}
+
+	/**
+	 * @param cloud - the points
+	 * @return - the descriptors of the points
+	 */
+	protected abstract D create( final PointCloud cloud );
+}
@@ -0,0 +1,159 @@
+package spim.process.interestpointregistration;
+
+/**
+ * A balanced KD-tree over n-dimensional points stored in one flat array (point i, dimension d at i * n + d),
+ * implicit like {@link PointCloudKDTree}: one permutation of the indices, the median of each range is the node.
+ *
+ * Searches do not modify the tree, several threads can query the same tree concurrently.
+ */
+public class FlatKDTree
+{
+	final double[] coordinates;
+	final int n, size;
+	final int[] tree;
+
+	/**
+	 * @param coordinates - the locations, point i in dimension d is at i * numDimensions + d (not copied)
+	 * @param numDimensions - the dimensionality of the points
+	 */
+	public FlatKDTree( final double[] coordinates, final int numDimensions )
+	{
+		this.coordinates = coordinates;
+		this.n = numDimensions;
+		this.size = coordinates.length / numDimensions;
+		this.tree = new int[ size ];
+
+		for ( int i = 0; i < size; ++i )
+			tree[ i ] = i;
+
+		build( 0, size, 0 );
+	}
+
+	public int size() { return size; }
+	public int numDimensions() { return n; }
+	public double get( final int i, final int d ) { return coordinates[ i * n + d ]; }
+
+	protected void build( final int lo, final int hi, final int depth )
+	{
+		if ( hi - lo <= 1 )
+			return;
+
+		final int d = depth % n;
+		final int m = ( lo + hi ) >>> 1;
+
+		select( lo, hi - 1, m, d );
+
+		build( lo, m, depth + 1 );
+		build( m + 1, hi, depth + 1 );
+	}
+
+	protected void select( int left, int right, final int k, final int d )
+	{
+		while ( right > left )
+		{
+			final double pivot = get( tree[ ( left + right ) >>> 1 ], d );
+
+			int i = left;
+			int j = right;
+
+			while ( i <= j )
+			{
+				while ( get( tree[ i ], d ) < pivot )
+					++i;
+
+				while ( get( tree[ j ], d ) > pivot )
+					--j;
+
+				if ( i <= j )
+				{
+					final int tmp = tree[ i ];
+					tree[ i ] = tree[ j ];
+					tree[ j ] = tmp;
+					++i;
+					--j;
+				}
+			}
+
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * @param query - the query location
+	 * @param k - the number of neighbors
+	 * @param indices - array of at least size k, filled with the indices of the neighbors sorted by distance
+	 * @param squareDistances - array of at least size k, filled with the squared distances of the neighbors
+	 * @return - the number of neighbors found, smaller than k if there are fewer points
+	 */
+	public int findNearestNeighbors( final double[] query, final int k, final int[] indices, final double[] squareDistances )
+	{
+		if ( k <= 0 )
+			return 0;
+
+		return search( 0, size, 0, query, k, indices, squareDistances, 0 );
+	}
+
+	protected int search(
+			final int lo, final int hi, final int depth,
+			final double[] query,
+			final int k,
+			final int[] indices,
+			final double[] squareDistances,
+			int count )
+	{
+		if ( hi <= lo )
+			return count;
+
+		final int m = ( lo + hi ) >>> 1;
+		final int p = tree[ m ];
+
+		double dist = 0;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final double diff = get( p, d ) - query[ d ];
+			dist += diff * diff;
+		}
+
+		if ( count < k || dist < squareDistances[ k - 1 ] )
+		{
+			// insert sorted, k is small
+			int j = count < k ? count++ : k - 1;
+
+			while ( j > 0 && squareDistances[ j - 1 ] > dist )
+			{
+				indices[ j ] = indices[ j - 1 ];
+				squareDistances[ j ] = squareDistances[ j - 1 ];
+				--j;
+			}
+
+			indices[ j ] = p;
+			squareDistances[ j ] = dist;
+		}
+
+		final int d = depth % n;
+		final double diff = query[ d ] - get( p, d );
+
+		if ( diff < 0 )
+		{
+			count = search( lo, m, depth + 1, query, k, indices, squareDistances, count );
+
+			if ( count < k || diff * diff < squareDistances[ k - 1 ] )
+				count = search( m + 1, hi, depth + 1, query, k, indices, squareDistances, count );
+		}
+		else
+		{
+			count = search( m + 1, hi, depth + 1, query, k, indices, squareDistances, count );
+
+			if ( count < k || diff * diff < squareDistances[ k - 1 ] )
+				count = search( lo, m, depth + 1, query, k, indices, squareDistances, count );
+		}
+
+		return count;
+	}
+}
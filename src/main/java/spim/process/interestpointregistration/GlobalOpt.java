@@ -71,13 +71,40 @@ public class GlobalOpt
 		// now perform the global optimization
 		try 
 		{
-			int unaligned = tc.preAlign().size();
-			if ( unaligned > 0 )
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): pre-aligned all tiles but " + unaligned );
+			final double avgError, minError, maxError;
+
+			if ( registrationType.useSparseSolver() && SparseGlobalOpt.isSupported( model ) )
+			{
+				// solve for all tiles at once
+				final SparseGlobalOpt< M > solver = new SparseGlobalOpt< M >( tc );
+
+				for ( final PairwiseMatch pair : pairs )
+					solver.addMatches( pair.getInliers(), map.get( pair.getViewIdA() ), map.get( pair.getViewIdB() ) );
+
+				solver.optimize();
+
+				avgError = solver.getError();
+				minError = solver.getMinError();
+				maxError = solver.getMaxError();
+			}
 			else
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): prealigned all tiles" );
-			
-			tc.optimize( 10, 10000, 200 );
+			{
+				if ( registrationType.useSparseSolver() )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Sparse global optimization does not support " +
+							model.getClass().getSimpleName() + ", using the iterative optimization." );
+
+				int unaligned = tc.preAlign().size();
+				if ( unaligned > 0 )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): pre-aligned all tiles but " + unaligned );
+				else
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): prealigned all tiles" );
+				
+				tc.optimize( 10, 10000, 200 );
+
+				avgError = tc.getError();
+				minError = tc.getMinError();
+				maxError = tc.getMaxError();
+			}
 			
 			if ( considerTimePointsAsUnit )
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Global optimization of " + 
@@ -85,9 +112,9 @@ public class GlobalOpt
 			else
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Global optimization of " + 
 					tc.getTiles().size() +  " view-tiles (Model=" + model.getClass().getSimpleName()  + "):" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Avg Error: " + tc.getError() + "px" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Min Error: " + tc.getMinError() + "px" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Max Error: " + tc.getMaxError() + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Avg Error: " + avgError + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Min Error: " + minError + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Max Error: " + maxError + "px" );
 		}
 		catch (NotEnoughDataPointsException e)
 		{
@@ -12,15 +12,25 @@ import spim.fiji.spimdata.interestpoints.InterestPoint;
  */
 public class MatchPointList
 {
-	final List< InterestPoint > interestpointList;
+	final PointCloud pointCloud;
 	final ChannelProcess channel;
 	
-	public MatchPointList( final List< InterestPoint > interestpointList, final ChannelProcess channel )
+	public MatchPointList( final PointCloud pointCloud, final ChannelProcess channel )
 	{
-		this.interestpointList = interestpointList;
+		this.pointCloud = pointCloud;
 		this.channel = channel;
 	}
-	
-	public List< InterestPoint > getInterestpointList() { return interestpointList; }
+
+	public MatchPointList( final List< InterestPoint > interestpointList, final ChannelProcess channel )
+	{
+		this( PointCloud.fromInterestPoints( interestpointList, null ), channel );
+	}
+
+	public PointCloud getPointCloud() { return pointCloud; }
+
+	/**
+	 * @return - a view on the point cloud, every access creates a new {@link InterestPoint}
+	 */
+	public List< InterestPoint > getInterestpointList() { return pointCloud.asInterestPoints(); }
 	public ChannelProcess getChannelProcessed() { return channel; }
 }
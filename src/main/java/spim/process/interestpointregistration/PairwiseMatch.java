@@ -29,6 +29,8 @@ public class PairwiseMatch
 	public ChannelProcess getChannelProcessedB() { return listB.getChannelProcessed(); }
 	public List< InterestPoint > getListA() { return listA.getInterestpointList(); }
 	public List< InterestPoint > getListB() { return listB.getInterestpointList(); }
+	public PointCloud getPointCloudA() { return listA.getPointCloud(); }
+	public PointCloud getPointCloudB() { return listB.getPointCloud(); }
 	public ViewId getViewIdA() { return viewIdA; }
 	public ViewId getViewIdB() { return viewIdB; }
 	public int getNumInliers() { return inliers.size(); }
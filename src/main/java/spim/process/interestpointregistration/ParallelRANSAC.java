@@ -0,0 +1,583 @@
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.PointMatch;
+
+/**
+ * RANSAC on the primitive coordinates of the candidates. Hypotheses are drawn and scored by several threads,
+ * each with its own copy of the model. The number of hypotheses adapts to the best inlier ratio found so far
+ * (the standard bound for finding one all-inlier sample with a certain confidence), the given number of
+ * iterations is only the maximum.
+ *
+ * The result is reproducible and does not depend on the number of threads: the sample of hypothesis h is drawn
+ * from a random generator seeded with h, the hypotheses are scored in rounds after which the best one and the
+ * number of hypotheses are updated, and among equally good hypotheses the one with the lowest h wins.
+ *
+ * If the candidates are sorted by quality (best descriptor match first), the samples are drawn PROSAC-style
+ * from a set that starts with the best candidates and grows until it contains all of them.
+ *
+ * The candidates are never modified (no PointMatch.apply), so they can share their points with other pairs.
+ */
+public class ParallelRANSAC
+{
+	// the probability to draw at least one sample that consists only of inliers
+	public static double confidence = 0.99;
+
+	// the filter keeps inliers with a residual of at most maxTrust * median (as Model.filter)
+	public static double maxTrust = 4.0;
+
+	// how many hypotheses are scored between two updates of the best hypothesis
+	public static int hypothesesPerRound = 256;
+
+	// the seed of the random samples
+	public static long seed = 69997;
+
+	final List< ? extends PointMatch > candidates;
+	final Model< ? > model;
+	final int numThreads;
+	final int n, s;
+
+	// p: local coordinates of the first points, q: world coordinates of the second points (what Model.fit uses)
+	final double[] p, q;
+
+	// the hypothesis number at which the PROSAC sampling set grows to a certain size
+	int[] prosacSchedule = null;
+
+	int[] inliers = new int[ 0 ];
+	int numIterations = 0;
+	double error = Double.NaN;
+
+	// best hypothesis so far
+	int bestNumInliers;
+	double bestCost;
+	int[] bestSample;
+	int bestHypothesis;
+	int limit;
+
+	/**
+	 * @param candidates - the correspondence candidates
+	 * @param model - the model, it is set to the final fit
+	 * @param numThreads - how many threads draw hypotheses, 1 runs on the calling thread (e.g. if the pairs are
+	 * already matched in parallel)
+	 */
+	public ParallelRANSAC( final List< ? extends PointMatch > candidates, final Model< ? > model, final int numThreads )
+	{
+		this.candidates = candidates;
+		this.model = model;
+		this.numThreads = Math.max( 1, numThreads );
+		this.n = candidates.size();
+		this.s = model.getMinNumMatches();
+
+		this.p = new double[ n * 3 ];
+		this.q = new double[ n * 3 ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final double[] l = candidates.get( i ).getP1().getL();
+			final double[] w = candidates.get( i ).getP2().getW();
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				p[ i * 3 + d ] = l[ d ];
+				q[ i * 3 + d ] = w[ d ];
+			}
+		}
+	}
+
+	/**
+	 * Finds the model with the most inliers and refines it by iteratively fitting to all inliers and
+	 * removing outliers (like Model.filterRansac)
+	 *
+	 * @param maxIterations - the maximal number of hypotheses
+	 * @param epsilon - the maximal residual of an inlier
+	 * @param minInlierRatio - the minimal ratio of inliers among all candidates
+	 * @param minNumInliers - the minimal number of inliers
+	 * @param sortedByQuality - if the candidates are sorted by quality (enables PROSAC sampling)
+	 * @return - true if a model was found
+	 * @throws NotEnoughDataPointsException
+	 */
+	public boolean filterRansac(
+			final int maxIterations,
+			final double epsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final boolean sortedByQuality ) throws NotEnoughDataPointsException
+	{
+		if ( n < s )
+			throw new NotEnoughDataPointsException( n + " data points are not enough to solve the Model, at least " + s + " data points required." );
+
+		if ( !ransac( maxIterations, epsilon, minInlierRatio, minNumInliers, sortedByQuality ) )
+			return false;
+
+		return filter( minNumInliers );
+	}
+
+	protected boolean ransac(
+			final int maxIterations,
+			final double epsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final boolean sortedByQuality )
+	{
+		this.prosacSchedule = sortedByQuality ? prosacSchedule( n, s, maxIterations ) : null;
+
+		this.bestNumInliers = 0;
+		this.bestCost = Double.MAX_VALUE;
+		this.bestSample = null;
+		this.bestHypothesis = -1;
+		this.limit = maxIterations;
+
+		final double sqEpsilon = epsilon * epsilon;
+
+		// no pool if there is only one thread, e.g. if the pairs are already matched in parallel
+		final ExecutorService taskExecutor = numThreads > 1 ? Executors.newFixedThreadPool( numThreads ) : null;
+
+		int start = 0;
+
+		try
+		{
+			while ( start < limit )
+			{
+				final int end = Math.min( limit, start + hypothesesPerRound );
+				final ArrayList< Callable< Hypothesis > > tasks = new ArrayList< Callable< Hypothesis > >();
+
+				for ( int t = 0; t < numThreads; ++t )
+					tasks.add( scoreHypotheses( start + t, end, numThreads, sqEpsilon, minInlierRatio, minNumInliers ) );
+
+				final ArrayList< Hypothesis > results = new ArrayList< Hypothesis >( numThreads );
+
+				if ( taskExecutor == null )
+				{
+					results.add( tasks.get( 0 ).call() );
+				}
+				else
+				{
+					for ( final Future< Hypothesis > future : taskExecutor.invokeAll( tasks ) )
+						results.add( future.get() );
+				}
+
+				for ( final Hypothesis hypothesis : results )
+				{
+					if ( hypothesis != null && hypothesis.isBetter( bestNumInliers, bestCost, bestHypothesis ) )
+					{
+						bestNumInliers = hypothesis.numInliers;
+						bestCost = hypothesis.cost;
+						bestSample = hypothesis.sample;
+						bestHypothesis = hypothesis.h;
+					}
+				}
+
+				if ( bestSample != null )
+					limit = Math.min( limit, adaptiveNumIterations( bestNumInliers, n, s, maxIterations ) );
+
+				start = end;
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "RANSAC interrupted: " + e, e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( "RANSAC failed: " + e.getCause(), e.getCause() );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "RANSAC failed: " + e, e );
+		}
+		finally
+		{
+			if ( taskExecutor != null )
+				taskExecutor.shutdown();
+		}
+
+		this.numIterations = start;
+
+		if ( bestSample == null )
+			return false;
+
+		// the fit is deterministic, refitting the best sample gives the best hypothesis
+		final ArrayList< PointMatch > sampleMatches = new ArrayList< PointMatch >( s );
+
+		for ( final int i : bestSample )
+			sampleMatches.add( candidates.get( i ) );
+
+		try
+		{
+			model.fit( sampleMatches );
+		}
+		catch ( final Exception e )
+		{
+			return false;
+		}
+
+		final double[] l = new double[ 3 ];
+		final int[] tmp = new int[ n ];
+		int numInliers = 0;
+
+		for ( int i = 0; i < n; ++i )
+			if ( squareResidual( model, i, l ) < sqEpsilon )
+				tmp[ numInliers++ ] = i;
+
+		this.inliers = new int[ numInliers ];
+		System.arraycopy( tmp, 0, inliers, 0, numInliers );
+
+		return true;
+	}
+
+	/**
+	 * Fits the model to all inliers and removes the ones with a residual above maxTrust * median residual,
+	 * until no inlier is removed anymore (the same as Model.filter)
+	 *
+	 * @param minNumInliers - the minimal number of inliers
+	 * @return - true if enough inliers remain
+	 */
+	protected boolean filter( final int minNumInliers )
+	{
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >( inliers.length );
+		final double[] residuals = new double[ inliers.length ];
+		final double[] l = new double[ 3 ];
+
+		int[] current = inliers;
+
+		while ( true )
+		{
+			matches.clear();
+
+			for ( final int i : current )
+				matches.add( candidates.get( i ) );
+
+			try
+			{
+				model.fit( matches );
+			}
+			catch ( final Exception e )
+			{
+				return false;
+			}
+
+			double sum = 0;
+
+			for ( int j = 0; j < current.length; ++j )
+			{
+				residuals[ j ] = Math.sqrt( squareResidual( model, current[ j ], l ) );
+				sum += residuals[ j ];
+			}
+
+			final double mean = sum / current.length;
+			final double threshold = maxTrust * median( residuals, current.length );
+
+			int numKept = 0;
+			final int[] kept = new int[ current.length ];
+
+			for ( int j = 0; j < current.length; ++j )
+				if ( residuals[ j ] <= threshold )
+					kept[ numKept++ ] = current[ j ];
+
+			if ( numKept < minNumInliers )
+				return false;
+
+			if ( numKept == current.length )
+			{
+				this.inliers = current;
+				this.error = mean;
+
+				return true;
+			}
+
+			current = new int[ numKept ];
+			System.arraycopy( kept, 0, current, 0, numKept );
+		}
+	}
+
+	/**
+	 * Scores the hypotheses first, first + step, ... below end
+	 *
+	 * @return - the best of them or null if none has enough inliers
+	 */
+	protected Callable< Hypothesis > scoreHypotheses(
+			final int first,
+			final int end,
+			final int step,
+			final double sqEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers )
+	{
+		// only the best hypothesis of the previous rounds, so the result does not depend on the scheduling
+		final int previousBest = bestNumInliers;
+
+		return new Callable< Hypothesis >()
+		{
+			@Override
+			public Hypothesis call()
+			{
+				final Model< ? > m = model.copy();
+				final Random rnd = new Random();
+
+				final int[] sample = new int[ s ];
+				final ArrayList< PointMatch > sampleMatches = new ArrayList< PointMatch >( s );
+				final double[] l = new double[ 3 ];
+
+				Hypothesis best = null;
+
+				for ( int h = first; h < end; h += step )
+				{
+					rnd.setSeed( seed + h * 0x9E3779B97F4A7C15L );
+					drawSample( h, rnd, sample );
+
+					sampleMatches.clear();
+
+					for ( final int i : sample )
+						sampleMatches.add( candidates.get( i ) );
+
+					try
+					{
+						m.fit( sampleMatches );
+					}
+					catch ( final NotEnoughDataPointsException e )
+					{
+						continue;
+					}
+					catch ( final IllDefinedDataPointsException e )
+					{
+						continue;
+					}
+
+					// count the inliers, stop once this hypothesis cannot be the best anymore
+					final int threshold = Math.max( previousBest, best == null ? 0 : best.numInliers );
+					int numInliers = 0;
+					double cost = 0;
+
+					for ( int i = 0; i < n && numInliers + ( n - i ) >= threshold; ++i )
+					{
+						final double sqDist = squareResidual( m, i, l );
+
+						if ( sqDist < sqEpsilon )
+						{
+							++numInliers;
+							cost += Math.sqrt( sqDist );
+						}
+					}
+
+					if ( numInliers < minNumInliers || numInliers <= minInlierRatio * n || numInliers < threshold )
+						continue;
+
+					cost /= numInliers;
+
+					// h increases, so a tie within this task keeps the earlier hypothesis
+					if ( best == null || best.numInliers < numInliers || ( best.numInliers == numInliers && cost < best.cost ) )
+						best = new Hypothesis( h, numInliers, cost, sample.clone() );
+				}
+
+				return best;
+			}
+		};
+	}
+
+	/**
+	 * A scored hypothesis
+	 */
+	protected static class Hypothesis
+	{
+		final int h, numInliers;
+		final double cost;
+		final int[] sample;
+
+		public Hypothesis( final int h, final int numInliers, final double cost, final int[] sample )
+		{
+			this.h = h;
+			this.numInliers = numInliers;
+			this.cost = cost;
+			this.sample = sample;
+		}
+
+		/**
+		 * @return - true if this hypothesis has more inliers, the same number with a lower cost, or is equally good
+		 * and was drawn earlier
+		 */
+		public boolean isBetter( final int numInliers, final double cost, final int h )
+		{
+			if ( this.numInliers != numInliers )
+				return this.numInliers > numInliers;
+
+			if ( this.cost != cost )
+				return this.cost < cost;
+
+			return h < 0 || this.h < h;
+		}
+	}
+
+	/**
+	 * @return - the median of the first n values (the mean of the two middle ones if n is even)
+	 */
+	protected static double median( final double[] values, final int n )
+	{
+		final double[] sorted = new double[ n ];
+		System.arraycopy( values, 0, sorted, 0, n );
+		Arrays.sort( sorted );
+
+		if ( n % 2 == 1 )
+			return sorted[ n / 2 ];
+		else
+			return ( sorted[ n / 2 - 1 ] + sorted[ n / 2 ] ) / 2;
+	}
+
+	protected double squareResidual( final Model< ? > m, final int i, final double[] l )
+	{
+		final int o = i * 3;
+
+		l[ 0 ] = p[ o ];
+		l[ 1 ] = p[ o + 1 ];
+		l[ 2 ] = p[ o + 2 ];
+
+		m.applyInPlace( l );
+
+		final double dx = l[ 0 ] - q[ o ];
+		final double dy = l[ 1 ] - q[ o + 1 ];
+		final double dz = l[ 2 ] - q[ o + 2 ];
+
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Draws s distinct candidates; with PROSAC the newest member of the current sampling set and s-1 from the
+	 * better ones, otherwise uniformly from all candidates
+	 */
+	protected void drawSample( final int hypothesis, final Random rnd, final int[] sample )
+	{
+		int size = n;
+
+		if ( prosacSchedule != null )
+		{
+			size = prosacSetSize( prosacSchedule, hypothesis, s, n );
+
+			if ( size < n )
+			{
+				sample[ 0 ] = size - 1;
+				drawDistinct( rnd, sample, 1, size - 1 );
+				return;
+			}
+		}
+
+		drawDistinct( rnd, sample, 0, size );
+	}
+
+	protected static void drawDistinct( final Random rnd, final int[] sample, final int from, final int range )
+	{
+		for ( int j = from; j < sample.length; ++j )
+		{
+			boolean unique;
+
+			do
+			{
+				sample[ j ] = rnd.nextInt( range );
+				unique = true;
+
+				for ( int k = 0; k < j && unique; ++k )
+					if ( sample[ k ] == sample[ j ] )
+						unique = false;
+			}
+			while ( !unique );
+		}
+	}
+
+	/**
+	 * @param numInliers - the number of inliers of the best hypothesis
+	 * @param n - the number of candidates
+	 * @param s - the size of a sample
+	 * @param maxIterations - the maximal number of iterations
+	 * @return - the number of hypotheses necessary to draw one all-inlier sample with the given confidence
+	 */
+	public static int adaptiveNumIterations( final int numInliers, final int n, final int s, final int maxIterations )
+	{
+		final double w = (double)numInliers / (double)n;
+		final double ws = Math.pow( w, s );
+
+		if ( ws >= 1 )
+			return s;
+
+		if ( ws <= 0 )
+			return maxIterations;
+
+		final double k = Math.log( 1 - confidence ) / Math.log( 1 - ws );
+
+		if ( Double.isNaN( k ) || k >= maxIterations )
+			return maxIterations;
+
+		return Math.max( 1, (int)Math.ceil( k ) );
+	}
+
+	/**
+	 * The PROSAC growth function (Chum and Matas, 2005), the sampling set reaches all n candidates after
+	 * (about) maxIterations hypotheses
+	 *
+	 * @return - schedule[ m ] is the hypothesis at which the sampling set grows to m candidates
+	 */
+	protected static int[] prosacSchedule( final int n, final int s, final int maxIterations )
+	{
+		final int[] schedule = new int[ n + 1 ];
+
+		double tn = Math.max( maxIterations, 1 );
+
+		for ( int i = 0; i < s; ++i )
+			tn *= (double)( s - i ) / (double)( n - i );
+
+		long tPrime = 1;
+		schedule[ s ] = 1;
+
+		for ( int m = s; m < n; ++m )
+		{
+			final double tn1 = tn * ( m + 1 ) / ( m + 1 - s );
+			tPrime += (long)Math.ceil( tn1 - tn );
+			schedule[ m + 1 ] = (int)Math.min( Integer.MAX_VALUE, tPrime );
+			tn = tn1;
+		}
+
+		return schedule;
+	}
+
+	protected static int prosacSetSize( final int[] schedule, final int hypothesis, final int s, final int n )
+	{
+		// largest m with schedule[ m ] <= hypothesis + 1
+		int lo = s, hi = n;
+
+		while ( lo < hi )
+		{
+			final int m = ( lo + hi + 1 ) >>> 1;
+
+			if ( schedule[ m ] <= hypothesis + 1 )
+				lo = m;
+			else
+				hi = m - 1;
+		}
+
+		return lo;
+	}
+
+	/**
+	 * @return - the indices of the inliers among the candidates
+	 */
+	public int[] getInliers() { return inliers; }
+
+	/**
+	 * @return - the number of hypotheses that were tested
+	 */
+	public int getNumIterations() { return numIterations; }
+
+	/**
+	 * @return - the average residual of the inliers after filtering
+	 */
+	public double getError() { return error; }
+}
@@ -0,0 +1,218 @@
+package spim.process.interestpointregistration;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.realtransform.AffineTransform3D;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * A set of 3d points stored as structure-of-arrays (ids, x, y, z and weights in primitive arrays), so that
+ * large numbers of detections do not need one {@link InterestPoint} or {@link Detection} object each.
+ *
+ * APIs that require objects (point descriptors, RANSAC, ICP) get them through {@link #getDetection(int)}.
+ * The {@link Detection} of a point is only created when it is requested for the first time (without locking,
+ * the pairs are matched in parallel), so only the points that end up in descriptors or matches get one.
+ * Everything else can use the flyweight {@link Cursor} that is moved from point to point.
+ */
+public class PointCloud
+{
+	final int[] ids;
+	final double[] x, y, z;
+	final double[] weights;
+
+	// for the APIs that need objects, created on demand
+	final AtomicReferenceArray< Detection > detections;
+
+	/**
+	 * @param size - the number of points
+	 * @param weighted - if there is a weight per point
+	 */
+	public PointCloud( final int size, final boolean weighted )
+	{
+		this.ids = new int[ size ];
+		this.x = new double[ size ];
+		this.y = new double[ size ];
+		this.z = new double[ size ];
+		this.weights = weighted ? new double[ size ] : null;
+		this.detections = new AtomicReferenceArray< Detection >( size );
+	}
+
+	public PointCloud( final int size ) { this( size, false ); }
+
+	/**
+	 * @param points - the interest points (3d)
+	 * @param t - the transformation that is applied to each location, may be null
+	 * @return - a new point cloud with the transformed locations
+	 */
+	public static PointCloud fromInterestPoints( final List< ? extends InterestPoint > points, final AffineTransform3D t )
+	{
+		final PointCloud cloud = new PointCloud( points.size() );
+		final double[] l = new double[ 3 ];
+
+		for ( int i = 0; i < points.size(); ++i )
+		{
+			final InterestPoint p = points.get( i );
+
+			if ( t == null )
+				p.localize( l );
+			else
+				t.apply( p.getL(), l );
+
+			cloud.set( i, p.getId(), l[ 0 ], l[ 1 ], l[ 2 ] );
+		}
+
+		return cloud;
+	}
+
+	public int size() { return ids.length; }
+	public boolean isWeighted() { return weights != null; }
+
+	public int getId( final int i ) { return ids[ i ]; }
+	public double getX( final int i ) { return x[ i ]; }
+	public double getY( final int i ) { return y[ i ]; }
+	public double getZ( final int i ) { return z[ i ]; }
+	public double getWeight( final int i ) { return weights == null ? 1 : weights[ i ]; }
+
+	public double get( final int i, final int d )
+	{
+		if ( d == 0 )
+			return x[ i ];
+		else if ( d == 1 )
+			return y[ i ];
+		else
+			return z[ i ];
+	}
+
+	public void set( final int i, final int id, final double x, final double y, final double z )
+	{
+		this.ids[ i ] = id;
+		this.x[ i ] = x;
+		this.y[ i ] = y;
+		this.z[ i ] = z;
+
+		detections.set( i, null );
+	}
+
+	public void setWeight( final int i, final double weight )
+	{
+		weights[ i ] = weight;
+
+		detections.set( i, null );
+	}
+
+	/**
+	 * @param i - the index of the point
+	 * @param qx - x of the other location
+	 * @param qy - y of the other location
+	 * @param qz - z of the other location
+	 * @return - the squared distance between point i and the other location
+	 */
+	public double squareDistance( final int i, final double qx, final double qy, final double qz )
+	{
+		final double dx = x[ i ] - qx;
+		final double dy = y[ i ] - qy;
+		final double dz = z[ i ] - qz;
+
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * @param i - the index of the point
+	 * @return - the {@link Detection} of point i, always the same instance for the same point (as long as it is not set again)
+	 */
+	public Detection getDetection( final int i )
+	{
+		final Detection detection = detections.get( i );
+
+		if ( detection != null )
+			return detection;
+
+		final Detection newDetection;
+
+		if ( weights == null )
+			newDetection = new Detection( ids[ i ], new double[]{ x[ i ], y[ i ], z[ i ] } );
+		else
+			newDetection = new Detection( ids[ i ], new double[]{ x[ i ], y[ i ], z[ i ] }, weights[ i ] );
+
+		// if another thread was faster, everyone uses its instance
+		if ( detections.compareAndSet( i, null, newDetection ) )
+			return newDetection;
+		else
+			return detections.get( i );
+	}
+
+	/**
+	 * @return - the {@link Detection}s of all points, shared by everyone who asks this point cloud
+	 */
+	public ArrayList< Detection > getDetections()
+	{
+		final ArrayList< Detection > list = new ArrayList< Detection >( size() );
+
+		for ( int i = 0; i < size(); ++i )
+			list.add( getDetection( i ) );
+
+		return list;
+	}
+
+	/**
+	 * @return - a read-only list view that creates an {@link InterestPoint} whenever an element is requested
+	 */
+	public List< InterestPoint > asInterestPoints()
+	{
+		return new AbstractList< InterestPoint >()
+		{
+			@Override
+			public InterestPoint get( final int i ) { return new InterestPoint( ids[ i ], new double[]{ x[ i ], y[ i ], z[ i ] } ); }
+
+			@Override
+			public int size() { return ids.length; }
+		};
+	}
+
+	/**
+	 * @return - a new flyweight that can be moved over the points of this cloud
+	 */
+	public Cursor cursor() { return new Cursor(); }
+
+	/**
+	 * A flyweight {@link RealLocalizable} pointing to one point of the cloud at a time
+	 */
+	public class Cursor implements RealLocalizable
+	{
+		int i = 0;
+
+		public void setIndex( final int i ) { this.i = i; }
+		public int getIndex() { return i; }
+		public int getId() { return ids[ i ]; }
+		public double getWeight() { return PointCloud.this.getWeight( i ); }
+
+		@Override
+		public int numDimensions() { return 3; }
+
+		@Override
+		public void localize( final float[] position )
+		{
+			position[ 0 ] = (float)x[ i ];
+			position[ 1 ] = (float)y[ i ];
+			position[ 2 ] = (float)z[ i ];
+		}
+
+		@Override
+		public void localize( final double[] position )
+		{
+			position[ 0 ] = x[ i ];
+			position[ 1 ] = y[ i ];
+			position[ 2 ] = z[ i ];
+		}
+
+		@Override
+		public float getFloatPosition( final int d ) { return (float)get( i, d ); }
+
+		@Override
+		public double getDoublePosition( final int d ) { return get( i, d ); }
+	}
+}
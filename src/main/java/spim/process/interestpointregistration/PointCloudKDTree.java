@@ -0,0 +1,180 @@
+package spim.process.interestpointregistration;
+
+/**
+ * A balanced KD-tree over the points of a {@link PointCloud}. The tree is implicit, it only consists of one
+ * permutation of the point indices (the median of each range is the node, the halves left and right of it are
+ * the subtrees), so no node objects are created. The split dimension alternates with the depth.
+ *
+ * Searches do not modify the tree, several threads can query the same tree concurrently.
+ */
+public class PointCloudKDTree
+{
+	final PointCloud cloud;
+	final int[] tree;
+
+	public PointCloudKDTree( final PointCloud cloud )
+	{
+		this.cloud = cloud;
+		this.tree = new int[ cloud.size() ];
+
+		for ( int i = 0; i < tree.length; ++i )
+			tree[ i ] = i;
+
+		build( 0, tree.length, 0 );
+	}
+
+	public PointCloud getPointCloud() { return cloud; }
+
+	protected void build( final int lo, final int hi, final int depth )
+	{
+		if ( hi - lo <= 1 )
+			return;
+
+		final int d = depth % 3;
+		final int m = ( lo + hi ) >>> 1;
+
+		select( lo, hi - 1, m, d );
+
+		build( lo, m, depth + 1 );
+		build( m + 1, hi, depth + 1 );
+	}
+
+	/**
+	 * Quickselect, afterwards position k holds the index with the k-th smallest coordinate in dimension d
+	 * within [left, right], all smaller ones are left of it and all larger ones right of it.
+	 */
+	protected void select( int left, int right, final int k, final int d )
+	{
+		while ( right > left )
+		{
+			final double pivot = cloud.get( tree[ ( left + right ) >>> 1 ], d );
+
+			int i = left;
+			int j = right;
+
+			while ( i <= j )
+			{
+				while ( cloud.get( tree[ i ], d ) < pivot )
+					++i;
+
+				while ( cloud.get( tree[ j ], d ) > pivot )
+					--j;
+
+				if ( i <= j )
+				{
+					final int tmp = tree[ i ];
+					tree[ i ] = tree[ j ];
+					tree[ j ] = tmp;
+					++i;
+					--j;
+				}
+			}
+
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * @param qx - x of the query location
+	 * @param qy - y of the query location
+	 * @param qz - z of the query location
+	 * @return - the index of the closest point in the cloud or -1 if the cloud is empty
+	 */
+	public int findNearestNeighbor( final double qx, final double qy, final double qz )
+	{
+		final int[] index = new int[ 1 ];
+		final double[] sqDistance = new double[ 1 ];
+
+		if ( findNearestNeighbors( qx, qy, qz, 1, Double.MAX_VALUE, index, sqDistance ) == 0 )
+			return -1;
+		else
+			return index[ 0 ];
+	}
+
+	/**
+	 * @param qx - x of the query location
+	 * @param qy - y of the query location
+	 * @param qz - z of the query location
+	 * @param k - the number of neighbors
+	 * @param maxSquareDistance - only points that are not farther away than that (squared distance) are returned
+	 * @param indices - array of at least size k, filled with the indices of the neighbors sorted by distance
+	 * @param squareDistances - array of at least size k, filled with the squared distances of the neighbors
+	 * @return - the number of neighbors found, smaller than k if the cloud has fewer points (within maxSquareDistance)
+	 */
+	public int findNearestNeighbors(
+			final double qx, final double qy, final double qz,
+			final int k,
+			final double maxSquareDistance,
+			final int[] indices,
+			final double[] squareDistances )
+	{
+		if ( k <= 0 )
+			return 0;
+
+		return search( 0, tree.length, 0, qx, qy, qz, k, maxSquareDistance, indices, squareDistances, 0 );
+	}
+
+	protected int search(
+			final int lo, final int hi, final int depth,
+			final double qx, final double qy, final double qz,
+			final int k,
+			final double maxSquareDistance,
+			final int[] indices,
+			final double[] squareDistances,
+			int count )
+	{
+		if ( hi <= lo )
+			return count;
+
+		final int m = ( lo + hi ) >>> 1;
+		final int p = tree[ m ];
+
+		final double dist = cloud.squareDistance( p, qx, qy, qz );
+
+		if ( dist <= maxSquareDistance && ( count < k || dist < squareDistances[ k - 1 ] ) )
+		{
+			// insert sorted, k is small
+			int j = count < k ? count++ : k - 1;
+
+			while ( j > 0 && squareDistances[ j - 1 ] > dist )
+			{
+				indices[ j ] = indices[ j - 1 ];
+				squareDistances[ j ] = squareDistances[ j - 1 ];
+				--j;
+			}
+
+			indices[ j ] = p;
+			squareDistances[ j ] = dist;
+		}
+
+		final int d = depth % 3;
+		final double diff = ( d == 0 ? qx : d == 1 ? qy : qz ) - cloud.get( p, d );
+
+		final int nearLo, nearHi, farLo, farHi;
+
+		if ( diff < 0 )
+		{
+			nearLo = lo; nearHi = m;
+			farLo = m + 1; farHi = hi;
+		}
+		else
+		{
+			nearLo = m + 1; nearHi = hi;
+			farLo = lo; farHi = m;
+		}
+
+		count = search( nearLo, nearHi, depth + 1, qx, qy, qz, k, maxSquareDistance, indices, squareDistances, count );
+
+		final double diff2 = diff * diff;
+
+		if ( diff2 <= maxSquareDistance && ( count < k || diff2 < squareDistances[ k - 1 ] ) )
+			count = search( farLo, farHi, depth + 1, qx, qy, qz, k, maxSquareDistance, indices, squareDistances, count );
+
+		return count;
+	}
+}
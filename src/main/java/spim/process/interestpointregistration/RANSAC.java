@@ -2,13 +2,14 @@ package spim.process.interestpointregistration;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
+import spim.Threads;
 import spim.fiji.ImgLib2Temp.Pair;
 import spim.fiji.ImgLib2Temp.ValuePair;
 import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
-import mpicbg.models.PointMatch;
-import mpicbg.pointdescriptor.LinkedPoint;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 
 /**
@@ -26,6 +27,47 @@ public class RANSAC
 			final double minInlierRatio, 
 			final double minNumberInlierFactor, 
 			final int numIterations )
+	{
+		return computeRANSAC( correspondenceCandidates, inlierList, model, maxEpsilon, minInlierRatio, minNumberInlierFactor, numIterations, false );
+	}
+
+	/**
+	 * @param correspondenceCandidates - the candidates, they are not modified
+	 * @param inlierList - the inliers are added to this list
+	 * @param model - the model, is set to the fit of the inliers
+	 * @param maxEpsilon
+	 * @param minInlierRatio
+	 * @param minNumberInlierFactor
+	 * @param numIterations - the maximal number of iterations, fewer are run once the inlier ratio is known well enough
+	 * @param sortedByQuality - if the candidates are sorted by quality, best first (see {@link #sortByQuality(ArrayList, double[])})
+	 * @return - a message and the average error (NaN if no model was found)
+	 */
+	public static Pair< String, Double > computeRANSAC( 
+			final ArrayList< PointMatchGeneric < Detection > > correspondenceCandidates, 
+			final ArrayList< PointMatchGeneric < Detection > > inlierList, 
+			final Model<?> model, 
+			final double maxEpsilon, 
+			final double minInlierRatio, 
+			final double minNumberInlierFactor, 
+			final int numIterations,
+			final boolean sortedByQuality )
+	{
+		return computeRANSAC( correspondenceCandidates, inlierList, model, maxEpsilon, minInlierRatio, minNumberInlierFactor, numIterations, sortedByQuality, Threads.numThreads() );
+	}
+
+	/**
+	 * Same as above, using numThreads threads to score the hypotheses (1 runs on the calling thread, e.g. if several pairs are matched at the same time)
+	 */
+	public static Pair< String, Double > computeRANSAC(
+			final ArrayList< PointMatchGeneric < Detection > > correspondenceCandidates,
+			final ArrayList< PointMatchGeneric < Detection > > inlierList,
+			final Model<?> model,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final double minNumberInlierFactor,
+			final int numIterations,
+			final boolean sortedByQuality,
+			final int numThreads )
 	{
 		final int numCorrespondences = correspondenceCandidates.size();
 		final int minNumCorrespondences = Math.max( model.getMinNumMatches(), (int)Math.round( model.getMinNumMatches() * minNumberInlierFactor ) );
@@ -40,42 +82,18 @@ public class RANSAC
 		if ( numCorrespondences < minNumCorrespondences )
 			return new ValuePair< String, Double >( "Not enough correspondences found " + numCorrespondences + ", should be at least " + minNumCorrespondences, Double.NaN );
 
-		/**
-		 * The ArrayList that stores the inliers after RANSAC, contains PointMatches of LinkedPoints
-		 * so that MultiThreading is possible
-		 */
-		//final ArrayList< PointMatchGeneric<LinkedPoint<T>> > candidates = new ArrayList<PointMatchGeneric<LinkedPoint<T>>>();		
-		final ArrayList< PointMatch > candidates = new ArrayList< PointMatch >();
-		final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
-		
-		// clone the beads for the RANSAC as we are working multithreaded and they will be modified
-		for ( final PointMatchGeneric< Detection > correspondence : correspondenceCandidates )
-		{
-			final Detection detectionA = correspondence.getPoint1();
-			final Detection detectionB = correspondence.getPoint2();
-			
-			final LinkedPoint< Detection > pA = new LinkedPoint< Detection >( detectionA.getL(), detectionA.getW(), detectionA );
-			final LinkedPoint< Detection > pB = new LinkedPoint< Detection >( detectionB.getL(), detectionB.getW(), detectionB );
-			final double weight = correspondence.getWeight(); 
+		// works on a primitive copy of the coordinates and never modifies the candidates, no need to clone them
+		final ParallelRANSAC ransac = new ParallelRANSAC( correspondenceCandidates, model, numThreads );
 
-			candidates.add( new PointMatchGeneric< LinkedPoint< Detection > >( pA, pB, weight ) );
-		}
-		
 		boolean modelFound = false;
 		
 		try
 		{
-			/*modelFound = m.ransac(
-  					candidates,
-					inliers,
-					numIterations,
-					maxEpsilon, minInlierRatio );*/
-		
-			modelFound = model.filterRansac(
-					candidates,
-					inliers,
+			modelFound = ransac.filterRansac(
 					numIterations,
-					maxEpsilon, minInlierRatio ); 
+					maxEpsilon, minInlierRatio,
+					model.getMinNumMatches(),
+					sortedByQuality );
 		}
 		catch ( NotEnoughDataPointsException e )
 		{
@@ -83,29 +101,61 @@ public class RANSAC
 		}
 			
 		final NumberFormat nf = NumberFormat.getPercentInstance();
-		final double ratio = ( (double)inliers.size() / (double)candidates.size() );
+		final int[] inliers = ransac.getInliers();
+		final double ratio = ( (double)inliers.length / (double)numCorrespondences );
 		
-		if ( modelFound && inliers.size() >= minNumCorrespondences )
+		if ( modelFound && inliers.length >= minNumCorrespondences )
 		{			
-			for ( final PointMatch pointMatch : inliers )
+			for ( final int i : inliers )
 			{
-				@SuppressWarnings("unchecked")
-				final PointMatchGeneric<LinkedPoint< Detection > > pm = (PointMatchGeneric< LinkedPoint< Detection > >) pointMatch;
-				
-				final Detection detectionA = pm.getPoint1().getLinkedObject();
-				final Detection detectionB = pm.getPoint2().getLinkedObject();
+				final Detection detectionA = correspondenceCandidates.get( i ).getPoint1();
+				final Detection detectionB = correspondenceCandidates.get( i ).getPoint2();
 				
 				inlierList.add( new PointMatchGeneric< Detection >( detectionA, detectionB ) );
 			}
 
-			return new ValuePair< String, Double >( "Remaining inliers after RANSAC: " + inliers.size() + " of " + candidates.size() + " (" + nf.format(ratio) + ") with average error " + model.getCost(), model.getCost() );
+			return new ValuePair< String, Double >( "Remaining inliers after RANSAC: " + inliers.length + " of " + numCorrespondences + " (" + nf.format(ratio) + ") with average error " + ransac.getError() + 
+					" (" + ransac.getNumIterations() + " iterations)", ransac.getError() );
 		}
 		else
 		{
 			if ( modelFound )
-				return new ValuePair< String, Double >( "Model found but not enough remaining inliers (" + inliers.size() + "/" + minNumCorrespondences + ") after RANSAC of " + candidates.size(), Double.NaN );
+				return new ValuePair< String, Double >( "Model found but not enough remaining inliers (" + inliers.length + "/" + minNumCorrespondences + ") after RANSAC of " + numCorrespondences, Double.NaN );
 			else
-				return new ValuePair< String, Double >( "NO Model found after RANSAC of " + candidates.size(), Double.NaN );
+				return new ValuePair< String, Double >( "NO Model found after RANSAC of " + numCorrespondences, Double.NaN );
 		}
 	}
+
+	/**
+	 * Sorts the candidates by quality, best descriptor match first. With sortedByQuality RANSAC then draws its
+	 * first samples from the most promising candidates (PROSAC) and grows the sampling set to all of them, so
+	 * a model is usually found after far fewer iterations.
+	 * 
+	 * @param candidates - the candidates
+	 * @param distances - the descriptor distance of each candidate, smaller is better
+	 */
+	public static < P > void sortByQuality( final ArrayList< P > candidates, final double[] distances )
+	{
+		final Integer[] order = new Integer[ candidates.size() ];
+
+		for ( int i = 0; i < order.length; ++i )
+			order[ i ] = i;
+
+		Arrays.sort( order, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer o1, final Integer o2 )
+			{
+				return Double.compare( distances[ o1 ], distances[ o2 ] );
+			}
+		});
+
+		final ArrayList< P > sorted = new ArrayList< P >( candidates.size() );
+
+		for ( final Integer i : order )
+			sorted.add( candidates.get( i ) );
+
+		candidates.clear();
+		candidates.addAll( sorted );
+	}
 }
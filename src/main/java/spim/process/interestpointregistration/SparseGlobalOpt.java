@@ -0,0 +1,1127 @@
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.Affine3D;
+import mpicbg.models.Model;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.spim.io.IOFunctions;
+import spim.Threads;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.ImagePortion;
+
+/**
+ * Optimizes all tiles of a {@link TileConfiguration} at once instead of its iterative relaxation,
+ * which needs many passes over large tile graphs.
+ *
+ * The square distances of all corresponding points form one sparse least-squares problem over the parameters
+ * of all tiles that are not fixed (one block row per tile, one off-diagonal block per connected pair of tiles).
+ * It is solved by conjugate gradients with a block-Jacobi preconditioner, the products of the sparse matrix with
+ * a vector are computed in parallel. Each tile is updated by a small transformation around the centroid of its
+ * points that follows its current model: this is exact for translation and affine models (one step), rigid models
+ * use the linearized rotation and a few Gauss-Newton steps. Fixed tiles keep their models.
+ *
+ * The tiles start from their current models; the points are in the coordinates of the current registration, so
+ * no pre-alignment is necessary. Each group of connected tiles without a fixed tile keeps the model of its tile
+ * with the most correspondences, otherwise the problem has no unique solution (an affine group could even map all
+ * points onto one location without any error).
+ *
+ * @param <M> - {@link TranslationModel3D}, {@link RigidModel3D} or {@link AffineModel3D}
+ */
+public class SparseGlobalOpt< M extends Model< M > >
+{
+	// conjugate gradients stop once the residual is smaller than this fraction of the (first) right-hand side
+	public static double cgTolerance = 1e-8;
+	public static int maxCGIterations = 10000;
+
+	// Gauss-Newton steps (only for rigid models), stop once the error decreases by less than this fraction
+	public static int maxNonLinearIterations = 50;
+	public static double minRelativeImprovement = 1e-6;
+
+	final static int TRANSLATION = 0, RIGID = 1, AFFINE = 2;
+
+	final List< Tile< M > > tiles;
+	final int modelType, q;
+
+	// index of the parameters of each tile or -1 if it is fixed
+	final int[] var;
+	int numVars;
+
+	// current 3x4 matrix (row-packed) and the centroid of the points of each tile
+	final double[][] matrices;
+	final double[][] centroids;
+
+	final HashMap< Tile< M >, Integer > tileIndex = new HashMap< Tile< M >, Integer >();
+	final HashMap< Long, Edge > edgeMap = new HashMap< Long, Edge >();
+	final ArrayList< Edge > edges = new ArrayList< Edge >();
+
+	// the block rows: diagonal block, right-hand side and the incident edges of each tile
+	double[][] diagonal, rhs, preconditioner;
+	Edge[][] incident;
+
+	final int numThreads;
+	ExecutorService service;
+	Vector< ImagePortion > tilePortions, edgePortions;
+
+	int numIterations = 0, numCGIterations = 0;
+	double relativeResidual = Double.NaN, initialNorm = 0;
+	double avgError = Double.NaN, minError = Double.NaN, maxError = Double.NaN;
+
+	/**
+	 * All corresponding points between two tiles, primitive and oriented from tile a to tile b
+	 */
+	static class Edge
+	{
+		final int a, b;
+
+		int n = 0;
+		double[] pa = new double[ 30 ], pb = new double[ 30 ], w = new double[ 10 ];
+
+		// off-diagonal block of row a, column b (row b, column a is its transpose)
+		double[] hab;
+
+		Edge( final int a, final int b )
+		{
+			this.a = a;
+			this.b = b;
+		}
+
+		void add( final double[] la, final double[] lb, final double weight )
+		{
+			if ( n == w.length )
+			{
+				pa = copyOf( pa, pa.length * 2 );
+				pb = copyOf( pb, pb.length * 2 );
+				w = copyOf( w, w.length * 2 );
+			}
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				pa[ n * 3 + d ] = la[ d ];
+				pb[ n * 3 + d ] = lb[ d ];
+			}
+
+			w[ n++ ] = weight;
+		}
+
+		static double[] copyOf( final double[] array, final int length )
+		{
+			final double[] copy = new double[ length ];
+			System.arraycopy( array, 0, copy, 0, Math.min( array.length, length ) );
+			return copy;
+		}
+	}
+
+	/**
+	 * @param tc - the tiles to optimize and which of them are fixed
+	 */
+	@SuppressWarnings("unchecked")
+	public SparseGlobalOpt( final TileConfiguration tc )
+	{
+		this.tiles = new ArrayList< Tile< M > >();
+
+		for ( final Tile< ? > tile : tc.getTiles() )
+			tiles.add( (Tile< M >)tile );
+
+		final Model< ? > model = tiles.get( 0 ).getModel();
+
+		if ( model instanceof TranslationModel3D )
+			this.modelType = TRANSLATION;
+		else if ( model instanceof RigidModel3D )
+			this.modelType = RIGID;
+		else if ( model instanceof AffineModel3D )
+			this.modelType = AFFINE;
+		else
+			throw new IllegalArgumentException( "Sparse global optimization is not supported for " + model.getClass().getSimpleName() );
+
+		this.q = modelType == TRANSLATION ? 3 : modelType == RIGID ? 6 : 12;
+
+		this.var = new int[ tiles.size() ];
+		this.matrices = new double[ tiles.size() ][];
+		this.centroids = new double[ tiles.size() ][ 3 ];
+
+		int numVars = 0;
+
+		for ( int i = 0; i < tiles.size(); ++i )
+		{
+			final Tile< M > tile = tiles.get( i );
+
+			tileIndex.put( tile, i );
+
+			if ( tc.getFixedTiles().contains( tile ) )
+				var[ i ] = -1;
+			else
+				var[ i ] = numVars++;
+
+			final double[][] m = new double[ 3 ][ 4 ];
+			( (Affine3D< ? >)tile.getModel() ).toMatrix( m );
+
+			matrices[ i ] = new double[]{
+					m[0][0], m[0][1], m[0][2], m[0][3],
+					m[1][0], m[1][1], m[1][2], m[1][3],
+					m[2][0], m[2][1], m[2][2], m[2][3] };
+		}
+
+		this.numVars = numVars;
+		this.numThreads = Threads.numThreads();
+	}
+
+	/**
+	 * @param model - the model of the tiles
+	 * @return - true if the tiles can be optimized by this class
+	 */
+	public static boolean isSupported( final Model< ? > model )
+	{
+		return model instanceof TranslationModel3D || model instanceof RigidModel3D || model instanceof AffineModel3D;
+	}
+
+	/**
+	 * Adds corresponding points between two tiles, the {@link PointMatch#getP1()} belong to tileA, the
+	 * {@link PointMatch#getP2()} to tileB (local coordinates). Matches within one tile and matches of tiles
+	 * that are not part of the {@link TileConfiguration} are ignored.
+	 *
+	 * @param matches - the corresponding points
+	 * @param tileA - the tile of the first points
+	 * @param tileB - the tile of the second points
+	 */
+	public void addMatches( final Collection< ? extends PointMatch > matches, final Tile< M > tileA, final Tile< M > tileB )
+	{
+		final Integer ia = tileIndex.get( tileA );
+		final Integer ib = tileIndex.get( tileB );
+
+		if ( ia == null || ib == null || ia.intValue() == ib.intValue() || matches.size() == 0 )
+			return;
+
+		// one edge per pair of tiles, also if several pairs of views map to the same tiles
+		final boolean flip = ia > ib;
+		final int a = flip ? ib : ia;
+		final int b = flip ? ia : ib;
+		final long key = (long)a * tiles.size() + b;
+
+		Edge edge = edgeMap.get( key );
+
+		if ( edge == null )
+		{
+			edge = new Edge( a, b );
+			edgeMap.put( key, edge );
+			edges.add( edge );
+		}
+
+		for ( final PointMatch pm : matches )
+		{
+			if ( flip )
+				edge.add( pm.getP2().getL(), pm.getP1().getL(), pm.getWeight() );
+			else
+				edge.add( pm.getP1().getL(), pm.getP2().getL(), pm.getWeight() );
+		}
+	}
+
+	/**
+	 * Computes the optimal models for all tiles that are not fixed, sets them and updates the errors of the tiles.
+	 */
+	public void optimize()
+	{
+		fixUnconstrainedGroups();
+		setupBlockRows();
+
+		service = Executors.newFixedThreadPool( numThreads );
+		tilePortions = FusionHelper.divideIntoPortions( tiles.size(), Math.max( 1, Math.min( tiles.size(), numThreads * 4 ) ) );
+		edgePortions = FusionHelper.divideIntoPortions( edges.size(), Math.max( 1, Math.min( edges.size(), numThreads * 4 ) ) );
+
+		try
+		{
+			double[] errors = computeErrors();
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Sparse global optimization of " + numVars + " tiles (" +
+					( tiles.size() - numVars ) + " fixed, " + edges.size() + " connections, " + numMatches() + " correspondences), " +
+					"initial avg error: " + errors[ 1 ] + "px" );
+
+			final int maxIterations = modelType == RIGID ? maxNonLinearIterations : 1;
+
+			for ( numIterations = 0; numIterations < maxIterations && numVars > 0; )
+			{
+				final double[][] lastMatrices = new double[ matrices.length ][];
+
+				for ( int i = 0; i < matrices.length; ++i )
+					lastMatrices[ i ] = matrices[ i ].clone();
+
+				computeCentroids();
+				assemble();
+
+				final double[] x = solve();
+
+				update( x );
+
+				final double[] newErrors = computeErrors();
+
+				++numIterations;
+
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Iteration " + numIterations + ": " + numCGIterations +
+						" CG iterations, relative residual " + relativeResidual + ", avg error " + newErrors[ 1 ] + "px, max error " + newErrors[ 2 ] + "px" );
+
+				// a Gauss-Newton step that made it worse, keep the last models
+				if ( newErrors[ 0 ] > errors[ 0 ] )
+				{
+					for ( int i = 0; i < matrices.length; ++i )
+						matrices[ i ] = lastMatrices[ i ];
+
+					break;
+				}
+
+				final boolean converged = errors[ 0 ] - newErrors[ 0 ] <= minRelativeImprovement * errors[ 0 ];
+
+				errors = newErrors;
+
+				if ( converged )
+					break;
+			}
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		setModels();
+		updateTileErrors();
+	}
+
+	protected long numMatches()
+	{
+		long n = 0;
+
+		for ( final Edge edge : edges )
+			n += edge.n;
+
+		return n;
+	}
+
+	/**
+	 * Fixes the tile with the most correspondences of every group of connected tiles that contains no fixed tile
+	 * (also single tiles without correspondences) and numbers the parameters of the remaining tiles.
+	 */
+	protected void fixUnconstrainedGroups()
+	{
+		final int n = tiles.size();
+		final int[] parent = new int[ n ];
+		final long[] count = new long[ n ];
+
+		for ( int i = 0; i < n; ++i )
+			parent[ i ] = i;
+
+		for ( final Edge edge : edges )
+		{
+			parent[ root( parent, edge.a ) ] = root( parent, edge.b );
+			count[ edge.a ] += edge.n;
+			count[ edge.b ] += edge.n;
+		}
+
+		// for each group: fixed or not, and the tile to fix otherwise
+		final boolean[] fixed = new boolean[ n ];
+		final int[] best = new int[ n ];
+
+		for ( int i = 0; i < n; ++i )
+			best[ i ] = -1;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final int r = root( parent, i );
+
+			if ( var[ i ] < 0 )
+				fixed[ r ] = true;
+			else if ( best[ r ] < 0 || count[ i ] > count[ best[ r ] ] )
+				best[ r ] = i;
+		}
+
+		int numGroups = 0;
+
+		for ( int i = 0; i < n; ++i )
+			if ( root( parent, i ) == i && !fixed[ i ] )
+			{
+				var[ best[ i ] ] = -1;
+
+				if ( count[ best[ i ] ] > 0 )
+					++numGroups;
+			}
+
+		if ( numGroups > 0 )
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + numGroups +
+					" group(s) of connected tiles without a fixed tile, keeping the model of one tile each." );
+
+		numVars = 0;
+
+		for ( int i = 0; i < n; ++i )
+			if ( var[ i ] >= 0 )
+				var[ i ] = numVars++;
+	}
+
+	protected static int root( final int[] parent, int i )
+	{
+		while ( parent[ i ] != i )
+			i = parent[ i ] = parent[ parent[ i ] ];
+
+		return i;
+	}
+
+	protected void setupBlockRows()
+	{
+		final int[] count = new int[ tiles.size() ];
+
+		for ( final Edge edge : edges )
+		{
+			++count[ edge.a ];
+			++count[ edge.b ];
+		}
+
+		incident = new Edge[ tiles.size() ][];
+
+		for ( int i = 0; i < tiles.size(); ++i )
+		{
+			incident[ i ] = new Edge[ count[ i ] ];
+			count[ i ] = 0;
+		}
+
+		for ( final Edge edge : edges )
+		{
+			incident[ edge.a ][ count[ edge.a ]++ ] = edge;
+			incident[ edge.b ][ count[ edge.b ]++ ] = edge;
+		}
+
+		diagonal = new double[ tiles.size() ][];
+		rhs = new double[ tiles.size() ][];
+		preconditioner = new double[ tiles.size() ][];
+	}
+
+	/**
+	 * The models are updated around the centroid of the points of each tile, which keeps the system well conditioned
+	 */
+	protected void computeCentroids()
+	{
+		final int[] count = new int[ tiles.size() ];
+		final double[] t = new double[ 3 ];
+
+		for ( int i = 0; i < tiles.size(); ++i )
+			centroids[ i ][ 0 ] = centroids[ i ][ 1 ] = centroids[ i ][ 2 ] = 0;
+
+		for ( final Edge edge : edges )
+			for ( int k = 0; k < edge.n; ++k )
+			{
+				apply( matrices[ edge.a ], edge.pa, k, t );
+				add( centroids[ edge.a ], t );
+				++count[ edge.a ];
+
+				apply( matrices[ edge.b ], edge.pb, k, t );
+				add( centroids[ edge.b ], t );
+				++count[ edge.b ];
+			}
+
+		for ( int i = 0; i < tiles.size(); ++i )
+			if ( count[ i ] > 0 )
+				for ( int d = 0; d < 3; ++d )
+					centroids[ i ][ d ] /= count[ i ];
+	}
+
+	/**
+	 * Computes the normal equations (block row) of every tile that is not fixed in parallel, each thread only
+	 * writes the blocks of its own tiles.
+	 */
+	protected void assemble()
+	{
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( final ImagePortion portion : tilePortions )
+		{
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final double[] ya = new double[ 3 ], yb = new double[ 3 ], e = new double[ 3 ];
+					final double[] ja = new double[ 3 * q ], jb = new double[ 3 * q ];
+
+					for ( int i = (int)portion.getStartPosition(); i < portion.getStartPosition() + portion.getLoopSize(); ++i )
+					{
+						if ( var[ i ] < 0 )
+							continue;
+
+						final double[] h = new double[ q * q ];
+						final double[] g = new double[ q ];
+
+						for ( final Edge edge : incident[ i ] )
+						{
+							final boolean isA = edge.a == i;
+							final int j = isA ? edge.b : edge.a;
+							final boolean coupled = isA && var[ j ] >= 0;
+							final double[] hab = coupled ? new double[ q * q ] : null;
+
+							for ( int k = 0; k < edge.n; ++k )
+							{
+								final double w = edge.w[ k ];
+
+								apply( matrices[ edge.a ], edge.pa, k, ya );
+								apply( matrices[ edge.b ], edge.pb, k, yb );
+
+								// the residual (a - b) and the change of the residual by the parameters of tile i
+								for ( int d = 0; d < 3; ++d )
+									e[ d ] = ya[ d ] - yb[ d ];
+
+								final double[] y = isA ? ya : yb;
+								final double sign = isA ? 1 : -1;
+
+								for ( int d = 0; d < 3; ++d )
+									y[ d ] -= centroids[ i ][ d ];
+
+								jacobian( y, ja );
+
+								addJtJ( h, ja, ja, w );
+
+								for ( int r = 0; r < q; ++r )
+									g[ r ] -= sign * w * ( ja[ r ] * e[ 0 ] + ja[ q + r ] * e[ 1 ] + ja[ 2 * q + r ] * e[ 2 ] );
+
+								if ( coupled )
+								{
+									for ( int d = 0; d < 3; ++d )
+										yb[ d ] -= centroids[ j ][ d ];
+
+									jacobian( yb, jb );
+									addJtJ( hab, ja, jb, -w );
+								}
+							}
+
+							if ( isA )
+								edge.hab = hab;
+						}
+
+						diagonal[ i ] = h;
+						rhs[ i ] = g;
+						preconditioner[ i ] = invert( h );
+					}
+
+					return null;
+				}
+			});
+		}
+
+		execute( tasks, "assembling" );
+	}
+
+	/**
+	 * Preconditioned conjugate gradients, the tiles are processed in parallel
+	 *
+	 * @return - the change of the parameters of each tile (indexed by tile, null for fixed tiles)
+	 */
+	protected double[] solve()
+	{
+		final int n = tiles.size();
+		final double[][] x = new double[ n ][];
+		final double[][] r = new double[ n ][];
+		final double[][] z = new double[ n ][];
+		final double[][] p = new double[ n ][];
+		final double[][] hp = new double[ n ][];
+
+		double rz = 0, normG = 0;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( var[ i ] < 0 )
+				continue;
+
+			x[ i ] = new double[ q ];
+			r[ i ] = rhs[ i ].clone();
+			z[ i ] = multiply( preconditioner[ i ], r[ i ], new double[ q ] );
+			p[ i ] = z[ i ].clone();
+			hp[ i ] = new double[ q ];
+
+			rz += dot( r[ i ], z[ i ] );
+			normG += dot( r[ i ], r[ i ] );
+		}
+
+		normG = Math.sqrt( normG );
+		numCGIterations = 0;
+		relativeResidual = 0;
+
+		// the later Gauss-Newton steps are only small corrections, they do not need to be solved more precisely
+		if ( numIterations == 0 )
+			initialNorm = normG;
+
+		if ( normG == 0 )
+			return flatten( x );
+
+		while ( numCGIterations < maxCGIterations )
+		{
+			final double pHp = multiplyAll( p, hp );
+
+			if ( pHp <= 0 )
+				break;
+
+			final double alpha = rz / pHp;
+			final double[] sums = updateAll( alpha, x, r, z, p, hp );
+
+			++numCGIterations;
+			relativeResidual = Math.sqrt( sums[ 1 ] ) / initialNorm;
+
+			if ( relativeResidual <= cgTolerance )
+				break;
+
+			final double beta = sums[ 0 ] / rz;
+			rz = sums[ 0 ];
+
+			for ( int i = 0; i < n; ++i )
+				if ( var[ i ] >= 0 )
+					for ( int k = 0; k < q; ++k )
+						p[ i ][ k ] = z[ i ][ k ] + beta * p[ i ][ k ];
+		}
+
+		return flatten( x );
+	}
+
+	/**
+	 * @return - hp = H * p for all tiles and the dot product of p and hp
+	 */
+	protected double multiplyAll( final double[][] p, final double[][] hp )
+	{
+		final double[] partial = new double[ tilePortions.size() ];
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( int t = 0; t < tilePortions.size(); ++t )
+		{
+			final ImagePortion portion = tilePortions.get( t );
+			final int portionIndex = t;
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					double sum = 0;
+
+					for ( int i = (int)portion.getStartPosition(); i < portion.getStartPosition() + portion.getLoopSize(); ++i )
+					{
+						if ( var[ i ] < 0 )
+							continue;
+
+						final double[] y = multiply( diagonal[ i ], p[ i ], hp[ i ] );
+
+						for ( final Edge edge : incident[ i ] )
+						{
+							if ( edge.a == i && var[ edge.b ] >= 0 )
+								multiplyAdd( edge.hab, p[ edge.b ], y, false );
+							else if ( edge.b == i && var[ edge.a ] >= 0 )
+								multiplyAdd( edge.hab, p[ edge.a ], y, true );
+						}
+
+						sum += dot( p[ i ], y );
+					}
+
+					partial[ portionIndex ] = sum;
+
+					return null;
+				}
+			});
+		}
+
+		execute( tasks, "multiplying" );
+
+		double sum = 0;
+
+		for ( final double s : partial )
+			sum += s;
+
+		return sum;
+	}
+
+	/**
+	 * @return - the new dot product of r and z, and the square norm of r
+	 */
+	protected double[] updateAll( final double alpha, final double[][] x, final double[][] r, final double[][] z, final double[][] p, final double[][] hp )
+	{
+		final double[][] partial = new double[ tilePortions.size() ][ 2 ];
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( int t = 0; t < tilePortions.size(); ++t )
+		{
+			final ImagePortion portion = tilePortions.get( t );
+			final double[] sums = partial[ t ];
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					for ( int i = (int)portion.getStartPosition(); i < portion.getStartPosition() + portion.getLoopSize(); ++i )
+					{
+						if ( var[ i ] < 0 )
+							continue;
+
+						for ( int k = 0; k < q; ++k )
+						{
+							x[ i ][ k ] += alpha * p[ i ][ k ];
+							r[ i ][ k ] -= alpha * hp[ i ][ k ];
+						}
+
+						multiply( preconditioner[ i ], r[ i ], z[ i ] );
+
+						sums[ 0 ] += dot( r[ i ], z[ i ] );
+						sums[ 1 ] += dot( r[ i ], r[ i ] );
+					}
+
+					return null;
+				}
+			});
+		}
+
+		execute( tasks, "updating" );
+
+		final double[] sums = new double[ 2 ];
+
+		for ( final double[] s : partial )
+		{
+			sums[ 0 ] += s[ 0 ];
+			sums[ 1 ] += s[ 1 ];
+		}
+
+		return sums;
+	}
+
+	/**
+	 * @return - sum of weighted square distances, average distance and maximal distance of all corresponding points
+	 */
+	protected double[] computeErrors()
+	{
+		final double[][] partial = new double[ edgePortions.size() ][ 3 ];
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( int t = 0; t < edgePortions.size(); ++t )
+		{
+			final ImagePortion portion = edgePortions.get( t );
+			final double[] sums = partial[ t ];
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final double[] ya = new double[ 3 ], yb = new double[ 3 ];
+
+					for ( int e = (int)portion.getStartPosition(); e < portion.getStartPosition() + portion.getLoopSize(); ++e )
+					{
+						final Edge edge = edges.get( e );
+
+						for ( int k = 0; k < edge.n; ++k )
+						{
+							apply( matrices[ edge.a ], edge.pa, k, ya );
+							apply( matrices[ edge.b ], edge.pb, k, yb );
+
+							final double dx = ya[ 0 ] - yb[ 0 ];
+							final double dy = ya[ 1 ] - yb[ 1 ];
+							final double dz = ya[ 2 ] - yb[ 2 ];
+							final double sq = dx * dx + dy * dy + dz * dz;
+							final double d = Math.sqrt( sq );
+
+							sums[ 0 ] += edge.w[ k ] * sq;
+							sums[ 1 ] += d;
+							sums[ 2 ] = Math.max( sums[ 2 ], d );
+						}
+					}
+
+					return null;
+				}
+			});
+		}
+
+		execute( tasks, "computing errors" );
+
+		final double[] errors = new double[ 3 ];
+
+		for ( final double[] s : partial )
+		{
+			errors[ 0 ] += s[ 0 ];
+			errors[ 1 ] += s[ 1 ];
+			errors[ 2 ] = Math.max( errors[ 2 ], s[ 2 ] );
+		}
+
+		errors[ 1 ] /= Math.max( 1, numMatches() );
+
+		return errors;
+	}
+
+	protected void execute( final List< Callable< Void > > tasks, final String what )
+	{
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< Void > future : service.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Sparse global optimization interrupted while " + what + ": " + e, e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( "Sparse global optimization failed while " + what + ": " + e.getCause(), e.getCause() );
+		}
+	}
+
+	/**
+	 * Applies the change x of each tile, x = U(T(p)) with U(y) = G (y - c) + c + d
+	 */
+	protected void update( final double[] x )
+	{
+		for ( int i = 0; i < tiles.size(); ++i )
+		{
+			if ( var[ i ] < 0 )
+				continue;
+
+			final int o = var[ i ] * q;
+			final double[] g = new double[ 9 ];
+			final double[] d = new double[ 3 ];
+
+			if ( modelType == TRANSLATION )
+			{
+				g[ 0 ] = g[ 4 ] = g[ 8 ] = 1;
+
+				for ( int k = 0; k < 3; ++k )
+					d[ k ] = x[ o + k ];
+			}
+			else if ( modelType == RIGID )
+			{
+				rotation( x[ o ], x[ o + 1 ], x[ o + 2 ], g );
+
+				for ( int k = 0; k < 3; ++k )
+					d[ k ] = x[ o + 3 + k ];
+			}
+			else
+			{
+				for ( int r = 0; r < 3; ++r )
+				{
+					for ( int c = 0; c < 3; ++c )
+						g[ r * 3 + c ] = ( r == c ? 1 : 0 ) + x[ o + r * 4 + c ];
+
+					d[ r ] = x[ o + r * 4 + 3 ];
+				}
+			}
+
+			final double[] m = matrices[ i ];
+			final double[] c = centroids[ i ];
+			final double[] n = new double[ 12 ];
+
+			for ( int r = 0; r < 3; ++r )
+			{
+				for ( int col = 0; col < 4; ++col )
+					n[ r * 4 + col ] = g[ r * 3 ] * m[ col ] + g[ r * 3 + 1 ] * m[ 4 + col ] + g[ r * 3 + 2 ] * m[ 8 + col ];
+
+				n[ r * 4 + 3 ] += c[ r ] - ( g[ r * 3 ] * c[ 0 ] + g[ r * 3 + 1 ] * c[ 1 ] + g[ r * 3 + 2 ] * c[ 2 ] ) + d[ r ];
+			}
+
+			matrices[ i ] = n;
+		}
+	}
+
+	protected void setModels()
+	{
+		for ( int i = 0; i < tiles.size(); ++i )
+		{
+			if ( var[ i ] < 0 )
+				continue;
+
+			final Model< ? > model = tiles.get( i ).getModel();
+			final double[] m = matrices[ i ];
+
+			if ( modelType == TRANSLATION )
+				( (TranslationModel3D)model ).set( m[ 3 ], m[ 7 ], m[ 11 ] );
+			else if ( modelType == RIGID )
+				( (RigidModel3D)model ).set( m[ 0 ], m[ 1 ], m[ 2 ], m[ 3 ], m[ 4 ], m[ 5 ], m[ 6 ], m[ 7 ], m[ 8 ], m[ 9 ], m[ 10 ], m[ 11 ] );
+			else
+				( (AffineModel3D)model ).set( m[ 0 ], m[ 1 ], m[ 2 ], m[ 3 ], m[ 4 ], m[ 5 ], m[ 6 ], m[ 7 ], m[ 8 ], m[ 9 ], m[ 10 ], m[ 11 ] );
+		}
+	}
+
+	/**
+	 * Applies the models to the matches of all tiles and computes the errors the same way as {@link TileConfiguration}
+	 */
+	protected void updateTileErrors()
+	{
+		for ( final Tile< M > tile : tiles )
+			tile.apply();
+
+		double sum = 0;
+		minError = Double.MAX_VALUE;
+		maxError = 0;
+
+		for ( final Tile< M > tile : tiles )
+		{
+			tile.updateCost();
+
+			final double d = tile.getDistance();
+			sum += d;
+			minError = Math.min( minError, d );
+			maxError = Math.max( maxError, d );
+		}
+
+		avgError = sum / tiles.size();
+	}
+
+	/**
+	 * @param y - the point relative to the centroid of its tile
+	 * @param j - the 3 x q Jacobian of the transformed point with respect to the change of the tile
+	 */
+	protected void jacobian( final double[] y, final double[] j )
+	{
+		for ( int k = 0; k < j.length; ++k )
+			j[ k ] = 0;
+
+		if ( modelType == TRANSLATION )
+		{
+			j[ 0 ] = j[ 4 ] = j[ 8 ] = 1;
+		}
+		else if ( modelType == RIGID )
+		{
+			// linearized rotation: omega x y
+			j[ 1 ] = y[ 2 ]; j[ 2 ] = -y[ 1 ]; j[ 3 ] = 1;
+			j[ 6 ] = -y[ 2 ]; j[ 8 ] = y[ 0 ]; j[ 10 ] = 1;
+			j[ 12 ] = y[ 1 ]; j[ 13 ] = -y[ 0 ]; j[ 17 ] = 1;
+		}
+		else
+		{
+			for ( int r = 0; r < 3; ++r )
+			{
+				final int o = r * 12 + r * 4;
+				j[ o ] = y[ 0 ];
+				j[ o + 1 ] = y[ 1 ];
+				j[ o + 2 ] = y[ 2 ];
+				j[ o + 3 ] = 1;
+			}
+		}
+	}
+
+	/**
+	 * h += w * ja^T * jb
+	 */
+	protected void addJtJ( final double[] h, final double[] ja, final double[] jb, final double w )
+	{
+		for ( int d = 0; d < 3; ++d )
+		{
+			final int o = d * q;
+
+			for ( int r = 0; r < q; ++r )
+			{
+				final double v = w * ja[ o + r ];
+
+				if ( v != 0 )
+					for ( int c = 0; c < q; ++c )
+						h[ r * q + c ] += v * jb[ o + c ];
+			}
+		}
+	}
+
+	protected double[] multiply( final double[] h, final double[] x, final double[] y )
+	{
+		for ( int r = 0; r < q; ++r )
+		{
+			double sum = 0;
+
+			for ( int c = 0; c < q; ++c )
+				sum += h[ r * q + c ] * x[ c ];
+
+			y[ r ] = sum;
+		}
+
+		return y;
+	}
+
+	protected void multiplyAdd( final double[] h, final double[] x, final double[] y, final boolean transpose )
+	{
+		for ( int r = 0; r < q; ++r )
+		{
+			double sum = 0;
+
+			if ( transpose )
+				for ( int c = 0; c < q; ++c )
+					sum += h[ c * q + r ] * x[ c ];
+			else
+				for ( int c = 0; c < q; ++c )
+					sum += h[ r * q + c ] * x[ c ];
+
+			y[ r ] += sum;
+		}
+	}
+
+	/**
+	 * Inverts the diagonal block for the preconditioner (Gauss-Jordan), slightly damped so that tiles whose
+	 * parameters are not fully constrained (e.g. coplanar points for an affine model) remain invertible.
+	 */
+	protected double[] invert( final double[] h )
+	{
+		final double[] a = h.clone();
+		final double[] inv = new double[ q * q ];
+
+		double maxDiagonal = 0;
+
+		for ( int k = 0; k < q; ++k )
+			maxDiagonal = Math.max( maxDiagonal, a[ k * q + k ] );
+
+		// a tile without correspondences to other tiles does not change
+		if ( maxDiagonal == 0 )
+			return inv;
+
+		final double damping = maxDiagonal * 1e-10;
+
+		for ( int k = 0; k < q; ++k )
+		{
+			a[ k * q + k ] += damping;
+			inv[ k * q + k ] = 1;
+		}
+
+		for ( int c = 0; c < q; ++c )
+		{
+			int pivot = c;
+
+			for ( int r = c + 1; r < q; ++r )
+				if ( Math.abs( a[ r * q + c ] ) > Math.abs( a[ pivot * q + c ] ) )
+					pivot = r;
+
+			if ( pivot != c )
+			{
+				swapRows( a, c, pivot );
+				swapRows( inv, c, pivot );
+			}
+
+			final double v = a[ c * q + c ];
+
+			for ( int k = 0; k < q; ++k )
+			{
+				a[ c * q + k ] /= v;
+				inv[ c * q + k ] /= v;
+			}
+
+			for ( int r = 0; r < q; ++r )
+			{
+				if ( r == c )
+					continue;
+
+				final double f = a[ r * q + c ];
+
+				if ( f != 0 )
+					for ( int k = 0; k < q; ++k )
+					{
+						a[ r * q + k ] -= f * a[ c * q + k ];
+						inv[ r * q + k ] -= f * inv[ c * q + k ];
+					}
+			}
+		}
+
+		return inv;
+	}
+
+	protected void swapRows( final double[] a, final int r1, final int r2 )
+	{
+		for ( int k = 0; k < q; ++k )
+		{
+			final double tmp = a[ r1 * q + k ];
+			a[ r1 * q + k ] = a[ r2 * q + k ];
+			a[ r2 * q + k ] = tmp;
+		}
+	}
+
+	protected double[] flatten( final double[][] x )
+	{
+		final double[] flat = new double[ numVars * q ];
+
+		for ( int i = 0; i < x.length; ++i )
+			if ( var[ i ] >= 0 )
+				System.arraycopy( x[ i ], 0, flat, var[ i ] * q, q );
+
+		return flat;
+	}
+
+	protected static double dot( final double[] a, final double[] b )
+	{
+		double sum = 0;
+
+		for ( int k = 0; k < a.length; ++k )
+			sum += a[ k ] * b[ k ];
+
+		return sum;
+	}
+
+	protected static void add( final double[] sum, final double[] v )
+	{
+		for ( int d = 0; d < 3; ++d )
+			sum[ d ] += v[ d ];
+	}
+
+	/**
+	 * @param m - 3x4 matrix, row-packed
+	 * @param points - the points, point k at 3 * k
+	 * @param k - which point
+	 * @param t - the transformed point
+	 */
+	protected static void apply( final double[] m, final double[] points, final int k, final double[] t )
+	{
+		final double x = points[ k * 3 ], y = points[ k * 3 + 1 ], z = points[ k * 3 + 2 ];
+
+		t[ 0 ] = m[ 0 ] * x + m[ 1 ] * y + m[ 2 ] * z + m[ 3 ];
+		t[ 1 ] = m[ 4 ] * x + m[ 5 ] * y + m[ 6 ] * z + m[ 7 ];
+		t[ 2 ] = m[ 8 ] * x + m[ 9 ] * y + m[ 10 ] * z + m[ 11 ];
+	}
+
+	/**
+	 * Rotation matrix for the rotation vector (axis * angle), Rodrigues' formula
+	 */
+	protected static void rotation( final double wx, final double wy, final double wz, final double[] r )
+	{
+		final double angle = Math.sqrt( wx * wx + wy * wy + wz * wz );
+
+		if ( angle == 0 )
+		{
+			for ( int k = 0; k < 9; ++k )
+				r[ k ] = k % 4 == 0 ? 1 : 0;
+
+			return;
+		}
+
+		final double x = wx / angle, y = wy / angle, z = wz / angle;
+		final double c = Math.cos( angle ), s = Math.sin( angle ), t = 1 - c;
+
+		r[ 0 ] = t * x * x + c;     r[ 1 ] = t * x * y - s * z; r[ 2 ] = t * x * z + s * y;
+		r[ 3 ] = t * x * y + s * z; r[ 4 ] = t * y * y + c;     r[ 5 ] = t * y * z - s * x;
+		r[ 6 ] = t * x * z - s * y; r[ 7 ] = t * y * z + s * x; r[ 8 ] = t * z * z + c;
+	}
+
+	/**
+	 * @return - the number of linear systems that were solved (Gauss-Newton steps for rigid models, otherwise 1)
+	 */
+	public int getNumIterations() { return numIterations; }
+
+	/**
+	 * @return - the number of conjugate gradient iterations of the last linear system
+	 */
+	public int getNumCGIterations() { return numCGIterations; }
+
+	/**
+	 * @return - the residual of the last linear system relative to the right-hand side of the first one
+	 */
+	public double getRelativeResidual() { return relativeResidual; }
+
+	/**
+	 * @return - average error of all tiles (as {@link TileConfiguration#getError()})
+	 */
+	public double getError() { return avgError; }
+	public double getMinError() { return minError; }
+	public double getMaxError() { return maxError; }
+}
@@ -2,13 +2,17 @@ package spim.process.interestpointregistration.geometricdescriptor;
 
 import ij.gui.GenericDialog;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import mpicbg.pointdescriptor.SimplePointDescriptor;
 import mpicbg.spim.data.sequence.ViewId;
 import spim.fiji.plugin.Interest_Point_Registration.RegistrationType;
 import spim.fiji.plugin.interestpointregistration.InterestPointRegistration;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
+import spim.process.interestpointregistration.DescriptorCache;
+import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
@@ -28,6 +32,9 @@ public class RGLDM extends InterestPointRegistration
 	protected RGLDMParameters parameters;
 	protected RANSACParameters ransacParams;
 
+	// the descriptors of each view are computed once and shared by all pairs, depends on the parameters
+	protected DescriptorCache< ArrayList< SimplePointDescriptor< Detection > > > descriptorCache = null;
+
 	public RGLDM(
 			final SpimData2 spimData,
 			final List< ViewId > viewIdsToProcess,
@@ -39,7 +46,10 @@ public class RGLDM extends InterestPointRegistration
 	@Override
 	protected RGLDMPairwise pairwiseMatchingInstance( final PairwiseMatch pair, final String description )
 	{
-		return new RGLDMPairwise( pair, model, description, ransacParams, parameters );
+		if ( descriptorCache == null )
+			descriptorCache = RGLDMMatcher.createDescriptorCache( parameters.getNumNeighbors(), parameters.getRedundancy() );
+
+		return new RGLDMPairwise( pair, model, description, ransacParams, parameters, descriptorCache, getNumThreadsPerPair() );
 	}
 
 	@Override
@@ -86,6 +96,7 @@ public class RGLDM extends InterestPointRegistration
 		final float maxEpsilon = RANSACParameters.max_epsilon = (float)gd.getNextNumber();
 		
 		this.parameters = new RGLDMParameters( RGLDMParameters.differenceThreshold, significance, numNeighbors, redundancy );
+		this.descriptorCache = null;
 		this.ransacParams = new RANSACParameters( maxEpsilon, RANSACParameters.min_inlier_ratio, RANSACParameters.min_inlier_factor, RANSACParameters.num_iterations );
 		
 		return true;
@@ -104,6 +115,7 @@ public class RGLDM extends InterestPointRegistration
 	public void setParameters( RGLDMParameters parameters )
 	{
 		this.parameters = parameters;
+		this.descriptorCache = null;
 	}
 
 	public void setRansacParams( RANSACParameters ransacParams )
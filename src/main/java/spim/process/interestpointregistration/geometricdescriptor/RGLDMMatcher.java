@@ -13,7 +13,11 @@ import mpicbg.pointdescriptor.matcher.SubsetMatcher;
 import mpicbg.pointdescriptor.similarity.SimilarityMeasure;
 import mpicbg.pointdescriptor.similarity.SquareDistance;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
+import spim.process.interestpointregistration.DescriptorCache;
 import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.PointCloud;
+import spim.process.interestpointregistration.PointCloudKDTree;
+import spim.process.interestpointregistration.RANSAC;
 
 public class RGLDMMatcher
 {
@@ -41,6 +45,63 @@ public class RGLDMMatcher
 		return findCorrespondingDescriptors( descriptorsA, descriptorsB, ratioOfDistance, differenceThreshold );
 	}
 	
+	/**
+	 * Same as {@link #extractCorrespondenceCandidates(ArrayList, ArrayList, int, int, double, double)}, but the
+	 * neighbors are found on the primitive arrays of the point clouds instead of a KDTree of {@link Detection}s
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final PointCloud cloudA, 
+			final PointCloud cloudB, 
+			final int numNeighbors,
+			final int redundancy,
+			final double ratioOfDistance,
+			final double differenceThreshold ) 
+	{
+		/* extract point descriptors */
+		final Matcher matcher = new SubsetMatcher( numNeighbors, numNeighbors + redundancy );
+		final int numRequiredNeighbors = matcher.getRequiredNumNeighbors();
+
+		final SimilarityMeasure similarityMeasure = new SquareDistance();
+
+		final ArrayList< SimplePointDescriptor<Detection> > descriptorsA = createSimplePointDescriptors( new PointCloudKDTree( cloudA ), numRequiredNeighbors, matcher, similarityMeasure );
+		final ArrayList< SimplePointDescriptor<Detection> > descriptorsB = createSimplePointDescriptors( new PointCloudKDTree( cloudB ), numRequiredNeighbors, matcher, similarityMeasure );
+
+		return findCorrespondingDescriptors( descriptorsA, descriptorsB, ratioOfDistance, differenceThreshold );
+	}
+
+	/**
+	 * Matches the descriptors of two views, the descriptors are only read so they can be shared between
+	 * several pairwise matchings (see {@link #createDescriptorCache(int, int)})
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final ArrayList< SimplePointDescriptor<Detection> > descriptorsA, 
+			final ArrayList< SimplePointDescriptor<Detection> > descriptorsB, 
+			final double ratioOfDistance,
+			final double differenceThreshold ) 
+	{
+		return findCorrespondingDescriptors( descriptorsA, descriptorsB, ratioOfDistance, differenceThreshold );
+	}
+
+	/**
+	 * @param numNeighbors
+	 * @param redundancy
+	 * @return - a cache that computes the descriptors of each view once
+	 */
+	public static DescriptorCache< ArrayList< SimplePointDescriptor<Detection> > > createDescriptorCache( final int numNeighbors, final int redundancy )
+	{
+		final Matcher matcher = new SubsetMatcher( numNeighbors, numNeighbors + redundancy );
+		final SimilarityMeasure similarityMeasure = new SquareDistance();
+
+		return new DescriptorCache< ArrayList< SimplePointDescriptor<Detection> > >()
+		{
+			@Override
+			protected ArrayList< SimplePointDescriptor<Detection> > create( final PointCloud cloud )
+			{
+				return createSimplePointDescriptors( new PointCloudKDTree( cloud ), matcher.getRequiredNumNeighbors(), matcher, similarityMeasure );
+			}
+		};
+	}
+
 	protected static final <D extends AbstractPointDescriptor<Detection, D>> ArrayList<PointMatchGeneric< Detection >> findCorrespondingDescriptors(
 			final ArrayList<D> descriptorsA,
 			final ArrayList<D> descriptorsB,
@@ -48,6 +109,7 @@ public class RGLDMMatcher
 			final double differenceThreshold )
 	{
 		final ArrayList<PointMatchGeneric< Detection >> correspondenceCandidates = new ArrayList<PointMatchGeneric< Detection >>();
+		final double[] distances = new double[ descriptorsA.size() ];
 		
 		for ( final D descriptorA : descriptorsA )
 		{
@@ -87,9 +149,12 @@ public class RGLDMMatcher
 				Detection detectionB = bestMatch.getBasisPoint();
 				
 				// for RANSAC
+				distances[ correspondenceCandidates.size() ] = bestDifference;
 				correspondenceCandidates.add( new PointMatchGeneric<Detection>( detectionA, detectionB ) );				
 			}
 		}
+
+		RANSAC.sortByQuality( correspondenceCandidates, distances );
 		
 		return correspondenceCandidates;
 	}
@@ -122,4 +187,36 @@ public class RGLDMMatcher
 		return descriptors;
 	}
 
+	protected static ArrayList< SimplePointDescriptor<Detection> > createSimplePointDescriptors( final PointCloudKDTree tree, 
+			final int numNeighbors, final Matcher matcher, final SimilarityMeasure similarityMeasure )
+	{
+		final PointCloud cloud = tree.getPointCloud();
+		final ArrayList< SimplePointDescriptor<Detection> > descriptors = new ArrayList< SimplePointDescriptor<Detection> > ( );
+
+		final int[] neighborIndices = new int[ numNeighbors + 1 ];
+		final double[] neighborDistances = new double[ numNeighbors + 1 ];
+
+		for ( int i = 0; i < cloud.size(); ++i )
+		{
+			final int numFound = tree.findNearestNeighbors( cloud.getX( i ), cloud.getY( i ), cloud.getZ( i ), numNeighbors + 1, Double.MAX_VALUE, neighborIndices, neighborDistances );
+
+			// the point itself is one of the hits (the first one unless there are duplicates)
+			final ArrayList< Detection > neighbors = new ArrayList< Detection >();
+
+			for ( int n = 0; n < numFound && neighbors.size() < numNeighbors; ++n )
+				if ( neighborIndices[ n ] != i )
+					neighbors.add( cloud.getDetection( neighborIndices[ n ] ) );
+
+			try
+			{
+				descriptors.add( new SimplePointDescriptor<Detection>( cloud.getDetection( i ), neighbors, similarityMeasure, matcher ) );
+			}
+			catch ( NoSuitablePointsException e )
+			{
+				e.printStackTrace();
+			}
+		}
+
+		return descriptors;
+	}
 }
@@ -4,12 +4,15 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.concurrent.Callable;
 
+import mpicbg.pointdescriptor.SimplePointDescriptor;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import spim.fiji.ImgLib2Temp.Pair;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.Threads;
+import spim.process.interestpointregistration.DescriptorCache;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PointCloud;
 import spim.process.interestpointregistration.RANSAC;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
@@ -21,27 +24,39 @@ public class RGLDMPairwise implements Callable< PairwiseMatch >
 	final RANSACParameters rp;
 	final RGLDMParameters dp;
 	final String comparison;
+	final int numThreads;
+	final DescriptorCache< ArrayList< SimplePointDescriptor< Detection > > > descriptorCache;
 
-	public RGLDMPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final RGLDMParameters dp  )
+	/**
+	 * @param descriptorCache - shares the descriptors of each view between all pairs, must be created for the same parameters, can be null
+	 * @param numThreads - the threads RANSAC may use (1 if the pairs already run in parallel)
+	 */
+	public RGLDMPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final RGLDMParameters dp, final DescriptorCache< ArrayList< SimplePointDescriptor< Detection > > > descriptorCache, final int numThreads )
 	{
 		this.pair = pair;
 		this.rp = rp;
 		this.dp = dp;
 		this.model = model;
 		this.comparison = comparison;
+		this.descriptorCache = descriptorCache;
+		this.numThreads = numThreads;
+	}
+
+	public RGLDMPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final RGLDMParameters dp, final DescriptorCache< ArrayList< SimplePointDescriptor< Detection > > > descriptorCache )
+	{
+		this( pair, model, comparison, rp, dp, descriptorCache, Threads.numThreads() );
+	}
+
+	public RGLDMPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final RGLDMParameters dp  )
+	{
+		this( pair, model, comparison, rp, dp, null );
 	}
 	
 	@Override
 	public PairwiseMatch call() throws Exception
 	{
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		final PointCloud listA = pair.getPointCloudA();
+		final PointCloud listB = pair.getPointCloudB();
 
 		if ( listA.size() < 4 || listB.size() < 4 )
 		{
@@ -52,20 +67,29 @@ public class RGLDMPairwise implements Callable< PairwiseMatch >
 		}
 
 		final RGLDMMatcher matcher = new RGLDMMatcher();
-		final ArrayList< PointMatchGeneric< Detection > > candidates = matcher.extractCorrespondenceCandidates( 
+		final ArrayList< PointMatchGeneric< Detection > > candidates;
+
+		if ( descriptorCache == null )
+			candidates = matcher.extractCorrespondenceCandidates( 
 				listA, 
 				listB,
 				dp.getNumNeighbors(),
 				dp.getRedundancy(),
 				dp.getRatioOfDistance(),
 				dp.getDifferenceThreshold() );
+		else
+			candidates = matcher.extractCorrespondenceCandidates( 
+				descriptorCache.get( listA ), 
+				descriptorCache.get( listB ),
+				dp.getRatioOfDistance(),
+				dp.getDifferenceThreshold() );
 
 		pair.setCandidates( candidates );
 
-		// compute ransac and remove inconsistent candidates
+		// compute ransac and remove inconsistent candidates (they are sorted by descriptor distance)
 		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
 	
-		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations() );
+		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations(), true, numThreads );
 	
 		pair.setInliers( inliers, result.getB() );
 	
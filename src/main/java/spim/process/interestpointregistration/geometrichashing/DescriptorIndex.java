@@ -0,0 +1,47 @@
+package spim.process.interestpointregistration.geometrichashing;
+
+import java.util.ArrayList;
+
+import mpicbg.pointdescriptor.LocalCoordinateSystemPointDescriptor;
+import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.FlatKDTree;
+import spim.process.interestpointregistration.PointCloud;
+import spim.process.interestpointregistration.PointCloudKDTree;
+
+/**
+ * The {@link LocalCoordinateSystemPointDescriptor}s of one view together with a KD-tree over their values, so
+ * they can be computed once and then be matched against all other views (read-only, from several threads).
+ */
+public class DescriptorIndex
+{
+	final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors;
+	final FlatKDTree tree;
+
+	public DescriptorIndex( final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors )
+	{
+		this.descriptors = descriptors;
+
+		final int n = descriptors.size() == 0 ? 1 : descriptors.get( 0 ).getNumDimensions();
+		final double[] values = new double[ descriptors.size() * n ];
+
+		for ( int i = 0; i < descriptors.size(); ++i )
+			for ( int d = 0; d < n; ++d )
+				values[ i * n + d ] = descriptors.get( i ).get( d );
+
+		this.tree = new FlatKDTree( values, n );
+	}
+
+	/**
+	 * @param cloud - the points of a view
+	 * @param numNeighbors - the number of neighbors of each descriptor
+	 * @return - the descriptors of all points and their KD-tree
+	 */
+	public static DescriptorIndex create( final PointCloud cloud, final int numNeighbors )
+	{
+		return new DescriptorIndex( GeometricHasher.createLocalCoordinateSystemPointDescriptors( new PointCloudKDTree( cloud ), numNeighbors, false ) );
+	}
+
+	public ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > getDescriptors() { return descriptors; }
+	public FlatKDTree getTree() { return tree; }
+	public int size() { return descriptors.size(); }
+}
@@ -11,6 +11,10 @@ import mpicbg.pointdescriptor.LocalCoordinateSystemPointDescriptor;
 import mpicbg.pointdescriptor.exception.NoSuitablePointsException;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.FlatKDTree;
+import spim.process.interestpointregistration.PointCloud;
+import spim.process.interestpointregistration.PointCloudKDTree;
+import spim.process.interestpointregistration.RANSAC;
 
 /**
  * Class that actually computes the geometric hashing
@@ -20,6 +24,9 @@ import spim.process.interestpointregistration.Detection;
  */
 public class GeometricHasher
 {
+	// the number of neighbors of each descriptor
+	public static final int numNeighbors = 3;
+
 	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
 			final ArrayList< Detection > nodeListA, 
 			final ArrayList< Detection > nodeListB, 
@@ -27,8 +34,6 @@ public class GeometricHasher
 			double ratioOfDistance, 
 			final boolean useAssociatedBeads ) 
 	{
-		final int numNeighbors = 3;
-		
 		final KDTree< Detection > tree1 = new KDTree< Detection >( nodeListA );
 		final KDTree< Detection > tree2 = new KDTree< Detection >( nodeListB );
 
@@ -51,6 +56,76 @@ public class GeometricHasher
 		return correspondences;
 	}
 	
+	/**
+	 * Same as {@link #extractCorrespondenceCandidates(ArrayList, ArrayList, double, double, boolean)}, but the
+	 * neighbors are found on the primitive arrays of the point clouds instead of a KDTree of {@link Detection}s
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final PointCloud cloudA, 
+			final PointCloud cloudB, 
+			double differenceThreshold, 
+			double ratioOfDistance, 
+			final boolean useAssociatedBeads ) 
+	{
+		return extractCorrespondenceCandidates(
+				DescriptorIndex.create( cloudA, numNeighbors ),
+				DescriptorIndex.create( cloudB, numNeighbors ),
+				differenceThreshold,
+				ratioOfDistance );
+	}
+
+	/**
+	 * Matches the descriptors of two views, the indices are only read so they can be shared between
+	 * several pairwise matchings (see {@link GeometricHashing})
+	 * 
+	 * @param indexA - the descriptors of view A
+	 * @param indexB - the descriptors of view B
+	 * @param differenceThreshold
+	 * @param ratioOfDistance
+	 * @return - the candidates for corresponding points, sorted by descriptor distance
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final DescriptorIndex indexA, 
+			final DescriptorIndex indexB, 
+			final double differenceThreshold, 
+			final double ratioOfDistance ) 
+	{
+		final ArrayList<PointMatchGeneric< Detection >> correspondences = new ArrayList<PointMatchGeneric<Detection>>();
+		final double[] distances = new double[ indexA.size() ];
+
+		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptorsB = indexB.getDescriptors();
+		final FlatKDTree treeB = indexB.getTree();
+
+		final double[] query = new double[ treeB.numDimensions() ];
+		final int[] matches = new int[ 2 ];
+		final double[] sqDistances = new double[ 2 ];
+
+		for ( final LocalCoordinateSystemPointDescriptor< Detection > descriptorA : indexA.getDescriptors() )
+		{
+			for ( int d = 0; d < query.length; ++d )
+				query[ d ] = descriptorA.get( d );
+
+			if ( treeB.findNearestNeighbors( query, 2, matches, sqDistances ) < 2 )
+				continue;
+
+			double best = descriptorA.descriptorDistance( descriptorsB.get( matches[ 0 ] ) );
+			double secondBest = descriptorA.descriptorDistance( descriptorsB.get( matches[ 1 ] ) );
+
+			if ( best < differenceThreshold && best * ratioOfDistance <= secondBest )
+			{
+				final Detection detectionA = descriptorA.getBasisPoint();
+				final Detection detectionB = descriptorsB.get( matches[ 0 ] ).getBasisPoint();
+
+				distances[ correspondences.size() ] = best;
+				correspondences.add( new PointMatchGeneric<Detection>( detectionA, detectionB, 1 ) );
+			}
+		}
+
+		RANSAC.sortByQuality( correspondences, distances );
+
+		return correspondences;
+	}
+
 	protected void computeMatching( 
 			final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors1, 
 			final NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > > nnsearch2,
@@ -114,4 +189,39 @@ public class GeometricHasher
 		
 		return descriptors;
 	}
+
+	public static ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > createLocalCoordinateSystemPointDescriptors( 
+			final PointCloudKDTree tree, 
+			final int numNeighbors,
+			final boolean normalize )
+	{
+		final PointCloud cloud = tree.getPointCloud();
+		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors = new ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > ( );
+
+		final int[] neighborIndices = new int[ numNeighbors + 1 ];
+		final double[] neighborDistances = new double[ numNeighbors + 1 ];
+
+		for ( int i = 0; i < cloud.size(); ++i )
+		{
+			final int numFound = tree.findNearestNeighbors( cloud.getX( i ), cloud.getY( i ), cloud.getZ( i ), numNeighbors + 1, Double.MAX_VALUE, neighborIndices, neighborDistances );
+
+			// the point itself is one of the hits (the first one unless there are duplicates)
+			final ArrayList< Detection > neighbors = new ArrayList< Detection >();
+
+			for ( int n = 0; n < numFound && neighbors.size() < numNeighbors; ++n )
+				if ( neighborIndices[ n ] != i )
+					neighbors.add( cloud.getDetection( neighborIndices[ n ] ) );
+
+			try
+			{
+				descriptors.add( new LocalCoordinateSystemPointDescriptor< Detection >( cloud.getDetection( i ), neighbors, normalize ) );
+			}
+			catch ( NoSuitablePointsException e )
+			{
+				e.printStackTrace();
+			}
+		}
+
+		return descriptors;
+	}
 }
@@ -9,7 +9,9 @@ import spim.fiji.plugin.Interest_Point_Registration.RegistrationType;
 import spim.fiji.plugin.interestpointregistration.InterestPointRegistration;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
+import spim.process.interestpointregistration.DescriptorCache;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PointCloud;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
 
@@ -22,6 +24,16 @@ public class GeometricHashing extends InterestPointRegistration
 	protected RANSACParameters ransacParams;
 	protected GeometricHashingParameters ghParams;
 
+	// the descriptors of each view are computed once and shared by all pairs
+	protected final DescriptorCache< DescriptorIndex > descriptorCache = new DescriptorCache< DescriptorIndex >()
+	{
+		@Override
+		protected DescriptorIndex create( final PointCloud cloud )
+		{
+			return DescriptorIndex.create( cloud, GeometricHasher.numNeighbors );
+		}
+	};
+
 	public GeometricHashing(
 			final SpimData2 spimData,
 			final List< ViewId > viewIdsToProcess,
@@ -33,7 +45,7 @@ public class GeometricHashing extends InterestPointRegistration
 	@Override
 	protected GeometricHashingPairwise pairwiseMatchingInstance( final PairwiseMatch pair, final String description )
 	{
-		return new GeometricHashingPairwise( pair, model, description, ransacParams, ghParams );
+		return new GeometricHashingPairwise( pair, model, description, ransacParams, ghParams, descriptorCache, getNumThreadsPerPair() );
 	}
 
 	@Override
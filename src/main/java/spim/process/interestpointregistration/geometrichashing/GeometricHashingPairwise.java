@@ -7,9 +7,11 @@ import java.util.concurrent.Callable;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import spim.fiji.ImgLib2Temp.Pair;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.Threads;
+import spim.process.interestpointregistration.DescriptorCache;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PointCloud;
 import spim.process.interestpointregistration.RANSAC;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
@@ -21,14 +23,32 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 	final RANSACParameters rp;
 	final GeometricHashingParameters gp;
 	final String comparison;
-	
-	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final GeometricHashingParameters gp )
+	final int numThreads;
+	final DescriptorCache< DescriptorIndex > descriptorCache;
+
+	/**
+	 * @param descriptorCache - shares the descriptors of each view between all pairs, can be null
+	 * @param numThreads - the threads RANSAC may use (1 if the pairs already run in parallel)
+	 */
+	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final GeometricHashingParameters gp, final DescriptorCache< DescriptorIndex > descriptorCache, final int numThreads )
 	{ 
 		this.pair = pair;
 		this.rp = rp;
 		this.gp = gp;
 		this.model = model;
 		this.comparison = comparison;
+		this.descriptorCache = descriptorCache;
+		this.numThreads = numThreads;
+	}
+
+	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final GeometricHashingParameters gp, final DescriptorCache< DescriptorIndex > descriptorCache )
+	{
+		this( pair, model, comparison, rp, gp, descriptorCache, Threads.numThreads() );
+	}
+
+	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final GeometricHashingParameters gp )
+	{
+		this( pair, model, comparison, rp, gp, null );
 	}
 
 	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp )
@@ -46,14 +66,8 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 	{
 		final GeometricHasher hasher = new GeometricHasher();
 		
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		final PointCloud listA = pair.getPointCloudA();
+		final PointCloud listB = pair.getPointCloudB();
 
 		if ( listA.size() < 4 || listB.size() < 4 )
 		{
@@ -63,19 +77,28 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 			return pair;
 		}
 
-		final ArrayList< PointMatchGeneric< Detection > > candidates = hasher.extractCorrespondenceCandidates( 
+		final ArrayList< PointMatchGeneric< Detection > > candidates;
+
+		if ( descriptorCache == null )
+			candidates = hasher.extractCorrespondenceCandidates( 
 				listA,
 				listB,
 				gp.getDifferenceThreshold(), 
 				gp.getRatioOfDistance(), 
 				gp.getUseAssociatedBeads() );
+		else
+			candidates = hasher.extractCorrespondenceCandidates( 
+				descriptorCache.get( listA ),
+				descriptorCache.get( listB ),
+				gp.getDifferenceThreshold(), 
+				gp.getRatioOfDistance() );
 
 		pair.setCandidates( candidates );
 
-		// compute ransac and remove inconsistent candidates
+		// compute ransac and remove inconsistent candidates (they are sorted by descriptor distance)
 		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
 
-		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations() );
+		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations(), true, numThreads );
 
 		pair.setInliers( inliers, result.getB() );
 
@@ -37,7 +37,7 @@ public class IterativeClosestPoint extends InterestPointRegistration
 	@Override
 	protected IterativeClosestPointPairwise pairwiseMatchingInstance( final PairwiseMatch pair, final String description)
 	{
-		return new IterativeClosestPointPairwise( pair, model, description, parameters );
+		return new IterativeClosestPointPairwise( pair, model, description, parameters, getNumThreadsPerPair() );
 	}
 
 	@Override
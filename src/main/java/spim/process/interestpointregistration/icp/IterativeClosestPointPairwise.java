@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import net.imglib2.util.Util;
 import mpicbg.icp.ICP;
@@ -11,14 +13,14 @@ import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.Point;
-import mpicbg.models.PointMatch;
 import mpicbg.models.TranslationModel3D;
 import mpicbg.pointdescriptor.exception.NoSuitablePointsException;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.Threads;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PointCloud;
 import spim.process.interestpointregistration.TransformationModel;
 
 public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
@@ -27,26 +29,30 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 	final TransformationModel model;
 	final IterativeClosestPointParameters ip;
 	final String comparison;
+	final int numThreads;
 
-	public IterativeClosestPointPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final IterativeClosestPointParameters ip  )
+	/**
+	 * @param numThreads - the threads for the closest point search (1 if the pairs already run in parallel)
+	 */
+	public IterativeClosestPointPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final IterativeClosestPointParameters ip, final int numThreads )
 	{
 		this.pair = pair;
 		this.ip = ip;
 		this.model = model;
 		this.comparison = comparison;
+		this.numThreads = numThreads;
+	}
+
+	public IterativeClosestPointPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final IterativeClosestPointParameters ip  )
+	{
+		this( pair, model, comparison, ip, Threads.numThreads() );
 	}
 
 	@Override
 	public PairwiseMatch call() throws Exception
 	{
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		final PointCloud listA = pair.getPointCloudA();
+		final PointCloud listB = pair.getPointCloudB();
 
 		// identity transform
 		Model<?> model = this.model.getModel();
@@ -59,14 +65,9 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 			return pair;
 		}
 
-		// use the world and not the local coordinates
-		for ( final Detection d : listA )
-			d.setUseW( true );
-
-		for ( final Detection d : listB )
-			d.setUseW( true );
-
-		final ICP< Detection > icp = new ICP< Detection >( listA, listB, (float)ip.getMaxDistance() );
+		// the world coordinates of listA are transformed, listB is indexed once; no pool if there is only one thread
+		final ExecutorService service = numThreads > 1 ? Executors.newFixedThreadPool( numThreads ) : null;
+		final PointCloudICP icp = new PointCloudICP( listA, listB, ip.getMaxDistance(), service, Math.max( 1, numThreads ) );
 
 		int i = 0;
 		double lastAvgError = 0;
@@ -74,42 +75,41 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 
 		boolean converged = false;
 
-		do
+		try
 		{
-			try
-			{
-				icp.runICPIteration( model, model );
-			}
-			catch ( NotEnoughDataPointsException e )
-			{
-				failWith( "ICP", "NotEnoughDataPointsException", pair, e );
-				throw new NotEnoughDataPointsException( e );
-			}
-			catch ( IllDefinedDataPointsException e )
-			{
-				failWith( "ICP", "IllDefinedDataPointsException", pair, e );
-				throw new IllDefinedDataPointsException( e );
-			}
-			catch ( NoSuitablePointsException e )
+			do
 			{
-				failWith( "ICP", "NoSuitablePointsException", pair, e );
-				throw new NoSuitablePointsException( e.toString() );
+				try
+				{
+					icp.runICPIteration( model );
+				}
+				catch ( NotEnoughDataPointsException e )
+				{
+					failWith( "ICP", "NotEnoughDataPointsException", pair, e );
+					throw new NotEnoughDataPointsException( e );
+				}
+				catch ( IllDefinedDataPointsException e )
+				{
+					failWith( "ICP", "IllDefinedDataPointsException", pair, e );
+					throw new IllDefinedDataPointsException( e );
+				}
+
+				// same correspondences as before means the same model, no further iteration can change anything
+				if ( icp.hasConverged() || ( lastNumCorresponding == icp.getNumPointMatches() && lastAvgError == icp.getAverageError() ) )
+					converged = true;
+
+				lastNumCorresponding = icp.getNumPointMatches();
+				lastAvgError = icp.getAverageError();
 			}
-
-			if ( lastNumCorresponding == icp.getNumPointMatches() && lastAvgError == icp.getAverageError() )
-				converged = true;
-
-			lastNumCorresponding = icp.getNumPointMatches();
-			lastAvgError = icp.getAverageError();
-			
-			System.out.println( i + ": " + icp.getNumPointMatches() + " matches, avg error [px] " + icp.getAverageError() + ", max error [px] " + icp.getMaximalError() );
+			while ( !converged && ++i < ip.getMaxNumIterations() );
+		}
+		finally
+		{
+			if ( service != null )
+				service.shutdown();
 		}
-		while ( !converged && ++i < ip.getMaxNumIterations() );
 
-		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
-		
-		for ( final PointMatch pm : icp.getPointMatches() )
-			inliers.add( new PointMatchGeneric<Detection>( (Detection)pm.getP1(), (Detection)pm.getP2() ) );
+		final ArrayList< PointMatchGeneric< Detection > > inliers = icp.getCorrespondences();
 
 		pair.setCandidates( inliers );
 		pair.setInliers( inliers, icp.getAverageError() );
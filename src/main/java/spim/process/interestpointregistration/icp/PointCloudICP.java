@@ -0,0 +1,274 @@
+package spim.process.interestpointregistration.icp;
+
+import java.util.ArrayList;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.ImagePortion;
+import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.PointCloud;
+import spim.process.interestpointregistration.PointCloudKDTree;
+
+/**
+ * Iterative closest point on two {@link PointCloud}s. The KD-tree of the fixed reference points is built once,
+ * every iteration transforms the target points and looks up their closest reference point in parallel. As in
+ * {@link mpicbg.icp.ICP}, points within the maximal distance (inclusive) correspond and ambiguous correspondences are
+ * removed: a reference point that is the closest point of more than one target point is not used at all. The
+ * {@link PointMatch}es of targets whose closest reference point did not change are kept from the last iteration,
+ * and once no correspondence changes anymore the model cannot change either (converged).
+ */
+public class PointCloudICP
+{
+	final PointCloud target, reference;
+	final PointCloudKDTree referenceTree;
+	final double maxSquareDistance;
+
+	final ExecutorService service;
+	final Vector< ImagePortion > portions;
+
+	// index of the closest reference point for each target point (or -1), now and in the last iteration
+	final int[] partner, lastPartner;
+
+	// how many target points have each reference point as their closest point
+	final int[] numClaims;
+
+	// the points for fitting, created only for points that have a correspondence
+	final Point[] targetPoints, referencePoints;
+	final PointMatch[] matches;
+
+	final ArrayList< PointMatch > pointMatches = new ArrayList< PointMatch >();
+
+	double avgError = Double.NaN, maxError = Double.NaN;
+	int numChanged = -1, numAmbiguous = -1;
+
+	/**
+	 * @param target - the points that are transformed
+	 * @param reference - the fixed points
+	 * @param maxDistance - the maximal distance of corresponding points
+	 * @param service - executes the lookups, e.g. Executors.newFixedThreadPool( Threads.numThreads() ), null runs them on the calling thread
+	 * @param numThreads - the number of threads of the service (1 if there is none)
+	 */
+	public PointCloudICP( final PointCloud target, final PointCloud reference, final double maxDistance, final ExecutorService service, final int numThreads )
+	{
+		this.target = target;
+		this.reference = reference;
+		this.referenceTree = new PointCloudKDTree( reference );
+		this.maxSquareDistance = maxDistance * maxDistance;
+		this.service = service;
+
+		final int n = target.size();
+
+		this.portions = FusionHelper.divideIntoPortions( n, Math.max( 1, Math.min( n, numThreads * 4 ) ) );
+
+		this.partner = new int[ n ];
+		this.lastPartner = new int[ n ];
+		this.numClaims = new int[ reference.size() ];
+
+		for ( int i = 0; i < n; ++i )
+			lastPartner[ i ] = -1;
+
+		this.targetPoints = new Point[ n ];
+		this.referencePoints = new Point[ reference.size() ];
+		this.matches = new PointMatch[ n ];
+	}
+
+	/**
+	 * Finds the closest reference point of every target point transformed by the model, removes the ambiguous
+	 * correspondences, fits the model to the remaining ones and computes the errors.
+	 *
+	 * @param model - the current model, is updated to the fit of the new correspondences
+	 * @throws NotEnoughDataPointsException
+	 * @throws IllDefinedDataPointsException
+	 */
+	public void runICPIteration( final Model< ? > model ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		assignPartners( model );
+		removeAmbiguousPartners();
+
+		pointMatches.clear();
+		numChanged = 0;
+
+		for ( int i = 0; i < partner.length; ++i )
+		{
+			final int j = partner[ i ];
+
+			if ( j != lastPartner[ i ] )
+			{
+				++numChanged;
+				lastPartner[ i ] = j;
+
+				if ( j < 0 )
+					matches[ i ] = null;
+				else
+					matches[ i ] = new PointMatch( getTargetPoint( i ), getReferencePoint( j ) );
+			}
+
+			if ( j >= 0 )
+				pointMatches.add( matches[ i ] );
+		}
+
+		if ( pointMatches.size() < model.getMinNumMatches() )
+			throw new NotEnoughDataPointsException( pointMatches.size() + " corresponding points found within " +
+					Math.sqrt( maxSquareDistance ) + " px, at least " + model.getMinNumMatches() + " are necessary." );
+
+		model.fit( pointMatches );
+
+		double sum = 0;
+		maxError = 0;
+
+		for ( final PointMatch pm : pointMatches )
+		{
+			pm.apply( model );
+
+			final double d = pm.getDistance();
+			sum += d;
+			maxError = Math.max( maxError, d );
+		}
+
+		avgError = sum / pointMatches.size();
+	}
+
+	protected void assignPartners( final Model< ? > model )
+	{
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( final ImagePortion portion : portions )
+		{
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final double[] l = new double[ 3 ];
+					final int[] index = new int[ 1 ];
+					final double[] sqDistance = new double[ 1 ];
+
+					for ( int i = (int)portion.getStartPosition(); i < portion.getStartPosition() + portion.getLoopSize(); ++i )
+					{
+						l[ 0 ] = target.getX( i );
+						l[ 1 ] = target.getY( i );
+						l[ 2 ] = target.getZ( i );
+
+						model.applyInPlace( l );
+
+						if ( referenceTree.findNearestNeighbors( l[ 0 ], l[ 1 ], l[ 2 ], 1, maxSquareDistance, index, sqDistance ) > 0 )
+							partner[ i ] = index[ 0 ];
+						else
+							partner[ i ] = -1;
+					}
+
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			if ( service == null )
+			{
+				for ( final Callable< Void > task : tasks )
+					task.call();
+			}
+			else
+			{
+				// invokeAll() returns when all tasks are complete
+				for ( final Future< Void > future : service.invokeAll( tasks ) )
+					future.get();
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "ICP closest point search interrupted: " + e, e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( "ICP closest point search failed: " + e.getCause(), e.getCause() );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "ICP closest point search failed: " + e, e );
+		}
+	}
+
+	/**
+	 * Removes all correspondences to reference points that are the closest point of more than one target point
+	 * (same as {@link mpicbg.icp.ICP#removeAmbigousMatches(java.util.List)})
+	 */
+	protected void removeAmbiguousPartners()
+	{
+		for ( int j = 0; j < numClaims.length; ++j )
+			numClaims[ j ] = 0;
+
+		for ( final int j : partner )
+			if ( j >= 0 )
+				++numClaims[ j ];
+
+		numAmbiguous = 0;
+
+		for ( int i = 0; i < partner.length; ++i )
+			if ( partner[ i ] >= 0 && numClaims[ partner[ i ] ] > 1 )
+			{
+				partner[ i ] = -1;
+				++numAmbiguous;
+			}
+	}
+
+	protected Point getTargetPoint( final int i )
+	{
+		if ( targetPoints[ i ] == null )
+			targetPoints[ i ] = new Point( new double[]{ target.getX( i ), target.getY( i ), target.getZ( i ) } );
+
+		return targetPoints[ i ];
+	}
+
+	protected Point getReferencePoint( final int j )
+	{
+		if ( referencePoints[ j ] == null )
+			referencePoints[ j ] = new Point( new double[]{ reference.getX( j ), reference.getY( j ), reference.getZ( j ) } );
+
+		return referencePoints[ j ];
+	}
+
+	/**
+	 * @return - true if the last iteration found exactly the same correspondences as the one before, so the model did not change
+	 */
+	public boolean hasConverged() { return numChanged == 0; }
+
+	/**
+	 * @return - how many target points changed their corresponding point in the last iteration
+	 */
+	public int getNumChanged() { return numChanged; }
+
+	/**
+	 * @return - how many correspondences of the last iteration were removed because they were ambiguous
+	 */
+	public int getNumAmbiguousMatches() { return numAmbiguous; }
+
+	public int getNumPointMatches() { return pointMatches.size(); }
+	public double getAverageError() { return avgError; }
+	public double getMaximalError() { return maxError; }
+
+	/**
+	 * @return - the correspondences of the last iteration as {@link Detection}s of the point clouds (target first)
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > getCorrespondences()
+	{
+		final ArrayList< PointMatchGeneric< Detection > > correspondences = new ArrayList< PointMatchGeneric< Detection > >( pointMatches.size() );
+
+		for ( int i = 0; i < partner.length; ++i )
+			if ( partner[ i ] >= 0 )
+				correspondences.add( new PointMatchGeneric< Detection >( target.getDetection( i ), reference.getDetection( partner[ i ] ) ) );
+
+		return correspondences;
+	}
+}
@@ -46,6 +46,9 @@ public class AllToAllRegistrationWithRange extends GlobalOptimizationType
 		views.addAll( allPointLists.keySet() );
 		Collections.sort( views );
 
+		// views that cannot overlap under their current registration are not compared (if selected)
+		final ViewOverlap overlap = getViewOverlap( allPointLists );
+
 		// all pairs that need to be compared
 		final ArrayList< PairwiseMatch > viewPairs = new ArrayList< PairwiseMatch >();		
 
@@ -69,6 +72,9 @@ public class AllToAllRegistrationWithRange extends GlobalOptimizationType
 					if ( !isValid( viewIdB, listB ) )
 						continue;
 
+					if ( overlap != null && !overlap.overlaps( viewIdA, viewIdB ) )
+						continue;
+
 					// in case we consider timepoints as units and the pair has the same timepoint, do not add;
 					// i.e. add the pair always if the above statement is false
 					if ( !( considerTimePointsAsUnit() && ( viewIdA.getTimePointId() == viewIdB.getTimePointId() ) ) )
@@ -29,6 +29,7 @@ import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PointCloud;
 
 /**
  * A certain type of global optimization, must be able to define all view pairs
@@ -49,6 +50,12 @@ public abstract class GlobalOptimizationType
 	Set< ViewId > fixedTiles;
 	Map< GlobalOptimizationSubset, ViewId > referenceTiles;
 	AbstractModel<?> mapBackModel;
+
+	// only compare views whose bounding boxes overlap, NaN compares all views
+	double overlapMargin = Double.NaN;
+
+	// solve the global optimization as one sparse least-squares problem instead of the iterative TileConfiguration
+	boolean sparseSolver = false;
 	
 	public GlobalOptimizationType(
 			final SpimData2 spimData,
@@ -142,6 +149,49 @@ public abstract class GlobalOptimizationType
 	 */
 	public void setMapBackModel( final AbstractModel<?> model ) { this.mapBackModel = model; }
 
+	/**
+	 * Only views whose bounding boxes in world coordinates (under the current registration) overlap are
+	 * compared, must be called before the view pairs are assembled
+	 *
+	 * @param overlapMargin - views whose bounding boxes are further apart than this (px) are not compared,
+	 * negative values require the bounding boxes to overlap by at least that much, NaN compares all views
+	 */
+	public void setOverlapMargin( final double overlapMargin ) { this.overlapMargin = overlapMargin; }
+
+	/**
+	 * @return - the margin for comparing only overlapping views, NaN if all views are compared
+	 */
+	public double getOverlapMargin() { return overlapMargin; }
+
+	/**
+	 * @param pointLists - all views and their points that will be compared
+	 * @return - which views overlap, or null if all views should be compared
+	 */
+	protected ViewOverlap getViewOverlap( final Map< ViewId, MatchPointList > pointLists )
+	{
+		if ( Double.isNaN( overlapMargin ) )
+			return null;
+
+		final ViewOverlap overlap = new ViewOverlap( spimData, pointLists, overlapMargin );
+
+		final int n = pointLists.size();
+		IOFunctions.println( "Only comparing views with overlapping bounding boxes (margin " + overlapMargin + " px): " +
+				overlap.numOverlappingPairs() + " of " + ( (long)n * ( n - 1 ) / 2 ) + " pairs of views." );
+
+		return overlap;
+	}
+
+	/**
+	 * @param sparseSolver - true to solve the global optimization for all tiles at once (see SparseGlobalOpt),
+	 * which is much faster for many tiles; otherwise the iterative TileConfiguration is used
+	 */
+	public void setSparseSolver( final boolean sparseSolver ) { this.sparseSolver = sparseSolver; }
+
+	/**
+	 * @return - true if the global optimization is solved for all tiles at once
+	 */
+	public boolean useSparseSolver() { return sparseSolver; }
+
 	/** 
 	 * @return - true if timepoints should be considered as one unit
 	 */
@@ -152,7 +202,7 @@ public abstract class GlobalOptimizationType
 	/**
 	 * Creates lists of input points for the registration, based on the current transformation of the views
 	 * 
-	 * Note: this always duplicates the location array from the input List&gt; InterestPoint &lt; !!!
+	 * Note: this always duplicates the locations from the input List&gt; InterestPoint &lt; into a {@link PointCloud} !!!
 	 * 
 	 * @param timepoint
 	 */
@@ -176,9 +226,6 @@ public abstract class GlobalOptimizationType
 			final Angle a = vd.getViewSetup().getAngle();
 			final Illumination i = vd.getViewSetup().getIllumination();
 
-			// assemble a new list
-			final ArrayList< InterestPoint > list = new ArrayList< InterestPoint >();
-
 			// check the existing lists of points
 			final ViewInterestPointLists lists = interestpoints.getViewInterestPointLists( vd );
 
@@ -207,15 +254,8 @@ public abstract class GlobalOptimizationType
 			r.updateModel();
 			final AffineTransform3D m = r.getModel();
 			
-			for ( final InterestPoint p : ptList )
-			{
-				final double[] l = new double[ 3 ];
-				m.apply( p.getL(), l );
-				
-				list.add( new InterestPoint( p.getId(), l ) );
-			}
-			
-			interestPoints.put( vd, new MatchPointList( list, c ) );
+			// the transformed locations go straight into primitive arrays
+			interestPoints.put( vd, new MatchPointList( PointCloud.fromInterestPoints( ptList, m ), c ) );
 		}
 
 		return interestPoints;
@@ -238,6 +278,9 @@ public abstract class GlobalOptimizationType
 	 */
 	public void addCorrespondences( final List< PairwiseMatch > pairs )
 	{
+		// the lists loaded from disk are read-only, every list is copied once and set after all pairs were added
+		final HashMap< InterestPointList, List< CorrespondingInterestPoints > > changed = new HashMap< InterestPointList, List< CorrespondingInterestPoints > >();
+
 		for ( final PairwiseMatch pair : pairs )
 		{
 			final ArrayList< PointMatchGeneric< Detection > > correspondences = pair.getInliers();
@@ -251,14 +294,8 @@ public abstract class GlobalOptimizationType
 			final InterestPointList listA = spimData.getViewInterestPoints().getViewInterestPointLists( viewA ).getInterestPointList( labelA );				
 			final InterestPointList listB = spimData.getViewInterestPoints().getViewInterestPointLists( viewB ).getInterestPointList( labelB );
 
-			List< CorrespondingInterestPoints > corrListA = listA.getCorrespondingInterestPoints();
-			List< CorrespondingInterestPoints > corrListB = listB.getCorrespondingInterestPoints();
-
-			if ( corrListA == null )
-				corrListA = new ArrayList< CorrespondingInterestPoints >();
-
-			if ( corrListB == null )
-				corrListB = new ArrayList< CorrespondingInterestPoints >();
+			final List< CorrespondingInterestPoints > corrListA = workingCopy( listA, changed );
+			final List< CorrespondingInterestPoints > corrListB = workingCopy( listB, changed );
 
 			for ( final PointMatchGeneric< Detection > d : correspondences )
 			{
@@ -271,10 +308,32 @@ public abstract class GlobalOptimizationType
 				corrListA.add( correspondingToA );
 				corrListB.add( correspondingToB );
 			}
+		}
 
-			listA.setCorrespondingInterestPoints( corrListA );
-			listB.setCorrespondingInterestPoints( corrListB );
+		for ( final Map.Entry< InterestPointList, List< CorrespondingInterestPoints > > entry : changed.entrySet() )
+			entry.getKey().setCorrespondingInterestPoints( entry.getValue() );
+	}
+
+	/**
+	 * @return - the modifiable copy of the correspondences of this list, created on first request
+	 */
+	protected static List< CorrespondingInterestPoints > workingCopy( final InterestPointList list, final HashMap< InterestPointList, List< CorrespondingInterestPoints > > changed )
+	{
+		List< CorrespondingInterestPoints > copy = changed.get( list );
+
+		if ( copy == null )
+		{
+			final List< CorrespondingInterestPoints > current = list.getCorrespondingInterestPoints();
+
+			if ( current == null )
+				copy = new ArrayList< CorrespondingInterestPoints >();
+			else
+				copy = new ArrayList< CorrespondingInterestPoints >( current );
+
+			changed.put( list, copy );
 		}
+
+		return copy;
 	}
 
 	/**
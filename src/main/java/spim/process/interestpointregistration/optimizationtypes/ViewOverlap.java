@@ -0,0 +1,188 @@
+package spim.process.interestpointregistration.optimizationtypes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import spim.fiji.spimdata.SpimData2;
+import spim.process.interestpointregistration.MatchPointList;
+import spim.process.interestpointregistration.PointCloud;
+
+/**
+ * Determines which views can overlap under their current registration. The bounding box of each view is
+ * transformed into world coordinates; if the size of a view is not known (it was never opened), the bounding
+ * box of its interest points (which are already in world coordinates) is used instead so no image is loaded.
+ *
+ * The pairs are found by a sweep along x over the boxes sorted by their minimum, only boxes that are still
+ * open along x are tested in y and z.
+ */
+public class ViewOverlap
+{
+	final double margin;
+	final HashMap< ViewId, HashSet< ViewId > > overlapping = new HashMap< ViewId, HashSet< ViewId > >();
+	int numPairs = 0;
+
+	/**
+	 * @param spimData - the dataset
+	 * @param pointLists - the views and their interest points in world coordinates
+	 * @param margin - views whose bounding boxes are further apart than this (px) are not overlapping,
+	 * negative values require the bounding boxes to overlap by at least that much
+	 */
+	public ViewOverlap( final SpimData2 spimData, final Map< ViewId, MatchPointList > pointLists, final double margin )
+	{
+		this.margin = margin;
+
+		final ArrayList< ViewId > views = new ArrayList< ViewId >();
+		final HashMap< ViewId, RealInterval > boxes = new HashMap< ViewId, RealInterval >();
+
+		for ( final ViewId viewId : pointLists.keySet() )
+		{
+			final RealInterval box = getBoundingBox( spimData, viewId, pointLists.get( viewId ).getPointCloud() );
+
+			if ( box != null )
+			{
+				views.add( viewId );
+				boxes.put( viewId, box );
+			}
+		}
+
+		Collections.sort( views, new Comparator< ViewId >()
+		{
+			@Override
+			public int compare( final ViewId o1, final ViewId o2 )
+			{
+				return Double.compare( boxes.get( o1 ).realMin( 0 ), boxes.get( o2 ).realMin( 0 ) );
+			}
+		});
+
+		final ArrayList< ViewId > active = new ArrayList< ViewId >();
+
+		for ( final ViewId viewId : views )
+		{
+			final RealInterval box = boxes.get( viewId );
+
+			for ( final Iterator< ViewId > i = active.iterator(); i.hasNext(); )
+			{
+				final ViewId other = i.next();
+				final RealInterval otherBox = boxes.get( other );
+
+				// all following boxes start even further right
+				if ( otherBox.realMax( 0 ) + margin < box.realMin( 0 ) )
+				{
+					i.remove();
+					continue;
+				}
+
+				if ( overlaps( box, otherBox, 0 ) && overlaps( box, otherBox, 1 ) && overlaps( box, otherBox, 2 ) )
+				{
+					add( viewId, other );
+					add( other, viewId );
+					++numPairs;
+				}
+			}
+
+			active.add( viewId );
+		}
+	}
+
+	protected boolean overlaps( final RealInterval a, final RealInterval b, final int d )
+	{
+		return Math.min( a.realMax( d ), b.realMax( d ) ) - Math.max( a.realMin( d ), b.realMin( d ) ) >= -margin;
+	}
+
+	protected void add( final ViewId a, final ViewId b )
+	{
+		HashSet< ViewId > set = overlapping.get( a );
+
+		if ( set == null )
+		{
+			set = new HashSet< ViewId >();
+			overlapping.put( a, set );
+		}
+
+		set.add( b );
+	}
+
+	/**
+	 * @param viewIdA
+	 * @param viewIdB
+	 * @return - true if the bounding boxes of both views overlap (within the margin)
+	 */
+	public boolean overlaps( final ViewId viewIdA, final ViewId viewIdB )
+	{
+		final HashSet< ViewId > set = overlapping.get( viewIdA );
+
+		return set != null && set.contains( viewIdB );
+	}
+
+	/**
+	 * @param viewId
+	 * @return - all views that overlap with this view
+	 */
+	public Collection< ViewId > getOverlappingViews( final ViewId viewId )
+	{
+		final HashSet< ViewId > set = overlapping.get( viewId );
+
+		if ( set == null )
+			return new HashSet< ViewId >();
+		else
+			return set;
+	}
+
+	/**
+	 * @return - the number of overlapping pairs of views
+	 */
+	public int numOverlappingPairs() { return numPairs; }
+
+	/**
+	 * @param spimData - the dataset
+	 * @param viewId - the view
+	 * @param points - the interest points of the view in world coordinates, used if the size of the view is unknown
+	 * @return - the bounding box of the view in world coordinates or null if it has no size and no points
+	 */
+	public static RealInterval getBoundingBox( final SpimData2 spimData, final ViewId viewId, final PointCloud points )
+	{
+		final ViewDescription vd = spimData.getSequenceDescription().getViewDescription( viewId );
+
+		if ( vd.getViewSetup().hasSize() )
+		{
+			final Dimensions size = vd.getViewSetup().getSize();
+			final double[] min = new double[]{ 0, 0, 0 };
+			final double[] max = new double[]{
+					size.dimension( 0 ) - 1,
+					size.dimension( 1 ) - 1,
+					size.dimension( 2 ) - 1 };
+
+			final ViewRegistration r = spimData.getViewRegistrations().getViewRegistration( viewId );
+			r.updateModel();
+
+			return r.getModel().estimateBounds( new FinalRealInterval( min, max ) );
+		}
+
+		if ( points == null || points.size() == 0 )
+			return null;
+
+		final double[] min = new double[]{ Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] max = new double[]{ -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+		for ( int i = 0; i < points.size(); ++i )
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], points.get( i, d ) );
+				max[ d ] = Math.max( max[ d ], points.get( i, d ) );
+			}
+
+		return new FinalRealInterval( min, max );
+	}
+}
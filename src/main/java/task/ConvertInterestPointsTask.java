@@ -0,0 +1,133 @@
+package task;
+
+import java.util.Date;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spim.fiji.plugin.queryXML.HeadlessParseQueryXML;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.interestpoints.InterestPointList;
+import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
+
+/**
+ * Headless module to convert all interest points and correspondences of a dataset between the
+ * text files (.ip.txt, .corr.txt) and the binary format (.ip.bin, .corr.bin), the files of the old
+ * format are deleted and the new format is recorded in the XML
+ */
+public class ConvertInterestPointsTask extends AbstractTask
+{
+	private static final Logger LOG = LoggerFactory.getLogger( ConvertInterestPointsTask.class );
+
+	/**
+	 * Gets task title.
+	 *
+	 * @return the title
+	 */
+	public String getTitle() { return "Convert interest points between text and binary format"; }
+
+	/**
+	 * The type Parameters.
+	 */
+	public static class Parameters extends AbstractTask.Parameters
+	{
+		private boolean toBinary;
+
+		/**
+		 * Is to binary.
+		 *
+		 * @return true if the interest points are converted into the binary format, false for text files
+		 */
+		public boolean isToBinary()
+		{
+			return toBinary;
+		}
+
+		/**
+		 * Sets to binary.
+		 *
+		 * @param toBinary the to binary
+		 */
+		public void setToBinary( boolean toBinary )
+		{
+			this.toBinary = toBinary;
+		}
+	}
+
+	/**
+	 * Process void.
+	 *
+	 * @param params the params
+	 */
+	public void process( final Parameters params )
+	{
+		final HeadlessParseQueryXML xml = new HeadlessParseQueryXML();
+
+		if ( !xml.loadXML( params.getXmlFilename(), false ) )
+			return;
+
+		final SpimData2 data = xml.getData();
+
+		int converted = 0, failed = 0;
+
+		for ( final ViewInterestPointLists vipl : data.getViewInterestPoints().getViewInterestPoints().values() )
+		{
+			for ( final String label : vipl.getHashMap().keySet() )
+			{
+				final InterestPointList ipl = vipl.getInterestPointList( label );
+
+				if ( ipl.convert( params.isToBinary() ) )
+				{
+					++converted;
+				}
+				else
+				{
+					++failed;
+					LOG.info( "Failed to convert: " + ipl.getFile( ipl.getInterestPointsTextExt() ) );
+				}
+
+				// do not keep all points in memory
+				ipl.setInterestPoints( null );
+				ipl.setCorrespondingInterestPoints( null );
+			}
+		}
+
+		LOG.info( "(" + new Date( System.currentTimeMillis() ) + "): Converted " + converted + " interest point lists to " +
+				( params.isToBinary() ? "binary" : "text" ) + " format, " + failed + " failed." );
+
+		// the format of every list is recorded in the XML
+		SpimData2.saveXML( data, params.getXmlFilename(), "" );
+	}
+
+	private Parameters getParams( final String[] args )
+	{
+		final Properties props = parseArgument( "ConvertInterestPoints", getTitle(), args );
+
+		final Parameters params = new Parameters();
+		params.setXmlFilename( props.getProperty( "xml_filename" ) );
+		params.setToBinary( Boolean.parseBoolean( props.getProperty( "to_binary", "true" ) ) );
+
+		return params;
+	}
+
+	@Override public void process( final String[] args )
+	{
+		process( getParams( args ) );
+	}
+
+	/**
+	 * The entry point of application.
+	 *
+	 * @param argv the input arguments
+	 */
+	public static void main( final String[] argv )
+	{
+		// Test mvn commamnd
+		//
+		// mvn exec:java -Dexec.mainClass="task.ConvertInterestPointsTask" -Dexec.args="-Dxml_filename=/projects/pilot_spim/moon/test.xml -Dto_binary=true"
+		ConvertInterestPointsTask task = new ConvertInterestPointsTask();
+		task.process( argv );
+		System.exit( 0 );
+	}
+}
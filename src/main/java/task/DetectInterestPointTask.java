@@ -80,6 +80,15 @@ public class DetectInterestPointTask extends AbstractTask
 		// 2:"Gaussian mask localization fit"
 		private int localization, downsampleXY, downsampleZ;
 
+		// how many views are detected at the same time and how much of the heap they may use
+		private int maxConcurrentViews;
+		private double memoryFraction;
+
+		// cache the detections on disk so that only the threshold can be changed without recomputing
+		private boolean cacheDetections;
+		private String cacheDirectory;
+		private double cacheThresholdFactor;
+
 		// Common Advanced Parameters
 		private double[] threshold;
 		private boolean[] findMin;
@@ -98,6 +107,7 @@ public class DetectInterestPointTask extends AbstractTask
 		// 2:"GPU accurate (Nvidia CUDA via JNA)"
 		private int computeOn;
 		private String separableConvolutionCUDALib;
+		private boolean blockwise;
 
 		/**
 		 * Gets method.
@@ -359,6 +369,106 @@ public class DetectInterestPointTask extends AbstractTask
 			this.downsampleZ = downsampleZ;
 		}
 
+		/**
+		 * Gets max concurrent views.
+		 *
+		 * @return the max concurrent views
+		 */
+		public int getMaxConcurrentViews()
+		{
+			return maxConcurrentViews;
+		}
+
+		/**
+		 * Sets max concurrent views.
+		 *
+		 * @param maxConcurrentViews the max concurrent views
+		 */
+		public void setMaxConcurrentViews( int maxConcurrentViews )
+		{
+			this.maxConcurrentViews = maxConcurrentViews;
+		}
+
+		/**
+		 * Gets memory fraction.
+		 *
+		 * @return the memory fraction
+		 */
+		public double getMemoryFraction()
+		{
+			return memoryFraction;
+		}
+
+		/**
+		 * Sets memory fraction.
+		 *
+		 * @param memoryFraction the memory fraction
+		 */
+		public void setMemoryFraction( double memoryFraction )
+		{
+			this.memoryFraction = memoryFraction;
+		}
+
+		/**
+		 * Is cache detections.
+		 *
+		 * @return the boolean
+		 */
+		public boolean isCacheDetections()
+		{
+			return cacheDetections;
+		}
+
+		/**
+		 * Sets cache detections.
+		 *
+		 * @param cacheDetections the cache detections
+		 */
+		public void setCacheDetections( boolean cacheDetections )
+		{
+			this.cacheDetections = cacheDetections;
+		}
+
+		/**
+		 * Gets cache directory.
+		 *
+		 * @return the cache directory, null means interestpoints/cache next to the xml
+		 */
+		public String getCacheDirectory()
+		{
+			return cacheDirectory;
+		}
+
+		/**
+		 * Sets cache directory.
+		 *
+		 * @param cacheDirectory the cache directory
+		 */
+		public void setCacheDirectory( String cacheDirectory )
+		{
+			this.cacheDirectory = cacheDirectory;
+		}
+
+		/**
+		 * Gets cache threshold factor.
+		 *
+		 * @return the cache threshold factor
+		 */
+		public double getCacheThresholdFactor()
+		{
+			return cacheThresholdFactor;
+		}
+
+		/**
+		 * Sets cache threshold factor.
+		 *
+		 * @param cacheThresholdFactor the cache threshold factor
+		 */
+		public void setCacheThresholdFactor( double cacheThresholdFactor )
+		{
+			this.cacheThresholdFactor = cacheThresholdFactor;
+		}
+
 		/**
 		 * Get threshold.
 		 *
@@ -518,6 +628,26 @@ public class DetectInterestPointTask extends AbstractTask
 		{
 			this.separableConvolutionCUDALib = separableConvolutionCUDALib;
 		}
+
+		/**
+		 * Is blockwise.
+		 *
+		 * @return the boolean
+		 */
+		public boolean isBlockwise()
+		{
+			return blockwise;
+		}
+
+		/**
+		 * Sets blockwise.
+		 *
+		 * @param blockwise the blockwise
+		 */
+		public void setBlockwise( boolean blockwise )
+		{
+			this.blockwise = blockwise;
+		}
 	}
 
 	/**
@@ -583,6 +713,9 @@ public class DetectInterestPointTask extends AbstractTask
 		differenceOfMean.setAdditionalSigmaZ( params.getAdditionalSigmaZ() );
 		differenceOfMean.setMinIntensity( params.getMinIntensity() );
 		differenceOfMean.setMaxIntensity( params.getMaxIntensity() );
+		differenceOfMean.setMaxConcurrentViews( params.getMaxConcurrentViews() );
+		differenceOfMean.setMemoryFraction( params.getMemoryFraction() );
+		setCache( differenceOfMean, params );
 
 		for ( int c = 0; c < channelsToProcess.size(); ++c )
 		{
@@ -613,6 +746,20 @@ public class DetectInterestPointTask extends AbstractTask
 		findInterestPoints( differenceOfMean, params, spimData, viewIdsToProcess, clusterExtention );
 	}
 
+	private void setCache( final DifferenceOf differenceOf, final Parameters params )
+	{
+		if ( !params.isCacheDetections() )
+			return;
+
+		// the default is shared by all cluster jobs of the same dataset
+		if ( params.getCacheDirectory() == null )
+			differenceOf.setCacheDirectory( new File( new File( spimData.getBasePath(), "interestpoints" ), "cache" ) );
+		else
+			differenceOf.setCacheDirectory( new File( params.getCacheDirectory() ) );
+
+		differenceOf.setCacheThresholdFactor( params.getCacheThresholdFactor() );
+	}
+
 	private void processGaussian( final Parameters params, final List< ViewId > viewIdsToProcess, final String clusterExtention )
 	{
 		final DifferenceOfGaussian differenceOfGaussian = new DifferenceOfGaussian( spimData, viewIdsToProcess);
@@ -646,6 +793,9 @@ public class DetectInterestPointTask extends AbstractTask
 		differenceOfGaussian.setAdditionalSigmaZ( params.getAdditionalSigmaZ() );
 		differenceOfGaussian.setMinIntensity( params.getMinIntensity() );
 		differenceOfGaussian.setMaxIntensity( params.getMaxIntensity() );
+		differenceOfGaussian.setMaxConcurrentViews( params.getMaxConcurrentViews() );
+		differenceOfGaussian.setMemoryFraction( params.getMemoryFraction() );
+		setCache( differenceOfGaussian, params );
 
 		for ( int c = 0; c < channelsToProcess.size(); ++c )
 		{
@@ -735,6 +885,7 @@ public class DetectInterestPointTask extends AbstractTask
 		}
 
 		DifferenceOfGaussian.defaultComputationChoiceIndex = params.getComputeOn();
+		differenceOfGaussian.setBlockwise( params.isBlockwise() );
 
 		findInterestPoints( differenceOfGaussian, params, spimData, viewIdsToProcess, clusterExtention );
 	}
@@ -818,6 +969,15 @@ public class DetectInterestPointTask extends AbstractTask
 		params.setMinIntensity( Double.parseDouble( props.getProperty( "minimal_intensity", "NaN" ) ) );
 		params.setMinIntensity( Double.parseDouble( props.getProperty( "maximal_intensity", "NaN" ) ) );
 
+		// views detected at the same time
+		params.setMaxConcurrentViews( Integer.parseInt( props.getProperty( "max_concurrent_views", String.valueOf( DifferenceOf.defaultMaxConcurrentViews ) ) ) );
+		params.setMemoryFraction( Double.parseDouble( props.getProperty( "memory_fraction", String.valueOf( DifferenceOf.defaultMemoryFraction ) ) ) );
+
+		// re-use cached detections if only the threshold changes
+		params.setCacheDetections( Boolean.parseBoolean( props.getProperty( "cache_detections", "false" ) ) );
+		params.setCacheDirectory( props.getProperty( "detection_cache_directory" ) );
+		params.setCacheThresholdFactor( Double.parseDouble( props.getProperty( "cache_threshold_factor", String.valueOf( DifferenceOf.defaultCacheThresholdFactor ) ) ) );
+
 		// define anisotropy
 		params.setImageSigmaX( Double.parseDouble( props.getProperty( "image_sigma_x", "0.5" ) ) );
 		params.setImageSigmaY( Double.parseDouble( props.getProperty( "image_sigma_y", "0.5" ) ) );
@@ -858,6 +1018,9 @@ public class DetectInterestPointTask extends AbstractTask
 				params.setComputeOn( Integer.parseInt( props.getProperty( "compute_on", "0" ) ) );
 				params.setSeparableConvolutionCUDALib( props.getProperty( "separable_convolution_cuda_lib" ) );
 
+				// detect block by block on the CPU, for views larger than the memory
+				params.setBlockwise( Boolean.parseBoolean( props.getProperty( "process_blockwise", "false" ) ) );
+
 				//			// -Dsigma={1.8, 1.8, 1.8}
 				//			params.setSigma( PluginHelper.parseArrayDoubleString( props.getProperty( "sigma" ) ) );
 				//			// -Dthreshold={0.02, 0.02, 0.02}
@@ -22,11 +22,15 @@ import spim.process.fusion.deconvolution.EfficientBayesianBased;
 import spim.process.fusion.deconvolution.ProcessForDeconvolution;
 import spim.process.fusion.export.AppendSpimData2;
 import spim.process.fusion.export.ExportSpimData2HDF5;
+import spim.process.fusion.export.ExportSpimData2HDF5Streaming;
 import spim.process.fusion.export.ExportSpimData2TIFF;
 import spim.process.fusion.export.ImgExport;
 import spim.process.fusion.export.Save3dTIFF;
+import spim.process.fusion.weightedavg.FusionPipeline;
+import spim.process.fusion.weightedavg.ProcessFusion;
 import spim.process.fusion.weightedavg.WeightedAverageFusion;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -60,6 +64,7 @@ public class FusionTask extends AbstractTask
 	// ExportSpimData2TIFF
 	// ExportSpimData2HDF5
 	// AppendSpimData2
+	// ExportSpimData2HDF5Streaming
 
 	private static final Logger LOG = LoggerFactory.getLogger( FusionTask.class );
 
@@ -106,7 +111,11 @@ public class FusionTask extends AbstractTask
 		/**
 		 * The AppendSpimData2.
 		 */
-		AppendSpimData2 }
+		AppendSpimData2,
+		/**
+		 * The ExportSpimData2HDF5Streaming.
+		 */
+		ExportSpimData2HDF5Streaming }
 
 	/**
 	 * The enum Interpolation.
@@ -170,10 +179,19 @@ public class FusionTask extends AbstractTask
 
 		private double lambda;
 
+		private boolean outOfCore = false;
+
+		private String tempDirectory;
+
 		// WeightedAverageFusion parameters
 		private int numParalellViews;
+		private boolean blockwise;
+		private boolean pipelined = false;
+		private int prefetchStacks = 1;
+		private int exportQueueSize = 1;
 		private boolean useBlending;
 		private boolean useContentBased;
+		private boolean contentBasedTiled = false;
 		private Interpolation interpolation;
 
 		/**
@@ -629,13 +647,133 @@ public class FusionTask extends AbstractTask
 		/**
 		 * Sets num paralell views.
 		 *
-		 * @param numParalellViews the num paralell views
+		 * @param numParalellViews the num paralell views (0 = all, {@link spim.process.fusion.weightedavg.ProcessSequential#AUTO} = planned from the memory budget)
 		 */
 		public void setNumParalellViews( int numParalellViews )
 		{
 			this.numParalellViews = numParalellViews;
 		}
 
+		/**
+		 * Is blockwise.
+		 *
+		 * @return the boolean
+		 */
+		public boolean isBlockwise()
+		{
+			return blockwise;
+		}
+
+		/**
+		 * Sets blockwise.
+		 *
+		 * @param blockwise the blockwise
+		 */
+		public void setBlockwise( boolean blockwise )
+		{
+			this.blockwise = blockwise;
+		}
+
+		/**
+		 * Is out of core.
+		 *
+		 * @return if the deconvolution keeps the transformed views on disk and computes block-wise
+		 */
+		public boolean isOutOfCore()
+		{
+			return outOfCore;
+		}
+
+		/**
+		 * Sets out of core.
+		 *
+		 * @param outOfCore the out of core
+		 */
+		public void setOutOfCore( boolean outOfCore )
+		{
+			this.outOfCore = outOfCore;
+		}
+
+		/**
+		 * Gets temp directory.
+		 *
+		 * @return the directory for the files of the out-of-core deconvolution, null for the system default
+		 */
+		public String getTempDirectory()
+		{
+			return tempDirectory;
+		}
+
+		/**
+		 * Sets temp directory.
+		 *
+		 * @param tempDirectory the temp directory
+		 */
+		public void setTempDirectory( String tempDirectory )
+		{
+			this.tempDirectory = tempDirectory;
+		}
+
+		/**
+		 * Is pipelined.
+		 *
+		 * @return if loading, fusing and exporting of consecutive stacks overlap
+		 */
+		public boolean isPipelined()
+		{
+			return pipelined;
+		}
+
+		/**
+		 * Sets pipelined.
+		 *
+		 * @param pipelined the pipelined
+		 */
+		public void setPipelined( boolean pipelined )
+		{
+			this.pipelined = pipelined;
+		}
+
+		/**
+		 * Gets prefetch stacks.
+		 *
+		 * @return the number of stacks whose views are loaded ahead
+		 */
+		public int getPrefetchStacks()
+		{
+			return prefetchStacks;
+		}
+
+		/**
+		 * Sets prefetch stacks.
+		 *
+		 * @param prefetchStacks the prefetch stacks
+		 */
+		public void setPrefetchStacks( int prefetchStacks )
+		{
+			this.prefetchStacks = prefetchStacks;
+		}
+
+		/**
+		 * Gets export queue size.
+		 *
+		 * @return the number of fused stacks that may wait for export
+		 */
+		public int getExportQueueSize()
+		{
+			return exportQueueSize;
+		}
+
+		/**
+		 * Sets export queue size.
+		 *
+		 * @param exportQueueSize the export queue size
+		 */
+		public void setExportQueueSize( int exportQueueSize )
+		{
+			this.exportQueueSize = exportQueueSize;
+		}
+
 		/**
 		 * Is use blending.
 		 *
@@ -676,6 +814,26 @@ public class FusionTask extends AbstractTask
 			this.useContentBased = useContentBased;
 		}
 
+		/**
+		 * Is content based tiled.
+		 *
+		 * @return the boolean
+		 */
+		public boolean isContentBasedTiled()
+		{
+			return contentBasedTiled;
+		}
+
+		/**
+		 * Sets content based tiled.
+		 *
+		 * @param contentBasedTiled the content based tiled
+		 */
+		public void setContentBasedTiled( boolean contentBasedTiled )
+		{
+			this.contentBasedTiled = contentBasedTiled;
+		}
+
 		/**
 		 * Gets interpolation.
 		 *
@@ -797,6 +955,7 @@ public class FusionTask extends AbstractTask
 			case ExportSpimData2TIFF: imgExport = new ExportSpimData2TIFF(); break;
 			case ExportSpimData2HDF5: imgExport = new ExportSpimData2HDF5(); break;
 			case AppendSpimData2: imgExport = new AppendSpimData2(); break;
+			case ExportSpimData2HDF5Streaming: imgExport = new ExportSpimData2HDF5Streaming(); break;
 		}
 
 		if ( spimData.getSequenceDescription().getImgLoader() instanceof Hdf5ImageLoader )
@@ -848,6 +1007,10 @@ public class FusionTask extends AbstractTask
 		EfficientBayesianBased ebb = new EfficientBayesianBased( spimData, viewIdsToProcess );
 
 		ebb.setBlockSize( params.getBlockSize() );
+		ebb.setOutOfCore( params.isOutOfCore() );
+
+		if ( params.getTempDirectory() != null )
+			ebb.setTempDirectory( new File( params.getTempDirectory() ) );
 
 		// GPU setup
 		if ( params.getComputeOn() > 0 )
@@ -1076,6 +1239,12 @@ public class FusionTask extends AbstractTask
 		if ( fusionType == WeightedAverageFusion.WeightedAvgFusionType.FUSEDATA )
 		{
 			fusion.setNumParalellViews( params.getNumParalellViews() );
+			fusion.setBlockwise( params.isBlockwise() );
+
+			FusionPipeline.defaultPipelined = params.isPipelined();
+			FusionPipeline.defaultPrefetchStacks = params.getPrefetchStacks();
+			FusionPipeline.defaultExportQueueSize = params.getExportQueueSize();
+			ProcessFusion.defaultContentBasedTiled = params.isContentBasedTiled();
 			fusion.setUseBlending( params.isUseBlending() );
 			fusion.setUseContentBased( params.isUseContentBased() );
 		}
@@ -1105,7 +1274,7 @@ public class FusionTask extends AbstractTask
 		// EfficientBayesianBased, WeightedAverageFusionWithFUSEDATA, WeightedAverageFusionWithINDEPENDENT;
 		params.setMethod( Method.valueOf( props.getProperty( "method" ) ) );
 
-		// Save3dTIFF, ExportSpimData2TIFF, ExportSpimData2HDF5, AppendSpimData2
+		// Save3dTIFF, ExportSpimData2TIFF, ExportSpimData2HDF5, AppendSpimData2, ExportSpimData2HDF5Streaming
 		params.setExport( Export.valueOf( props.getProperty( "export" ) ) );
 
 		// 0: CPU, 1: GPU
@@ -1116,8 +1285,24 @@ public class FusionTask extends AbstractTask
 
 		params.setExtractPSF( Boolean.parseBoolean( props.getProperty( "extract_psf", "true" ) ) );
 
+		params.setOutOfCore( Boolean.parseBoolean( props.getProperty( "out_of_core", "false" ) ) );
+
+		params.setTempDirectory( props.getProperty( "temp_directory" ) );
+
 		params.setOsemSpeedup( Double.parseDouble( props.getProperty( "osem_speedup", "1.0" ) ) );
 
+		params.setBlockwise( Boolean.parseBoolean( props.getProperty( "fuse_blockwise", "false" ) ) );
+
+		params.setPipelined( Boolean.parseBoolean( props.getProperty( "fuse_pipelined", "false" ) ) );
+
+		params.setPrefetchStacks( Integer.parseInt( props.getProperty( "prefetch_stacks", "1" ) ) );
+
+		params.setExportQueueSize( Integer.parseInt( props.getProperty( "export_queue_size", "1" ) ) );
+
+		params.setUseContentBased( Boolean.parseBoolean( props.getProperty( "use_content_based", "false" ) ) );
+
+		params.setContentBasedTiled( Boolean.parseBoolean( props.getProperty( "content_based_tiled", "false" ) ) );
+
 		params.setMin( PluginHelper.parseArrayIntegerString( props.getProperty( "min" ) ) );
 
 		params.setMax( PluginHelper.parseArrayIntegerString( props.getProperty( "max" ) ) );
@@ -150,6 +150,12 @@ public class RegisterationTask extends AbstractTask
 		private int allToAllRange;
 		private boolean isConsiderTimepointAsUnit;
 
+		// NaN - compare all views
+		private double overlapMargin = Double.NaN;
+
+		// solve the global optimization for all tiles at once
+		private boolean isSparseSolver = false;
+
 		// 0: "Fix first tile",
 		// 1: "Select fixed tile",
 		// 2: "Do not fix tiles"
@@ -298,6 +304,46 @@ public class RegisterationTask extends AbstractTask
 			this.isConsiderTimepointAsUnit = isConsiderTimepointAsUnit;
 		}
 
+		/**
+		 * Gets overlap margin.
+		 *
+		 * @return the margin (px) for comparing only views with overlapping bounding boxes, NaN if all views are compared
+		 */
+		public double getOverlapMargin()
+		{
+			return overlapMargin;
+		}
+
+		/**
+		 * Sets overlap margin.
+		 *
+		 * @param overlapMargin the overlap margin, NaN compares all views
+		 */
+		public void setOverlapMargin( double overlapMargin )
+		{
+			this.overlapMargin = overlapMargin;
+		}
+
+		/**
+		 * Is sparse solver.
+		 *
+		 * @return true if the global optimization is solved as one sparse least-squares problem for all tiles
+		 */
+		public boolean isSparseSolver()
+		{
+			return isSparseSolver;
+		}
+
+		/**
+		 * Sets sparse solver.
+		 *
+		 * @param isSparseSolver the is sparse solver
+		 */
+		public void setSparseSolver( boolean isSparseSolver )
+		{
+			this.isSparseSolver = isSparseSolver;
+		}
+
 		/**
 		 * Gets fix tiles choice.
 		 *
@@ -632,6 +678,10 @@ public class RegisterationTask extends AbstractTask
 				break;
 		}
 
+		// only compare overlapping views, must be set before the pairs are assembled
+		type.setOverlapMargin( params.getOverlapMargin() );
+		type.setSparseSolver( params.isSparseSolver() );
+
 		final List< GlobalOptimizationSubset > subsets = type.getAllViewPairs();
 
 		final Set< ViewId > fixedTiles = new HashSet< ViewId >();
@@ -814,6 +864,11 @@ public class RegisterationTask extends AbstractTask
 
 		params.setConsiderTimepointAsUnit( Boolean.parseBoolean( props.getProperty( "consider_each_timepoint_as_rigid_unit", "false" ) ) );
 
+		if ( Boolean.parseBoolean( props.getProperty( "compare_only_overlapping_views", "false" ) ) )
+			params.setOverlapMargin( Double.parseDouble( props.getProperty( "overlap_margin", "50" ) ) );
+
+		params.setSparseSolver( Boolean.parseBoolean( props.getProperty( "solve_global_optimization_for_all_tiles_at_once", "false" ) ) );
+
 		params.setType( RegistrationType.valueOf( props.getProperty( "type_of_registration" ) ) );
 
 		params.setMethod( Method.valueOf( props.getProperty( "method" ) ) );
@@ -0,0 +1,95 @@
+package spim.fiji.spimdata.interestpoints;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InterestPointListTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected InterestPointList createSaved() throws Exception
+	{
+		final InterestPointList list = new InterestPointList( folder.getRoot(), new File( "interestpoints", "tpId_0_viewSetupId_0.beads" ) );
+
+		final ArrayList< InterestPoint > points = new ArrayList< InterestPoint >();
+		final ArrayList< CorrespondingInterestPoints > correspondences = new ArrayList< CorrespondingInterestPoints >();
+
+		for ( int i = 0; i < 10; ++i )
+		{
+			points.add( new InterestPoint( i, new double[]{ i, 2 * i, 3 * i } ) );
+			correspondences.add( new CorrespondingInterestPoints( i, new ViewId( 0, 1 ), "beads", 9 - i ) );
+		}
+
+		list.setInterestPoints( points );
+		list.setCorrespondingInterestPoints( correspondences );
+
+		Assert.assertTrue( list.saveInterestPoints() );
+		Assert.assertTrue( list.saveCorrespondingInterestPoints() );
+
+		// as if it was just read from the XML
+		return new InterestPointList( list.getBaseDir(), list.getFile() );
+	}
+
+	@Test
+	public void loadedListsAreReadOnly() throws Exception
+	{
+		final InterestPointList list = createSaved();
+
+		final List< InterestPoint > points = list.getInterestPoints();
+		final List< CorrespondingInterestPoints > correspondences = list.getCorrespondingInterestPoints();
+
+		Assert.assertEquals( 10, points.size() );
+		Assert.assertEquals( 10, correspondences.size() );
+		Assert.assertFalse( list.isInterestPointsDirty() );
+		Assert.assertFalse( list.isCorrespondingInterestPointsDirty() );
+
+		try
+		{
+			points.remove( 0 );
+			Assert.fail( "a loaded list must not be modifiable, the change would be lost" );
+		}
+		catch ( final UnsupportedOperationException e ) {}
+
+		try
+		{
+			correspondences.add( new CorrespondingInterestPoints( 10, new ViewId( 0, 1 ), "beads", 10 ) );
+			Assert.fail( "a loaded list must not be modifiable, the change would be lost" );
+		}
+		catch ( final UnsupportedOperationException e ) {}
+	}
+
+	@Test
+	public void changedCopiesAreSaved() throws Exception
+	{
+		final InterestPointList list = createSaved();
+
+		final ArrayList< InterestPoint > points = new ArrayList< InterestPoint >( list.getInterestPoints() );
+		points.remove( 0 );
+
+		list.setInterestPoints( points );
+
+		Assert.assertTrue( list.isInterestPointsDirty() );
+		Assert.assertFalse( list.isCorrespondingInterestPointsDirty() );
+
+		// a set list stays modifiable until it is saved
+		list.getInterestPoints().add( new InterestPoint( 10, new double[]{ 1, 1, 1 } ) );
+
+		Assert.assertTrue( list.saveInterestPoints() );
+		Assert.assertFalse( list.isInterestPointsDirty() );
+
+		final InterestPointList reloaded = new InterestPointList( list.getBaseDir(), list.getFile() );
+
+		Assert.assertEquals( 10, reloaded.getInterestPoints().size() );
+		Assert.assertEquals( 1, reloaded.getInterestPoints().get( 0 ).getId() );
+		Assert.assertEquals( 10, reloaded.getInterestPoints().get( 9 ).getId() );
+	}
+}
@@ -0,0 +1,101 @@
+package spim.process.fusion.weights;
+
+import java.util.Random;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the table-based blending weights with {@link BlendingRealRandomAccess}
+ */
+public class BlendingRealRandomAccessLUTTest
+{
+	// the bound documented in BlendingRealRandomAccessLUT (linear interpolation of 1024 intervals stays below 6.6e-7)
+	final static double tolerance = 1e-6;
+
+	final Interval interval = new FinalInterval( new long[]{ 10, -5, 0 }, new long[]{ 300, 200, 80 } );
+	final float[] border = new float[]{ 2, 0, 5 };
+	final float[] blending = new float[]{ 40, 30, 20 };
+
+	@Test
+	public void lookUpMatchesCosine()
+	{
+		for ( int i = -10; i <= 100010; ++i )
+		{
+			final float minDistance = i / 100000.0f;
+			final double expected = minDistance >= 1 ? 1 : minDistance <= 0 ? 0 : ( Math.cos( ( 1 - minDistance ) * Math.PI ) + 1 ) / 2;
+
+			Assert.assertEquals( expected, BlendingRealRandomAccessLUT.lookUp( minDistance ), tolerance );
+		}
+	}
+
+	@Test
+	public void scanlinesMatch()
+	{
+		final RealRandomAccess< FloatType > a = new BlendingRealRandomAccess( interval, border, blending );
+		final RealRandomAccess< FloatType > b = new BlendingRealRandomAccessLUT( interval, border, blending );
+
+		// as in the fusion of a translated view, only x changes along a line
+		for ( int z = -3; z < 85; z += 2 )
+			for ( int y = -8; y < 205; y += 3 )
+			{
+				a.setPosition( new float[]{ 5.3f, y + 0.1f, z + 0.7f } );
+				b.setPosition( new float[]{ 5.3f, y + 0.1f, z + 0.7f } );
+
+				for ( int x = 0; x < 300; ++x )
+				{
+					Assert.assertEquals( a.get().get(), b.get().get(), tolerance );
+
+					a.move( 1.0f, 0 );
+					b.move( 1.0f, 0 );
+				}
+			}
+	}
+
+	@Test
+	public void randomPositionsMatch()
+	{
+		final RealRandomAccess< FloatType > a = new BlendingRealRandomAccess( interval, border, blending );
+		final RealRandomAccess< FloatType > b = new BlendingRealRandomAccessLUT( interval, border, blending );
+
+		// as in the fusion of a rotated view, all coordinates change from one sample to the next
+		final Random rnd = new Random( 4353 );
+		final float[] p = new float[ 3 ];
+
+		for ( int i = 0; i < 200000; ++i )
+		{
+			for ( int d = 0; d < 3; ++d )
+				p[ d ] = rnd.nextFloat() * ( interval.dimension( d ) + 20 ) + interval.min( d ) - 10;
+
+			a.setPosition( p );
+			b.setPosition( p );
+
+			Assert.assertEquals( a.get().get(), b.get().get(), tolerance );
+		}
+	}
+
+	@Test
+	public void copyKeepsPosition()
+	{
+		final RealRandomAccess< FloatType > b = new BlendingRealRandomAccessLUT( interval, border, blending );
+		b.setPosition( new float[]{ 30.5f, 12.25f, 7 } );
+
+		final RealRandomAccess< FloatType > c = b.copyRealRandomAccess();
+
+		Assert.assertEquals( b.get().get(), c.get().get(), 0 );
+
+		// the copy does not share the cached factors
+		c.move( 100.0f, 0 );
+		b.move( -20.0f, 0 );
+
+		final RealRandomAccess< FloatType > a = new BlendingRealRandomAccess( interval, border, blending );
+		a.setPosition( c );
+
+		Assert.assertEquals( a.get().get(), c.get().get(), tolerance );
+	}
+}
@@ -0,0 +1,111 @@
+package spim.process.fusion.weights;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the tiled content-based weights with the weights computed on the whole view
+ */
+public class ContentBasedTiledTest
+{
+	final double[] sigma1 = new double[]{ 2, 2, 2 };
+	final double[] sigma2 = new double[]{ 3, 3, 3 };
+
+	/**
+	 * a small volume of a few blurred spots on noise, so that the weights vary
+	 */
+	protected static Img< FloatType > createVolume()
+	{
+		final Img< FloatType > img = ArrayImgs.floats( 48, 40, 32 );
+		final Random rnd = new Random( 42 );
+		final double[][] spots = new double[ 12 ][ 3 ];
+
+		for ( final double[] spot : spots )
+			for ( int d = 0; d < 3; ++d )
+				spot[ d ] = rnd.nextDouble() * img.dimension( d );
+
+		final Cursor< FloatType > c = img.localizingCursor();
+
+		while ( c.hasNext() )
+		{
+			c.fwd();
+
+			double v = 100 + 10 * rnd.nextDouble();
+
+			for ( final double[] spot : spots )
+			{
+				double dist2 = 0;
+
+				for ( int d = 0; d < 3; ++d )
+					dist2 += ( c.getDoublePosition( d ) - spot[ d ] ) * ( c.getDoublePosition( d ) - spot[ d ] );
+
+				v += 1000 * Math.exp( -dist2 / 8 );
+			}
+
+			c.get().set( (float)v );
+		}
+
+		return img;
+	}
+
+	@Test
+	public void tilesMatchSingleTile()
+	{
+		final Img< FloatType > img = createVolume();
+
+		// downsampling 1, one tile covers the whole volume
+		final ContentBasedTiled< FloatType > single = new ContentBasedTiled< FloatType >( img, sigma1, sigma2, 2, 64 );
+		final ContentBasedTiled< FloatType > tiled = new ContentBasedTiled< FloatType >( img, sigma1, sigma2, 2, 8 );
+
+		final Cursor< FloatType > a = single.getContentBasedGrid().cursor();
+		final Cursor< FloatType > b = tiled.getContentBasedGrid().cursor();
+
+		while ( a.hasNext() )
+			Assert.assertEquals( a.next().get(), b.next().get(), 1e-6 );
+	}
+
+	@Test
+	public void tiledMatchesUntiled()
+	{
+		final Img< FloatType > img = createVolume();
+
+		final ContentBased< FloatType > untiled = new ContentBased< FloatType >( img, new ArrayImgFactory< ComplexFloatType >(), sigma1, sigma2 );
+		final ContentBasedTiled< FloatType > tiled = new ContentBasedTiled< FloatType >( img, sigma1, sigma2, 2, 8 );
+
+		Assert.assertArrayEquals( new int[]{ 1, 1, 1 }, tiled.getDownsampling() );
+
+		final RealRandomAccess< FloatType > ra = untiled.realRandomAccess();
+		final RealRandomAccess< FloatType > rb = tiled.realRandomAccess();
+		final Cursor< FloatType > c = img.localizingCursor();
+
+		// both are normalized to [0...1], they only differ by the truncation of the gaussian kernels
+		double sumDiff = 0;
+		long count = 0;
+
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			ra.setPosition( c );
+			rb.setPosition( c );
+
+			final double diff = Math.abs( ra.get().get() - rb.get().get() );
+
+			Assert.assertTrue( "difference " + diff + " at " + c, diff < 0.05 );
+
+			sumDiff += diff;
+			++count;
+		}
+
+		Assert.assertTrue( sumDiff / count < 0.01 );
+	}
+}
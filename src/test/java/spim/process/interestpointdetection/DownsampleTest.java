@@ -0,0 +1,86 @@
+package spim.process.interestpointdetection;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DownsampleTest
+{
+	protected static Img< FloatType > createImage( final long... dim )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( dim );
+		final Random rnd = new Random( 1234 );
+
+		for ( final FloatType t : img )
+			t.set( rnd.nextFloat() * 1000 );
+
+		return img;
+	}
+
+	protected static void assertEqual( final RandomAccessibleInterval< FloatType > expected, final RandomAccessibleInterval< FloatType > actual )
+	{
+		for ( int d = 0; d < expected.numDimensions(); ++d )
+			Assert.assertEquals( expected.dimension( d ), actual.dimension( d ) );
+
+		final Cursor< FloatType > c = Views.iterable( expected ).localizingCursor();
+		final RandomAccess< FloatType > r = actual.randomAccess();
+
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			r.setPosition( c );
+
+			// simple2x rounds to float after each dimension
+			Assert.assertEquals( "at " + c, c.get().get(), r.get().get(), 1e-3 );
+		}
+	}
+
+	@Test
+	public void factor2MatchesSimple2x()
+	{
+		// even and odd sizes, the last output pixel is different from the others
+		for ( final long[] dim : new long[][]{ { 16, 12, 8 }, { 17, 13, 9 }, { 20, 5, 6 } } )
+		{
+			final Img< FloatType > img = createImage( dim );
+			final ArrayImgFactory< FloatType > factory = new ArrayImgFactory< FloatType >();
+
+			assertEqual(
+					Downsample.simple2x( img, factory ),
+					Downsample.downsample( img, factory, new int[]{ 2, 2, 2 } ) );
+		}
+	}
+
+	@Test
+	public void factor2InSomeDimensionsMatchesSimple2x()
+	{
+		final Img< FloatType > img = createImage( 17, 12, 9 );
+		final ArrayImgFactory< FloatType > factory = new ArrayImgFactory< FloatType >();
+
+		assertEqual(
+				Downsample.simple2x( img, factory, new boolean[]{ true, false, true } ),
+				Downsample.downsample( img, factory, new int[]{ 2, 1, 2 } ) );
+	}
+
+	@Test
+	public void constantImageStaysConstant()
+	{
+		final Img< FloatType > img = ArrayImgs.floats( 23, 19, 11 );
+
+		for ( final FloatType t : img )
+			t.set( 42 );
+
+		for ( final int f : new int[]{ 2, 3, 4 } )
+			for ( final FloatType t : Views.iterable( Downsample.downsample( img, new ArrayImgFactory< FloatType >(), new int[]{ f, f, f } ) ) )
+				Assert.assertEquals( 42, t.get(), 1e-4 );
+	}
+}
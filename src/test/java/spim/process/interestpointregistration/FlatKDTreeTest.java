@@ -0,0 +1,77 @@
+package spim.process.interestpointregistration;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FlatKDTreeTest
+{
+	protected static double[] bruteForce( final double[] coordinates, final int n, final double[] query )
+	{
+		final double[] distances = new double[ coordinates.length / n ];
+
+		for ( int i = 0; i < distances.length; ++i )
+			for ( int d = 0; d < n; ++d )
+				distances[ i ] += ( coordinates[ i * n + d ] - query[ d ] ) * ( coordinates[ i * n + d ] - query[ d ] );
+
+		Arrays.sort( distances );
+
+		return distances;
+	}
+
+	@Test
+	public void kNearestNeighborsMatchBruteForce()
+	{
+		final Random rnd = new Random( 31 );
+
+		// 9 is the dimensionality of the geometric hashing descriptors (3 neighbors in 3d)
+		for ( final int n : new int[]{ 1, 3, 9 } )
+		{
+			for ( final int size : new int[]{ 0, 1, 5, 1000 } )
+			{
+				final double[] coordinates = new double[ size * n ];
+
+				// coarse values, so that there are equal distances
+				for ( int i = 0; i < coordinates.length; ++i )
+					coordinates[ i ] = rnd.nextInt( 10 );
+
+				final FlatKDTree tree = new FlatKDTree( coordinates, n );
+
+				Assert.assertEquals( size, tree.size() );
+				Assert.assertEquals( n, tree.numDimensions() );
+
+				for ( final int k : new int[]{ 1, 2, 6 } )
+				{
+					final double[] query = new double[ n ];
+					final int[] indices = new int[ k ];
+					final double[] squareDistances = new double[ k ];
+
+					for ( int q = 0; q < 100; ++q )
+					{
+						for ( int d = 0; d < n; ++d )
+							query[ d ] = rnd.nextDouble() * 12 - 1;
+
+						final double[] expected = bruteForce( coordinates, n, query );
+						final int count = tree.findNearestNeighbors( query, k, indices, squareDistances );
+
+						Assert.assertEquals( Math.min( k, size ), count );
+
+						// the indices may differ for equal distances, the distances may not
+						for ( int j = 0; j < count; ++j )
+						{
+							double dist = 0;
+
+							for ( int d = 0; d < n; ++d )
+								dist += ( tree.get( indices[ j ], d ) - query[ d ] ) * ( tree.get( indices[ j ], d ) - query[ d ] );
+
+							Assert.assertEquals( expected[ j ], squareDistances[ j ], 1e-9 );
+							Assert.assertEquals( dist, squareDistances[ j ], 1e-9 );
+						}
+					}
+				}
+			}
+		}
+	}
+}
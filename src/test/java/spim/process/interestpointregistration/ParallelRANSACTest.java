@@ -0,0 +1,151 @@
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel3D;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelRANSACTest
+{
+	/**
+	 * candidates that are rotated, shifted and slightly noisy, every fourth one is a gross outlier
+	 */
+	protected static ArrayList< PointMatch > createCandidates( final int n, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayList< PointMatch > candidates = new ArrayList< PointMatch >();
+
+		final double a = Math.toRadians( 20 );
+		final double cos = Math.cos( a ), sin = Math.sin( a );
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final double[] p = new double[]{ rnd.nextDouble() * 200, rnd.nextDouble() * 200, rnd.nextDouble() * 100 };
+			final double[] q;
+
+			if ( i % 4 == 3 )
+				q = new double[]{ rnd.nextDouble() * 200, rnd.nextDouble() * 200, rnd.nextDouble() * 100 };
+			else
+				q = new double[]{
+						cos * p[ 0 ] - sin * p[ 1 ] + 10 + rnd.nextGaussian() * 0.2,
+						sin * p[ 0 ] + cos * p[ 1 ] - 5 + rnd.nextGaussian() * 0.2,
+						p[ 2 ] + 3 + rnd.nextGaussian() * 0.2 };
+
+			candidates.add( new PointMatch( new Point( p ), new Point( q ) ) );
+		}
+
+		return candidates;
+	}
+
+	@Test
+	public void adaptiveNumIterations()
+	{
+		// all inliers, one sample is enough
+		Assert.assertEquals( 3, ParallelRANSAC.adaptiveNumIterations( 100, 100, 3, 10000 ) );
+
+		// w = 0.5, s = 3: log( 0.01 ) / log( 1 - 0.125 ) = 34.5
+		Assert.assertEquals( 35, ParallelRANSAC.adaptiveNumIterations( 50, 100, 3, 10000 ) );
+
+		// no inliers, no information
+		Assert.assertEquals( 10000, ParallelRANSAC.adaptiveNumIterations( 0, 100, 3, 10000 ) );
+
+		// clamped to the maximal number
+		Assert.assertEquals( 100, ParallelRANSAC.adaptiveNumIterations( 5, 100, 3, 100 ) );
+	}
+
+	@Test
+	public void prosacSchedule()
+	{
+		final int n = 500, s = 4, maxIterations = 10000;
+		final int[] schedule = ParallelRANSAC.prosacSchedule( n, s, maxIterations );
+
+		Assert.assertEquals( 1, schedule[ s ] );
+
+		for ( int m = s; m < n; ++m )
+			Assert.assertTrue( schedule[ m + 1 ] >= schedule[ m ] );
+
+		// all candidates are in the sampling set after about maxIterations hypotheses
+		Assert.assertTrue( schedule[ n ] >= maxIterations / 2 );
+		Assert.assertTrue( schedule[ n ] <= maxIterations + n );
+
+		// the first hypothesis only samples from the best s candidates, the last ones from all
+		Assert.assertEquals( s, ParallelRANSAC.prosacSetSize( schedule, 0, s, n ) );
+		Assert.assertEquals( n, ParallelRANSAC.prosacSetSize( schedule, schedule[ n ], s, n ) );
+
+		for ( int h = 0; h < schedule[ n ]; h += 7 )
+		{
+			final int m = ParallelRANSAC.prosacSetSize( schedule, h, s, n );
+
+			Assert.assertTrue( schedule[ m ] <= h + 1 );
+			Assert.assertTrue( m == n || schedule[ m + 1 ] > h + 1 );
+		}
+	}
+
+	@Test
+	public void filterMatchesModelFilter() throws Exception
+	{
+		final ArrayList< PointMatch > candidates = createCandidates( 400, 11 );
+		final int minNumInliers = 12;
+
+		// start both from all candidates, only the filter differs
+		final AffineModel3D model = new AffineModel3D();
+		final ParallelRANSAC ransac = new ParallelRANSAC( candidates, model, 1 );
+
+		ransac.inliers = new int[ candidates.size() ];
+
+		for ( int i = 0; i < candidates.size(); ++i )
+			ransac.inliers[ i ] = i;
+
+		Assert.assertTrue( ransac.filter( minNumInliers ) );
+
+		final AffineModel3D reference = new AffineModel3D();
+		final ArrayList< PointMatch > referenceInliers = new ArrayList< PointMatch >();
+
+		Assert.assertTrue( reference.filter( candidates, referenceInliers, ParallelRANSAC.maxTrust, minNumInliers ) );
+
+		final HashSet< PointMatch > expected = new HashSet< PointMatch >( referenceInliers );
+
+		Assert.assertEquals( expected.size(), ransac.getInliers().length );
+
+		for ( final int i : ransac.getInliers() )
+			Assert.assertTrue( expected.contains( candidates.get( i ) ) );
+
+		Assert.assertEquals( reference.getCost(), ransac.getError(), 1e-9 );
+		Assert.assertArrayEquals( reference.getMatrix( null ), model.getMatrix( null ), 1e-9 );
+	}
+
+	@Test
+	public void sameResultForAnyNumberOfThreads() throws Exception
+	{
+		final ArrayList< PointMatch > candidates = createCandidates( 600, 23 );
+
+		for ( final boolean sortedByQuality : new boolean[]{ false, true } )
+		{
+			final RigidModel3D model1 = new RigidModel3D();
+			final ParallelRANSAC ransac1 = new ParallelRANSAC( candidates, model1, 1 );
+
+			Assert.assertTrue( ransac1.filterRansac( 10000, 2, 0.1, 10, sortedByQuality ) );
+
+			final RigidModel3D model4 = new RigidModel3D();
+			final ParallelRANSAC ransac4 = new ParallelRANSAC( candidates, model4, 4 );
+
+			Assert.assertTrue( ransac4.filterRansac( 10000, 2, 0.1, 10, sortedByQuality ) );
+
+			Assert.assertArrayEquals( ransac1.getInliers(), ransac4.getInliers() );
+			Assert.assertEquals( ransac1.getNumIterations(), ransac4.getNumIterations() );
+			Assert.assertEquals( ransac1.getError(), ransac4.getError(), 0 );
+			Assert.assertTrue( Arrays.equals( model1.getMatrix( null ), model4.getMatrix( null ) ) );
+
+			// 3 of 4 candidates are inliers
+			Assert.assertTrue( ransac1.getInliers().length > 400 );
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PointCloudKDTreeTest
+{
+	/**
+	 * random points, rounded to a coarse grid so that there are duplicate coordinates and equal distances
+	 */
+	protected static PointCloud createCloud( final int n, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final PointCloud cloud = new PointCloud( n );
+
+		for ( int i = 0; i < n; ++i )
+			cloud.set( i, i, Math.round( rnd.nextDouble() * 50 ), Math.round( rnd.nextDouble() * 50 ), Math.round( rnd.nextDouble() * 20 ) );
+
+		return cloud;
+	}
+
+	protected static double[] bruteForce( final PointCloud cloud, final double qx, final double qy, final double qz, final double maxSquareDistance )
+	{
+		final double[] tmp = new double[ cloud.size() ];
+		int count = 0;
+
+		for ( int i = 0; i < cloud.size(); ++i )
+		{
+			final double d = cloud.squareDistance( i, qx, qy, qz );
+
+			if ( d <= maxSquareDistance )
+				tmp[ count++ ] = d;
+		}
+
+		final double[] distances = Arrays.copyOf( tmp, count );
+		Arrays.sort( distances );
+
+		return distances;
+	}
+
+	@Test
+	public void kNearestNeighborsMatchBruteForce()
+	{
+		final Random rnd = new Random( 17 );
+
+		for ( final int n : new int[]{ 0, 1, 2, 7, 100, 2000 } )
+		{
+			final PointCloud cloud = createCloud( n, n );
+			final PointCloudKDTree tree = new PointCloudKDTree( cloud );
+
+			for ( final int k : new int[]{ 1, 3, 8 } )
+			{
+				final int[] indices = new int[ k ];
+				final double[] squareDistances = new double[ k ];
+
+				for ( final double maxSquareDistance : new double[]{ Double.MAX_VALUE, 25 } )
+				{
+					for ( int q = 0; q < 200; ++q )
+					{
+						final double qx = rnd.nextDouble() * 60 - 5;
+						final double qy = rnd.nextDouble() * 60 - 5;
+						final double qz = rnd.nextDouble() * 30 - 5;
+
+						final double[] expected = bruteForce( cloud, qx, qy, qz, maxSquareDistance );
+						final int count = tree.findNearestNeighbors( qx, qy, qz, k, maxSquareDistance, indices, squareDistances );
+
+						Assert.assertEquals( Math.min( k, expected.length ), count );
+
+						// the indices may differ for equal distances, the distances may not
+						for ( int j = 0; j < count; ++j )
+						{
+							Assert.assertEquals( expected[ j ], squareDistances[ j ], 0 );
+							Assert.assertEquals( cloud.squareDistance( indices[ j ], qx, qy, qz ), squareDistances[ j ], 0 );
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void nearestNeighborOfEachPointIsItself()
+	{
+		final Random rnd = new Random( 5 );
+		final PointCloud cloud = new PointCloud( 500 );
+
+		for ( int i = 0; i < cloud.size(); ++i )
+			cloud.set( i, i, rnd.nextDouble() * 100, rnd.nextDouble() * 100, rnd.nextDouble() * 100 );
+
+		final PointCloudKDTree tree = new PointCloudKDTree( cloud );
+
+		for ( int i = 0; i < cloud.size(); ++i )
+			Assert.assertEquals( i, tree.findNearestNeighbor( cloud.getX( i ), cloud.getY( i ), cloud.getZ( i ) ) );
+
+		Assert.assertEquals( -1, new PointCloudKDTree( new PointCloud( 0 ) ).findNearestNeighbor( 0, 0, 0 ) );
+	}
+
+	@Test
+	public void maxDistanceIsInclusive()
+	{
+		final PointCloud cloud = new PointCloud( 2 );
+		cloud.set( 0, 0, 0, 0, 0 );
+		cloud.set( 1, 1, 3, 4, 0 );
+
+		final PointCloudKDTree tree = new PointCloudKDTree( cloud );
+		final int[] indices = new int[ 2 ];
+		final double[] squareDistances = new double[ 2 ];
+
+		// exactly 5 px away, as the distance threshold of the ICP
+		Assert.assertEquals( 2, tree.findNearestNeighbors( 0, 0, 0, 2, 25, indices, squareDistances ) );
+		Assert.assertEquals( 1, tree.findNearestNeighbors( 0, 0, 0, 2, 24.99, indices, squareDistances ) );
+	}
+
+	@Test
+	public void detectionsAreCreatedOnce()
+	{
+		final PointCloud cloud = createCloud( 10, 3 );
+
+		for ( int i = 0; i < cloud.size(); ++i )
+		{
+			final Detection detection = cloud.getDetection( i );
+
+			Assert.assertSame( detection, cloud.getDetection( i ) );
+			Assert.assertEquals( cloud.getId( i ), detection.getId() );
+			Assert.assertArrayEquals( new double[]{ cloud.getX( i ), cloud.getY( i ), cloud.getZ( i ) }, detection.getL(), 0 );
+		}
+
+		// setting a point again creates a new one
+		final Detection old = cloud.getDetection( 4 );
+		cloud.set( 4, 42, 1, 2, 3 );
+
+		Assert.assertNotSame( old, cloud.getDetection( 4 ) );
+		Assert.assertEquals( 42, cloud.getDetection( 4 ).getId() );
+		Assert.assertArrayEquals( new double[]{ 1, 2, 3 }, cloud.getDetection( 4 ).getL(), 0 );
+	}
+
+	@Test
+	public void detectionsAreSharedBetweenThreads() throws Exception
+	{
+		final PointCloud cloud = createCloud( 20000, 5 );
+		final ExecutorService service = Executors.newFixedThreadPool( 4 );
+		final ArrayList< Callable< Detection[] > > tasks = new ArrayList< Callable< Detection[] > >();
+
+		for ( int t = 0; t < 4; ++t )
+			tasks.add( new Callable< Detection[] >()
+			{
+				@Override
+				public Detection[] call()
+				{
+					final Detection[] detections = new Detection[ cloud.size() ];
+
+					for ( int i = 0; i < cloud.size(); ++i )
+						detections[ i ] = cloud.getDetection( i );
+
+					return detections;
+				}
+			});
+
+		final List< Future< Detection[] > > futures = service.invokeAll( tasks );
+		service.shutdown();
+
+		final Detection[] first = futures.get( 0 ).get();
+
+		for ( final Future< Detection[] > future : futures )
+			for ( int i = 0; i < cloud.size(); ++i )
+				Assert.assertSame( first[ i ], future.get()[ i ] );
+	}
+}
@@ -0,0 +1,253 @@
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.AbstractAffineModel3D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel3D;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the sparse global optimization with the iterative {@link TileConfiguration#optimize(double, int, int)}
+ * on a grid of overlapping tiles
+ */
+public class SparseGlobalOptTest
+{
+	final static int grid = 3;
+	final static double tileSize = 500, tileStep = 400, tileDepth = 200;
+
+	// the solutions may differ by this much (px), the iterative one converges only asymptotically
+	final static double tolerance = 0.25;
+
+	@Test
+	public void translationWithFixedTile() throws Exception { compare( new TranslationModel3D(), true ); }
+
+	@Test
+	public void translationGaugeFree() throws Exception { compare( new TranslationModel3D(), false ); }
+
+	@Test
+	public void rigidWithFixedTile() throws Exception { compare( new RigidModel3D(), true ); }
+
+	@Test
+	public void rigidGaugeFree() throws Exception { compare( new RigidModel3D(), false ); }
+
+	@Test
+	public void affineWithFixedTile() throws Exception { compare( new AffineModel3D(), true ); }
+
+	@Test
+	public void affineGaugeFree() throws Exception { compare( new AffineModel3D(), false ); }
+
+	@Test
+	public void affineGroupWithoutFixedTile() throws Exception
+	{
+		// tile 0 is fixed and connected to tile 1, tiles 2 and 3 are only connected to each other
+		final Random rnd = new Random( 5 );
+		final ArrayList< Tile< AffineModel3D > > tiles = new ArrayList< Tile< AffineModel3D > >();
+		final TileConfiguration tc = new TileConfiguration();
+
+		for ( int i = 0; i < 4; ++i )
+		{
+			tiles.add( new Tile< AffineModel3D >( new AffineModel3D() ) );
+			tc.addTile( tiles.get( i ) );
+		}
+
+		tc.fixTile( tiles.get( 0 ) );
+
+		final AffineModel3D shift = createTruth( new AffineModel3D(), rnd );
+		final SparseGlobalOpt< AffineModel3D > solver = new SparseGlobalOpt< AffineModel3D >( tc );
+
+		for ( int pair = 0; pair < 2; ++pair )
+		{
+			final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+
+			for ( int k = 0; k < 40; ++k )
+			{
+				final double[] p = new double[]{ rnd.nextDouble() * 100, rnd.nextDouble() * 100, rnd.nextDouble() * 50 };
+				final double[] q = shift.applyInverse( p.clone() );
+
+				// with noise, mapping all points onto one location would be the only solution without any error
+				for ( int d = 0; d < 3; ++d )
+					q[ d ] += rnd.nextGaussian() * 0.1;
+
+				matches.add( new PointMatch( new Point( p ), new Point( q ) ) );
+			}
+
+			solver.addMatches( matches, tiles.get( pair * 2 ), tiles.get( pair * 2 + 1 ) );
+		}
+
+		solver.optimize();
+
+		final double[] x = new double[]{ 10, 20, 30 };
+
+		// the group without a fixed tile must not collapse (NoninvertibleModelException), it keeps one of its models
+		// and the other one follows
+		for ( int i = 0; i < 4; ++i )
+			tiles.get( i ).getModel().applyInverse( x.clone() );
+
+		final AffineModel3D relative = tiles.get( 2 ).getModel().createInverse();
+		relative.concatenate( tiles.get( 3 ).getModel() );
+
+		final double[] y = relative.apply( x );
+		final double[] expected = shift.apply( x );
+
+		for ( int d = 0; d < 3; ++d )
+			Assert.assertEquals( expected[ d ], y[ d ], 0.1 );
+	}
+
+	protected static < M extends AbstractAffineModel3D< M > > void compare( final M model, final boolean fixFirstTile ) throws Exception
+	{
+		final double[][] sparse = solve( model, true, fixFirstTile );
+		final double[][] iterative = solve( model, false, fixFirstTile );
+
+		for ( int i = 0; i < sparse.length; ++i )
+			for ( int d = 0; d < 3; ++d )
+			{
+				Assert.assertEquals( iterative[ i ][ d ], sparse[ i ][ d ], tolerance );
+
+				// the first tile is the identity, so the ideal solution maps each corner back to its world location;
+				// the points are noisy, but there are many of them
+				Assert.assertEquals( corner( i / 8, i % 8 )[ d ], sparse[ i ][ d ], 1.0 );
+			}
+	}
+
+	/**
+	 * @return - corner c of tile i in world coordinates
+	 */
+	protected static double[] corner( final int i, final int c )
+	{
+		return new double[]{
+				( i % grid ) * tileStep + ( c & 1 ) * tileSize,
+				( i / grid ) * tileStep + ( ( c >> 1 ) & 1 ) * tileSize,
+				( ( c >> 2 ) & 1 ) * tileDepth };
+	}
+
+	/**
+	 * @return - the corners of every tile transformed by its model, relative to the first tile if no tile is fixed
+	 * (then only the relative placement of the tiles is defined)
+	 */
+	protected static < M extends AbstractAffineModel3D< M > > double[][] solve( final M model, final boolean sparse, final boolean fixFirstTile ) throws Exception
+	{
+		final Random rnd = new Random( 13 );
+		final int n = grid * grid;
+
+		final AffineModel3D[] truth = new AffineModel3D[ n ];
+		final ArrayList< Tile< M > > tiles = new ArrayList< Tile< M > >();
+		final TileConfiguration tc = new TileConfiguration();
+
+		for ( int i = 0; i < n; ++i )
+		{
+			// the first tile is the identity, so the truth is the solution (also relative to it if nothing is fixed)
+			truth[ i ] = i == 0 ? new AffineModel3D() : createTruth( model, rnd );
+			tiles.add( new Tile< M >( model.copy() ) );
+			tc.addTile( tiles.get( i ) );
+		}
+
+		if ( fixFirstTile )
+			tc.fixTile( tiles.get( 0 ) );
+
+		final SparseGlobalOpt< M > solver = sparse ? new SparseGlobalOpt< M >( tc ) : null;
+
+		for ( int y = 0; y < grid; ++y )
+			for ( int x = 0; x < grid; ++x )
+				for ( final int[] offset : new int[][]{ { 1, 0 }, { 0, 1 }, { 1, 1 } } )
+				{
+					if ( x + offset[ 0 ] >= grid || y + offset[ 1 ] >= grid )
+						continue;
+
+					final int a = y * grid + x;
+					final int b = ( y + offset[ 1 ] ) * grid + x + offset[ 0 ];
+
+					final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+
+					for ( int k = 0; k < 40; ++k )
+					{
+						// a world location in the overlap of both tiles
+						final double[] p = new double[]{
+								( x + offset[ 0 ] ) * tileStep + rnd.nextDouble() * ( tileSize - tileStep ),
+								( y + offset[ 1 ] ) * tileStep + rnd.nextDouble() * ( tileSize - tileStep ),
+								rnd.nextDouble() * tileDepth };
+
+						final double[] pa = truth[ a ].applyInverse( p.clone() );
+						final double[] pb = truth[ b ].applyInverse( p.clone() );
+
+						for ( int d = 0; d < 3; ++d )
+						{
+							pa[ d ] += rnd.nextGaussian() * 0.1;
+							pb[ d ] += rnd.nextGaussian() * 0.1;
+						}
+
+						matches.add( new PointMatch( new Point( pa ), new Point( pb ) ) );
+					}
+
+					if ( sparse )
+					{
+						solver.addMatches( matches, tiles.get( a ), tiles.get( b ) );
+					}
+					else
+					{
+						tiles.get( a ).addMatches( matches );
+						tiles.get( b ).addMatches( PointMatch.flip( matches ) );
+						tiles.get( a ).addConnectedTile( tiles.get( b ) );
+						tiles.get( b ).addConnectedTile( tiles.get( a ) );
+					}
+				}
+
+		if ( sparse )
+			solver.optimize();
+		else
+			tc.optimize( 0, 5000, 200 );
+
+		final double[][] corners = new double[ n * 8 ][];
+
+		for ( int i = 0; i < n; ++i )
+			for ( int c = 0; c < 8; ++c )
+			{
+				// the corner in the local coordinates of the tile, mapped by its model
+				final double[] w = tiles.get( i ).getModel().apply( truth[ i ].applyInverse( corner( i, c ) ) );
+
+				if ( !fixFirstTile )
+					tiles.get( 0 ).getModel().applyInverseInPlace( w );
+
+				corners[ i * 8 + c ] = w;
+			}
+
+		return corners;
+	}
+
+	protected static AffineModel3D createTruth( final AbstractAffineModel3D< ? > model, final Random rnd )
+	{
+		final AffineModel3D truth = new AffineModel3D();
+		final double tx = rnd.nextGaussian() * 10, ty = rnd.nextGaussian() * 10, tz = rnd.nextGaussian() * 10;
+
+		if ( model instanceof TranslationModel3D )
+		{
+			truth.set( 1, 0, 0, tx, 0, 1, 0, ty, 0, 0, 1, tz );
+			return truth;
+		}
+
+		final double a = rnd.nextGaussian() * 0.02, b = rnd.nextGaussian() * 0.02, c = rnd.nextGaussian() * 0.02;
+		final double ca = Math.cos( a ), sa = Math.sin( a ), cb = Math.cos( b ), sb = Math.sin( b ), cc = Math.cos( c ), sc = Math.sin( c );
+
+		// R = Rz( c ) * Ry( b ) * Rx( a )
+		final double[] m = new double[]{
+				cc * cb, cc * sb * sa - sc * ca, cc * sb * ca + sc * sa,
+				sc * cb, sc * sb * sa + cc * ca, sc * sb * ca - cc * sa,
+				-sb, cb * sa, cb * ca };
+
+		if ( model instanceof AffineModel3D )
+			for ( int i = 0; i < m.length; ++i )
+				m[ i ] += rnd.nextGaussian() * 0.01;
+
+		truth.set( m[ 0 ], m[ 1 ], m[ 2 ], tx, m[ 3 ], m[ 4 ], m[ 5 ], ty, m[ 6 ], m[ 7 ], m[ 8 ], tz );
+
+		return truth;
+	}
+}
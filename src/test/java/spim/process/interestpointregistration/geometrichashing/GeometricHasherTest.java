@@ -0,0 +1,135 @@
+package spim.process.interestpointregistration.geometrichashing;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.pointdescriptor.LocalCoordinateSystemPointDescriptor;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.PointCloud;
+
+public class GeometricHasherTest
+{
+	/**
+	 * the same random points, rotated and shifted, with a bit of noise and some points missing in either view
+	 */
+	protected static PointCloud[] createClouds( final int n, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayList< double[] > a = new ArrayList< double[] >();
+		final ArrayList< double[] > b = new ArrayList< double[] >();
+
+		final double angle = Math.toRadians( 30 );
+		final double cos = Math.cos( angle ), sin = Math.sin( angle );
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final double[] p = new double[]{ rnd.nextDouble() * 300, rnd.nextDouble() * 300, rnd.nextDouble() * 100 };
+
+			if ( i % 20 != 0 )
+				a.add( p );
+
+			if ( i % 20 != 10 )
+				b.add( new double[]{
+						cos * p[ 0 ] - sin * p[ 1 ] + 50 + rnd.nextGaussian() * 0.1,
+						sin * p[ 0 ] + cos * p[ 1 ] - 20 + rnd.nextGaussian() * 0.1,
+						p[ 2 ] + 5 + rnd.nextGaussian() * 0.1 } );
+		}
+
+		final PointCloud[] clouds = new PointCloud[]{ new PointCloud( a.size() ), new PointCloud( b.size() ) };
+
+		for ( int i = 0; i < a.size(); ++i )
+			clouds[ 0 ].set( i, i, a.get( i )[ 0 ], a.get( i )[ 1 ], a.get( i )[ 2 ] );
+
+		for ( int i = 0; i < b.size(); ++i )
+			clouds[ 1 ].set( i, i, b.get( i )[ 0 ], b.get( i )[ 1 ], b.get( i )[ 2 ] );
+
+		return clouds;
+	}
+
+	protected static double valueDistance( final LocalCoordinateSystemPointDescriptor< Detection > a, final LocalCoordinateSystemPointDescriptor< Detection > b )
+	{
+		double dist = 0;
+
+		for ( int d = 0; d < a.getNumDimensions(); ++d )
+			dist += ( a.get( d ) - b.get( d ) ) * ( a.get( d ) - b.get( d ) );
+
+		return dist;
+	}
+
+	@Test
+	public void candidatesMatchBruteForce()
+	{
+		final PointCloud[] clouds = createClouds( 400, 7 );
+		final double differenceThreshold = GeometricHashingParameters.differenceThreshold;
+		final double ratioOfDistance = GeometricHashingParameters.ratioOfDistance;
+
+		final DescriptorIndex indexA = DescriptorIndex.create( clouds[ 0 ], GeometricHasher.numNeighbors );
+		final DescriptorIndex indexB = DescriptorIndex.create( clouds[ 1 ], GeometricHasher.numNeighbors );
+
+		final ArrayList< PointMatchGeneric< Detection > > candidates =
+				new GeometricHasher().extractCorrespondenceCandidates( indexA, indexB, differenceThreshold, ratioOfDistance );
+
+		// brute force: the two closest descriptors of B for each descriptor of A
+		final ArrayList< int[] > expected = new ArrayList< int[] >();
+
+		for ( final LocalCoordinateSystemPointDescriptor< Detection > descriptorA : indexA.getDescriptors() )
+		{
+			LocalCoordinateSystemPointDescriptor< Detection > first = null, second = null;
+
+			for ( final LocalCoordinateSystemPointDescriptor< Detection > descriptorB : indexB.getDescriptors() )
+			{
+				if ( first == null || valueDistance( descriptorA, descriptorB ) < valueDistance( descriptorA, first ) )
+				{
+					second = first;
+					first = descriptorB;
+				}
+				else if ( second == null || valueDistance( descriptorA, descriptorB ) < valueDistance( descriptorA, second ) )
+				{
+					second = descriptorB;
+				}
+			}
+
+			final double best = descriptorA.descriptorDistance( first );
+			final double secondBest = descriptorA.descriptorDistance( second );
+
+			if ( best < differenceThreshold && best * ratioOfDistance <= secondBest )
+				expected.add( new int[]{ descriptorA.getBasisPoint().getId(), first.getBasisPoint().getId() } );
+		}
+
+		// a good part of the points is found, their neighborhoods must be complete in both views
+		Assert.assertTrue( expected.size() > clouds[ 0 ].size() / 4 );
+		Assert.assertEquals( expected.size(), candidates.size() );
+
+		// the same pairs, the candidates are only sorted by descriptor distance
+		final ArrayList< String > expectedPairs = new ArrayList< String >();
+
+		for ( final int[] pair : expected )
+			expectedPairs.add( pair[ 0 ] + "-" + pair[ 1 ] );
+
+		double lastDistance = -1;
+
+		for ( final PointMatchGeneric< Detection > candidate : candidates )
+		{
+			Assert.assertTrue( expectedPairs.contains( candidate.getPoint1().getId() + "-" + candidate.getPoint2().getId() ) );
+
+			final double distance = descriptorOf( indexA, candidate.getPoint1() ).descriptorDistance( descriptorOf( indexB, candidate.getPoint2() ) );
+
+			Assert.assertTrue( distance >= lastDistance );
+			lastDistance = distance;
+		}
+	}
+
+	protected static LocalCoordinateSystemPointDescriptor< Detection > descriptorOf( final DescriptorIndex index, final Detection basisPoint )
+	{
+		for ( final LocalCoordinateSystemPointDescriptor< Detection > descriptor : index.getDescriptors() )
+			if ( descriptor.getBasisPoint() == basisPoint )
+				return descriptor;
+
+		return null;
+	}
+}
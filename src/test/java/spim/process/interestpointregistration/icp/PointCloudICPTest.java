@@ -0,0 +1,199 @@
+package spim.process.interestpointregistration.icp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mpicbg.icp.ICP;
+import mpicbg.models.AbstractAffineModel3D;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.PointCloud;
+
+/**
+ * Compares {@link PointCloudICP} with the {@link ICP} of mpicbg (nearest neighbors by
+ * {@link mpicbg.icp.SimplePointMatchIdentification}, ambiguous matches removed)
+ */
+public class PointCloudICPTest
+{
+	final static double maxDistance = 4;
+	final static int numIterations = 15;
+
+	/**
+	 * a jittered grid and the same points moved by the transformation, with noise and some points missing in either cloud
+	 *
+	 * @return - the target and the reference points
+	 */
+	protected static ArrayList< ArrayList< double[] > > createPoints( final double[] rotation, final double[] translation, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayList< double[] > target = new ArrayList< double[] >();
+		final ArrayList< double[] > reference = new ArrayList< double[] >();
+
+		for ( int z = 0; z < 6; ++z )
+			for ( int y = 0; y < 12; ++y )
+				for ( int x = 0; x < 12; ++x )
+				{
+					final double[] p = new double[]{
+							x * 10 + rnd.nextDouble() * 2,
+							y * 10 + rnd.nextDouble() * 2,
+							z * 10 + rnd.nextDouble() * 2 };
+
+					if ( rnd.nextDouble() > 0.05 )
+						target.add( p );
+
+					if ( rnd.nextDouble() > 0.05 )
+					{
+						final double[] q = new double[ 3 ];
+
+						for ( int r = 0; r < 3; ++r )
+							q[ r ] = rotation[ r * 3 ] * p[ 0 ] + rotation[ r * 3 + 1 ] * p[ 1 ] + rotation[ r * 3 + 2 ] * p[ 2 ] + translation[ r ] + rnd.nextGaussian() * 0.2;
+
+						reference.add( q );
+					}
+				}
+
+		final ArrayList< ArrayList< double[] > > points = new ArrayList< ArrayList< double[] > >();
+		points.add( target );
+		points.add( reference );
+
+		return points;
+	}
+
+	protected static PointCloud toPointCloud( final ArrayList< double[] > points )
+	{
+		final PointCloud cloud = new PointCloud( points.size() );
+
+		for ( int i = 0; i < points.size(); ++i )
+			cloud.set( i, i, points.get( i )[ 0 ], points.get( i )[ 1 ], points.get( i )[ 2 ] );
+
+		return cloud;
+	}
+
+	protected static ArrayList< Detection > toDetections( final ArrayList< double[] > points )
+	{
+		final ArrayList< Detection > detections = new ArrayList< Detection >();
+
+		for ( int i = 0; i < points.size(); ++i )
+		{
+			final Detection d = new Detection( i, points.get( i ).clone() );
+
+			// use the world and not the local coordinates
+			d.setUseW( true );
+			detections.add( d );
+		}
+
+		return detections;
+	}
+
+	protected static < M extends AbstractAffineModel3D< M > > void compare( final M model, final double[] rotation, final double[] translation, final ExecutorService service, final int numThreads ) throws Exception
+	{
+		final ArrayList< ArrayList< double[] > > points = createPoints( rotation, translation, 17 );
+
+		final M modelA = model.copy();
+		final ICP< Detection > icpA = new ICP< Detection >( toDetections( points.get( 0 ) ), toDetections( points.get( 1 ) ), maxDistance );
+
+		final M modelB = model.copy();
+		final PointCloudICP icpB = new PointCloudICP( toPointCloud( points.get( 0 ) ), toPointCloud( points.get( 1 ) ), maxDistance, service, numThreads );
+
+		for ( int i = 0; i < numIterations; ++i )
+		{
+			icpA.runICPIteration( modelA, modelA );
+			icpB.runICPIteration( modelB );
+
+			Assert.assertEquals( icpA.getNumPointMatches(), icpB.getNumPointMatches() );
+			Assert.assertEquals( icpA.getAverageError(), icpB.getAverageError(), 1e-9 );
+			Assert.assertEquals( icpA.getMaximalError(), icpB.getMaximalError(), 1e-9 );
+
+			final double[][] a = new double[ 3 ][ 4 ], b = new double[ 3 ][ 4 ];
+			modelA.toMatrix( a );
+			modelB.toMatrix( b );
+
+			for ( int r = 0; r < 3; ++r )
+				Assert.assertArrayEquals( a[ r ], b[ r ], 1e-9 );
+		}
+
+		// the same pairs of points
+		final HashSet< String > pairsA = new HashSet< String >();
+
+		for ( final PointMatch pm : icpA.getPointMatches() )
+			pairsA.add( ( (Detection)pm.getP1() ).getId() + "-" + ( (Detection)pm.getP2() ).getId() );
+
+		final ArrayList< PointMatchGeneric< Detection > > correspondences = icpB.getCorrespondences();
+
+		Assert.assertEquals( pairsA.size(), correspondences.size() );
+
+		for ( final PointMatchGeneric< Detection > pm : correspondences )
+			Assert.assertTrue( pairsA.contains( pm.getPoint1().getId() + "-" + pm.getPoint2().getId() ) );
+
+		// some points are farther apart than the maximal distance at first, most of them match in the end
+		Assert.assertTrue( correspondences.size() > points.get( 0 ).size() * 0.8 );
+	}
+
+	@Test
+	public void ambiguousMatchesAreRemoved() throws Exception
+	{
+		// much denser than the maximal distance, many target points have the same closest reference point
+		final Random rnd = new Random( 3 );
+		final PointCloud target = new PointCloud( 3000 );
+		final PointCloud reference = new PointCloud( 1000 );
+
+		for ( int i = 0; i < target.size(); ++i )
+			target.set( i, i, rnd.nextDouble() * 50, rnd.nextDouble() * 50, rnd.nextDouble() * 50 );
+
+		for ( int i = 0; i < reference.size(); ++i )
+			reference.set( i, i, rnd.nextDouble() * 50, rnd.nextDouble() * 50, rnd.nextDouble() * 50 );
+
+		final PointCloudICP icp = new PointCloudICP( target, reference, maxDistance, null, 1 );
+		final TranslationModel3D model = new TranslationModel3D();
+
+		icp.runICPIteration( model );
+
+		Assert.assertTrue( icp.getNumAmbiguousMatches() > 0 );
+
+		final HashSet< Integer > used = new HashSet< Integer >();
+
+		for ( final PointMatchGeneric< Detection > pm : icp.getCorrespondences() )
+		{
+			Assert.assertTrue( used.add( pm.getPoint2().getId() ) );
+
+			// the correspondences were found with the identity (the model before this iteration)
+			Assert.assertTrue( pm.getPoint1().distanceTo( pm.getPoint2() ) <= maxDistance + 1e-4 );
+		}
+
+		Assert.assertEquals( used.size(), icp.getNumPointMatches() );
+	}
+
+	@Test
+	public void translationMatchesMpicbgICP() throws Exception
+	{
+		compare( new TranslationModel3D(), new double[]{ 1, 0, 0, 0, 1, 0, 0, 0, 1 }, new double[]{ 2.5, -1.5, 1 }, null, 1 );
+	}
+
+	@Test
+	public void rigidMatchesMpicbgICP() throws Exception
+	{
+		final double a = Math.toRadians( 1 );
+		final double[] rotation = new double[]{ Math.cos( a ), -Math.sin( a ), 0, Math.sin( a ), Math.cos( a ), 0, 0, 0, 1 };
+
+		final ExecutorService service = Executors.newFixedThreadPool( 4 );
+
+		try
+		{
+			compare( new RigidModel3D(), rotation, new double[]{ 1.5, 1, -0.5 }, service, 4 );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+}